@@ -0,0 +1,121 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.annotations.Param;
+
+import codeu.chat.util.CodecBenchmark;
+import codeu.chat.util.InterestInfo;
+import codeu.chat.util.LatencyHistogram;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// SERIALIZER BENCHMARK
+//
+// Every public serializer, each with a value like the ones the server and the
+// clients send each other. See "CodecBenchmark" for what is measured.
+public class SerializerBenchmark extends CodecBenchmark {
+
+  private static final Uuid ID = new Uuid(new Uuid(new Uuid(100), 7), 123456789);
+  private static final Time TIME = Time.fromMs(1497000000000L);
+  private static final String TEXT = "Has anyone looked at why the relay falls behind after lunch?";
+
+  // How many ids are in the "collection" value: about a page of messages.
+  private static final int IDS = 32;
+
+  @Param({
+      "boolean", "integer", "long", "bytes", "string", "collection", "nullable",
+      "uuid", "time", "user", "conversation", "payload", "message", "secret",
+      "interest", "histogram", "stats" })
+  public String codec;
+
+  @Override
+  protected Codec<?> codec() throws IOException {
+    switch (codec) {
+      case "boolean":
+        return new Codec<>(Serializers.BOOLEAN, true);
+      case "integer":
+        return new Codec<>(Serializers.INTEGER, 123456789);
+      case "long":
+        return new Codec<>(Serializers.LONG, 1234567890123L);
+      case "bytes":
+        return new Codec<>(Serializers.BYTES, new byte[256]);
+      case "string":
+        return new Codec<>(Serializers.STRING, TEXT);
+      case "collection":
+        return new Codec<>(Serializers.collection(Uuid.SERIALIZER), ids());
+      case "nullable":
+        return new Codec<>(Serializers.nullable(Uuid.SERIALIZER), ID);
+      case "uuid":
+        return new Codec<>(Uuid.SERIALIZER, ID);
+      case "time":
+        return new Codec<>(Time.SERIALIZER, TIME);
+      case "user":
+        return new Codec<>(User.SERIALIZER, new User(ID, "ada", TIME));
+      case "conversation":
+        return new Codec<>(ConversationHeader.SERIALIZER,
+                           new ConversationHeader(ID, ID, TIME, "relay"));
+      case "payload":
+        return new Codec<>(ConversationPayload.SERIALIZER, new ConversationPayload(ID, ID, ID));
+      case "message":
+        return new Codec<>(Message.SERIALIZER, new Message(ID, ID, ID, TIME, ID, TEXT));
+      case "secret":
+        return new Codec<>(Secret.SERIALIZER, Secret.parse("ABABABABABABABAB"));
+      case "interest":
+        return new Codec<>(InterestInfo.SERIALIZER, new InterestInfo());
+      case "histogram":
+        return new Codec<>(LatencyHistogram.SERIALIZER, histogram());
+      case "stats":
+        return new Codec<>(ServerStats.SERIALIZER, stats());
+      default:
+        throw new IllegalArgumentException("Unknown codec: " + codec);
+    }
+  }
+
+  private static Collection<Uuid> ids() {
+    final Collection<Uuid> ids = new ArrayList<>(IDS);
+    for (int i = 0; i < IDS; i++) {
+      ids.add(new Uuid(ID, i));
+    }
+    return ids;
+  }
+
+  private static LatencyHistogram histogram() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (long nanos = 1000; nanos < 1000000000L; nanos = nanos * 5 / 4) {
+      histogram.record(nanos);
+    }
+    return histogram;
+  }
+
+  // A snapshot of a server that has seen a few kinds of request.
+  private static ServerStats stats() {
+    final Map<Integer, ServerStats.Command> commands = new TreeMap<>();
+    for (final int type : new int[] {
+        NetworkCode.NEW_MESSAGE_REQUEST,
+        NetworkCode.GET_MESSAGES_BY_ID_REQUEST,
+        NetworkCode.GET_ALL_CONVERSATIONS_REQUEST }) {
+      commands.put(type, new ServerStats.Command(1000, 3, 0, 64000, 128000, histogram(), histogram()));
+    }
+    return new ServerStats(TIME, 0, commands);
+  }
+}
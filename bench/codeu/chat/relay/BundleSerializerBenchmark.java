@@ -0,0 +1,114 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Param;
+
+import codeu.chat.common.Relay;
+import codeu.chat.util.CodecBenchmark;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// BUNDLE SERIALIZER BENCHMARK
+//
+// The relay's bundle serializer, which every relay read and write goes
+// through, on its own and for a page of bundles from one busy conversation -
+// sent plainly, and compact with a dictionary (see "ComponentDictionary").
+// See "CodecBenchmark" for what is measured.
+public class BundleSerializerBenchmark extends CodecBenchmark {
+
+  // A page is a poll response from a conversation that a few users are
+  // talking in.
+  private static final int PAGE = 64;
+  private static final int USERS = 4;
+
+  // A new dictionary for every page, as for every poll response.
+  private static final Serializer<Collection<Relay.Bundle>> COMPACT_PAGE =
+      new Serializer<Collection<Relay.Bundle>>() {
+
+    @Override
+    public void write(OutputStream out, Collection<Relay.Bundle> value) throws IOException {
+      Serializers.collection(ServerFrontEnd.bundles(ServerFrontEnd.dictionary())).write(out, value);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(InputStream in) throws IOException {
+      return Serializers.collection(ServerFrontEnd.bundles(ServerFrontEnd.dictionary())).read(in);
+    }
+  };
+
+  @Param({ "bundle", "page", "compact-page" })
+  public String codec;
+
+  @Override
+  protected Codec<?> codec() throws IOException {
+    switch (codec) {
+      case "bundle":
+        return new Codec<>(ServerFrontEnd.BUNDLE_SERIALIZER, bundle(0));
+      case "page":
+        return new Codec<>(Serializers.collection(ServerFrontEnd.BUNDLE_SERIALIZER), page());
+      case "compact-page":
+        return new Codec<>(COMPACT_PAGE, page());
+      default:
+        throw new IllegalArgumentException("Unknown codec: " + codec);
+    }
+  }
+
+  private static Collection<Relay.Bundle> page() throws IOException {
+    final List<Relay.Bundle> page = new ArrayList<>();
+    for (int i = 0; i < PAGE; i++) {
+      page.add(bundle(i));
+    }
+    return page;
+  }
+
+  private static Relay.Bundle bundle(int i) throws IOException {
+
+    final Uuid id = new Uuid(new Uuid(100), 123456789 + i);
+    final Uuid user = new Uuid(new Uuid(100), 1000 + i % USERS);
+    final Uuid conversation = new Uuid(new Uuid(100), 2000);
+    final Time time = Time.fromMs(1497000000000L);
+
+    // The bundle is built by reading one, as that is the only way the relay
+    // makes them. The fields are written in the order the serializer reads them.
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Uuid.SERIALIZER.write(out, id);
+    Time.SERIALIZER.write(out, time);
+    Uuid.SERIALIZER.write(out, new Uuid(100));
+    component(out, user, "ada-" + i % USERS, time);
+    component(out, conversation, "relay", time);
+    component(out, id, "Has anyone looked at why the relay falls behind after lunch?", time);
+
+    return ServerFrontEnd.BUNDLE_SERIALIZER.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static void component(ByteArrayOutputStream out, Uuid id, String text, Time time)
+      throws IOException {
+    Uuid.SERIALIZER.write(out, id);
+    Serializers.STRING.write(out, text);
+    Time.SERIALIZER.write(out, time);
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// MODEL BENCHMARK
+//
+// The cost of adding a message to a model that already holds "size" messages.
+// Adding changes the model, so every iteration starts from a freshly filled
+// model and measures one batch of BATCH adds (a single shot). The score is for
+// the whole batch.
+//
+// The filled model is shared with "ViewBenchmark": "size" messages spread over
+// conversations of MESSAGES_PER_CONVERSATION messages each.
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 3, batchSize = ModelBenchmark.BATCH)
+@Measurement(iterations = 5, batchSize = ModelBenchmark.BATCH)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ModelBenchmark {
+
+  static final int BATCH = 10000;
+  static final int MESSAGES_PER_CONVERSATION = 10;
+
+  private static final Uuid AUTHOR = new Uuid(1);
+  private static final String CONTENT = "The quick brown fox jumps over the lazy dog.";
+
+  @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+  public int size;
+
+  private Model model;
+  private Uuid conversation;
+  private Message[] batch;
+  private int next;
+
+  @Setup(Level.Iteration)
+  public void fill() {
+
+    model = filledModel(size);
+    conversation = conversationId(0);
+
+    // The new messages come after everything in the model, like new messages
+    // from clients do.
+    batch = new Message[BATCH];
+    for (int i = 0; i < BATCH; i++) {
+      batch[i] = message(size + i);
+    }
+
+    next = 0;
+  }
+
+  @Benchmark
+  public void addMessage() {
+    model.add(batch[next++]);
+  }
+
+  @Benchmark
+  public void addMessageToConversation() {
+    model.add(conversation, batch[next++]);
+  }
+
+  // FILLED MODEL
+  //
+  // A model with "messages" messages in conversations of
+  // MESSAGES_PER_CONVERSATION messages each. The bulk adds are used so that
+  // setting up the larger sizes does not take longer than the benchmarks.
+  static Model filledModel(int messages) {
+
+    final int conversations = conversations(messages);
+
+    final Collection<ConversationHeader> headers = new ArrayList<>(conversations);
+    final Map<Uuid, List<Message>> byConversation = new HashMap<>();
+
+    for (int c = 0; c < conversations; c++) {
+      final Uuid id = conversationId(c);
+      headers.add(new ConversationHeader(id, AUTHOR, Time.fromMs(c), "conversation " + c));
+      byConversation.put(id, new ArrayList<Message>(MESSAGES_PER_CONVERSATION));
+    }
+
+    for (int m = 0; m < messages; m++) {
+      byConversation.get(conversationId(m / MESSAGES_PER_CONVERSATION)).add(message(m));
+    }
+
+    final Model model = new Model();
+    model.addConversations(headers, new HashMap<Uuid, ConversationPayload>());
+    model.addMessages(byConversation);
+    return model;
+  }
+
+  static int conversations(int messages) {
+    return Math.max(1, (messages + MESSAGES_PER_CONVERSATION - 1) / MESSAGES_PER_CONVERSATION);
+  }
+
+  // Conversations and messages are in different stores, but are kept apart
+  // anyway by giving them different roots.
+  static Uuid conversationId(int index) {
+    return new Uuid(new Uuid(2), index);
+  }
+
+  static Uuid messageId(int index) {
+    return new Uuid(new Uuid(3), index);
+  }
+
+  // The messages are not linked to each other as nothing being measured reads
+  // the links.
+  private static Message message(int index) {
+    return new Message(messageId(index), Uuid.NULL, Uuid.NULL, Time.fromMs(index), AUTHOR, CONTENT);
+  }
+}
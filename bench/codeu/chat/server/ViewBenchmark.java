@@ -0,0 +1,96 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.util.Uuid;
+
+// VIEW BENCHMARK
+//
+// The cost of the reads clients make most, against a model filled by
+// "ModelBenchmark.filledModel" with "size" messages. Reads leave the model as
+// it is, so it is filled once and every call is measured on its own.
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ViewBenchmark {
+
+  // How many ids each "getMessages" asks for. About what a client asks for
+  // when it shows a page of a conversation.
+  static final int IDS = 100;
+
+  // How many different id sets the "getMessages" calls go through.
+  private static final int ID_SETS = 64;
+
+  @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+  public int size;
+
+  private View view;
+  private final List<Collection<Uuid>> ids = new ArrayList<>();
+  private int next;
+
+  @Setup(Level.Trial)
+  public void fill() {
+
+    view = new View(ModelBenchmark.filledModel(size));
+
+    final Random random = new Random(size);
+    for (int i = 0; i < ID_SETS; i++) {
+      final Collection<Uuid> set = new ArrayList<>(IDS);
+      for (int j = 0; j < IDS; j++) {
+        set.add(ModelBenchmark.messageId(random.nextInt(size)));
+      }
+      ids.add(set);
+    }
+  }
+
+  @Benchmark
+  public Collection<Message> getMessages() {
+    next = (next + 1) % ID_SETS;
+    return view.getMessages(ids.get(next));
+  }
+
+  // GET CONVERSATIONS
+  //
+  // Copies every conversation, so this grows with the number of conversations
+  // (size / MESSAGES_PER_CONVERSATION).
+  @Benchmark
+  public Collection<ConversationHeader> getConversations() {
+    return view.getConversations();
+  }
+}
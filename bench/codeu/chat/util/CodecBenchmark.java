@@ -0,0 +1,169 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CODEC BENCHMARK
+//
+// Encode and decode throughput of one serializer at a time. Subclasses pick
+// the serializer and a typical value for it with a "codec" parameter and
+// "codec(String)". Every codec is measured against two kinds of stream:
+//
+//   memory : byte array streams, so only the serializer's own work is measured.
+//
+//   socket : buffered streams over an endpoint that behaves like a socket. The
+//            output is flushed after every value, like a response is, and
+//            reads are handed out in segments of at most SEGMENT bytes.
+//
+// Run with the gc profiler to get the allocation rate of each codec as well:
+//
+//   python build.py bench Serializer -prof gc
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public abstract class CodecBenchmark {
+
+  // A TCP segment on an ethernet link.
+  static final int SEGMENT = 1460;
+
+  // One serializer and the value it is measured with.
+  protected static final class Codec<T> {
+
+    final Serializer<T> serializer;
+    final T value;
+
+    public Codec(Serializer<T> serializer, T value) {
+      this.serializer = serializer;
+      this.value = value;
+    }
+  }
+
+  @Param({ "memory", "socket" })
+  public String stream;
+
+  private Serializer<Object> serializer;
+  private Object value;
+
+  private ByteArrayOutputStream memoryOut;
+  private ByteArrayInputStream memoryIn;
+  private OutputStream out;
+  private InputStream in;
+
+  protected abstract Codec<?> codec() throws IOException;
+
+  @Setup(Level.Trial)
+  @SuppressWarnings("unchecked")
+  public void setUp() throws IOException {
+
+    final Codec<?> codec = codec();
+    serializer = (Serializer<Object>) codec.serializer;
+    value = codec.value;
+
+    final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    serializer.write(encoded, value);
+    final byte[] bytes = encoded.toByteArray();
+
+    if ("memory".equals(stream)) {
+      memoryOut = new ByteArrayOutputStream(bytes.length);
+      memoryIn = new ByteArrayInputStream(bytes);
+      out = memoryOut;
+      in = memoryIn;
+    } else if ("socket".equals(stream)) {
+      out = new BufferedOutputStream(new SocketSink());
+      in = new BufferedInputStream(new SocketSource(bytes));
+    } else {
+      throw new IllegalArgumentException("Unknown stream: " + stream);
+    }
+  }
+
+  @Benchmark
+  public void encode() throws IOException {
+    if (memoryOut != null) {
+      memoryOut.reset();
+    }
+    serializer.write(out, value);
+    out.flush();
+  }
+
+  @Benchmark
+  public Object decode() throws IOException {
+    if (memoryIn != null) {
+      memoryIn.reset();
+    }
+    return serializer.read(in);
+  }
+
+  // Throws away everything written to it, like a socket whose peer is keeping
+  // up.
+  private static final class SocketSink extends OutputStream {
+
+    @Override
+    public void write(int b) { }
+
+    @Override
+    public void write(byte[] b, int off, int len) { }
+  }
+
+  // Plays back one encoded value over and over, so every decode finds a whole
+  // value waiting. No read returns more than SEGMENT bytes.
+  private static final class SocketSource extends InputStream {
+
+    private final byte[] bytes;
+    private int position;
+
+    SocketSource(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int read() {
+      final int b = bytes[position] & 0xFF;
+      position = (position + 1) % bytes.length;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      final int count = Math.min(Math.min(len, SEGMENT), bytes.length - position);
+      System.arraycopy(bytes, position, b, off, count);
+      position = (position + count) % bytes.length;
+      return count;
+    }
+  }
+}
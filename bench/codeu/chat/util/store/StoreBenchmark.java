@@ -0,0 +1,207 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// STORE BENCHMARK
+//
+// The cost of the basic store operations as the store grows. Every benchmark
+// runs against a store that already holds "size" values under the even keys
+// 0, 2, 4, ... so that odd keys are new and even keys are duplicates.
+//
+// Reads ("first" and "range") leave the store as it is and are measured as the
+// average time of one call. Writes change the store, so they are measured as
+// the time to run one batch of BATCH operations against a freshly filled store
+// (a single shot per iteration). The score of a write is for the whole batch.
+// "remove" walks the chain from the start, so its batch is kept small.
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StoreBenchmark {
+
+  static final int BATCH = 10000;
+  static final int REMOVE_BATCH = 100;
+  static final int RANGE = 100;
+
+  private static final Comparator<Integer> INTEGER_COMPARE = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) {
+      return a.compareTo(b);
+    }
+  };
+
+  @State(Scope.Thread)
+  public static class Filled {
+
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    public int size;
+
+    Store<Integer, Integer> store;
+    int[] keys;
+    int next;
+
+    @Setup(Level.Trial)
+    public void fill() {
+      store = filledStore(size);
+      keys = existingKeys(size, BATCH, new Random(size));
+    }
+
+    int nextKey() {
+      final int key = keys[next];
+      next = (next + 1) % keys.length;
+      return key;
+    }
+  }
+
+  // The state for the writes: a new store for every iteration, plus the keys
+  // the batch will use. Iteration setup is not part of the measurement.
+  @State(Scope.Thread)
+  public static class Fresh {
+
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    public int size;
+
+    Store<Integer, Integer> store;
+    int[] randomKeys;
+    int[] duplicateKeys;
+    int[] removeKeys;
+    int next;
+
+    @Setup(Level.Iteration)
+    public void fill() {
+
+      final Random random = new Random(size);
+
+      store = filledStore(size);
+
+      randomKeys = new int[BATCH];
+      for (int i = 0; i < BATCH; i++) {
+        randomKeys[i] = 2 * random.nextInt(size) + 1;
+      }
+
+      duplicateKeys = existingKeys(size, BATCH, random);
+
+      // Distinct keys, so every remove finds something to remove.
+      removeKeys = new int[Math.min(REMOVE_BATCH, size)];
+      for (int i = 0; i < removeKeys.length; i++) {
+        removeKeys[i] = 2 * (int) ((long) i * size / removeKeys.length);
+      }
+
+      next = 0;
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(batchSize = BATCH)
+  @Measurement(batchSize = BATCH)
+  public void insertRandom(Fresh state) {
+    final int key = state.randomKeys[state.next++];
+    state.store.insert(key, key);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(batchSize = BATCH)
+  @Measurement(batchSize = BATCH)
+  public void insertSequential(Fresh state) {
+    final int key = 2 * (state.size + state.next++);
+    state.store.insert(key, key);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(batchSize = BATCH)
+  @Measurement(batchSize = BATCH)
+  public void insertDuplicate(Fresh state) {
+    final int key = state.duplicateKeys[state.next++];
+    state.store.insert(key, key);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(batchSize = REMOVE_BATCH)
+  @Measurement(batchSize = REMOVE_BATCH)
+  public Integer remove(Fresh state) {
+    final int[] keys = state.removeKeys;
+    return state.store.remove(keys[state.next++ % keys.length]);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public Integer first(Filled state) {
+    return state.store.first(state.nextKey());
+  }
+
+  // RANGE
+  //
+  // Walk the values in a range of RANGE keys. The iterator is drained so that
+  // the walk is measured and not just creating the iterable.
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void range(Filled state, Blackhole hole) {
+    final int start = state.nextKey();
+    for (final Integer value : state.store.range(start, start + 2 * (RANGE - 1))) {
+      hole.consume(value);
+    }
+  }
+
+  // Fill a store with "size" values using the bulk insert, which keeps setting
+  // up the larger sizes from taking longer than the benchmarks themselves.
+  static Store<Integer, Integer> filledStore(int size) {
+    final Collection<Map.Entry<Integer, Integer>> entries = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<>(2 * i, i));
+    }
+    final Store<Integer, Integer> store = new Store<>(INTEGER_COMPARE);
+    store.insertAll(entries);
+    return store;
+  }
+
+  static int[] existingKeys(int size, int count, Random random) {
+    final int[] keys = new int[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = 2 * random.nextInt(size);
+    }
+    return keys;
+  }
+}
@@ -31,6 +31,11 @@
 #   run <class path> [ arguments ... ] : Run the specified class. All arguments
 #                                        after the class path will be passed to
 #                                        the java class when it runs.
+#
+#   bench [ arguments ... ] : Build the project and the JMH benchmarks found in
+#                             the bench directories, then run them. All
+#                             arguments are passed to JMH. JMH itself is
+#                             downloaded into third_party/bench the first time.
 ###############################################################################
 
 from __future__ import print_function
@@ -40,9 +45,17 @@ import shutil
 import subprocess
 import sys
 
+try:
+  from urllib.request import urlretrieve
+except ImportError:
+  from urllib import urlretrieve
+
 
 # Dictionary of settings that control java source compilation
 CONFIG = {
+  # The oldest Java the sources must compile for. Java 11 is the first with
+  # the Flight Recorder API (jdk.jfr) that codeu.chat.util.Events uses.
+  'release': '11',
   'out': 'bin',
   'src': [ 'src', 'test' ],
   'libraries': [
@@ -50,6 +63,17 @@ CONFIG = {
     'third_party/hamcrest-core-1.3.jar',
     'third_party/gson-2.8.1.jar'
   ],
+  'bench_out': 'bin-bench',
+  'bench_src': [ 'bench' ],
+  'bench_libraries_dir': 'third_party/bench',
+  'bench_libraries': [
+    # ( maven group path, artifact, version )
+    ( 'org/openjdk/jmh', 'jmh-core', '1.37' ),
+    ( 'org/openjdk/jmh', 'jmh-generator-annprocess', '1.37' ),
+    ( 'net/sf/jopt-simple', 'jopt-simple', '5.0.4' ),
+    ( 'org/apache/commons', 'commons-math3', '3.6.1' )
+  ],
+  'maven': 'https://repo1.maven.org/maven2',
   'separators': {
     'nt' : ';',
     'posix' : ':'
@@ -84,18 +108,12 @@ def build(config):
   libraries = config['libraries']
   out = config['out']
   separator = config['separators'][os.name]
-  src = config['src']
-
-  # Find all the java source files in the given source directories.
-  # Non-java source files are ignored.
-  src_files = [ ]
-  for src_path in src:
-    for root, dirs, files in os.walk(src_path):
-      src_files += [ os.path.join(root, file) for file in files if file.endswith('.java') ]
+  src_files = find_sources(config['src'])
 
   # Take everything so far and construct a single command to build the project.
   command = [ ]
   command += [ 'javac' ]
+  command += [ '--release', config['release'] ]
   command += [ '-d', out ]
   command += [ '-cp', separator.join([ out ] + libraries) ]
   command += [ '-Xlint' ]
@@ -107,6 +125,93 @@ def build(config):
   return exit_code
 
 
+# BENCH
+#
+# Build the project, then build the benchmarks against it and run them with
+# JMH. The benchmarks are kept out of the normal build so that building the
+# project never needs JMH. The JMH annotation processor generates the
+# benchmark harness while the benchmarks compile.
+#
+def bench(config, arguments):
+  separator = config['separators'][os.name]
+  out = config['bench_out']
+
+  exit_code = build(config)
+  if exit_code != 0:
+    return exit_code
+
+  jmh = fetch_bench_libraries(config)
+  class_path = separator.join([ out, config['out'] ] + config['libraries'] + jmh)
+
+  # Start from an empty output directory every time. The annotation processor
+  # generates the harness from scratch and trips over one left from before.
+  if os.path.isdir(out):
+    shutil.rmtree(out)
+  os.makedirs(out)
+
+  command = [ ]
+  command += [ 'javac' ]
+  command += [ '--release', config['release'] ]
+  command += [ '-d', out ]
+  command += [ '-cp', class_path ]
+  command += [ '-processorpath', separator.join(jmh) ]
+  command += [ '-Xlint' ]
+  command += find_sources(config['bench_src'])
+
+  print('Running: {}'.format(command))
+  exit_code = subprocess.call(command)
+  print('Bench build {}'.format('PASSED' if exit_code == 0 else 'FAILED'))
+  if exit_code != 0:
+    return exit_code
+
+  command = [ ]
+  command += [ 'java' ]
+  command += [ '-cp', class_path ]
+  command += [ 'org.openjdk.jmh.Main' ]
+  command += arguments
+
+  print('Running: {}'.format(command))
+  exit_code = subprocess.call(command)
+  print('Bench {}'.format('PASSED' if exit_code == 0 else 'FAILED'))
+  return exit_code
+
+
+# FETCH BENCH LIBRARIES
+#
+# Download the JMH jars from Maven Central unless they are already in the
+# bench libraries directory. Returns the paths of all the jars.
+#
+def fetch_bench_libraries(config):
+  directory = config['bench_libraries_dir']
+  if not os.path.isdir(directory):
+    os.makedirs(directory)
+
+  jars = [ ]
+  for group, artifact, version in config['bench_libraries']:
+    name = '{}-{}.jar'.format(artifact, version)
+    path = os.path.join(directory, name)
+    if not os.path.isfile(path):
+      url = '/'.join([ config['maven'], group, artifact, version, name ])
+      print('Downloading: {}'.format(url))
+      urlretrieve(url, path + '.part')
+      os.rename(path + '.part', path)
+    jars += [ path ]
+  return jars
+
+
+# FIND SOURCES
+#
+# Find all the java source files in the given source directories. Non-java
+# source files are ignored.
+#
+def find_sources(src):
+  src_files = [ ]
+  for src_path in src:
+    for root, dirs, files in os.walk(src_path):
+      src_files += [ os.path.join(root, file) for file in files if file.endswith('.java') ]
+  return src_files
+
+
 # RUN
 #
 # Run a class from within the project.
@@ -136,7 +241,7 @@ def run(config, start_class_path, arguments):
 # Print basic usage info.
 #
 def usage():
-  print('Usage: python build.py clean | build | rebuild | run | help')
+  print('Usage: python build.py clean | build | rebuild | run | bench | help')
   print('  clean   : Remove all files in the output directory.')
   print('            This does not remove the root of the output tree.')
   print('  build   : Build the full project. This will build all java files')
@@ -145,6 +250,9 @@ def usage():
   print('  run <class path> [ arguments ... ] : Run the specified class.')
   print('            All arguments after the class path will be passed to')
   print('            the java class when it runs.')
+  print('  bench [ arguments ... ] : Build and run the JMH benchmarks.')
+  print('            All arguments are passed to JMH, for example')
+  print('            "bench StoreBenchmark -p size=1000".')
   print('  help    : Print this helpful message.')
 
 
@@ -162,6 +270,8 @@ def main(args):
     elif 'rebuild' == command:
       exit_code += clean(CONFIG)
       exit_code += build(CONFIG)
+    elif 'bench' == command:
+      exit_code += bench(CONFIG, args[2:])
     elif 'run' == command:
       if len(args) > 2:
         java_class = args[2]
@@ -0,0 +1,97 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import codeu.chat.client.load.LoadGenerator;
+import codeu.chat.client.load.Mix;
+import codeu.chat.client.load.Report;
+import codeu.chat.util.Flags;
+import codeu.chat.util.Logger;
+import codeu.chat.util.RemoteAddress;
+
+// LOAD MAIN
+//
+// Runs the load generator against a server and prints the report as JSON:
+//
+//   LoadMain <host>@<port> [--users=N] [--duration=SECONDS] [--warmup=SECONDS]
+//            [--mix=OPERATION=WEIGHT,...] [--page=N] [--think-ms=MS]
+//            [--timeout-ms=MS] [--seed=N] [--out=FILE]
+//
+// See "LoadGenerator" and "Mix" for what these mean.
+final class LoadMain {
+
+  private static final Logger.Log LOG = Logger.newLog(LoadMain.class);
+
+  private static final int DEFAULT_USERS = 16;
+  private static final long DEFAULT_DURATION_SECONDS = 30;
+  private static final long DEFAULT_WARMUP_SECONDS = 5;
+  private static final int DEFAULT_PAGE = 20;
+  private static final long DEFAULT_THINK_MS = 0;
+  private static final int DEFAULT_TIMEOUT_MS = 10000;
+  private static final long DEFAULT_SEED = 1;
+
+  public static void main(String[] commandLine) {
+
+    final Flags flags = Flags.parse(commandLine);
+    final String[] args = flags.positional();
+
+    if (args.length != 1) {
+      System.err.println("Usage: LoadMain <host>@<port> [--users=N] [--duration=SECONDS]"
+                         + " [--warmup=SECONDS] [--mix=OPERATION=WEIGHT,...] [--page=N]"
+                         + " [--think-ms=MS] [--timeout-ms=MS] [--seed=N] [--out=FILE]");
+      System.exit(1);
+    }
+
+    try {
+      Logger.enableFileOutput("chat_load_log.log");
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to set logger to write to file");
+    }
+
+    final LoadGenerator generator = new LoadGenerator(
+        RemoteAddress.parse(args[0]),
+        flags.getInt("users", DEFAULT_USERS),
+        Mix.parse(flags.get("mix", Mix.DEFAULT)),
+        flags.getInt("page", DEFAULT_PAGE),
+        flags.getLong("think-ms", DEFAULT_THINK_MS),
+        flags.getInt("timeout-ms", DEFAULT_TIMEOUT_MS),
+        flags.getLong("seed", DEFAULT_SEED));
+
+    final Report report;
+    try {
+      report = generator.run(flags.getLong("warmup", DEFAULT_WARMUP_SECONDS) * 1000,
+                             flags.getLong("duration", DEFAULT_DURATION_SECONDS) * 1000);
+    } catch (InterruptedException ex) {
+      LOG.error(ex, "Interrupted during the load run.");
+      return;
+    }
+
+    if (flags.has("out")) {
+      try (final Writer out = new FileWriter(flags.get("out", null))) {
+        out.write(report.toJson());
+        out.write('\n');
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to write the report.");
+        System.exit(1);
+      }
+    } else {
+      System.out.println(report.toJson());
+    }
+  }
+}
@@ -15,13 +15,21 @@
 package codeu.chat;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Map;
 
 import codeu.chat.common.Secret;
+import codeu.chat.relay.RelayLog;
 import codeu.chat.relay.Server;
 import codeu.chat.relay.ServerFrontEnd;
+import codeu.chat.relay.TeamCursors;
+import codeu.chat.util.AdminServer;
+import codeu.chat.util.Flags;
 import codeu.chat.util.Logger;
+import codeu.chat.util.PrometheusText;
+import codeu.chat.util.Time;
 import codeu.chat.util.Timeline;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.Connection;
@@ -32,7 +40,49 @@ final class RelayMain {
 
   private static final Logger.Log LOG = Logger.newLog(RelayMain.class);
 
-  public static void main(String[] args) {
+  // See "ServerMain" - the relay takes the same logging flags.
+  private static final int DEFAULT_LOG_BUFFER = 8192;
+  private static final String DEFAULT_LOG_DROP = "newest";
+
+  // How long the relay's timeline has to get through its queue before the
+  // admin server reports it as stuck.
+  private static final long LIVENESS_TIMEOUT_MS = 5000;
+
+  // How many bundles the relay keeps in memory and how many it sends for one
+  // read, or for one poll. Reads from before what is in memory are served from
+  // the log, if the relay has one ("--data-dir").
+  private static final int DEFAULT_HISTORY = 1024;
+  private static final int DEFAULT_MAX_READ = 16;
+  private static final int DEFAULT_MAX_POLL = 1024;
+
+  // The log is kept in 64 MB segments. Once it is over 1 GB, or a segment has
+  // not been written to for a week, the oldest segments are deleted.
+  private static final long DEFAULT_SEGMENT_MB = 64;
+  private static final long DEFAULT_RETAIN_MB = 1024;
+  private static final long DEFAULT_RETAIN_HOURS = 24 * 7;
+
+  // How often the log is forced to disk and old segments are deleted.
+  private static final long LOG_MAINTENANCE_MS = 10000;
+
+  // The relay is safe to use from many threads, so by default connections are
+  // handled on as many threads as there are cores ("--threads").
+  private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  // How many connections may wait for a thread before new ones are closed
+  // right away ("--connection-queue"). Housekeeping only ever has a couple of
+  // tasks on timers.
+  private static final int DEFAULT_CONNECTION_QUEUE = 1024;
+  private static final int HOUSEKEEPING_BOUND = 16;
+
+  public static void main(String[] commandLine) {
+
+    final Flags flags = Flags.parse(commandLine);
+    final String[] args = flags.positional();
+
+    final int logBuffer = flags.getInt("log-buffer", DEFAULT_LOG_BUFFER);
+    if (logBuffer > 0) {
+      Logger.enableAsync(logBuffer, Logger.DropPolicy.parse(flags.get("log-drop", DEFAULT_LOG_DROP)));
+    }
 
     Logger.enableConsoleOutput();
 
@@ -46,17 +96,42 @@ final class RelayMain {
 
     final int myPort = Integer.parseInt(args[0]);
 
+    // With a data directory, the cursors teams commit are kept next to the
+    // log so that both survive a restart.
+    RelayLog log = null;
+    TeamCursors cursors = new TeamCursors();
+    if (flags.has("data-dir")) {
+      final File dataDir = new File(flags.get("data-dir", null));
+      try {
+        log = new RelayLog(dataDir,
+                           flags.getLong("segment-mb", DEFAULT_SEGMENT_MB) << 20,
+                           flags.getLong("retain-mb", DEFAULT_RETAIN_MB) << 20,
+                           flags.getLong("retain-hours", DEFAULT_RETAIN_HOURS) * 3600000L);
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to open the relay log");
+        return;
+      }
+      try {
+        cursors = new TeamCursors(new File(dataDir, "cursors"));
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to load the committed team cursors");
+        return;
+      }
+    }
+
     try (final ConnectionSource source = ServerConnectionSource.forPort(myPort)) {
 
-      // Limit the number of messages that the server tracks to be 1024 and limit the
-      // max number of messages that the relay will send out to be 16.
-      final Server relay = new Server(1024, 16);
+      final Server relay = new Server(flags.getInt("history", DEFAULT_HISTORY),
+                                      flags.getInt("max-read", DEFAULT_MAX_READ),
+                                      flags.getInt("max-poll", DEFAULT_MAX_POLL),
+                                      log,
+                                      cursors);
 
       LOG.info("Relay object created.");
 
       LOG.info("Starting relay...");
 
-      startRelay(relay, source, args[1]);
+      startRelay(relay, log, source, args[1], flags);
 
     } catch (IOException ex) {
       LOG.error(ex, "Failed to establish server accept port");
@@ -64,16 +139,24 @@ final class RelayMain {
   }
 
   private static void startRelay(final Server relay,
+                                 final RelayLog log,
                                  final ConnectionSource source,
-                                 final String teamFile) {
+                                 final String teamFile,
+                                 final Flags flags) {
+
+    final int threads = Math.max(1, flags.getInt("threads", DEFAULT_THREADS));
+    final Timeline timeline = new Timeline("relay", threads,
+                                           Math.max(1, flags.getInt("connection-queue", DEFAULT_CONNECTION_QUEUE)));
+    LOG.info("Relay timeline created with %d threads.", threads);
 
-    final ServerFrontEnd frontEnd = new ServerFrontEnd(relay);
+    // Held polls are answered on the relay's timeline after the next write.
+    final ServerFrontEnd frontEnd = new ServerFrontEnd(relay, timeline);
     LOG.info("Relay front end object created.");
 
-    final Timeline timeline = new Timeline();
-    LOG.info("Relay timeline created.");
+    // Reading the team file is slow and not urgent, so it has its own lane.
+    final Timeline housekeeping = new Timeline("housekeeping", 1, HOUSEKEEPING_BOUND);
 
-    timeline.scheduleNow(new Runnable() {
+    housekeeping.scheduleNow(new Runnable() {
       @Override
       public void run() {
         LOG.info("Loading team data...");
@@ -82,10 +165,37 @@ final class RelayMain {
 
         // Add this again in 1 minute so that new team entries will be added to
         // the relay. This won't support updating entries.
-        timeline.scheduleIn(60000, this);
+        housekeeping.scheduleIn(60000, this);
       }
     });
 
+    // Forcing the log can take a while, so it is done on the housekeeping lane
+    // rather than on a thread that could be handling a connection.
+    if (log != null) {
+      housekeeping.scheduleIn(LOG_MAINTENANCE_MS, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            log.force();
+            // Segments a team still needs to catch up from its committed
+            // cursor are kept past their age.
+            log.retain(System.currentTimeMillis(), relay.oldestCommitted());
+          } catch (IOException ex) {
+            LOG.error(ex, "Failed to maintain the relay log");
+          }
+          housekeeping.scheduleIn(LOG_MAINTENANCE_MS, this);
+        }
+      });
+    }
+
+    if (flags.has("admin-port")) {
+      try {
+        new AdminServer(flags.getInt("admin-port", 0), admin(relay, frontEnd, log, timeline)).start();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to start the admin server. Continuing without it.");
+      }
+    }
+
     LOG.info("Starting relay main loop...");
 
     while (true) {
@@ -95,7 +205,7 @@ final class RelayMain {
         final Connection connection = source.connect();
         LOG.info("Connection established.");
 
-        timeline.scheduleNow(new Runnable() {
+        final boolean accepted = timeline.offerNow(new Runnable() {
           @Override
           public void run() {
             try {
@@ -106,12 +216,150 @@ final class RelayMain {
           }
         });
 
+        // Shed load rather than queue up connections without end. The server
+        // sees the connection close and tries again later.
+        if (!accepted) {
+          LOG.warning("Relay is full (%d connections waiting). Connection closed.", timeline.queued());
+          connection.close();
+        }
+
       } catch (IOException ex) {
         LOG.error(ex, "Failed to establish connection.");
       }
     }
   }
 
+  // What the admin HTTP server reports for the relay. The relay and its log
+  // are safe to read from any thread, so the admin server reads them directly
+  // rather than waiting behind connections on the relay's timeline.
+  private static AdminServer.Target admin(final Server relay,
+                                          final ServerFrontEnd frontEnd,
+                                          final RelayLog log,
+                                          final Timeline timeline) {
+    return new AdminServer.Target() {
+
+      @Override
+      public void metrics(PrometheusText out) {
+
+        final Time oldest = relay.oldest();
+        final long[] counts = new long[] {
+          relay.writes(),
+          relay.reads(),
+          relay.unauthorized(),
+          relay.historySize(),
+          relay.maxHistory(),
+          relay.teams(),
+          oldest == null ? 0 : oldest.inMs(),
+          relay.evictedCursors(),
+          relay.unknownCursors(),
+          relay.logReads(),
+          relay.logFailures(),
+          log == null ? 0 : log.bytes(),
+          log == null ? 0 : log.segments(),
+          log == null || log.last() == 0 ? 0 : log.last() - log.first() + 1,
+          relay.batches(),
+          relay.polls(),
+          relay.waiting(),
+          relay.components(),
+          relay.componentReuses(),
+          frontEnd.componentsInFull(),
+          frontEnd.componentsByHandle()
+        };
+
+        out.family("relay_writes_total", "counter", "Bundles written to the relay.");
+        out.sample("relay_writes_total", counts[0]);
+        out.family("relay_write_batches_total", "counter", "Batch writes accepted by the relay.");
+        out.sample("relay_write_batches_total", counts[14]);
+        out.family("relay_reads_total", "counter", "Read requests served by the relay.");
+        out.sample("relay_reads_total", counts[1]);
+        out.family("relay_polls_total", "counter", "Times a poll looked for bundles.");
+        out.sample("relay_polls_total", counts[15]);
+        out.family("relay_held_polls", "gauge", "Polls being held until the next write.");
+        out.sample("relay_held_polls", counts[16]);
+        out.family("relay_unauthorized_total", "counter", "Reads and writes refused for a bad secret.");
+        out.sample("relay_unauthorized_total", counts[2]);
+        out.family("relay_history_size", "gauge", "Bundles held in the relay's history.");
+        out.sample("relay_history_size", counts[3]);
+        out.family("relay_history_capacity", "gauge", "Most bundles the relay's history will hold.");
+        out.sample("relay_history_capacity", counts[4]);
+        out.family("relay_teams", "gauge", "Teams known to the relay.");
+        out.sample("relay_teams", counts[5]);
+        out.family("relay_history_age_seconds", "gauge",
+            "Age of the oldest bundle in the history. A team that falls further behind than this loses bundles.");
+        out.sample("relay_history_age_seconds",
+            counts[6] == 0 ? Double.NaN : (System.currentTimeMillis() - counts[6]) / 1000.0);
+        out.family("relay_cursor_refusals_total", "counter",
+            "Reads refused because the relay could not continue from the cursor given.");
+        out.sample("relay_cursor_refusals_total", counts[7], "reason", "evicted");
+        out.sample("relay_cursor_refusals_total", counts[8], "reason", "unknown");
+        if (log != null) {
+          out.family("relay_log_reads_total", "counter",
+              "Reads from before the history that were served from the relay log.");
+          out.sample("relay_log_reads_total", counts[9]);
+          out.family("relay_log_failures_total", "counter", "Appends to and reads from the relay log that failed.");
+          out.sample("relay_log_failures_total", counts[10]);
+          out.family("relay_log_bytes", "gauge", "Size of the relay log on disk.");
+          out.sample("relay_log_bytes", counts[11]);
+          out.family("relay_log_segments", "gauge", "Segments in the relay log.");
+          out.sample("relay_log_segments", counts[12]);
+          out.family("relay_log_bundles", "gauge", "Bundles a team can still catch up on from the relay log.");
+          out.sample("relay_log_bundles", counts[13]);
+        }
+        out.family("relay_components", "gauge",
+            "Users and conversations held once for all the bundles in the history that have them.");
+        out.sample("relay_components", counts[17]);
+        out.family("relay_component_reuses_total", "counter",
+            "Users and conversations written to the relay that it already held a copy of.");
+        out.sample("relay_component_reuses_total", counts[18]);
+        out.family("relay_compact_components_total", "counter",
+            "Users and conversations in compact batches and poll responses, by whether they were sent in full.");
+        out.sample("relay_compact_components_total", counts[19], "sent", "full");
+        out.sample("relay_compact_components_total", counts[20], "sent", "handle");
+        out.family("relay_commits_total", "counter",
+            "Team cursors committed to the relay, by whether the relay took them.");
+        out.sample("relay_commits_total", relay.commits(), "outcome", "committed");
+        out.sample("relay_commits_total", relay.refusedCommits(), "outcome", "refused");
+        final long newest = relay.newest();
+        final long now = System.currentTimeMillis();
+        out.family("relay_team_lag_bundles", "gauge",
+            "Bundles written to the relay after the cursor the team last committed.");
+        out.family("relay_team_commit_age_seconds", "gauge", "Time since the team last committed a cursor.");
+        for (final Map.Entry<Uuid, TeamCursors.Cursor> entry : relay.committedCursors().entrySet()) {
+          final String team = entry.getKey().toString();
+          out.sample("relay_team_lag_bundles", Math.max(0, newest - entry.getValue().id), "team", team);
+          out.sample("relay_team_commit_age_seconds",
+              (now - entry.getValue().committedMs) / 1000.0, "team", team);
+        }
+        out.family("relay_timeline_queue_depth", "gauge", "Events waiting on the relay's timeline.");
+        out.sample("relay_timeline_queue_depth", timeline.queued());
+        out.family("relay_timeline_rejected_total", "counter",
+            "Connections closed right away because the relay's timeline was full.");
+        out.sample("relay_timeline_rejected_total", timeline.rejected());
+      }
+
+      @Override
+      public boolean live() {
+        return timeline.responds(LIVENESS_TIMEOUT_MS);
+      }
+
+      @Override
+      public boolean ready() {
+        // A relay without any teams refuses everything.
+        return relay.teams() > 0;
+      }
+
+      @Override
+      public boolean snapshot() throws IOException {
+        if (log == null) {
+          return false;  // the relay keeps nothing on disk
+        }
+        // Everything is already in the log. A snapshot makes sure it is on disk.
+        log.force();
+        return true;
+      }
+    };
+  }
+
   private static void loadTeamInfo(Server relay, String file) {
 
     try (final BufferedReader reader = new BufferedReader(new FileReader(file))) {
@@ -137,10 +385,7 @@ final class RelayMain {
             // this line that it is not worth trying to handle ahead of time.
             // So instead just try to parse it and catch any exception.
 
-            final Uuid id = Uuid.parse(tokens[0].trim());
-            final Secret secret = Secret.parse(tokens[1].trim());
-
-            relay.addTeam(id, secret);
+            relay.addTeam(Uuid.parse(tokens[0].trim()), Secret.parse(tokens[1].trim()));
           } catch (Exception ex) {
             LOG.error(ex, "Skipping line \"%s\". Could not parse", line);
           }
@@ -17,13 +17,20 @@ package codeu.chat;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.server.NoOpRelay;
 import codeu.chat.server.PersistenceReader;
+import codeu.chat.server.RelayCluster;
 import codeu.chat.server.RemoteRelay;
 import codeu.chat.server.Server;
+import codeu.chat.util.AdminServer;
+import codeu.chat.util.Flags;
 import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
 import codeu.chat.util.Uuid;
@@ -36,7 +43,30 @@ final class ServerMain {
 
   private static final Logger.Log LOG = Logger.newLog(ServerMain.class);
 
-  public static void main(String[] args) {
+  // Tiered storage is off unless "--tier-messages" is given. When it is on, at
+  // most that many messages are kept in memory and conversations that have not
+  // been used for "--tier-idle-ms" are paged out to disk.
+  private static final long DEFAULT_TIER_IDLE_MS = 10 * 60 * 1000; // 10 minutes
+
+  // Conversations are split over "--shards" shards, each with its own thread.
+  // One shard keeps everything on a single thread apart from reading requests.
+  private static final int DEFAULT_SHARDS = 1;
+
+  // Logging is written by a background thread. At most "--log-buffer" messages
+  // wait to be written and "--log-drop" (newest, oldest or block) says what
+  // happens to the rest. "--log-buffer=0" writes on the thread that logged.
+  private static final int DEFAULT_LOG_BUFFER = 8192;
+  private static final String DEFAULT_LOG_DROP = "newest";
+
+  public static void main(String[] commandLine) {
+
+    final Flags flags = Flags.parse(commandLine);
+    final String[] args = flags.positional();
+
+    final int logBuffer = flags.getInt("log-buffer", DEFAULT_LOG_BUFFER);
+    if (logBuffer > 0) {
+      Logger.enableAsync(logBuffer, Logger.DropPolicy.parse(flags.get("log-drop", DEFAULT_LOG_DROP)));
+    }
 
     Logger.enableConsoleOutput();
 
@@ -61,14 +91,19 @@ final class ServerMain {
     // This is the directory where it is safe to store data across runs
     // of the server.
     File persistentPath = null;
-    RemoteAddress relayAddress = null;
+    // One relay, or several that together make a relay cluster.
+    List<RemoteAddress> relayAddresses = new ArrayList<>();
 
     try {
       id = Uuid.parse(args[0]);
       secret = Secret.parse(args[1]);
       port = Integer.parseInt(args[2]);
       persistentPath = new File(args[3]);
-      relayAddress = args.length > 4 ? RemoteAddress.parse(args[4]) : null;
+      if (args.length > 4) {
+        for (final String address : args[4].split(",")) {
+          relayAddresses.add(RemoteAddress.parse(address.trim()));
+        }
+      }
     } catch (Exception ex) {
       LOG.error(ex, "Failed to read command arguments");
       System.exit(1);
@@ -81,13 +116,10 @@ final class ServerMain {
     
     File persistenceFile = new File(persistentPath, "persistence.json");
 
-    try (
-        final ConnectionSource serverSource = ServerConnectionSource.forPort(port);
-        final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
-    ) {
+    try (final ConnectionSource serverSource = ServerConnectionSource.forPort(port)) {
 
       LOG.info("Starting server...");
-      runServer(id, secret, serverSource, relaySource, persistenceFile);
+      runServer(id, secret, serverSource, relayFor(relayAddresses), persistenceFile, flags);
 
     } catch (IOException ex) {
 
@@ -99,16 +131,15 @@ final class ServerMain {
   private static void runServer(Uuid id,
                                 Secret secret,
                                 ConnectionSource serverSource,
-                                ConnectionSource relaySource,
-                                File persistenceFile) {
+                                Relay relay,
+                                File persistenceFile,
+                                Flags flags) {
 
-    final Relay relay = relaySource == null ?
-                        new NoOpRelay() :
-                        new RemoteRelay(relaySource);
+    final int shards = flags.getInt("shards", DEFAULT_SHARDS);
 
     Server server;
 
-    LOG.info("Created server.");
+    LOG.info("Created server (shards=%d).", shards);
     
     try {
       if (!persistenceFile.createNewFile()) {
@@ -116,14 +147,49 @@ final class ServerMain {
         // Persistence file couldn't be created because one already exists.
         PersistenceReader reader = new PersistenceReader(persistenceFile);
         reader.read();
-        server = new Server(reader.getContainer(), relay, persistenceFile);
+        server = new Server(reader.getContainer(), relay, shards, persistenceFile);
       } else {
         LOG.info("Persistence file was not found. A blank one has been created.");
-        server = new Server(id, secret, relay, persistenceFile);
+        server = new Server(id, secret, relay, shards, persistenceFile);
       }
     } catch (IOException e) {
       LOG.error("Failed to generate persistence file at %s", persistenceFile.getPath());
-      server = new Server(id, secret, relay);
+      server = new Server(id, secret, relay, shards);
+    }
+
+    // Once caught up, the server polls the relay for every other team's
+    // bundles, or only for those of "--relay-teams" and "--relay-conversations"
+    // if given. Both take a comma separated list of ids.
+    if (flags.has("relay-teams") || flags.has("relay-conversations")) {
+      try {
+        server.filterRelay(parseIds(flags.get("relay-teams", "")),
+                           parseIds(flags.get("relay-conversations", "")));
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to parse the relay filter. Taking every other team's bundles.");
+      }
+    }
+
+    // Only now, with the snapshot loaded and the filter set, does the server
+    // start reading from the relay.
+    server.start();
+
+    if (flags.has("tier-messages")) {
+      final File segments = new File(persistenceFile.getParentFile(), "segments");
+      if (segments.isDirectory() || segments.mkdirs()) {
+        server.enableTiering(segments,
+                             flags.getInt("tier-messages", Integer.MAX_VALUE),
+                             flags.getLong("tier-idle-ms", DEFAULT_TIER_IDLE_MS));
+      } else {
+        LOG.error("Failed to create segment directory %s. Tiering is off.", segments);
+      }
+    }
+
+    if (flags.has("admin-port")) {
+      try {
+        new AdminServer(flags.getInt("admin-port", 0), server.admin()).start();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to start the admin server. Continuing without it.");
+      }
     }
 
     while (true) {
@@ -141,4 +207,33 @@ final class ServerMain {
       }
     }
   }
+
+  // No address means no relay. With more than one, conversations are split
+  // over the relays by "RelayCluster".
+  private static Relay relayFor(List<RemoteAddress> addresses) {
+
+    if (addresses.isEmpty()) {
+      return new NoOpRelay();
+    }
+    if (addresses.size() == 1) {
+      return new RemoteRelay(new ClientConnectionSource(addresses.get(0).host, addresses.get(0).port));
+    }
+
+    final Map<String, Relay> nodes = new HashMap<>();
+    for (final RemoteAddress address : addresses) {
+      nodes.put(address.toString(), new RemoteRelay(new ClientConnectionSource(address.host, address.port)));
+    }
+    LOG.info("Using a cluster of %d relays: %s", nodes.size(), nodes.keySet());
+    return new RelayCluster(nodes);
+  }
+
+  private static List<Uuid> parseIds(String list) throws IOException {
+    final List<Uuid> ids = new ArrayList<>();
+    for (final String id : list.split(",")) {
+      if (!id.trim().isEmpty()) {
+        ids.add(Uuid.parse(id.trim()));
+      }
+    }
+    return ids;
+  }
 }
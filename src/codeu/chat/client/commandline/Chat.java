@@ -541,7 +541,7 @@ public final class Chat {
             System.out.format("SENT : %s\n", message.message.creation);
             System.out.format("ID : %s\n", message.message.id);
             System.out.println();
-            System.out.println(message.message.content);
+            System.out.println(message.message.content());
             System.out.println();
           }
           System.out.println("---  end of conversation  ---");
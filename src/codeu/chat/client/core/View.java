@@ -16,12 +16,14 @@ package codeu.chat.client.core;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import codeu.chat.common.BasicView;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.Message;
 import codeu.chat.common.NetworkCode;
+import codeu.chat.common.ServerStats;
 import codeu.chat.common.User;
 import codeu.chat.common.VersionInfo;
 import codeu.chat.util.Logger;
@@ -147,6 +149,74 @@ public final class View implements BasicView {
     return messages;
   }
 
+  // COUNT MESSAGES
+  //
+  // How many messages are in the conversation, or -1 if the server could not
+  // be reached.
+  public long countMessages(Uuid conversation) {
+    final long[] counts = getMessageCounts(conversation, Time.fromMs(0));
+    return counts == null ? -1 : counts[0];
+  }
+
+  // COUNT MESSAGES SINCE
+  //
+  // How many messages in the conversation were created at or after "since", or
+  // -1 if the server could not be reached.
+  public long countMessagesSince(Uuid conversation, Time since) {
+    final long[] counts = getMessageCounts(conversation, since);
+    return counts == null ? -1 : counts[1];
+  }
+
+  private long[] getMessageCounts(Uuid conversation, Time since) {
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGE_COUNT_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), conversation);
+      Time.SERIALIZER.write(connection.out(), since);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGE_COUNT_RESPONSE) {
+        final long total = Serializers.LONG.read(connection.in());
+        final long recent = Serializers.LONG.read(connection.in());
+        return new long[] { total, recent };
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+    return null;
+  }
+
+  // GET MESSAGE PAGE
+  //
+  // Up to "count" messages of the conversation, oldest first, starting with the
+  // message at position "first" (counting from zero). The server caps how many
+  // messages a page can hold, so a page may be short even when there are more.
+  public List<Message> getMessagePage(Uuid conversation, long first, int count) {
+
+    final List<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGE_PAGE_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), conversation);
+      Serializers.LONG.write(connection.out(), first);
+      Serializers.INTEGER.write(connection.out(), count);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGE_PAGE_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
   @Override
   public VersionInfo getVersion() {
     try (final Connection connection = source.connect()) {
@@ -167,6 +237,24 @@ public final class View implements BasicView {
     return null;
   }
 
+  // GET STATS
+  //
+  // The server's request metrics, or null if the server could not be reached.
+  public ServerStats getStats() {
+    try (final Connection connection = source.connect()) {
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SERVER_STATS_REQUEST);
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SERVER_STATS_RESPONSE) {
+        return ServerStats.SERIALIZER.read(connection.in());
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+    return null;
+  }
+
   @Override
   public ServerInfo getInfo() {
     try (final Connection connection = this.source.connect()) {
@@ -0,0 +1,204 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.load;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import codeu.chat.util.LatencyHistogram;
+import codeu.chat.util.Logger;
+import codeu.chat.util.RemoteAddress;
+import codeu.chat.util.Timeline;
+
+// LOAD GENERATOR
+//
+// Drives a server with many virtual users at once. The load is closed-loop:
+// each virtual user waits for one operation to finish (and then thinks for a
+// while, if asked to) before it starts the next, so adding virtual users is
+// what adds load. Raising the number of users until the p99 latency or the
+// error rate jumps shows how many users a server can take.
+//
+// A run starts with a warm up, which is not measured, so that the server and
+// the generator have both been compiled and every virtual user has signed up
+// before anything is counted.
+public final class LoadGenerator {
+
+  private final static Logger.Log LOG = Logger.newLog(LoadGenerator.class);
+
+  private final RemoteAddress address;
+  private final int users;
+  private final Mix mix;
+  private final int pageSize;
+  private final long thinkMs;
+  private final int timeoutMs;
+  private final long seed;
+
+  private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, Map<String, AtomicLong>> errors = new EnumMap<>(Operation.class);
+
+  private volatile boolean running;
+  private volatile boolean measuring;
+
+  public LoadGenerator(RemoteAddress address,
+                       int users,
+                       Mix mix,
+                       int pageSize,
+                       long thinkMs,
+                       int timeoutMs,
+                       long seed) {
+
+    this.address = address;
+    this.users = users;
+    this.mix = mix;
+    this.pageSize = pageSize;
+    this.thinkMs = thinkMs;
+    this.timeoutMs = timeoutMs;
+    this.seed = seed;
+
+    for (final Operation operation : Operation.values()) {
+      latencies.put(operation, new LatencyHistogram());
+      errors.put(operation, new ConcurrentHashMap<String, AtomicLong>());
+    }
+  }
+
+  // RUN
+  //
+  // Warm up for "warmupMs", then measure for "durationMs" and report what was
+  // measured. Blocks until every virtual user has finished its last operation.
+  public Report run(long warmupMs, long durationMs) throws InterruptedException {
+
+    final Timeline timeline = new Timeline("virtual-users", users, Integer.MAX_VALUE);
+    final String prefix = "load-" + Long.toHexString(seed) + "-" + Long.toHexString(System.nanoTime());
+
+    running = true;
+    for (int i = 0; i < users; i++) {
+      final VirtualUser user =
+          new VirtualUser(address, prefix + "-" + i, mix, pageSize, timeoutMs, new Random(seed + i));
+      timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          drive(user);
+        }
+      });
+    }
+
+    LOG.info("Warming up with %d virtual users for %dms.", users, warmupMs);
+    Thread.sleep(warmupMs);
+
+    LOG.info("Measuring for %dms.", durationMs);
+    final long start = System.nanoTime();
+    measuring = true;
+    Thread.sleep(durationMs);
+    measuring = false;
+    final long elapsed = System.nanoTime() - start;
+
+    running = false;
+    timeline.stop();
+    timeline.join();
+
+    final Map<Operation, Map<String, Long>> failures = new EnumMap<>(Operation.class);
+    for (final Map.Entry<Operation, Map<String, AtomicLong>> entry : errors.entrySet()) {
+      final Map<String, Long> counts = new HashMap<>();
+      for (final Map.Entry<String, AtomicLong> count : entry.getValue().entrySet()) {
+        counts.put(count.getKey(), count.getValue().get());
+      }
+      failures.put(entry.getKey(), counts);
+    }
+
+    return new Report(address.toString(),
+                      users,
+                      warmupMs / 1000.0,
+                      elapsed / 1e9,
+                      mix.shares(),
+                      latencies,
+                      failures);
+  }
+
+  private void drive(VirtualUser user) {
+    while (running) {
+
+      final Operation operation = user.next();
+      final long start = System.nanoTime();
+      String error = null;
+
+      try {
+        user.perform(operation);
+      } catch (IOException ex) {
+        error = kindOf(ex);
+        LOG.verbose("%s failed (%s): %s", operation.label(), error, ex.getMessage());
+      }
+
+      // An operation counts if it finished while measuring. One that started
+      // during the warm up and finished after counts, as does its wait.
+      if (measuring) {
+        if (error == null) {
+          latencies.get(operation).record(System.nanoTime() - start);
+        } else {
+          count(operation, error);
+        }
+      }
+
+      if (thinkMs > 0) {
+        try {
+          Thread.sleep(thinkMs);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void count(Operation operation, String error) {
+    final Map<String, AtomicLong> counts = errors.get(operation);
+    AtomicLong count = counts.get(error);
+    if (count == null) {
+      counts.putIfAbsent(error, new AtomicLong());
+      count = counts.get(error);
+    }
+    count.incrementAndGet();
+  }
+
+  // What kind of failure this was, as reported:
+  //
+  //   timeout  : no response within the timeout.
+  //   connect  : the connection was refused.
+  //   closed   : the server closed the connection without answering.
+  //   response : the server answered, but not with what was expected.
+  //   io       : anything else.
+  static String kindOf(IOException ex) {
+    if (ex instanceof SocketTimeoutException) {
+      return "timeout";
+    }
+    if (ex instanceof ConnectException) {
+      return "connect";
+    }
+    if (ex instanceof EOFException) {
+      return "closed";
+    }
+    if (ex instanceof VirtualUser.UnexpectedResponse) {
+      return "response";
+    }
+    return "io";
+  }
+}
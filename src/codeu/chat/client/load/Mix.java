@@ -0,0 +1,92 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.load;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+// MIX
+//
+// How often virtual users do each operation, as relative weights. Written as
+// "operation=weight" pairs separated by commas, for example:
+//
+//   new-message=30,read-page=50,status=20
+//
+// Operations that are not named are never picked (but see "VirtualUser" - a
+// virtual user always signs up and starts a conversation before anything else).
+public final class Mix {
+
+  public static final String DEFAULT =
+      "new-user=1,new-conversation=4,new-message=30,read-page=45,status=20";
+
+  private final Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+  private final int total;
+
+  private Mix(Map<Operation, Integer> weights) {
+    this.weights.putAll(weights);
+    int sum = 0;
+    for (final int weight : weights.values()) {
+      sum += weight;
+    }
+    this.total = sum;
+  }
+
+  public static Mix parse(String text) {
+
+    final Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+
+    for (final String pair : text.split(",")) {
+      final String[] parts = pair.trim().split("=");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Expected operation=weight but got: " + pair);
+      }
+      final int weight = Integer.parseInt(parts[1].trim());
+      if (weight < 0) {
+        throw new IllegalArgumentException("Weights can not be negative: " + pair);
+      }
+      if (weight > 0) {
+        weights.put(Operation.parse(parts[0].trim()), weight);
+      }
+    }
+
+    if (weights.isEmpty()) {
+      throw new IllegalArgumentException("The mix needs at least one operation: " + text);
+    }
+
+    return new Mix(weights);
+  }
+
+  public Operation pick(Random random) {
+    int left = random.nextInt(total);
+    for (final Map.Entry<Operation, Integer> entry : weights.entrySet()) {
+      left -= entry.getValue();
+      if (left < 0) {
+        return entry.getKey();
+      }
+    }
+    throw new IllegalStateException("Weights do not add up to " + total);
+  }
+
+  // The weights as fractions of the whole mix, for reports.
+  public Map<String, Double> shares() {
+    final Map<String, Double> shares = new LinkedHashMap<>();
+    for (final Map.Entry<Operation, Integer> entry : weights.entrySet()) {
+      shares.put(entry.getKey().label(), entry.getValue() / (double) total);
+    }
+    return shares;
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.load;
+
+// OPERATION
+//
+// The things a virtual user can do. Each one is what a person using the
+// client would do, which can take more than one request:
+//
+//   new-user         : sign up a new user.
+//   new-conversation : start a conversation.
+//   new-message      : post a message to one of the user's conversations.
+//   read-page        : read a conversation's summary and then a page of its
+//                      newest messages (two requests).
+//   status           : poll for user and conversation status updates (two
+//                      requests).
+public enum Operation {
+
+  NEW_USER("new-user"),
+  NEW_CONVERSATION("new-conversation"),
+  NEW_MESSAGE("new-message"),
+  READ_PAGE("read-page"),
+  STATUS("status");
+
+  private final String label;
+
+  Operation(String label) {
+    this.label = label;
+  }
+
+  public String label() {
+    return label;
+  }
+
+  public static Operation parse(String label) {
+    for (final Operation operation : values()) {
+      if (operation.label.equals(label)) {
+        return operation;
+      }
+    }
+    throw new IllegalArgumentException("Unknown operation: " + label);
+  }
+}
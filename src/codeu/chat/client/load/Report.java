@@ -0,0 +1,132 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import codeu.chat.util.LatencyHistogram;
+
+// REPORT
+//
+// The results of a load run, written as JSON so that other tools can read it.
+// Throughput only counts operations that succeeded and latencies are only for
+// operations that succeeded; failed operations are counted in "errors" by
+// what went wrong. Latencies are in milliseconds.
+public final class Report {
+
+  public static final class Latency {
+
+    public final double p50;
+    public final double p90;
+    public final double p99;
+    public final double p999;
+    public final double max;
+    public final double mean;
+
+    Latency(LatencyHistogram histogram) {
+      p50 = millis(histogram.percentile(0.5));
+      p90 = millis(histogram.percentile(0.9));
+      p99 = millis(histogram.percentile(0.99));
+      p999 = millis(histogram.percentile(0.999));
+      max = millis(histogram.max());
+      mean = millis(histogram.mean());
+    }
+  }
+
+  public static final class Result {
+
+    public final long succeeded;
+    public final long failed;
+    public final double errorRate;
+    public final double throughput;
+    public final Latency latencyMs;
+    public final Map<String, Long> errors;
+
+    Result(LatencyHistogram latency, Map<String, Long> errors, double seconds) {
+      long failed = 0;
+      for (final long count : errors.values()) {
+        failed += count;
+      }
+      this.succeeded = latency.count();
+      this.failed = failed;
+      this.errorRate = succeeded + failed == 0 ? 0 : failed / (double) (succeeded + failed);
+      this.throughput = seconds <= 0 ? 0 : succeeded / seconds;
+      this.latencyMs = new Latency(latency);
+      this.errors = new TreeMap<>(errors);
+    }
+  }
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  public final String server;
+  public final int users;
+  public final double warmupSeconds;
+  public final double durationSeconds;
+  public final Map<String, Double> mix;
+  public final Result total;
+  public final Map<String, Result> operations = new LinkedHashMap<>();
+
+  Report(String server,
+         int users,
+         double warmupSeconds,
+         double durationSeconds,
+         Map<String, Double> mix,
+         Map<Operation, LatencyHistogram> latencies,
+         Map<Operation, Map<String, Long>> errors) {
+
+    this.server = server;
+    this.users = users;
+    this.warmupSeconds = warmupSeconds;
+    this.durationSeconds = durationSeconds;
+    this.mix = mix;
+
+    final LatencyHistogram allLatency = new LatencyHistogram();
+    final Map<String, Long> allErrors = new TreeMap<>();
+
+    for (final Operation operation : Operation.values()) {
+
+      final LatencyHistogram latency = latencies.get(operation);
+      final Map<String, Long> failures = errors.get(operation);
+
+      if (latency.count() == 0 && failures.isEmpty()) {
+        continue;
+      }
+
+      operations.put(operation.label(), new Result(latency, failures, durationSeconds));
+
+      allLatency.merge(latency);
+      for (final Map.Entry<String, Long> entry : failures.entrySet()) {
+        final Long seen = allErrors.get(entry.getKey());
+        allErrors.put(entry.getKey(), (seen == null ? 0 : seen) + entry.getValue());
+      }
+    }
+
+    this.total = new Result(allLatency, allErrors, durationSeconds);
+  }
+
+  public String toJson() {
+    final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(this);
+  }
+
+  private static double millis(double nanos) {
+    return nanos / NANOS_PER_MILLI;
+  }
+}
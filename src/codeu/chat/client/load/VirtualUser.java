@@ -0,0 +1,297 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.User;
+import codeu.chat.util.RemoteAddress;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+
+// VIRTUAL USER
+//
+// One simulated person using the client. It sends the same requests the client
+// does, one connection per request, but writes each request in a single write
+// and reads the response through a buffer so that the load generator is never
+// what limits the server. Any response other than the expected one is an
+// error: an "UnexpectedResponse", or an EOFException when the server closed
+// the connection without answering (which it does when it is overloaded).
+//
+// A virtual user is only used by one thread at a time.
+final class VirtualUser {
+
+  // The response code was not the one expected, or the response said the
+  // request did not do anything.
+  static final class UnexpectedResponse extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    UnexpectedResponse(String message) {
+      super(message);
+    }
+  }
+
+  private static final String MESSAGE =
+      "The quick brown fox jumps over the lazy dog while the relay catches up.";
+
+  private final RemoteAddress address;
+  private final String name;
+  private final Mix mix;
+  private final int pageSize;
+  private final int timeoutMs;
+  private final Random random;
+
+  private User user;
+  private final List<Uuid> conversations = new ArrayList<>();
+
+  // The newest messages this user posted to each conversation, newest last.
+  // These are what "read-page" reads back.
+  private final Map<Uuid, Deque<Uuid>> recent = new HashMap<>();
+
+  private int created;
+
+  VirtualUser(RemoteAddress address, String name, Mix mix, int pageSize, int timeoutMs, Random random) {
+    this.address = address;
+    this.name = name;
+    this.mix = mix;
+    this.pageSize = pageSize;
+    this.timeoutMs = timeoutMs;
+    this.random = random;
+  }
+
+  // NEXT
+  //
+  // What to do next. A virtual user signs up and then starts a conversation
+  // before it follows the mix, as nothing else works without them.
+  Operation next() {
+    if (user == null) {
+      return Operation.NEW_USER;
+    }
+    if (conversations.isEmpty()) {
+      return Operation.NEW_CONVERSATION;
+    }
+    return mix.pick(random);
+  }
+
+  void perform(Operation operation) throws IOException {
+    switch (operation) {
+      case NEW_USER:
+        newUser();
+        break;
+      case NEW_CONVERSATION:
+        newConversation();
+        break;
+      case NEW_MESSAGE:
+        newMessage();
+        break;
+      case READ_PAGE:
+        readPage();
+        break;
+      case STATUS:
+        status();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown operation: " + operation);
+    }
+  }
+
+  // Signing up again after the first time makes a new user, but this virtual
+  // user stays who it was.
+  private void newUser() throws IOException {
+    try (final Socket socket = connect()) {
+
+      final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      Serializers.INTEGER.write(out, NetworkCode.NEW_USER_REQUEST);
+      Serializers.STRING.write(out, name + "-" + created++);
+      out.flush();
+
+      final InputStream in = response(socket, NetworkCode.NEW_USER_RESPONSE);
+      final User signedUp = Serializers.nullable(User.SERIALIZER).read(in);
+      if (signedUp == null) {
+        throw new UnexpectedResponse("The server did not create the user.");
+      }
+      if (user == null) {
+        user = signedUp;
+      }
+    }
+  }
+
+  private void newConversation() throws IOException {
+    try (final Socket socket = connect()) {
+
+      final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_REQUEST);
+      Serializers.STRING.write(out, name + "-conversation-" + conversations.size());
+      Uuid.SERIALIZER.write(out, user.id);
+      out.flush();
+
+      final InputStream in = response(socket, NetworkCode.NEW_CONVERSATION_RESPONSE);
+      final ConversationHeader conversation =
+          Serializers.nullable(ConversationHeader.SERIALIZER).read(in);
+      if (conversation == null) {
+        throw new UnexpectedResponse("The server did not create the conversation.");
+      }
+      conversations.add(conversation.id);
+      recent.put(conversation.id, new ArrayDeque<Uuid>(pageSize));
+    }
+  }
+
+  private void newMessage() throws IOException {
+
+    final Uuid conversation = anyConversation();
+
+    try (final Socket socket = connect()) {
+
+      final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_REQUEST);
+      Uuid.SERIALIZER.write(out, user.id);
+      Uuid.SERIALIZER.write(out, conversation);
+      Serializers.STRING.write(out, MESSAGE);
+      out.flush();
+
+      final InputStream in = response(socket, NetworkCode.NEW_MESSAGE_RESPONSE);
+      final Message message = Serializers.nullable(Message.SERIALIZER).read(in);
+      if (message == null) {
+        throw new UnexpectedResponse("The server did not add the message.");
+      }
+
+      final Deque<Uuid> messages = recent.get(conversation);
+      if (messages.size() == pageSize) {
+        messages.removeFirst();
+      }
+      messages.addLast(message.id);
+    }
+  }
+
+  private void readPage() throws IOException {
+
+    final Uuid conversation = anyConversation();
+
+    try (final Socket socket = connect()) {
+
+      final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST);
+      Uuid.SERIALIZER.write(out, user.id);
+      Serializers.collection(Uuid.SERIALIZER).write(out, Collections.singleton(conversation));
+      out.flush();
+
+      final InputStream in = response(socket, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE);
+      final Collection<ConversationPayload> payloads =
+          Serializers.collection(ConversationPayload.SERIALIZER).read(in);
+      if (payloads.isEmpty()) {
+        throw new UnexpectedResponse("The server did not find the conversation.");
+      }
+    }
+
+    final Collection<Uuid> page = recent.get(conversation);
+    if (page.isEmpty()) {
+      return;
+    }
+
+    try (final Socket socket = connect()) {
+
+      final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_REQUEST);
+      Serializers.collection(Uuid.SERIALIZER).write(out, page);
+      out.flush();
+
+      final InputStream in = response(socket, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
+      final Collection<Message> messages = Serializers.collection(Message.SERIALIZER).read(in);
+      if (messages.size() != page.size()) {
+        throw new UnexpectedResponse(String.format(
+            "Asked for %d messages but got %d.", page.size(), messages.size()));
+      }
+    }
+  }
+
+  private void status() throws IOException {
+    poll(NetworkCode.GET_USER_STATUS_UPDATE_REQUEST, NetworkCode.GET_USER_STATUS_UPDATE_RESPONSE);
+    poll(NetworkCode.GET_CONVO_STATUS_UPDATE_REQUEST, NetworkCode.GET_CONVO_STATUS_UPDATE_RESPONSE);
+  }
+
+  private void poll(int request, int expected) throws IOException {
+    try (final Socket socket = connect()) {
+
+      final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      Serializers.INTEGER.write(out, request);
+      Uuid.SERIALIZER.write(out, user.id);
+      out.flush();
+
+      Serializers.STRING.read(response(socket, expected));
+    }
+  }
+
+  private Uuid anyConversation() {
+    return conversations.get(random.nextInt(conversations.size()));
+  }
+
+  private Socket connect() throws IOException {
+    final Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(address.host, address.port), timeoutMs);
+      socket.setSoTimeout(timeoutMs);
+      socket.setTcpNoDelay(true);
+    } catch (IOException ex) {
+      socket.close();
+      throw ex;
+    }
+    return socket;
+  }
+
+  // Read the response code and return the stream the rest of the response can
+  // be read from. The serializers read past the end of a stream without
+  // noticing, so the stream throws when the server has closed the connection.
+  private static InputStream response(Socket socket, int expected) throws IOException {
+
+    final InputStream in = new FilterInputStream(new BufferedInputStream(socket.getInputStream())) {
+      @Override
+      public int read() throws IOException {
+        final int b = super.read();
+        if (b < 0) {
+          throw new EOFException("The server closed the connection.");
+        }
+        return b;
+      }
+    };
+
+    final int code = Serializers.INTEGER.read(in);
+    if (code != expected) {
+      throw new UnexpectedResponse(String.format("Expected response %d but got %d.", expected, code));
+    }
+    return in;
+  }
+}
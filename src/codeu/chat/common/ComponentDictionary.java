@@ -0,0 +1,119 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+
+// COMPONENT DICTIONARY
+//
+// A serializer for bundle components that sends each one in full only once.
+// Every bundle carries its user and conversation, and in a busy conversation
+// those are the same from one bundle to the next, so a batch of bundles is
+// mostly the same names and titles over and over.
+//
+// The first time a component is written it gets the next handle and is sent
+// as that handle followed by the component in full. After that only the handle
+// is sent:
+//
+//   [int handle][component]   if "handle" is the number of components so far
+//   [int handle]              otherwise
+//
+// A dictionary lasts for one stream - one batch write or one poll response -
+// and both ends start out empty, so there is nothing to keep in step from one
+// request to the next. A dictionary is only ever used for writing or only for
+// reading, and from one thread. Components read for the same handle are the
+// same object, so what is read is de-duplicated in memory as well.
+public final class ComponentDictionary implements Serializer<Relay.Bundle.Component> {
+
+  private final Serializer<Relay.Bundle.Component> serializer;
+
+  // Writing: the handle of every component by its id. A component that has
+  // the id of an earlier one but not its text or time gets a handle of its own.
+  private final Map<Uuid, Integer> handles = new HashMap<>();
+  // Both: the components so far, by handle.
+  private final List<Relay.Bundle.Component> components = new ArrayList<>();
+
+  private int references;
+
+  // "serializer" writes and reads components in full.
+  public ComponentDictionary(Serializer<Relay.Bundle.Component> serializer) {
+    this.serializer = serializer;
+  }
+
+  @Override
+  public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
+
+    final Integer handle = handles.get(value.id());
+    if (handle != null && same(components.get(handle), value)) {
+      Serializers.INTEGER.write(out, handle);
+      references += 1;
+      return;
+    }
+
+    handles.put(value.id(), components.size());
+    Serializers.INTEGER.write(out, components.size());
+    serializer.write(out, value);
+    components.add(value);
+  }
+
+  @Override
+  public Relay.Bundle.Component read(InputStream in) throws IOException {
+
+    final int handle = Serializers.INTEGER.read(in);
+
+    if (handle == components.size()) {
+      final Relay.Bundle.Component component = serializer.read(in);
+      components.add(component);
+      return component;
+    }
+
+    if (handle < 0 || handle > components.size()) {
+      throw new IOException(String.format("Component handle %d before it was defined", handle));
+    }
+
+    references += 1;
+    return components.get(handle);
+  }
+
+  // Components sent or read in full.
+  public int size() {
+    return components.size();
+  }
+
+  // Components sent or read as just a handle.
+  public int references() {
+    return references;
+  }
+
+  // SAME
+  //
+  // True if two components are the same id, text and time, and so one can
+  // stand in for the other.
+  public static boolean same(Relay.Bundle.Component a, Relay.Bundle.Component b) {
+    return Uuid.equals(a.id(), b.id()) &&
+           a.text().equals(b.text()) &&
+           a.time().inMs() == b.time().inMs();
+  }
+}
@@ -22,6 +22,7 @@ import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.store.TextArena;
 
 public final class Message {
 
@@ -35,7 +36,7 @@ public final class Message {
       Uuid.SERIALIZER.write(out, value.previous);
       Time.SERIALIZER.write(out, value.creation);
       Uuid.SERIALIZER.write(out, value.author);
-      Serializers.STRING.write(out, value.content);
+      Serializers.STRING.write(out, value.content());
 
     }
 
@@ -58,9 +59,15 @@ public final class Message {
   public Uuid previous;
   public final Time creation;
   public final Uuid author;
-  public final String content;
   public Uuid next;
 
+  // The body lives in exactly one place. Messages start with the body on the
+  // heap. Once the server stores a message, the body is moved into a text arena
+  // and only the arena handle is kept here.
+  private String content;
+  private transient TextArena arena;
+  private transient int body;
+
   public Message(Uuid id, Uuid next, Uuid previous, Time creation, Uuid author, String content) {
 
     this.id = id;
@@ -71,4 +78,38 @@ public final class Message {
     this.content = content;
 
   }
+
+  // CONTENT
+  //
+  // Get the body of the message. If the body has been moved to an arena this
+  // decodes a new copy of it, so avoid calling it more than needed.
+  public String content() {
+    return arena == null ? content : arena.get(body);
+  }
+
+  // MOVE TO
+  //
+  // Move the body of the message into the arena so that the heap copy can be
+  // collected.
+  public void moveTo(TextArena target) {
+    if (arena == null) {
+      body = target.add(content);
+      arena = target;
+      content = null;
+    }
+  }
+
+  // RELEASE
+  //
+  // Give the space used by the body back to the arena. This is for when the
+  // message is removed from the server. Anyone still holding the message (a
+  // view result, a bundle on its way to the relay) can still read it, as the
+  // body is copied back onto the heap first.
+  public void release() {
+    if (arena != null) {
+      content = arena.get(body);
+      arena.free(body);
+      arena = null;
+    }
+  }
 }
@@ -58,5 +58,27 @@ public final class NetworkCode {
       DELETE_MESSAGE_REQUEST = 38,
       DELETE_MESSAGE_RESPONSE = 39,
       DELETE_CONVERSATION_REQUEST = 40,
-      DELETE_CONVERSATION_RESPONSE = 41;
+      DELETE_CONVERSATION_RESPONSE = 41,
+      SERVER_STATS_REQUEST = 42,
+      SERVER_STATS_RESPONSE = 43,
+      ERR_RELAY_CURSOR_EVICTED = 44,
+      ERR_RELAY_CURSOR_UNKNOWN = 45,
+      RELAY_WRITE_BATCH_REQUEST = 46,
+      RELAY_WRITE_BATCH_RESPONSE = 47,
+      RELAY_POLL_REQUEST = 48,
+      RELAY_POLL_RESPONSE = 49,
+      RELAY_FILTERED_POLL_REQUEST = 50,
+      RELAY_FILTERED_POLL_RESPONSE = 51,
+      RELAY_COMPACT_WRITE_BATCH_REQUEST = 52,
+      RELAY_COMPACT_WRITE_BATCH_RESPONSE = 53,
+      RELAY_COMPACT_POLL_REQUEST = 54,
+      RELAY_COMPACT_POLL_RESPONSE = 55,
+      RELAY_COMMIT_REQUEST = 56,
+      RELAY_COMMIT_RESPONSE = 57,
+      RELAY_COMMITTED_REQUEST = 58,
+      RELAY_COMMITTED_RESPONSE = 59,
+      GET_MESSAGE_COUNT_REQUEST = 60,
+      GET_MESSAGE_COUNT_RESPONSE = 61,
+      GET_MESSAGE_PAGE_REQUEST = 62,
+      GET_MESSAGE_PAGE_RESPONSE = 63;
 }
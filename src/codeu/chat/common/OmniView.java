@@ -1,6 +1,7 @@
 package codeu.chat.common;
 
 import java.util.Collection;
+import java.util.stream.Stream;
 
 /**
  * A view that allows aggregated retrieval of all objects in the model.
@@ -41,4 +42,40 @@ public interface OmniView {
    * @see BasicView#getMessages(Collection)
    */
   Collection<Message> getMessages();
+
+  /**
+   * Returns all users as a stream. Unlike {@link #getUsers()}, implementations
+   * may stream straight from the model without copying it, and the stream can be
+   * made parallel.
+   */
+  default Stream<User> streamUsers() {
+    return getUsers().stream();
+  }
+
+  /**
+   * Returns all conversations as a stream.
+   *
+   * @see #streamUsers()
+   */
+  default Stream<ConversationHeader> streamConversations() {
+    return getConversations().stream();
+  }
+
+  /**
+   * Returns all conversation payloads as a stream.
+   *
+   * @see #streamUsers()
+   */
+  default Stream<ConversationPayload> streamConversationPayloads() {
+    return getConversationPayloads().stream();
+  }
+
+  /**
+   * Returns all messages as a stream.
+   *
+   * @see #streamUsers()
+   */
+  default Stream<Message> streamMessages() {
+    return getMessages().stream();
+  }
 }
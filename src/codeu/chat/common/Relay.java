@@ -15,6 +15,7 @@
 package codeu.chat.common;
 
 import java.util.Collection;
+import java.util.List;
 
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
@@ -104,6 +105,35 @@ public interface Relay {
 
   }
 
+  // WRITE
+  //
+  // One message for "write" to send as part of a batch. It has the same three
+  // parts as a bundle, without what the relay adds when it accepts it.
+  interface Write {
+
+    Bundle.Component user();
+
+    Bundle.Component conversation();
+
+    Bundle.Component message();
+
+  }
+
+  // PAGE
+  //
+  // What a filtered poll returns: the bundles that passed the filter, oldest
+  // first, and the cursor to poll from next. The cursor is the last bundle the
+  // relay looked at, whether it passed or not, so that the bundles the filter
+  // left out are not looked at again - and a team whose own bundles are the
+  // only traffic does not fall behind the relay's history while it waits.
+  interface Page {
+
+    Collection<Bundle> bundles();
+
+    Uuid next();
+
+  }
+
   // PACK
   //
   // Pack together a uuid, string, and time into a component. This is to make
@@ -123,14 +153,59 @@ public interface Relay {
                 Bundle.Component conversation,
                 Bundle.Component message);
 
+  // WRITE
+  //
+  // Write several messages in one go. The relay accepts them in order and
+  // returns how many it accepted - all of them, or none if the team id or
+  // secret are wrong. A relay that could not be reached returns -1, which
+  // means that it is worth trying the same batch again later.
+  int write(Uuid teamId, Secret teamSecret, List<Write> writes);
+
   // READ
   //
   // Read a series of bundles from the relay. Given a Uuid as the starting point
   // the relay will return up to but may return less than the range. The range must
   // be positive. Negative ranges are not allowed and will return an empty
   // collection. If the root is Uuids.NULL then the relay will start sending from
-  // its earliest point. If the root is not found the relay will treat it as if it
-  // was given Uuids.NULL.
-  Collection<Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range);
+  // its earliest point. If the relay can not continue from the root - because the
+  // bundles after it were evicted or because it never made the root - it throws
+  // instead. See "RelayCursorException".
+  Collection<Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range)
+      throws RelayCursorException;
+
+  // POLL
+  //
+  // Read, but if there is nothing after the root yet, the relay holds on to
+  // the request for up to "waitMs" and answers as soon as something is
+  // written. A poll may return many more bundles than "read" would, so a team
+  // that has fallen behind catches up in a few large chunks. A relay that can
+  // not hold on to requests answers right away, even if it has nothing.
+  Collection<Bundle> poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs)
+      throws RelayCursorException;
+
+  // POLL
+  //
+  // Poll, but only for the bundles that pass "filter" (see "RelayFilter"). The
+  // range limits the bundles that pass, and a held poll is only answered early
+  // once one does. Continue from the page's "next", not from its last bundle.
+  Page poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs, RelayFilter filter)
+      throws RelayCursorException;
+
+  // COMMIT
+  //
+  // Tell the relay that the team has kept everything up to "cursor", a cursor
+  // it got from a page's "next". The relay remembers the last cursor each team
+  // committed, on disk if it has a data directory, so a team can continue from
+  // there after a restart and the relay can report how far behind it is.
+  // Returns false if the team id or secret are wrong, if the relay never made
+  // the cursor, or if the relay could not be reached.
+  boolean commit(Uuid teamId, Secret teamSecret, Uuid cursor);
+
+  // COMMITTED
+  //
+  // The cursor the team last committed. Uuid.NULL if it never committed one,
+  // or null if the team id or secret are wrong or the relay could not be
+  // reached.
+  Uuid committed(Uuid teamId, Secret teamSecret);
 
 }
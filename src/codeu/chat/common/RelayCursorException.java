@@ -0,0 +1,53 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import codeu.chat.util.Uuid;
+
+// RELAY CURSOR EXCEPTION
+//
+// Thrown by "Relay.read" when the relay can not continue from the cursor it
+// was given, instead of quietly starting again from its oldest bundle:
+//
+//   EVICTED : the cursor was a real bundle, but the bundles after it have
+//             already been dropped from the relay's history. Reading again from
+//             Uuid.NULL continues from the oldest bundle, but the ones in
+//             between are gone.
+//
+//   UNKNOWN : the relay never made the cursor, for example because it was made
+//             by a relay that has since restarted.
+public final class RelayCursorException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum Reason { EVICTED, UNKNOWN }
+
+  private final Reason reason;
+  private final Uuid cursor;
+
+  public RelayCursorException(Reason reason, Uuid cursor) {
+    super(String.format("Relay cursor %s is %s", cursor, reason == Reason.EVICTED ? "evicted" : "unknown"));
+    this.reason = reason;
+    this.cursor = cursor;
+  }
+
+  public Reason reason() {
+    return reason;
+  }
+
+  public Uuid cursor() {
+    return cursor;
+  }
+}
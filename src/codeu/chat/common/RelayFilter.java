@@ -0,0 +1,115 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+
+// RELAY FILTER
+//
+// Which bundles a filtered poll returns. A bundle passes if:
+//
+//   - it was not written by the team polling, unless "excludeOwn" is false,
+//   - its team is one of "teams", if there are any, and
+//   - its conversation is one of "conversations", if there are any.
+//
+// An empty set of teams or conversations lets every team or conversation
+// through. The relay keeps an index of every team's bundles, so a filter on
+// teams costs it nothing for the bundles it leaves out.
+public final class RelayFilter {
+
+  // Every bundle, including the team's own.
+  public static final RelayFilter ALL =
+      new RelayFilter(false, Collections.<Uuid>emptySet(), Collections.<Uuid>emptySet());
+
+  // Every bundle that another team wrote.
+  public static final RelayFilter FOREIGN =
+      new RelayFilter(true, Collections.<Uuid>emptySet(), Collections.<Uuid>emptySet());
+
+  public static final Serializer<RelayFilter> SERIALIZER = new Serializer<RelayFilter>() {
+
+    @Override
+    public void write(OutputStream out, RelayFilter value) throws IOException {
+      Serializers.BOOLEAN.write(out, value.excludeOwn);
+      Serializers.collection(Uuid.SERIALIZER).write(out, value.teams);
+      Serializers.collection(Uuid.SERIALIZER).write(out, value.conversations);
+    }
+
+    @Override
+    public RelayFilter read(InputStream in) throws IOException {
+      return new RelayFilter(Serializers.BOOLEAN.read(in),
+                             Serializers.collection(Uuid.SERIALIZER).read(in),
+                             Serializers.collection(Uuid.SERIALIZER).read(in));
+    }
+  };
+
+  private final boolean excludeOwn;
+  private final Set<Uuid> teams;
+  private final Set<Uuid> conversations;
+
+  public RelayFilter(boolean excludeOwn, Collection<Uuid> teams, Collection<Uuid> conversations) {
+    this.excludeOwn = excludeOwn;
+    this.teams = Collections.unmodifiableSet(new HashSet<>(teams));
+    this.conversations = Collections.unmodifiableSet(new HashSet<>(conversations));
+  }
+
+  public boolean excludeOwn() {
+    return excludeOwn;
+  }
+
+  // The teams let through, or an empty set for all of them.
+  public Set<Uuid> teams() {
+    return teams;
+  }
+
+  // The conversations let through, or an empty set for all of them.
+  public Set<Uuid> conversations() {
+    return conversations;
+  }
+
+  // True if the filter leaves out some teams, and so can be answered from the
+  // relay's per-team indexes.
+  public boolean byTeam() {
+    return excludeOwn || !teams.isEmpty();
+  }
+
+  // True if "team" gets past the team part of the filter when "self" polls.
+  public boolean allows(Uuid self, Uuid team) {
+    if (excludeOwn && Uuid.equals(self, team)) {
+      return false;
+    }
+    return teams.isEmpty() || teams.contains(team);
+  }
+
+  // True if the bundle passes the whole filter when "self" polls.
+  public boolean passes(Uuid self, Relay.Bundle bundle) {
+    return allows(self, bundle.team()) &&
+           (conversations.isEmpty() || conversations.contains(bundle.conversation().id()));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[excludeOwn=%s teams=%s conversations=%s]", excludeOwn, teams, conversations);
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import codeu.chat.util.LatencyHistogram;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+
+// SERVER STATS
+//
+// A snapshot of the server's request metrics, as returned for a
+// SERVER_STATS_REQUEST. There is one "Command" entry for every network code the
+// server has seen a request for. Requests with a code the server does not know
+// are all counted under NO_MESSAGE.
+public final class ServerStats {
+
+  // COMMAND
+  //
+  // Everything the server has counted for one network code since it started.
+  // "errors" includes requests that were refused with ERR_SECURITY_VIOLATION as
+  // well as requests that failed with an exception. "queueWait" is the time
+  // requests spent waiting for a timeline and "service" the time they spent
+  // running.
+  public static final class Command {
+
+    public static final Serializer<Command> SERIALIZER = new Serializer<Command>() {
+
+      @Override
+      public void write(OutputStream out, Command value) throws IOException {
+        Serializers.LONG.write(out, value.requests);
+        Serializers.LONG.write(out, value.errors);
+        Serializers.LONG.write(out, value.securityViolations);
+        Serializers.LONG.write(out, value.bytesIn);
+        Serializers.LONG.write(out, value.bytesOut);
+        LatencyHistogram.SERIALIZER.write(out, value.queueWait);
+        LatencyHistogram.SERIALIZER.write(out, value.service);
+      }
+
+      @Override
+      public Command read(InputStream in) throws IOException {
+        return new Command(
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            Serializers.LONG.read(in),
+            LatencyHistogram.SERIALIZER.read(in),
+            LatencyHistogram.SERIALIZER.read(in));
+      }
+    };
+
+    public final long requests;
+    public final long errors;
+    public final long securityViolations;
+    public final long bytesIn;
+    public final long bytesOut;
+    public final LatencyHistogram queueWait;
+    public final LatencyHistogram service;
+
+    public Command(long requests,
+                   long errors,
+                   long securityViolations,
+                   long bytesIn,
+                   long bytesOut,
+                   LatencyHistogram queueWait,
+                   LatencyHistogram service) {
+      this.requests = requests;
+      this.errors = errors;
+      this.securityViolations = securityViolations;
+      this.bytesIn = bytesIn;
+      this.bytesOut = bytesOut;
+      this.queueWait = queueWait;
+      this.service = service;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "requests=%d errors=%d security=%d in=%dB out=%dB wait={%s} service={%s}",
+          requests, errors, securityViolations, bytesIn, bytesOut, queueWait, service);
+    }
+  }
+
+  public static final Serializer<ServerStats> SERIALIZER = new Serializer<ServerStats>() {
+
+    @Override
+    public void write(OutputStream out, ServerStats value) throws IOException {
+      Time.SERIALIZER.write(out, value.taken);
+      Serializers.LONG.write(out, value.rejectedConnections);
+      Serializers.INTEGER.write(out, value.commands.size());
+      for (final Map.Entry<Integer, Command> entry : value.commands.entrySet()) {
+        Serializers.INTEGER.write(out, entry.getKey());
+        Command.SERIALIZER.write(out, entry.getValue());
+      }
+    }
+
+    @Override
+    public ServerStats read(InputStream in) throws IOException {
+      final Time taken = Time.SERIALIZER.read(in);
+      final long rejected = Serializers.LONG.read(in);
+      final int size = Serializers.INTEGER.read(in);
+      final Map<Integer, Command> commands = new TreeMap<>();
+      for (int i = 0; i < size; i++) {
+        final int code = Serializers.INTEGER.read(in);
+        commands.put(code, Command.SERIALIZER.read(in));
+      }
+      return new ServerStats(taken, rejected, commands);
+    }
+  };
+
+  public final Time taken;
+  public final long rejectedConnections;
+  public final Map<Integer, Command> commands;
+
+  public ServerStats(Time taken, long rejectedConnections, Map<Integer, Command> commands) {
+    this.taken = taken;
+    this.rejectedConnections = rejectedConnections;
+    this.commands = Collections.unmodifiableMap(new TreeMap<>(commands));
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder builder = new StringBuilder();
+    builder.append(String.format("taken=%s rejected=%d", taken, rejectedConnections));
+    for (final Map.Entry<Integer, Command> entry : commands.entrySet()) {
+      builder.append(String.format("%n  %d: %s", entry.getKey(), entry.getValue()));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,512 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import codeu.chat.common.Relay;
+import codeu.chat.util.Logger;
+
+// RELAY LOG
+//
+// Every bundle the relay has accepted, kept on disk so that a chat server can
+// catch up from far further back than the relay's in-memory history, and so
+// that a relay restart does not lose anything.
+//
+// The log is a directory of append-only segments. A segment is named after the
+// id of its first bundle ("00000000000000000042.log") and holds records of:
+//
+//   int length | int crc32 | long id | bundle (length bytes)
+//
+// where the checksum covers the id and the bundle. Next to every segment is a
+// sparse index ("00000000000000000042.index") with the id and position of one
+// record every INDEX_INTERVAL_BYTES, so finding a bundle means a binary search
+// in the index and then a short scan. Segments are read through memory maps.
+//
+// When a segment reaches "segmentBytes" a new one is started. Whole segments are
+// deleted, oldest first, once the log is over "retainBytes" or once nothing has
+// been written to them for "retainMs". The segment being written to is never
+// deleted. A limit of zero turns that kind of retention off.
+//
+// Records are written to the file as they come in, so they survive the process
+// dying. "force" is what makes them survive the machine dying too.
+//
+// Every method takes the log's lock, so it is safe to share between threads.
+// Reads and appends take turns, but a read from the log is already the slow
+// path for a relay that serves most reads from its history.
+public final class RelayLog implements Closeable {
+
+  private final static Logger.Log LOG = Logger.newLog(RelayLog.class);
+
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String INDEX_SUFFIX = ".index";
+
+  private static final int HEADER_BYTES = 4 + 4 + 8;
+  private static final int CHECKED_FROM = 8;
+
+  static final int INDEX_INTERVAL_BYTES = 4096;
+
+  // A memory map can not be larger than 2 GB.
+  private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+  private static final class Segment {
+
+    final File file;
+    final File indexFile;
+    final FileChannel channel;
+
+    int size;
+    long lastWriteMs;
+
+    // The sparse index. "ids[i]" is the id of the record at "positions[i]".
+    long[] ids = new long[16];
+    int[] positions = new int[16];
+    int entries;
+
+    // Only the segment being written to has its index open.
+    DataOutputStream indexOut;
+
+    MappedByteBuffer map;
+
+    Segment(File file, File indexFile, FileChannel channel) {
+      this.file = file;
+      this.indexFile = indexFile;
+      this.channel = channel;
+    }
+
+    // Index the record at "position" if it is far enough past the last entry.
+    // Returns true if it was indexed.
+    boolean index(long id, int position) {
+      if (entries > 0 && position - positions[entries - 1] < INDEX_INTERVAL_BYTES) {
+        return false;
+      }
+      if (entries == ids.length) {
+        ids = Arrays.copyOf(ids, entries * 2);
+        positions = Arrays.copyOf(positions, entries * 2);
+      }
+      ids[entries] = id;
+      positions[entries] = position;
+      entries += 1;
+      return true;
+    }
+
+    // The position of the last indexed record with an id no greater than "id",
+    // which is where a scan for "id" starts.
+    int positionOf(long id) {
+      int low = 0;
+      int high = entries - 1;
+      int found = 0;
+      while (low <= high) {
+        final int middle = (low + high) >>> 1;
+        if (ids[middle] <= id) {
+          found = positions[middle];
+          low = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return found;
+    }
+
+    // A map of everything written so far. The map is only made again once
+    // there are records past the end of the current one.
+    ByteBuffer view() throws IOException {
+      if (map == null || map.limit() < size) {
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      return map;
+    }
+
+    void writeIndex() throws IOException {
+      try (final DataOutputStream out =
+               new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+        for (int i = 0; i < entries; i++) {
+          out.writeLong(ids[i]);
+          out.writeInt(positions[i]);
+        }
+      }
+    }
+
+    void seal() throws IOException {
+      channel.force(true);
+      if (indexOut != null) {
+        indexOut.close();
+        indexOut = null;
+      }
+    }
+
+    void close() throws IOException {
+      if (indexOut != null) {
+        indexOut.close();
+        indexOut = null;
+      }
+      channel.close();
+      map = null;
+    }
+
+    void delete() throws IOException {
+      close();
+      file.delete();
+      indexFile.delete();
+    }
+  }
+
+  private final File directory;
+  private final long segmentBytes;
+  private final long retainBytes;
+  private final long retainMs;
+
+  // Segments by the id of their first bundle. The last one is written to.
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+  private long last;
+  private long bytes;
+
+  // RELAY LOG
+  //
+  // Open the log in "directory", creating it if needed. Segments left by an
+  // earlier run are checked and anything after the last whole record in them
+  // (from a write cut short) is cut off.
+  public RelayLog(File directory, long segmentBytes, long retainBytes, long retainMs)
+      throws IOException {
+
+    this.directory = directory;
+    this.segmentBytes = Math.max(HEADER_BYTES, Math.min(segmentBytes, MAX_SEGMENT_BYTES));
+    this.retainBytes = Math.max(0, retainBytes);
+    this.retainMs = Math.max(0, retainMs);
+
+    directory.mkdirs();
+    if (!directory.isDirectory()) {
+      throw new IOException("Relay log directory " + directory + " could not be created");
+    }
+
+    final File[] files = directory.listFiles();
+    final TreeMap<Long, File> found = new TreeMap<>();
+    for (final File file : files == null ? new File[0] : files) {
+      final String name = file.getName();
+      if (name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          found.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+        } catch (NumberFormatException ex) {
+          LOG.warning("Ignoring file %s in the relay log directory", file);
+        }
+      }
+    }
+
+    for (final Map.Entry<Long, File> entry : found.entrySet()) {
+      final Segment segment = recover(entry.getValue(), indexFile(entry.getKey()));
+      if (segment.size == 0) {
+        segment.delete();
+      } else {
+        segments.put(entry.getKey(), segment);
+        bytes += segment.size;
+      }
+    }
+
+    if (!segments.isEmpty()) {
+      active().indexOut = new DataOutputStream(new FileOutputStream(active().indexFile, true));
+    }
+
+    LOG.info("Opened relay log %s with %d segments (%d bytes) holding bundles %d to %d",
+             directory, segments.size(), bytes, first(), last);
+  }
+
+  // The id of the oldest bundle in the log, or 0 if it is empty.
+  public synchronized long first() {
+    return segments.isEmpty() ? 0 : segments.firstKey();
+  }
+
+  // The id of the newest bundle in the log, or 0 if it is empty.
+  public synchronized long last() {
+    return last;
+  }
+
+  public synchronized long bytes() { return bytes; }
+
+  public synchronized int segments() { return segments.size(); }
+
+  // APPEND
+  //
+  // Add a bundle to the end of the log. Bundle ids must go up with every
+  // append, though they do not need to go up by one.
+  public synchronized void append(Relay.Bundle bundle) throws IOException {
+
+    final long id = bundle.id().id();
+    if (id <= last) {
+      throw new IllegalArgumentException("Bundle " + id + " is not after the last bundle " + last);
+    }
+
+    final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    ServerFrontEnd.BUNDLE_SERIALIZER.write(payload, bundle);
+
+    final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.size());
+    record.putInt(payload.size());
+    record.putInt(0);
+    record.putLong(id);
+    record.put(payload.toByteArray());
+    record.putInt(4, checksum(record, CHECKED_FROM, record.capacity()));
+    record.flip();
+
+    if (segments.isEmpty() || active().size + record.remaining() > segmentBytes) {
+      roll(id);
+    }
+
+    final Segment segment = active();
+    final int position = segment.size;
+    while (record.hasRemaining()) {
+      segment.channel.write(record, position + record.position());
+    }
+
+    if (segment.index(id, position)) {
+      segment.indexOut.writeLong(id);
+      segment.indexOut.writeInt(position);
+    }
+
+    segment.size += record.capacity();
+    segment.lastWriteMs = System.currentTimeMillis();
+    bytes += record.capacity();
+    last = id;
+  }
+
+  // READ
+  //
+  // Up to "max" bundles, oldest first, starting with the first bundle whose id
+  // is at least "from".
+  public synchronized List<Relay.Bundle> read(long from, int max) throws IOException {
+
+    final List<Relay.Bundle> found = new ArrayList<>();
+
+    Map.Entry<Long, Segment> entry = segments.floorEntry(from);
+    if (entry == null) {
+      entry = segments.firstEntry();
+    }
+
+    for (; entry != null && found.size() < max; entry = segments.higherEntry(entry.getKey())) {
+
+      final Segment segment = entry.getValue();
+      final ByteBuffer view = segment.view();
+
+      int position = segment.positionOf(from);
+      while (position < segment.size && found.size() < max) {
+        final int length = view.getInt(position);
+        if (view.getLong(position + CHECKED_FROM) >= from) {
+          final byte[] payload = new byte[length];
+          final ByteBuffer record = view.duplicate();
+          record.position(position + HEADER_BYTES);
+          record.get(payload);
+          found.add(ServerFrontEnd.BUNDLE_SERIALIZER.read(new ByteArrayInputStream(payload)));
+        }
+        position += HEADER_BYTES + length;
+      }
+    }
+
+    return found;
+  }
+
+  // RETAIN
+  //
+  // Delete the oldest segments until the log is within its limits again.
+  // Returns how many segments were deleted.
+  public int retain(long nowMs) throws IOException {
+    return retain(nowMs, Long.MAX_VALUE);
+  }
+
+  // Like "retain", but a segment holding bundles after "keepAfter" - the
+  // oldest cursor a team committed - is not deleted for its age, so that the
+  // team can still catch up from there. It is still deleted once the log is
+  // too big, as running out of disk would stop the relay for everyone.
+  public synchronized int retain(long nowMs, long keepAfter) throws IOException {
+
+    int deleted = 0;
+
+    while (segments.size() > 1) {
+
+      final Segment oldest = segments.firstEntry().getValue();
+
+      // There is more than one segment, so the next one starts right after
+      // the last bundle in this one.
+      final long oldestLast = segments.higherKey(segments.firstKey()) - 1;
+
+      final boolean tooBig = retainBytes > 0 && bytes > retainBytes;
+      final boolean tooOld = retainMs > 0 && nowMs - oldest.lastWriteMs > retainMs && oldestLast <= keepAfter;
+
+      if (!tooBig && !tooOld) {
+        break;
+      }
+
+      LOG.info("Deleting relay log segment %s (%s)", oldest.file, tooBig ? "size" : "age");
+
+      segments.pollFirstEntry();
+      bytes -= oldest.size;
+      oldest.delete();
+      deleted += 1;
+    }
+
+    return deleted;
+  }
+
+  // FORCE
+  //
+  // Make sure everything appended so far is on the disk itself.
+  public synchronized void force() throws IOException {
+    if (!segments.isEmpty()) {
+      active().channel.force(false);
+      active().indexOut.flush();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    force();
+    for (final Segment segment : segments.values()) {
+      segment.close();
+    }
+    segments.clear();
+  }
+
+  private Segment active() {
+    return segments.lastEntry().getValue();
+  }
+
+  private void roll(long firstId) throws IOException {
+
+    if (!segments.isEmpty()) {
+      active().seal();
+    }
+
+    final File file = new File(directory, String.format("%020d%s", firstId, SEGMENT_SUFFIX));
+    final Segment segment = new Segment(file, indexFile(firstId), FileChannel.open(
+        file.toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE));
+    segment.indexOut = new DataOutputStream(new FileOutputStream(segment.indexFile));
+    segment.lastWriteMs = System.currentTimeMillis();
+
+    segments.put(firstId, segment);
+
+    LOG.info("Started relay log segment %s", file);
+  }
+
+  // RECOVER
+  //
+  // Open a segment from an earlier run. The saved index is trusted up to its
+  // last entry that makes sense. Records from there on are checked one by one,
+  // indexed, and the segment is cut short at the first one that is not whole.
+  private Segment recover(File file, File indexFile) throws IOException {
+
+    final FileChannel channel = FileChannel.open(
+        file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final Segment segment = new Segment(file, indexFile, channel);
+    final long fileSize = Math.min(channel.size(), MAX_SEGMENT_BYTES);
+
+    if (indexFile.exists()) {
+      try (final DataInputStream in =
+               new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+        for (long left = indexFile.length(); left >= 12; left -= 12) {
+          final long id = in.readLong();
+          final int position = in.readInt();
+          final boolean ordered = segment.entries == 0 ||
+              (id > segment.ids[segment.entries - 1] &&
+               position > segment.positions[segment.entries - 1]);
+          if (!ordered || position < 0 || position >= fileSize) {
+            break;
+          }
+          segment.index(id, position);
+        }
+      }
+    }
+
+    final ByteBuffer view = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+    // If the record at the last index entry is itself broken, the entry goes
+    // and the scan starts again from the one before it.
+    long previous;
+    int position;
+    while (true) {
+      final int start = segment.entries == 0 ? 0 : segment.positions[segment.entries - 1];
+      previous = segment.entries == 0 ? last : segment.ids[segment.entries - 1] - 1;
+      position = start;
+      while (position + HEADER_BYTES <= fileSize) {
+        final int length = view.getInt(position);
+        final long end = (long) position + HEADER_BYTES + length;
+        if (length < 0 || end > fileSize) {
+          break;
+        }
+        final long id = view.getLong(position + CHECKED_FROM);
+        if (id <= previous || view.getInt(position + 4) != checksum(view, position + CHECKED_FROM, (int) end)) {
+          break;
+        }
+        segment.index(id, position);
+        previous = id;
+        position = (int) end;
+      }
+      if (position > start || segment.entries == 0) {
+        break;
+      }
+      segment.entries -= 1;
+    }
+
+    if (position < channel.size()) {
+      LOG.warning("Relay log segment %s has %d bytes after its last whole record. Cutting them off.",
+                  file, channel.size() - position);
+      channel.truncate(position);
+    }
+
+    segment.size = position;
+    segment.lastWriteMs = file.lastModified();
+    segment.writeIndex();
+
+    if (position > 0) {
+      last = previous;
+    }
+
+    return segment;
+  }
+
+  private File indexFile(long firstId) {
+    return new File(directory, String.format("%020d%s", firstId, INDEX_SUFFIX));
+  }
+
+  private static int checksum(ByteBuffer buffer, int from, int to) {
+    final CRC32 crc = new CRC32();
+    final ByteBuffer range = buffer.duplicate();
+    range.limit(to);
+    range.position(from);
+    crc.update(range);
+    return (int) crc.getValue();
+  }
+}
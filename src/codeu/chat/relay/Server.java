@@ -14,20 +14,35 @@
 
 package codeu.chat.relay;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import codeu.chat.common.ComponentDictionary;
 import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCursorException;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 
+// SERVER
+//
+// The relay itself. It is safe to use from any number of threads: reads and
+// polls never lock anything, and writes take turns through "writeLock" only
+// for as long as it takes to give a bundle its id and put it in the history
+// (and the log). Everything else a write does - checking the secret, waking
+// held polls - happens outside of it.
 public final class Server implements Relay {
 
   private final static Logger.Log LOG = Logger.newLog(Server.class);
@@ -100,18 +115,78 @@ public final class Server implements Relay {
 
   }
 
-  private final Queue<Relay.Bundle> history = new LinkedList<>();
-  private final Map<Uuid, Secret> teamSecrets = new HashMap<>();
+  // HISTORY
+  //
+  // The newest "maxHistory" bundles in a ring. Bundle ids come from
+  // "idGenerator" and go up by one with every write, so the bundle with id "n"
+  // is always in slot "n % maxHistory" and a read finds where to start without
+  // searching. "newest" is the id of the last bundle written (0 before the
+  // first write) and "first" is the id of the first bundle the ring ever held
+  // (0 until it holds one), so the oldest bundle still held is the later of
+  // "first" and "newest - maxHistory + 1".
+  //
+  // A write fills in its slot before it moves "newest" on, so every id up to
+  // "newest" is in the ring when a reader gets to it - unless writers went all
+  // the way around the ring in the meantime. A reader notices that by finding
+  // a bundle with the wrong id in a slot, and starts over.
+  private final AtomicReferenceArray<Relay.Bundle> history;
+  private volatile long newest;
+  private volatile long first;
+
+  private final Object writeLock = new Object();
+
+  // Every bundle, going back further than the history, if the relay was given
+  // a log. Reads from before the history are served from here.
+  private final RelayLog log;
+
+  // The cursor every team last committed.
+  private final TeamCursors cursors;
+
+  private final ConcurrentMap<Uuid, Secret> teamSecrets = new ConcurrentHashMap<>();
+
+  // The ids of every team's bundles in the history, for filtered reads. Only
+  // added to while holding "writeLock".
+  private final ConcurrentMap<Uuid, TeamIndex> teamIndexes = new ConcurrentHashMap<>();
+
+  // COMPONENTS
+  //
+  // One copy of every user and conversation in the history, by id, so that
+  // the bundles that share one also share the object and its text instead of
+  // each holding a copy. Every bundle has two, so once there are more than
+  // twice as many as the history holds, the ones used least recently are let
+  // go. Only used while holding "writeLock".
+  private final Map<Uuid, Relay.Bundle.Component> components;
+  private volatile int componentCount;
 
   private final int maxHistory;
   private final int maxRead;
+  private final int maxPoll;
+
+  // Run once after the next write. See "await". Guarded by itself.
+  private final List<Runnable> waiters = new ArrayList<>();
+
+  // Counts for monitoring.
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong reads = new AtomicLong();
+  private final AtomicLong polls = new AtomicLong();
+  private final AtomicLong unauthorized = new AtomicLong();
+  private final AtomicLong evictedCursors = new AtomicLong();
+  private final AtomicLong unknownCursors = new AtomicLong();
+  private final AtomicLong logReads = new AtomicLong();
+  private final AtomicLong logFailures = new AtomicLong();
+  private final AtomicLong componentReuses = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong refusedCommits = new AtomicLong();
 
   // Okay, some reasoning behind why I'm using a statically initialized linear
   // generator for the ids for the relay server.
   //
   //   Point A : The ids only need to be uniqiue for a single run time of the
   //             relay. Ids from the relay are only used as a position into its
-  //             history. If it repeats an id its not a problem.
+  //             history. If it repeats an id its not a problem. (With a log
+  //             the history outlives the run, so the generator starts after
+  //             the last bundle in the log instead.)
   //
   //   Point B : The chance that the history would be so long that an id could
   //             be reused and appear along side's twin is way too small. The
@@ -123,17 +198,80 @@ public final class Server implements Relay {
   // As a side note, the ids start at 1 and not 0 to avoid the first id from
   // matching the NULL id which is defined as (null, 0);
 
- private final Uuid.Generator idGenerator = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
+  //
+  // Only used while holding "writeLock".
+  private final Uuid.Generator idGenerator;
 
   // SERVER
   //
   // When initializing the server keep the following in mind.
-  //   - Keep "maxHistory" small enough to avoid using too much memory.
+  //   - Keep "maxHistory" small enough to avoid using too much memory. The
+  //     history always holds at least one bundle.
   //   - Keep "maxRead" small enough to avoid any one client from connecting to
   //     the server for too long.
+  //   - "maxPoll" is what a single poll may return. A team that has fallen
+  //     behind catches up "maxPoll" bundles at a time, so it can be much larger
+  //     than "maxRead".
   public Server(int maxHistory, int maxRead) {
-    this.maxHistory = Math.max(0, maxHistory);
+    this(maxHistory, maxRead, maxRead, null);
+  }
+
+  // With a "log", every bundle is also appended to it and the history starts
+  // out holding the newest bundles in it, back to the first gap in their ids
+  // (left by a failed append). If those can not be read back the history
+  // starts out empty and reads are served from the log instead.
+  public Server(int maxHistory, int maxRead, int maxPoll, RelayLog log) {
+    this(maxHistory, maxRead, maxPoll, log, new TeamCursors());
+  }
+
+  // Committed cursors are kept in "cursors", which should be kept on disk
+  // along with the log.
+  public Server(int maxHistory, int maxRead, int maxPoll, RelayLog log, TeamCursors cursors) {
+    this.cursors = cursors;
+    this.maxHistory = Math.max(1, maxHistory);
     this.maxRead = Math.max(0, maxRead);
+    this.maxPoll = Math.max(0, maxPoll);
+    this.history = new AtomicReferenceArray<>(this.maxHistory);
+    this.log = log;
+
+    final int maxComponents = 2 * this.maxHistory;
+    this.components = new LinkedHashMap<Uuid, Relay.Bundle.Component>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Uuid, Relay.Bundle.Component> eldest) {
+        return size() > maxComponents;
+      }
+    };
+
+    final long last = log == null ? 0 : log.last();
+    this.idGenerator = new LinearUuidGenerator(null, (int) Math.max(1, last), Integer.MAX_VALUE);
+    this.newest = last;
+
+    if (last > 0) {
+      try {
+        long expected = 0;
+        for (final Relay.Bundle logged : log.read(last - this.maxHistory + 1, this.maxHistory)) {
+          final Relay.Bundle bundle = new Bundle(logged.id(),
+                                                 logged.time(),
+                                                 logged.team(),
+                                                 intern(logged.user()),
+                                                 intern(logged.conversation()),
+                                                 logged.message());
+          final long id = bundle.id().id();
+          if (id != expected) {
+            first = id;
+          }
+          history.set(slot(id), bundle);
+          index(bundle);
+          expected = id + 1;
+        }
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to read the newest bundles back from the relay log");
+        first = 0;
+      }
+    }
   }
 
   // ADD TEAM
@@ -145,11 +283,7 @@ public final class Server implements Relay {
 
     LOG.info("Adding team to relay %s", id);
 
-    final boolean open = teamSecrets.get(id) == null;
-
-    if (open) {
-      teamSecrets.put(id, secret);
-    }
+    final boolean open = teamSecrets.putIfAbsent(id, secret) == null;
 
     LOG.info(open ?
              "Adding team was successful" :
@@ -179,19 +313,16 @@ public final class Server implements Relay {
           conversation.id(),
           message.id());
 
-      if (history.size() >= maxHistory) {
-         history.remove();
+      synchronized (writeLock) {
+        append(teamId, user, conversation, message);
       }
+      wake();
 
-      return history.offer(new Bundle(
-          idGenerator.make(),
-          Time.now(),
-          teamId,
-          user,
-          conversation,
-          message));
+      return true;
     } else {
 
+      unauthorized.incrementAndGet();
+
       LOG.warning(
           "Unauthorized write attempt to server team=%s user=%s conversation=%s message=%s",
           teamId,
@@ -204,31 +335,196 @@ public final class Server implements Relay {
   }
 
   @Override
-  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+  public int write(Uuid teamId, Secret teamSecret, List<Relay.Write> writes) {
+
+    if (!authenticate(teamId, teamSecret)) {
+      unauthorized.incrementAndGet();
+      LOG.warning("Unauthorized batch write attempt to server team=%s size=%d", teamId, writes.size());
+      return 0;
+    }
+
+    LOG.info("Writing batch to server team=%s size=%d", teamId, writes.size());
+
+    // One turn for the whole batch, so that its bundles stay together.
+    synchronized (writeLock) {
+      for (final Relay.Write write : writes) {
+        append(teamId, write.user(), write.conversation(), write.message());
+      }
+    }
+    wake();
 
-    final Collection<Relay.Bundle> found = new ArrayList<>();
+    batches.incrementAndGet();
+
+    return writes.size();
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range)
+      throws RelayCursorException {
+    return read(teamId, teamSecret, root, range, maxRead, RelayFilter.ALL).bundles();
+  }
+
+  // POLL
+  //
+  // The relay itself never holds on to a poll - it answers right away, only
+  // with a larger limit than "read". Holding on until there is something to
+  // send is up to whoever calls it, with "await". See "ServerFrontEnd".
+  @Override
+  public Collection<Relay.Bundle> poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs)
+      throws RelayCursorException {
+    return poll(teamId, teamSecret, root, range, waitMs, RelayFilter.ALL).bundles();
+  }
+
+  @Override
+  public Relay.Page poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs, RelayFilter filter)
+      throws RelayCursorException {
+    polls.incrementAndGet();
+    return read(teamId, teamSecret, root, range, maxPoll, filter);
+  }
+
+  @Override
+  public boolean commit(Uuid teamId, Secret teamSecret, Uuid cursor) {
+
+    if (!authenticate(teamId, teamSecret)) {
+      unauthorized.incrementAndGet();
+      LOG.warning("Unauthorized commit attempt to server team=%s", teamId);
+      return false;
+    }
+
+    // Only a cursor the relay could have handed out. NULL takes the team back
+    // to having kept nothing.
+    final long id = cursor == null || cursor.root() != null ? -1 : cursor.id();
+    if (id < 0 || id > newest) {
+      refusedCommits.incrementAndGet();
+      LOG.warning("Refused commit of unknown cursor team=%s cursor=%s", teamId, cursor);
+      return false;
+    }
+
+    try {
+      cursors.commit(teamId, id, System.currentTimeMillis());
+    } catch (IOException ex) {
+      refusedCommits.incrementAndGet();
+      LOG.error(ex, "Failed to save the cursor of team %s", teamId);
+      return false;
+    }
+
+    commits.incrementAndGet();
+    return true;
+  }
+
+  @Override
+  public Uuid committed(Uuid teamId, Secret teamSecret) {
+
+    if (!authenticate(teamId, teamSecret)) {
+      unauthorized.incrementAndGet();
+      LOG.warning("Unauthorized committed cursor request team=%s", teamId);
+      return null;
+    }
+
+    final TeamCursors.Cursor cursor = cursors.get(teamId);
+    return cursor == null || cursor.id == 0 ? Uuid.NULL : new Uuid((int) cursor.id);
+  }
+
+  // AWAIT
+  //
+  // Run "waiter" once, right after the next bundle is written. A waiter that
+  // is no longer needed can be taken back with "forget".
+  public void await(Runnable waiter) {
+    synchronized (waiters) {
+      waiters.add(waiter);
+    }
+  }
+
+  public void forget(Runnable waiter) {
+    synchronized (waiters) {
+      waiters.remove(waiter);
+    }
+  }
+
+  private Relay.Page read(Uuid teamId, Secret teamSecret, Uuid root, int range, int max, RelayFilter filter)
+      throws RelayCursorException {
+
+    final List<Relay.Bundle> found = new ArrayList<>();
+    Uuid next = root;
 
     if (authenticate(teamId, teamSecret)) {
 
+      reads.incrementAndGet();
+
       LOG.info(
-         "Request to read from server requested=%d allowed=%d",
+         "Request to read from server requested=%d allowed=%d filter=%s",
           range,
-          maxRead);
-
-      for (final Relay.Bundle message : history) {
+          max,
+          filter);
+
+      final int limit = Math.min(range, max);
+
+      final long begin = start(root, newest);
+      long from = begin;
+      long scanned = begin - 1;
+
+      while (found.size() < limit) {
+
+        final long last = newest;
+
+        if (log != null && from < oldestId(last)) {
+
+          // The log has no index by team, so it is read in chunks and
+          // filtered here until there is enough or it reaches the history.
+          final List<Relay.Bundle> chunk;
+          try {
+            chunk = log.read(from, limit);
+            logReads.incrementAndGet();
+          } catch (IOException ex) {
+            logFailures.incrementAndGet();
+            LOG.error(ex, "Failed to read from the relay log from %d", from);
+            break;
+          }
+
+          if (chunk.isEmpty()) {
+            // Whatever is left was never logged, so it can only be in the
+            // history.
+            from = Math.max(from, oldestId(last));
+            continue;
+          }
+
+          for (final Relay.Bundle bundle : chunk) {
+            scanned = bundle.id().id();
+            if (filter.passes(teamId, bundle)) {
+              found.add(bundle);
+              if (found.size() == limit) {
+                break;
+              }
+            }
+          }
+          from = scanned + 1;
+          continue;
+        }
 
-        // Only add a message if there is room. We cannot stop
-        // searching in case we see the root later on.
-        if (found.size() < Math.min(range, maxRead)) {
-          found.add(message);
+        final int before = found.size();
+        final long end = collect(found, teamId, filter, from, last, limit);
+        if (end >= 0) {
+          scanned = Math.max(scanned, end);
+          break;
         }
 
-        // If the start is found, drop all previous messages.
-        if (message.id().equals(root)) {
-          found.clear();
+        // Writers went around the ring while this was reading. Go again with
+        // the newer history - or from the log, if what was being read is no
+        // longer in the history.
+        found.subList(before, found.size()).clear();
+        if (log == null && from < oldestId(newest)) {
+          if (!Uuid.equals(root, Uuid.NULL)) {
+            evictedCursors.incrementAndGet();
+            throw new RelayCursorException(RelayCursorException.Reason.EVICTED, root);
+          }
+          from = oldestId(newest);
         }
       }
 
+      if (scanned >= begin) {
+        next = new Uuid((int) scanned);
+      }
+
       LOG.info(
           "Read request complete requested=%d fullfilled=%d",
           range,
@@ -236,12 +532,286 @@ public final class Server implements Relay {
 
     } else {
 
+      unauthorized.incrementAndGet();
+
       LOG.info(
           "Unauthroized attempt to read from server team=%s",
           teamId);
     }
 
-    return found;
+    final Uuid cursor = next;
+    return new Relay.Page() {
+      @Override
+      public Collection<Relay.Bundle> bundles() { return found; }
+      @Override
+      public Uuid next() { return cursor; }
+    };
+  }
+
+  // MONITORING
+  //
+  // Safe to call from any thread.
+
+  public int teams() { return teamSecrets.size(); }
+
+  public int historySize() {
+    final long last = newest;
+    return (int) (last - oldestId(last) + 1);
+  }
+
+  public int maxHistory() { return maxHistory; }
+
+  // The id of the newest bundle, 0 before the first.
+  public long newest() { return newest; }
+
+  // The cursor every team that committed one last committed, by team.
+  public Map<Uuid, TeamCursors.Cursor> committedCursors() { return cursors.all(); }
+
+  // OLDEST COMMITTED
+  //
+  // The id of the oldest cursor any team committed, or Long.MAX_VALUE if none
+  // did. The log keeps what comes after it for longer (see "RelayLog.retain").
+  public long oldestCommitted() {
+    long oldest = Long.MAX_VALUE;
+    for (final TeamCursors.Cursor cursor : cursors.all().values()) {
+      oldest = Math.min(oldest, cursor.id);
+    }
+    return oldest;
+  }
+
+  // The time of the oldest bundle still in the history, or null if it is empty.
+  public Time oldest() {
+    final Relay.Bundle bundle = history.get(slot(oldestId(newest)));
+    return bundle == null ? null : bundle.time();
+  }
+
+  public long writes() { return writes.get(); }
+
+  // Batch writes accepted. Every bundle in them also counts as a write.
+  public long batches() { return batches.get(); }
+
+  public long reads() { return reads.get(); }
+
+  // Times a poll looked for bundles. A poll that is held looks once when it
+  // comes in and again when it is answered. Every look also counts as a read.
+  public long polls() { return polls.get(); }
+
+  // Polls being held until the next write.
+  public int waiting() {
+    synchronized (waiters) {
+      return waiters.size();
+    }
+  }
+
+  public long unauthorized() { return unauthorized.get(); }
+
+  // Reads refused because the bundles after the cursor had been evicted.
+  public long evictedCursors() { return evictedCursors.get(); }
+
+  // Reads refused because the relay never made the cursor.
+  public long unknownCursors() { return unknownCursors.get(); }
+
+  // Reads that started before the history and were served from the log.
+  public long logReads() { return logReads.get(); }
+
+  // Appends to and reads from the log that failed.
+  public long logFailures() { return logFailures.get(); }
+
+  // Users and conversations held once for all the bundles that have them.
+  public int components() { return componentCount; }
+
+  // Users and conversations in writes that the relay already held a copy of.
+  public long componentReuses() { return componentReuses.get(); }
+
+  // Cursors committed, and refused for being unknown or failing to save.
+  public long commits() { return commits.get(); }
+
+  public long refusedCommits() { return refusedCommits.get(); }
+
+  // START
+  //
+  // The id of the first bundle to send for a read from "root". A root that is
+  // just before the oldest bundle is fine as nothing after it was lost. With a
+  // log, the oldest bundle is the oldest one still in the log. "last" is the
+  // newest bundle as far as this read is concerned.
+  private long start(Uuid root, long last) throws RelayCursorException {
+
+    if (Uuid.equals(root, Uuid.NULL)) {
+      return earliestId(last);
+    }
+
+    if (root.root() != null || root.id() <= 0 || root.id() > last) {
+      unknownCursors.incrementAndGet();
+      throw new RelayCursorException(RelayCursorException.Reason.UNKNOWN, root);
+    }
+
+    if (root.id() < earliestId(last) - 1) {
+      evictedCursors.incrementAndGet();
+      throw new RelayCursorException(RelayCursorException.Reason.EVICTED, root);
+    }
+
+    return root.id() + 1L;
+  }
+
+  // COLLECT
+  //
+  // Add the bundles from "start" to "last" in the history that pass "filter"
+  // to "found", until it holds "limit" of them. Returns the id of the last
+  // bundle looked at (which is "start - 1" if there were none), or -1 if a
+  // writer overwrote one of them first.
+  //
+  // A filter on teams is answered from the team indexes, so the bundles of
+  // the teams it leaves out are never looked at.
+  private long collect(List<Relay.Bundle> found,
+                       Uuid self,
+                       RelayFilter filter,
+                       long start,
+                       long last,
+                       int limit) {
+
+    if (!filter.byTeam()) {
+      long id = start;
+      for (; id <= last && found.size() < limit; id++) {
+        final Relay.Bundle bundle = history.get(slot(id));
+        if (bundle == null || bundle.id().id() != id) {
+          return -1;
+        }
+        if (filter.passes(self, bundle)) {
+          found.add(bundle);
+        }
+      }
+      return id - 1;
+    }
+
+    // Take up to what is still needed from every team let through. If a team
+    // had more than that, the ids after its last one taken were not looked
+    // at, so the merged ids are only complete up to "complete".
+    final int wanted = limit - found.size();
+    final List<Long> ids = new ArrayList<>();
+    long complete = last;
+
+    for (final Map.Entry<Uuid, TeamIndex> entry : teamIndexes.entrySet()) {
+      if (!filter.allows(self, entry.getKey())) {
+        continue;
+      }
+      final List<Long> team = new ArrayList<>();
+      if (!entry.getValue().collect(start, last, wanted, team)) {
+        return -1;
+      }
+      if (team.size() == wanted) {
+        complete = Math.min(complete, team.get(team.size() - 1));
+      }
+      ids.addAll(team);
+    }
+
+    Collections.sort(ids);
+
+    for (final long id : ids) {
+      if (id > complete) {
+        break;
+      }
+      final Relay.Bundle bundle = history.get(slot(id));
+      if (bundle == null || bundle.id().id() != id) {
+        return -1;
+      }
+      if (filter.passes(self, bundle)) {
+        found.add(bundle);
+        if (found.size() == limit) {
+          return id;
+        }
+      }
+    }
+
+    return complete;
+  }
+
+  // APPEND
+  //
+  // Only call while holding "writeLock".
+  private void append(Uuid teamId,
+                      Relay.Bundle.Component user,
+                      Relay.Bundle.Component conversation,
+                      Relay.Bundle.Component message) {
+
+    final Uuid id = idGenerator.make();
+
+    final Bundle bundle = new Bundle(id, Time.now(), teamId, intern(user), intern(conversation), message);
+
+    // A bundle that can not be logged is still relayed from memory. It is
+    // only lost if the relay restarts before everyone has read it.
+    if (log != null) {
+      try {
+        log.append(bundle);
+      } catch (IOException ex) {
+        logFailures.incrementAndGet();
+        LOG.error(ex, "Failed to append bundle %s to the relay log", id);
+      }
+    }
+
+    // Writing over the oldest bundle when the ring is full is what evicts it.
+    history.set(slot(id.id()), bundle);
+    index(bundle);
+    if (first == 0) {
+      first = id.id();
+    }
+    newest = id.id();
+
+    writes.incrementAndGet();
+  }
+
+  // INTERN
+  //
+  // The copy of "component" the relay already holds, if it holds one. Only
+  // call while holding "writeLock", or before anyone else can see the relay.
+  private Relay.Bundle.Component intern(Relay.Bundle.Component component) {
+    final Relay.Bundle.Component held = components.get(component.id());
+    if (held != null && ComponentDictionary.same(held, component)) {
+      componentReuses.incrementAndGet();
+      return held;
+    }
+    components.put(component.id(), component);
+    componentCount = components.size();
+    return component;
+  }
+
+  // Only call while holding "writeLock", or before anyone else can see the
+  // relay.
+  private void index(Relay.Bundle bundle) {
+    TeamIndex index = teamIndexes.get(bundle.team());
+    if (index == null) {
+      index = new TeamIndex(maxHistory);
+      teamIndexes.put(bundle.team(), index);
+    }
+    index.add(bundle.id().id());
+  }
+
+  // Run the waiters outside of any lock, as they answer polls over the
+  // network.
+  private void wake() {
+    final List<Runnable> woken;
+    synchronized (waiters) {
+      if (waiters.isEmpty()) {
+        return;
+      }
+      woken = new ArrayList<>(waiters);
+      waiters.clear();
+    }
+    for (final Runnable waiter : woken) {
+      waiter.run();
+    }
+  }
+
+  private long oldestId(long last) {
+    return first == 0 ? last + 1 : Math.max(first, last - maxHistory + 1);
+  }
+
+  private long earliestId(long last) {
+    final long logged = log == null ? 0 : log.first();
+    return logged == 0 ? oldestId(last) : Math.min(logged, oldestId(last));
+  }
+
+  private int slot(long id) {
+    return (int) (id % maxHistory);
   }
 
   private boolean authenticate(Uuid id, Secret secret) {
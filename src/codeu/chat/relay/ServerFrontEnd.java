@@ -17,15 +17,24 @@ package codeu.chat.relay;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import codeu.chat.common.ComponentDictionary;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCursorException;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
+import codeu.chat.util.Timeline;
+import codeu.chat.util.TimingWheel;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.Connection;
 
@@ -63,52 +72,133 @@ public final class ServerFrontEnd {
     }
   };
 
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
-      new Serializer<Relay.Bundle>() {
-
-    @Override
-    public Relay.Bundle read(InputStream in) throws IOException {
+  private static final Serializer<Relay.Write> WRITE_SERIALIZER = writes(COMPONENT_SERIALIZER);
+
+  // WRITES
+  //
+  // Writes with their user and conversation going through "shared", which is
+  // either the plain component serializer or a dictionary for a compact batch.
+  // Messages are never the same twice, so they are always sent in full.
+  private static Serializer<Relay.Write> writes(final Serializer<Relay.Bundle.Component> shared) {
+
+    return new Serializer<Relay.Write>() {
+
+      @Override
+      public Relay.Write read(InputStream in) throws IOException {
+
+        final Relay.Bundle.Component user = shared.read(in);
+        final Relay.Bundle.Component conversation = shared.read(in);
+        final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+
+        return new Relay.Write() {
+          @Override
+          public Relay.Bundle.Component user() { return user; }
+          @Override
+          public Relay.Bundle.Component conversation() { return conversation; }
+          @Override
+          public Relay.Bundle.Component message() { return message; }
+        };
+      }
+
+      @Override
+      public void write(OutputStream out, Relay.Write value) throws IOException {
+        shared.write(out, value.user());
+        shared.write(out, value.conversation());
+        COMPONENT_SERIALIZER.write(out, value.message());
+      }
+    };
+  }
 
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-      final Uuid team = Uuid.SERIALIZER.read(in);
-      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+  // The most messages the relay takes in one batch write. A batch that says
+  // it is larger is refused before any of it is read.
+  private static final int MAX_WRITE_BATCH = 4096;
+
+  // Package-private so the codec benchmarks can reach it.
+  static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER = bundles(COMPONENT_SERIALIZER);
+
+  // BUNDLES
+  //
+  // Like "writes", for bundles. Package-private so that the benchmarks and
+  // tests can make compact ones with "dictionary".
+  static Serializer<Relay.Bundle> bundles(final Serializer<Relay.Bundle.Component> shared) {
+
+    return new Serializer<Relay.Bundle>() {
+
+      @Override
+      public Relay.Bundle read(InputStream in) throws IOException {
+
+        final Uuid id = Uuid.SERIALIZER.read(in);
+        final Time time = Time.SERIALIZER.read(in);
+        final Uuid team = Uuid.SERIALIZER.read(in);
+        final Relay.Bundle.Component user = shared.read(in);
+        final Relay.Bundle.Component conversation = shared.read(in);
+        final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+
+        return new Relay.Bundle() {
+          @Override
+          public Uuid id() { return id; }
+          @Override
+          public Time time() { return time; }
+          @Override
+          public Uuid team() { return team; }
+          @Override
+          public Relay.Bundle.Component user() { return user; }
+          @Override
+          public Relay.Bundle.Component conversation() { return conversation; }
+          @Override
+          public Relay.Bundle.Component message() { return message; }
+        };
+      }
+
+      @Override
+      public void write(OutputStream out, Relay.Bundle value) throws IOException {
+        Uuid.SERIALIZER.write(out, value.id());
+        Time.SERIALIZER.write(out, value.time());
+        Uuid.SERIALIZER.write(out, value.team());
+        shared.write(out, value.user());
+        shared.write(out, value.conversation());
+        COMPONENT_SERIALIZER.write(out, value.message());
+      }
+    };
+  }
 
-      return new Relay.Bundle() {
-        @Override
-        public Uuid id() { return id; }
-        @Override
-        public Time time() { return time; }
-        @Override
-        public Uuid team() { return team; }
-        @Override
-        public Relay.Bundle.Component user() { return user; }
-        @Override
-        public Relay.Bundle.Component conversation() { return conversation; }
-        @Override
-        public Relay.Bundle.Component message() { return message; }
-      };
-    }
+  // A new dictionary for one compact stream of bundles. See
+  // "ComponentDictionary".
+  static ComponentDictionary dictionary() {
+    return new ComponentDictionary(COMPONENT_SERIALIZER);
+  }
 
-    @Override
-    public void write(OutputStream out, Relay.Bundle value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Time.SERIALIZER.write(out, value.time());
-      Uuid.SERIALIZER.write(out, value.team());
-      COMPONENT_SERIALIZER.write(out, value.user());
-      COMPONENT_SERIALIZER.write(out, value.conversation());
-      COMPONENT_SERIALIZER.write(out, value.message());
-    }
-  };
+  // How long the relay holds on to a poll at most, whatever it asks for.
+  private static final long MAX_POLL_WAIT_MS = 60000;
 
   private final Relay backEnd;
 
+  // Set if polls can be held until something is written. Held polls are
+  // answered on "timeline".
+  private final Server waitable;
+  private final Timeline timeline;
+
+  // For monitoring: the users and conversations in compact batches and
+  // responses that were sent in full, and those that were only a handle.
+  private final AtomicLong componentsInFull = new AtomicLong();
+  private final AtomicLong componentsByHandle = new AtomicLong();
+
   public ServerFrontEnd(Relay backEnd) {
     this.backEnd = backEnd;
+    this.waitable = null;
+    this.timeline = null;
+  }
+
+  public ServerFrontEnd(Server backEnd, Timeline timeline) {
+    this.backEnd = backEnd;
+    this.waitable = backEnd;
+    this.timeline = timeline;
   }
 
+  public long componentsInFull() { return componentsInFull.get(); }
+
+  public long componentsByHandle() { return componentsByHandle.get(); }
+
   public void handleConnection(Connection connection) throws IOException {
 
     LOG.info("Handling Connection - start");
@@ -116,6 +206,13 @@ public final class ServerFrontEnd {
     switch (Serializers.INTEGER.read(connection.in())) {
       case NetworkCode.RELAY_READ_REQUEST: handleReadMessage(connection); break;
       case NetworkCode.RELAY_WRITE_REQUEST: handleWriteMessage(connection); break;
+      case NetworkCode.RELAY_WRITE_BATCH_REQUEST: handleWriteBatch(connection, false); break;
+      case NetworkCode.RELAY_COMPACT_WRITE_BATCH_REQUEST: handleWriteBatch(connection, true); break;
+      case NetworkCode.RELAY_POLL_REQUEST: handlePoll(connection, false, false); break;
+      case NetworkCode.RELAY_FILTERED_POLL_REQUEST: handlePoll(connection, true, false); break;
+      case NetworkCode.RELAY_COMPACT_POLL_REQUEST: handlePoll(connection, true, true); break;
+      case NetworkCode.RELAY_COMMIT_REQUEST: handleCommit(connection); break;
+      case NetworkCode.RELAY_COMMITTED_REQUEST: handleCommitted(connection); break;
     }
 
     LOG.info("Handling Connection - end");
@@ -136,7 +233,17 @@ public final class ServerFrontEnd {
         root,
         range);
 
-    final Collection<Relay.Bundle> result = backEnd.read(teamId, teamSecret, root, range);
+    final Collection<Relay.Bundle> result;
+    try {
+      result = backEnd.read(teamId, teamSecret, root, range);
+    } catch (RelayCursorException ex) {
+      LOG.warning("Refusing read team=%s: %s", teamId, ex.getMessage());
+      Serializers.INTEGER.write(connection.out(),
+                                ex.reason() == RelayCursorException.Reason.EVICTED ?
+                                    NetworkCode.ERR_RELAY_CURSOR_EVICTED :
+                                    NetworkCode.ERR_RELAY_CURSOR_UNKNOWN);
+      return;
+    }
 
     LOG.info("Reading result.size=%d", result.size());
 
@@ -176,4 +283,263 @@ public final class ServerFrontEnd {
 
     LOG.info("Handling Write Message - end");
   }
+
+  private void handleCommit(Connection connection) throws IOException {
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Uuid cursor = Uuid.SERIALIZER.read(connection.in());
+
+    final boolean result = backEnd.commit(teamId, teamSecret, cursor);
+
+    LOG.info("Committing team=%s cursor=%s result=%s", teamId, cursor, result ? "success" : "fail");
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_COMMIT_RESPONSE);
+    Serializers.BOOLEAN.write(connection.out(), result);
+  }
+
+  // Answered with whether the team was let in and, if it was, its cursor.
+  private void handleCommitted(Connection connection) throws IOException {
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+
+    final Uuid cursor = backEnd.committed(teamId, teamSecret);
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_COMMITTED_RESPONSE);
+    Serializers.BOOLEAN.write(connection.out(), cursor != null);
+    if (cursor != null) {
+      Uuid.SERIALIZER.write(connection.out(), cursor);
+    }
+  }
+
+  // The users and conversations of a compact batch go through a dictionary.
+  // Otherwise it is the same as a batch.
+  private void handleWriteBatch(Connection connection, boolean compact) throws IOException {
+
+    LOG.info("Handling Write Batch - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final int size = Serializers.INTEGER.read(connection.in());
+
+    int result = 0;
+
+    if (size < 0 || size > MAX_WRITE_BATCH) {
+      LOG.warning("Refusing batch write team=%s size=%d", teamId, size);
+    } else {
+      final ComponentDictionary dictionary = compact ? dictionary() : null;
+      final Serializer<Relay.Write> serializer = compact ? writes(dictionary) : WRITE_SERIALIZER;
+      final List<Relay.Write> writes = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        writes.add(serializer.read(connection.in()));
+      }
+      if (compact) {
+        count(dictionary);
+      }
+      result = backEnd.write(teamId, teamSecret, writes);
+    }
+
+    LOG.info("Writing batch result=%d of %d", result, size);
+
+    Serializers.INTEGER.write(connection.out(), compact ?
+                                                    NetworkCode.RELAY_COMPACT_WRITE_BATCH_RESPONSE :
+                                                    NetworkCode.RELAY_WRITE_BATCH_RESPONSE);
+    Serializers.INTEGER.write(connection.out(), result);
+
+    LOG.info("Handling Write Batch - end");
+  }
+
+  // HANDLE POLL
+  //
+  // Answer a poll right away if there is anything to send. Otherwise hold on
+  // to the connection until the next write or until the wait is up, whichever
+  // comes first. Held polls cost nothing but the open connection - nothing
+  // blocks while they wait.
+  //
+  // A filtered poll also sends a filter, and is answered with the cursor to
+  // continue from ahead of the bundles. Writes that the filter leaves out do
+  // not answer it early. A compact poll is a filtered poll answered with
+  // compact bundles.
+  private void handlePoll(Connection connection, boolean filtered, boolean compact) throws IOException {
+
+    LOG.info("Handling Poll - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+    final int range = Serializers.INTEGER.read(connection.in());
+    final long waitMs = Math.min(Serializers.LONG.read(connection.in()), MAX_POLL_WAIT_MS);
+    final RelayFilter filter = filtered ? RelayFilter.SERIALIZER.read(connection.in()) : null;
+
+    final PendingPoll poll = new PendingPoll(connection, teamId, teamSecret, root, range, filter, compact);
+
+    if (!poll.answer(waitable == null || waitMs <= 0)) {
+      LOG.info("Holding poll team=%s root=%s for up to %d ms", teamId, root, waitMs);
+      poll.hold(waitMs);
+    }
+
+    LOG.info("Handling Poll - end");
+  }
+
+  private void count(ComponentDictionary dictionary) {
+    componentsInFull.addAndGet(dictionary.size());
+    componentsByHandle.addAndGet(dictionary.references());
+  }
+
+  // PENDING POLL
+  //
+  // A poll being held. It looks again after every write, and goes back to
+  // waiting if there is still nothing for it. A write, the timeout and the
+  // first look "hold" takes can all try to answer it at once from different
+  // threads, so whichever of them claims it first answers it and the others do
+  // nothing.
+  private final class PendingPoll implements Runnable {
+
+    private final Connection connection;
+    private final Uuid teamId;
+    private final Secret teamSecret;
+    private final Uuid root;
+    private final int range;
+    // Null for a poll that is not filtered, which is answered without a cursor.
+    private final RelayFilter filter;
+    private final boolean compact;
+
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private volatile TimingWheel.Timeout timeout;
+
+    PendingPoll(Connection connection,
+                Uuid teamId,
+                Secret teamSecret,
+                Uuid root,
+                int range,
+                RelayFilter filter,
+                boolean compact) {
+      this.connection = connection;
+      this.teamId = teamId;
+      this.teamSecret = teamSecret;
+      this.root = root;
+      this.range = range;
+      this.filter = filter;
+      this.compact = compact;
+    }
+
+    void hold(long waitMs) {
+      timeout = timeline.scheduleIn(waitMs, new Runnable() {
+        @Override
+        public void run() {
+          finish(true);
+        }
+      });
+      watch();
+    }
+
+    // Something was written. This is called on the writer's thread, so the
+    // next look is left to the timeline.
+    @Override
+    public void run() {
+      timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          watch();
+        }
+      });
+    }
+
+    // Wait for the next write, then look. Looking after starting to wait means
+    // that a write in between is never missed: either the look sees it, or it
+    // wakes the poll to look again.
+    private void watch() {
+      if (!claimed.get()) {
+        waitable.await(this);
+        finish(false);
+      }
+    }
+
+    private void finish(boolean evenIfEmpty) {
+      if (claimed.get()) {
+        return;
+      }
+      try {
+        answer(evenIfEmpty);
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to answer held poll team=%s", teamId);
+        close();
+      }
+    }
+
+    // Send what there is, unless there is nothing and "evenIfEmpty" is false.
+    // Returns true if the poll was answered, here or somewhere else.
+    boolean answer(boolean evenIfEmpty) throws IOException {
+
+      final Relay.Page page;
+      try {
+        page = backEnd.poll(teamId, teamSecret, root, range, 0, filter == null ? RelayFilter.ALL : filter);
+      } catch (RelayCursorException ex) {
+        if (claim()) {
+          LOG.warning("Refusing poll team=%s: %s", teamId, ex.getMessage());
+          Serializers.INTEGER.write(connection.out(),
+                                    ex.reason() == RelayCursorException.Reason.EVICTED ?
+                                        NetworkCode.ERR_RELAY_CURSOR_EVICTED :
+                                        NetworkCode.ERR_RELAY_CURSOR_UNKNOWN);
+          close();
+        }
+        return true;
+      }
+
+      final Collection<Relay.Bundle> result = page.bundles();
+
+      if (result.isEmpty() && !evenIfEmpty) {
+        return false;
+      }
+
+      if (!claim()) {
+        return true;
+      }
+
+      LOG.info("Answering poll team=%s result.size=%d next=%s", teamId, result.size(), page.next());
+
+      if (filter == null) {
+        Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_POLL_RESPONSE);
+        Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), result);
+      } else if (!compact) {
+        Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_FILTERED_POLL_RESPONSE);
+        Uuid.SERIALIZER.write(connection.out(), page.next());
+        Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), result);
+      } else {
+        final ComponentDictionary dictionary = dictionary();
+        Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_COMPACT_POLL_RESPONSE);
+        Uuid.SERIALIZER.write(connection.out(), page.next());
+        Serializers.collection(bundles(dictionary)).write(connection.out(), result);
+        count(dictionary);
+      }
+      close();
+      return true;
+    }
+
+    // Returns false if the poll was already claimed. Otherwise stops waiting
+    // for writes and for the timeout, as this is the answer.
+    private boolean claim() {
+      if (!claimed.compareAndSet(false, true)) {
+        return false;
+      }
+      if (waitable != null) {
+        waitable.forget(this);
+      }
+      final TimingWheel.Timeout pending = timeout;
+      if (pending != null) {
+        pending.cancel();
+      }
+      return true;
+    }
+
+    private void close() {
+      claimed.set(true);
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close poll connection team=%s", teamId);
+      }
+    }
+  }
 }
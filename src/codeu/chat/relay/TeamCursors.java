@@ -0,0 +1,138 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+
+// TEAM CURSORS
+//
+// The cursor each team last committed (see "Relay.commit"), and when. With a
+// file, every commit rewrites it - it only holds one cursor per team - by
+// writing a new copy next to it, forcing that to the disk and moving it over
+// the old one, so a crash leaves either all of the old cursors or all of the
+// new ones. Without a file, cursors last as long as the process.
+//
+// Every method takes the lock, so it is safe to share between threads.
+public final class TeamCursors {
+
+  private final static Logger.Log LOG = Logger.newLog(TeamCursors.class);
+
+  public static final class Cursor {
+
+    // The id of the last bundle the team has kept. Zero means none.
+    public final long id;
+    public final long committedMs;
+
+    Cursor(long id, long committedMs) {
+      this.id = id;
+      this.committedMs = committedMs;
+    }
+  }
+
+  private final File file;
+  private final Map<Uuid, Cursor> cursors = new HashMap<>();
+
+  public TeamCursors() {
+    this.file = null;
+  }
+
+  // Load the cursors saved in "file", if there is one yet.
+  public TeamCursors(File file) throws IOException {
+
+    this.file = file;
+
+    if (file.exists()) {
+      try (final InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+        final int count = Serializers.INTEGER.read(in);
+        for (int i = 0; i < count; i++) {
+          final Uuid team = Uuid.SERIALIZER.read(in);
+          final long id = Serializers.LONG.read(in);
+          final long committedMs = Serializers.LONG.read(in);
+          cursors.put(team, new Cursor(id, committedMs));
+        }
+      }
+    }
+
+    LOG.info("Loaded the cursors of %d teams from %s", cursors.size(), file);
+  }
+
+  // The cursor "team" last committed, or null if it never did.
+  public synchronized Cursor get(Uuid team) {
+    return cursors.get(team);
+  }
+
+  public synchronized Map<Uuid, Cursor> all() {
+    return new HashMap<>(cursors);
+  }
+
+  // COMMIT
+  //
+  // Set the team's cursor. With a file, the cursor is on the disk by the time
+  // this returns. If saving it fails the team keeps its old cursor.
+  public synchronized void commit(Uuid team, long id, long nowMs) throws IOException {
+
+    final Cursor previous = cursors.put(team, new Cursor(id, nowMs));
+
+    try {
+      save();
+    } catch (IOException ex) {
+      if (previous == null) {
+        cursors.remove(team);
+      } else {
+        cursors.put(team, previous);
+      }
+      throw ex;
+    }
+  }
+
+  private void save() throws IOException {
+
+    if (file == null) {
+      return;
+    }
+
+    final File next = new File(file.getPath() + ".next");
+
+    try (final FileOutputStream stream = new FileOutputStream(next)) {
+      final OutputStream out = new BufferedOutputStream(stream);
+      Serializers.INTEGER.write(out, cursors.size());
+      for (final Map.Entry<Uuid, Cursor> entry : cursors.entrySet()) {
+        Uuid.SERIALIZER.write(out, entry.getKey());
+        Serializers.LONG.write(out, entry.getValue().id);
+        Serializers.LONG.write(out, entry.getValue().committedMs);
+      }
+      out.flush();
+      stream.getFD().sync();
+    }
+
+    Files.move(next.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
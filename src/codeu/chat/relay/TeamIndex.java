@@ -0,0 +1,109 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// TEAM INDEX
+//
+// The ids of one team's bundles, oldest first, so that a read that leaves
+// some teams out only ever looks at the bundles of the teams it wants. The ids
+// are kept in a ring of their own that starts small and doubles as the team
+// writes more, up to the size of the relay's history - a team can never have
+// more bundles than that in the history.
+//
+// Like the history, the index has one writer at a time and any number of
+// readers that take no locks. "count" is how many ids were ever added, and
+// the id added as number "n" is in slot "n % ids.length()". A reader that
+// finds the writer went around the ring while it was reading gets false back
+// and starts over.
+final class TeamIndex {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final int maxCapacity;
+
+  private volatile AtomicLongArray ids;
+  private volatile long count;
+
+  TeamIndex(int maxCapacity) {
+    this.maxCapacity = Math.max(1, maxCapacity);
+    this.ids = new AtomicLongArray(Math.min(INITIAL_CAPACITY, this.maxCapacity));
+  }
+
+  // ADD
+  //
+  // Ids must go up with every add. Only one thread may add at a time.
+  void add(long id) {
+
+    AtomicLongArray ring = ids;
+
+    if (count >= ring.length() && ring.length() < maxCapacity) {
+      final AtomicLongArray grown = new AtomicLongArray((int) Math.min(2L * ring.length(), maxCapacity));
+      for (long position = Math.max(0, count - ring.length()); position < count; position++) {
+        grown.set(slot(grown, position), ring.get(slot(ring, position)));
+      }
+      ids = grown;
+      ring = grown;
+    }
+
+    ring.set(slot(ring, count), id);
+    count = count + 1;
+  }
+
+  // COLLECT
+  //
+  // Add the ids from "from" to "to" to "out", oldest first and up to "max" of
+  // them. Returns false if the ids being read were written over first, in
+  // which case "out" may hold ids that do not belong there.
+  boolean collect(long from, long to, int max, List<Long> out) {
+
+    // "count" is read before "ids", so the ring holds every id before "end"
+    // even if it was replaced by a larger one in between.
+    final long end = count;
+    final AtomicLongArray ring = ids;
+
+    final long oldest = Math.max(0, end - ring.length());
+
+    long low = oldest;
+    long high = end;
+    while (low < high) {
+      final long middle = (low + high) >>> 1;
+      if (ring.get(slot(ring, middle)) < from) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+
+    // The oldest slot looked at is the one just before where the search ended.
+    final long lowest = Math.max(oldest, low - 1);
+
+    for (long position = low; position < end && out.size() < max; position++) {
+      final long id = ring.get(slot(ring, position));
+      if (id > to) {
+        break;
+      }
+      out.add(id);
+    }
+
+    return count - ring.length() <= lowest;
+  }
+
+  private static int slot(AtomicLongArray ring, long position) {
+    return (int) (position % ring.length());
+  }
+}
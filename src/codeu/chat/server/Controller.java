@@ -36,8 +36,14 @@ public final class Controller implements RawController, BasicController {
   private final Uuid.Generator uuidGenerator;
 
   public Controller(Uuid serverId, Model model) {
+    this(model, new RandomUuidGenerator(serverId, System.currentTimeMillis()));
+  }
+
+  // Use "uuidGenerator" for every id this controller creates. This is for when
+  // ids have to come from a restricted range, like the ids of a shard.
+  public Controller(Model model, Uuid.Generator uuidGenerator) {
     this.model = model;
-    this.uuidGenerator = new RandomUuidGenerator(serverId, System.currentTimeMillis());
+    this.uuidGenerator = uuidGenerator;
   }
 
   @Override
@@ -66,7 +72,7 @@ public final class Controller implements RawController, BasicController {
     if (foundUser != null && foundConversation != null && isIdFree(id)) {
 
       message = new Message(id, Uuid.NULL, Uuid.NULL, creationTime, author, body);
-      model.add(message);
+      model.add(conversation, message);
       LOG.info("Message added: %s", message.id);
 
       // Find and update the previous "last" message so that it's "next" value
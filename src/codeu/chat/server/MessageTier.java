@@ -0,0 +1,381 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.store.StoreAccessor;
+import codeu.chat.util.store.UuidIndex;
+
+/**
+ * Keeps the messages of cold conversations on disk instead of on the heap.
+ *
+ * <p>Every conversation is either <i>resident</i> (its messages are in the
+ * model's stores) or <i>cold</i> (its messages are in a segment file in the
+ * tier's directory). Resident conversations are kept in least-recently-used
+ * order. A conversation is paged out when it has not been touched for a while
+ * or when the number of resident messages goes over the budget, starting with
+ * the least recently used.
+ *
+ * <p>A cold conversation is paged back in the first time anything asks for its
+ * payload or for one of its messages. The accessors returned by
+ * {@link #payloads()} and {@link #messages()} do this transparently, so callers
+ * of {@link Model} do not need to know that tiering is on.
+ *
+ * <p>Like the rest of the model, this class is not thread-safe and is expected
+ * to only be used from the server's timeline.
+ */
+final class MessageTier {
+
+  private static final Logger.Log LOG = Logger.newLog(MessageTier.class);
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private final Model model;
+  private final File directory;
+  private final int maxResidentMessages;
+
+  /** Resident conversations, least recently used first, with their last access time. */
+  private final LinkedHashMap<Uuid, Long> resident = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Cold conversations and the number of messages in their segment. */
+  private final Map<Uuid, Integer> cold = new LinkedHashMap<>();
+
+  /** The conversation of every cold message. */
+  private final UuidIndex<Uuid> coldMessages = new UuidIndex<>();
+
+  private long hits;
+  private long misses;
+  private long pageIns;
+  private long pageOuts;
+
+  private final StoreAccessor<Uuid, Message> messages = new StoreAccessor<Uuid, Message>() {
+
+    @Override
+    public Message first(Uuid id) {
+      final Message message = model.residentMessages().first(id);
+      if (message != null) {
+        return message;
+      }
+      final Uuid conversation = coldMessages.get(id);
+      if (conversation == null) {
+        return null;
+      }
+      misses += 1;
+      pageIn(conversation);
+      return model.residentMessages().first(id);
+    }
+
+    @Override
+    public Iterable<Message> all() {
+      return new Iterable<Message>() {
+        @Override
+        public Iterator<Message> iterator() {
+          return allMessages().iterator();
+        }
+      };
+    }
+
+    // Ordered queries over ids need every message to be resident to be correct.
+    // Nothing on the hot path uses them, so pay for it here.
+
+    @Override
+    public Iterable<Message> at(Uuid key) {
+      pageInAll();
+      return model.residentMessages().at(key);
+    }
+
+    @Override
+    public Iterable<Message> after(Uuid start) {
+      pageInAll();
+      return model.residentMessages().after(start);
+    }
+
+    @Override
+    public Iterable<Message> before(Uuid end) {
+      pageInAll();
+      return model.residentMessages().before(end);
+    }
+
+    @Override
+    public Iterable<Message> range(Uuid start, Uuid end) {
+      pageInAll();
+      return model.residentMessages().range(start, end);
+    }
+  };
+
+  private final StoreAccessor<Uuid, ConversationPayload> payloads =
+      new StoreAccessor<Uuid, ConversationPayload>() {
+
+    @Override
+    public ConversationPayload first(Uuid id) {
+      final ConversationPayload payload = model.residentPayloads().first(id);
+      if (payload != null) {
+        touch(id);
+      }
+      return payload;
+    }
+
+    @Override
+    public Iterable<ConversationPayload> all() {
+      return model.residentPayloads().all();
+    }
+
+    @Override
+    public Iterable<ConversationPayload> at(Uuid key) {
+      return model.residentPayloads().at(key);
+    }
+
+    @Override
+    public Iterable<ConversationPayload> after(Uuid start) {
+      return model.residentPayloads().after(start);
+    }
+
+    @Override
+    public Iterable<ConversationPayload> before(Uuid end) {
+      return model.residentPayloads().before(end);
+    }
+
+    @Override
+    public Iterable<ConversationPayload> range(Uuid start, Uuid end) {
+      return model.residentPayloads().range(start, end);
+    }
+  };
+
+  MessageTier(Model model, File directory, int maxResidentMessages) {
+    this.model = model;
+    this.directory = directory;
+    this.maxResidentMessages = maxResidentMessages;
+
+    // Segments left behind by an earlier run are stale. Everything in them is
+    // also in the persistence file, which is what the model was loaded from.
+    final File[] stale = directory.listFiles();
+    if (stale != null) {
+      for (final File file : stale) {
+        if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /** Message lookups that page cold conversations back in. */
+  StoreAccessor<Uuid, Message> messages() {
+    return messages;
+  }
+
+  /** Payload lookups that count as activity on the conversation. */
+  StoreAccessor<Uuid, ConversationPayload> payloads() {
+    return payloads;
+  }
+
+  /**
+   * Marks the conversation as used just now, paging it in first if it is cold.
+   */
+  void touch(Uuid conversation) {
+    if (cold.containsKey(conversation)) {
+      misses += 1;
+      pageIn(conversation);
+    } else {
+      if (resident.containsKey(conversation)) {
+        hits += 1;
+      }
+      resident.put(conversation, System.currentTimeMillis());
+    }
+  }
+
+  /** Stops tracking a conversation that was removed from the model. */
+  void forget(Uuid conversation) {
+    resident.remove(conversation);
+    if (cold.remove(conversation) != null) {
+      try {
+        for (final Message message : readSegment(conversation)) {
+          coldMessages.remove(message.id);
+        }
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to read segment for removed conversation %s", conversation);
+      }
+      segment(conversation).delete();
+    }
+  }
+
+  /**
+   * Pages out every conversation that has not been touched in the last
+   * {@code idleMs} milliseconds and then any more that are needed to get back
+   * under the resident message budget.
+   */
+  void evict(long idleMs) {
+
+    final long cutoff = System.currentTimeMillis() - idleMs;
+
+    final Collection<Uuid> idle = new ArrayList<>();
+    for (final Map.Entry<Uuid, Long> entry : resident.entrySet()) {
+      if (entry.getValue() >= cutoff) {
+        break;  // everything after this was used more recently
+      }
+      idle.add(entry.getKey());
+    }
+
+    for (final Uuid conversation : idle) {
+      pageOut(conversation);
+    }
+
+    trim();
+  }
+
+  long hits() { return hits; }
+
+  long misses() { return misses; }
+
+  long pageIns() { return pageIns; }
+
+  long pageOuts() { return pageOuts; }
+
+  int coldConversations() { return cold.size(); }
+
+  // Page out the least recently used conversations until the resident messages
+  // fit in the budget again. The most recently used conversation always stays,
+  // even if it is over the budget by itself, as someone is using it right now.
+  private void trim() {
+    while (model.residentMessages().size() > maxResidentMessages && resident.size() > 1) {
+      pageOut(resident.keySet().iterator().next());
+    }
+  }
+
+  private void pageOut(Uuid conversation) {
+
+    final ConversationPayload payload = model.residentPayloads().first(conversation);
+
+    if (payload == null) {
+      resident.remove(conversation);
+      return;
+    }
+
+    final Collection<Message> chain = new ArrayList<>();
+    for (Message message = model.residentMessages().first(payload.firstMessage);
+         message != null;
+         message = next(message)) {
+      chain.add(message);
+    }
+
+    try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(segment(conversation)))) {
+      Serializers.collection(Message.SERIALIZER).write(out, chain);
+    } catch (IOException ex) {
+      // Leave the conversation resident. Losing the messages would be far worse
+      // than using more memory than we would like.
+      LOG.error(ex, "Failed to page out conversation %s", conversation);
+      resident.put(conversation, System.currentTimeMillis());
+      return;
+    }
+
+    for (final Message message : chain) {
+      coldMessages.putIfAbsent(message.id, conversation);
+      model.remove(message);
+    }
+
+    resident.remove(conversation);
+    cold.put(conversation, chain.size());
+    pageOuts += 1;
+
+    LOG.verbose("Paged out conversation %s (%d messages)", conversation, chain.size());
+  }
+
+  private void pageIn(Uuid conversation) {
+
+    final Collection<Message> chain;
+    try {
+      chain = readSegment(conversation);
+    } catch (IOException ex) {
+      // Keep the conversation cold so that the next access can try again.
+      LOG.error(ex, "Failed to page in conversation %s", conversation);
+      return;
+    }
+
+    for (final Message message : chain) {
+      coldMessages.remove(message.id);
+      model.add(conversation, message);
+    }
+
+    cold.remove(conversation);
+    segment(conversation).delete();
+    resident.put(conversation, System.currentTimeMillis());
+    pageIns += 1;
+
+    LOG.verbose("Paged in conversation %s (%d messages)", conversation, chain.size());
+
+    trim();
+  }
+
+  private void pageInAll() {
+    for (final Uuid conversation : new ArrayList<>(cold.keySet())) {
+      pageIn(conversation);
+    }
+  }
+
+  // Every message, resident or not. Cold messages are read straight from their
+  // segments and are not paged in, so a full scan (like a snapshot) does not
+  // push the working set out of memory.
+  private Collection<Message> allMessages() {
+
+    final Collection<Message> all = new ArrayList<>();
+
+    for (final Message message : model.residentMessages().all()) {
+      all.add(message);
+    }
+
+    for (final Uuid conversation : cold.keySet()) {
+      try {
+        all.addAll(readSegment(conversation));
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to read segment for conversation %s", conversation);
+      }
+    }
+
+    return all;
+  }
+
+  private Message next(Message message) {
+    return message.next == null || Uuid.equals(message.next, Uuid.NULL) ?
+        null :
+        model.residentMessages().first(message.next);
+  }
+
+  private Collection<Message> readSegment(Uuid conversation) throws IOException {
+    try (final InputStream in = new BufferedInputStream(new FileInputStream(segment(conversation)))) {
+      return Serializers.collection(Message.SERIALIZER).read(in);
+    }
+  }
+
+  private File segment(Uuid conversation) {
+    return new File(directory, conversation + SEGMENT_SUFFIX);
+  }
+}
@@ -0,0 +1,263 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.ServerStats;
+import codeu.chat.util.Events;
+import codeu.chat.util.LatencyHistogram;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+/**
+ * Per-command request metrics for the server.
+ *
+ * <p>Every connection gets a {@link Request} when it is queued. The request
+ * follows the connection from timeline to timeline, adding up the time spent
+ * waiting in queues and the time spent running, and counts the bytes read and
+ * written through the streams it wraps. When the connection is done the
+ * request is added to the totals for its network code and, if a flight
+ * recording is running, recorded as a {@link Events.Request} event.
+ *
+ * <p>Everything here is safe to use from any timeline.
+ */
+final class Metrics {
+
+  private static final class Meter {
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong securityViolations = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final LatencyHistogram queueWait = new LatencyHistogram();
+    final LatencyHistogram service = new LatencyHistogram();
+  }
+
+  /** The request the current timeline is working on, if any. */
+  private static final ThreadLocal<Request> CURRENT = new ThreadLocal<>();
+
+  private final ConcurrentMap<Integer, Meter> meters = new ConcurrentHashMap<>();
+  private final AtomicLong rejectedConnections = new AtomicLong();
+
+  /**
+   * One request as it moves through the server. Only one timeline works on a
+   * request at a time, and handing a request to another timeline goes through
+   * that timeline's queue, so a request needs no locking of its own.
+   */
+  final class Request {
+
+    private Input in;
+    private Output out;
+
+    private final Events.Request event = new Events.Request();
+    private Uuid user;
+
+    private long waitNanos;
+    private long serviceNanos;
+    private long queuedAt;
+    private long runningSince;
+
+    private Request() {
+      this.queuedAt = System.nanoTime();
+      event.begin();
+    }
+
+    /** Wraps the connection's input to count every byte read. */
+    InputStream in(InputStream raw) {
+      in = new Input(raw);
+      return in;
+    }
+
+    /** Wraps the connection's output to count every byte written. */
+    OutputStream out(OutputStream raw) {
+      out = new Output(raw);
+      return out;
+    }
+
+    /** Call first thing when a timeline picks the request up. */
+    void dequeued() {
+      runningSince = System.nanoTime();
+      waitNanos += runningSince - queuedAt;
+      CURRENT.set(this);
+    }
+
+    /** Call just before handing the request to another timeline. */
+    void enqueued() {
+      CURRENT.remove();
+      queuedAt = System.nanoTime();
+      serviceNanos += queuedAt - runningSince;
+    }
+
+    /**
+     * Call when the request is done. {@code type} is the network code of the
+     * request (or {@link NetworkCode#NO_MESSAGE} if it was not known) and
+     * {@code failed} says whether handling it threw.
+     */
+    void finish(int type, boolean failed) {
+
+      CURRENT.remove();
+      serviceNanos += System.nanoTime() - runningSince;
+
+      final Meter meter = meter(type);
+      meter.requests.incrementAndGet();
+      meter.bytesIn.addAndGet(in == null ? 0 : in.count);
+      meter.bytesOut.addAndGet(out == null ? 0 : out.count);
+      meter.queueWait.record(waitNanos);
+      meter.service.record(serviceNanos);
+
+      final boolean refused = out != null && out.responseCode() == NetworkCode.ERR_SECURITY_VIOLATION;
+      if (refused) {
+        meter.securityViolations.incrementAndGet();
+      }
+      if (refused || failed) {
+        meter.errors.incrementAndGet();
+      }
+
+      if (event.shouldCommit()) {
+        event.type = type;
+        event.user = user == null ? null : user.toString();
+        event.queueWait = waitNanos;
+        event.failed = refused || failed;
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * Notes the user that the request on the current timeline is made for. Only
+   * used to label the request's flight recorder event.
+   */
+  static void onBehalfOf(Uuid user) {
+    final Request request = CURRENT.get();
+    if (request != null) {
+      request.user = user;
+    }
+  }
+
+  /** Starts tracking a connection that is about to be queued. */
+  Request request() {
+    return new Request();
+  }
+
+  /** Counts a connection that was turned away because a queue was full. */
+  void rejected() {
+    rejectedConnections.incrementAndGet();
+  }
+
+  /** A copy of everything counted so far. */
+  ServerStats snapshot() {
+    final Map<Integer, ServerStats.Command> commands = new HashMap<>();
+    for (final Map.Entry<Integer, Meter> entry : meters.entrySet()) {
+      final Meter meter = entry.getValue();
+      commands.put(entry.getKey(), new ServerStats.Command(
+          meter.requests.get(),
+          meter.errors.get(),
+          meter.securityViolations.get(),
+          meter.bytesIn.get(),
+          meter.bytesOut.get(),
+          meter.queueWait.copy(),
+          meter.service.copy()));
+    }
+    return new ServerStats(Time.now(), rejectedConnections.get(), commands);
+  }
+
+  private Meter meter(int type) {
+    Meter meter = meters.get(type);
+    if (meter == null) {
+      final Meter created = new Meter();
+      meter = meters.putIfAbsent(type, created);
+      if (meter == null) {
+        meter = created;
+      }
+    }
+    return meter;
+  }
+
+  // Counts the bytes read. Every read goes through one of the two "read"
+  // methods below, "skip" does not count as nothing was transferred to us.
+  private static final class Input extends FilterInputStream {
+
+    private long count;
+
+    Input(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int value = super.read();
+      if (value >= 0) {
+        count += 1;
+      }
+      return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+  }
+
+  // Counts the bytes written and keeps the first four, which are always the
+  // response code.
+  private static final class Output extends FilterOutputStream {
+
+    private long count;
+    private int code;
+
+    Output(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+      if (count < 4) {
+        code = (code << 8) | (value & 0xFF);
+      }
+      count += 1;
+      out.write(value);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      for (int i = 0; i < length && count + i < 4; i++) {
+        code = (code << 8) | (buffer[offset + i] & 0xFF);
+      }
+      count += length;
+      // Pass the whole buffer on at once - FilterOutputStream would otherwise
+      // write it a byte at a time.
+      out.write(buffer, offset, length);
+    }
+
+    int responseCode() {
+      return count >= 4 ? code : NetworkCode.NO_MESSAGE;
+    }
+  }
+}
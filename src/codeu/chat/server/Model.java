@@ -14,7 +14,12 @@
 
 package codeu.chat.server;
 
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.Map;
 
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
@@ -22,8 +27,13 @@ import codeu.chat.common.Message;
 import codeu.chat.common.User;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.store.RankedStore;
+import codeu.chat.util.store.RankedStoreAccessor;
 import codeu.chat.util.store.Store;
 import codeu.chat.util.store.StoreAccessor;
+import codeu.chat.util.store.TextArena;
+import codeu.chat.util.store.UuidIndex;
+import codeu.chat.util.store.UuidStore;
 
 public final class Model {
 
@@ -52,19 +62,52 @@ public final class Model {
 
   private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
 
-  private final Store<Uuid, User> userById = new Store<>(UUID_COMPARE);
+  private final UuidStore<User> userById = new UuidStore<>(UUID_COMPARE);
   private final Store<Time, User> userByTime = new Store<>(TIME_COMPARE);
   private final Store<String, User> userByText = new Store<>(STRING_COMPARE);
 
-  private final Store<Uuid, ConversationHeader> conversationById = new Store<>(UUID_COMPARE);
+  private final UuidStore<ConversationHeader> conversationById = new UuidStore<>(UUID_COMPARE);
   private final Store<Time, ConversationHeader> conversationByTime = new Store<>(TIME_COMPARE);
   private final Store<String, ConversationHeader> conversationByText = new Store<>(STRING_COMPARE);
 
-  private final Store<Uuid, ConversationPayload> conversationPayloadById = new Store<>(UUID_COMPARE);
+  private final UuidStore<ConversationPayload> conversationPayloadById = new UuidStore<>(UUID_COMPARE);
 
-  private final Store<Uuid, Message> messageById = new Store<>(UUID_COMPARE);
+  private final UuidStore<Message> messageById = new UuidStore<>(UUID_COMPARE);
   private final Store<Time, Message> messageByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Message> messageByText = new Store<>(STRING_COMPARE);
+
+  // The messages of each conversation by creation time, and the conversation
+  // of each message. These are what make counting and paging through a
+  // conversation cheap. Messages added without a conversation are not in them.
+  private final UuidIndex<RankedStore<Time, Message>> messagesByConversation = new UuidIndex<>();
+  private final UuidIndex<Uuid> conversationOfMessage = new UuidIndex<>();
+
+  // Message bodies are kept off-heap. See "TextArena" for details.
+  private final TextArena messageText = new TextArena();
+
+  // Only set when tiered mode is on. See "MessageTier" for details.
+  private MessageTier tier;
+
+  // ENABLE TIERING
+  //
+  // Start paging the messages of cold conversations out to segment files in
+  // the given directory. At most "maxResidentMessages" messages are kept in
+  // memory (more if a single conversation is bigger than that).
+  public void enableTiering(File directory, int maxResidentMessages) {
+    tier = new MessageTier(this, directory, maxResidentMessages);
+    for (final ConversationPayload payload : conversationPayloadById.all()) {
+      tier.touch(payload.id);
+    }
+  }
+
+  // EVICT COLD
+  //
+  // Page out conversations that have not been used in "idleMs" milliseconds.
+  // Does nothing if tiering is not on.
+  public void evictCold(long idleMs) {
+    if (tier != null) {
+      tier.evict(idleMs);
+    }
+  }
 
   public void add(User user) {
     userById.insert(user.id, user);
@@ -72,6 +115,27 @@ public final class Model {
     userByText.insert(user.name, user);
   }
 
+  // ADD USERS
+  //
+  // Add many users at once. This is the same as calling "add" for each user
+  // but each store is loaded with a single sorted merge. See "Store.insertAll".
+  public void addUsers(Collection<User> users) {
+
+    final Collection<Map.Entry<Uuid, User>> byId = new ArrayList<>(users.size());
+    final Collection<Map.Entry<Time, User>> byTime = new ArrayList<>(users.size());
+    final Collection<Map.Entry<String, User>> byText = new ArrayList<>(users.size());
+
+    for (final User user : users) {
+      byId.add(entry(user.id, user));
+      byTime.add(entry(user.creation, user));
+      byText.add(entry(user.name, user));
+    }
+
+    userById.insertAll(byId);
+    userByTime.insertAll(byTime);
+    userByText.insertAll(byText);
+  }
+
   public StoreAccessor<Uuid, User> userById() {
     return userById;
   }
@@ -93,6 +157,42 @@ public final class Model {
     conversationByTime.insert(conversation.creation, conversation);
     conversationByText.insert(conversation.title, conversation);
     conversationPayloadById.insert(conversation.id, payload);
+    if (tier != null) {
+      tier.touch(conversation.id);
+    }
+  }
+
+  // ADD CONVERSATIONS
+  //
+  // Add many conversations at once. "payloads" holds the payload of each
+  // conversation by id; a conversation without one gets an empty payload.
+  public void addConversations(Collection<ConversationHeader> conversations,
+                               Map<Uuid, ConversationPayload> payloads) {
+
+    final Collection<Map.Entry<Uuid, ConversationHeader>> byId = new ArrayList<>(conversations.size());
+    final Collection<Map.Entry<Time, ConversationHeader>> byTime = new ArrayList<>(conversations.size());
+    final Collection<Map.Entry<String, ConversationHeader>> byText = new ArrayList<>(conversations.size());
+    final Collection<Map.Entry<Uuid, ConversationPayload>> payloadById = new ArrayList<>(conversations.size());
+
+    for (final ConversationHeader conversation : conversations) {
+      final ConversationPayload payload = payloads.get(conversation.id);
+      byId.add(entry(conversation.id, conversation));
+      byTime.add(entry(conversation.creation, conversation));
+      byText.add(entry(conversation.title, conversation));
+      payloadById.add(entry(conversation.id,
+                            payload == null ? new ConversationPayload(conversation.id) : payload));
+    }
+
+    conversationById.insertAll(byId);
+    conversationByTime.insertAll(byTime);
+    conversationByText.insertAll(byText);
+    conversationPayloadById.insertAll(payloadById);
+
+    if (tier != null) {
+      for (final ConversationHeader conversation : conversations) {
+        tier.touch(conversation.id);
+      }
+    }
   }
 
   public StoreAccessor<Uuid, ConversationHeader> conversationById() {
@@ -108,37 +208,147 @@ public final class Model {
   }
 
   public StoreAccessor<Uuid, ConversationPayload> conversationPayloadById() {
-    return conversationPayloadById;
+    return tier == null ? conversationPayloadById : tier.payloads();
   }
 
   public void add(Message message) {
+    message.moveTo(messageText);
     messageById.insert(message.id, message);
     messageByTime.insert(message.creation, message);
-    messageByText.insert(message.content, message);
+  }
+
+  // Add a message that is part of "conversation".
+  public void add(Uuid conversation, Message message) {
+    add(message);
+    conversationMessages(conversation).insert(message.creation, message);
+    conversationOfMessage.putIfAbsent(message.id, conversation);
+  }
+
+  // ADD MESSAGES
+  //
+  // Add many messages at once, grouped by the conversation they are in. Use
+  // Uuid.NULL for messages that are not in any conversation. See "addUsers".
+  public void addMessages(Map<Uuid, ? extends Collection<Message>> messagesByConversation) {
+
+    final Collection<Map.Entry<Uuid, Message>> byId = new ArrayList<>();
+    final Collection<Map.Entry<Time, Message>> byTime = new ArrayList<>();
+
+    for (final Map.Entry<Uuid, ? extends Collection<Message>> group : messagesByConversation.entrySet()) {
+
+      final Uuid conversation = group.getKey();
+      final boolean inConversation = !Uuid.equals(conversation, Uuid.NULL);
+      final Collection<Map.Entry<Time, Message>> inOrder = new ArrayList<>(group.getValue().size());
+
+      for (final Message message : group.getValue()) {
+        message.moveTo(messageText);
+        byId.add(entry(message.id, message));
+        byTime.add(entry(message.creation, message));
+        if (inConversation) {
+          inOrder.add(entry(message.creation, message));
+          conversationOfMessage.putIfAbsent(message.id, conversation);
+        }
+      }
+
+      if (inConversation) {
+        conversationMessages(conversation).insertAll(inOrder);
+      }
+    }
+
+    messageById.insertAll(byId);
+    messageByTime.insertAll(byTime);
   }
 
   public void remove(Message message) {
     messageById.remove(message.id);
-    messageByTime.remove(message.creation);
-    messageByText.remove(message.content);
+    messageByTime.remove(message.creation, message);
+    final Uuid conversation = conversationOfMessage.remove(message.id);
+    if (conversation != null) {
+      final Store<Time, Message> inConversation = messagesByConversation.get(conversation);
+      if (inConversation != null) {
+        inConversation.remove(message.creation, message);
+      }
+    }
+    message.release();
   }
 
   public void remove(ConversationHeader conversation) {
     conversationById.remove(conversation.id);
-    conversationByTime.remove(conversation.creation);
-    conversationByText.remove(conversation.title);
+    conversationByTime.remove(conversation.creation, conversation);
+    conversationByText.remove(conversation.title, conversation);
     conversationPayloadById.remove(conversation.id);
+    messagesByConversation.remove(conversation.id);
+    if (tier != null) {
+      tier.forget(conversation.id);
+    }
+  }
+
+  // MESSAGES IN
+  //
+  // The messages of a conversation ordered by creation time, with counts and
+  // positions (see "RankedStoreAccessor"). Returns null if the conversation has
+  // no messages. With tiering on, a cold conversation is paged in first.
+  public RankedStoreAccessor<Time, Message> messagesIn(Uuid conversation) {
+    if (tier != null) {
+      tier.touch(conversation);
+    }
+    return messagesByConversation.get(conversation);
   }
 
   public StoreAccessor<Uuid, Message> messageById() {
-    return messageById;
+    return tier == null ? messageById : tier.messages();
   }
 
   public StoreAccessor<Time, Message> messageByTime() {
     return messageByTime;
   }
 
-  public StoreAccessor<String, Message> messageByText() {
-    return messageByText;
+  public TextArena messageText() {
+    return messageText;
+  }
+
+  private RankedStore<Time, Message> conversationMessages(Uuid conversation) {
+    RankedStore<Time, Message> messages = messagesByConversation.get(conversation);
+    if (messages == null) {
+      messages = new RankedStore<>(TIME_COMPARE);
+      messagesByConversation.putIfAbsent(conversation, messages);
+    }
+    return messages;
+  }
+
+  private static <K, V> Map.Entry<K, V> entry(K key, V value) {
+    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+  }
+
+  // Sizes for monitoring. None of these page anything in.
+
+  long userCount() {
+    return userById.size();
+  }
+
+  long conversationCount() {
+    return conversationById.size();
+  }
+
+  long residentMessageCount() {
+    return messageById.size();
+  }
+
+  int coldConversationCount() {
+    return tier == null ? 0 : tier.coldConversations();
+  }
+
+  // The stores as they are in memory, without paging anything in. These are
+  // for the tier itself.
+
+  UuidStore<Message> residentMessages() {
+    return messageById;
+  }
+
+  UuidStore<ConversationPayload> residentPayloads() {
+    return conversationPayloadById;
+  }
+
+  MessageTier tier() {
+    return tier;
   }
 }
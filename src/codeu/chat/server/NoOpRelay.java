@@ -16,8 +16,10 @@ package codeu.chat.server;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
@@ -56,6 +58,11 @@ public final class NoOpRelay implements Relay {
     return true;
   }
 
+  @Override
+  public int write(Uuid teamId, Secret teamSecret, List<Relay.Write> writes) {
+    return writes.size();
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId,
                                        Secret teamSecret,
@@ -64,4 +71,41 @@ public final class NoOpRelay implements Relay {
 
     return new ArrayList<Relay.Bundle>();
   }
+
+  @Override
+  public Collection<Relay.Bundle> poll(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       long waitMs) {
+
+    return new ArrayList<Relay.Bundle>();
+  }
+
+  @Override
+  public Relay.Page poll(Uuid teamId,
+                         Secret teamSecret,
+                         final Uuid root,
+                         int range,
+                         long waitMs,
+                         RelayFilter filter) {
+
+    return new Relay.Page() {
+      @Override
+      public Collection<Relay.Bundle> bundles() { return new ArrayList<Relay.Bundle>(); }
+
+      @Override
+      public Uuid next() { return root; }
+    };
+  }
+
+  @Override
+  public boolean commit(Uuid teamId, Secret teamSecret, Uuid cursor) {
+    return true;
+  }
+
+  @Override
+  public Uuid committed(Uuid teamId, Secret teamSecret) {
+    return Uuid.NULL;
+  }
 }
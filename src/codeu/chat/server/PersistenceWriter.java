@@ -7,9 +7,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.text.DateFormat;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -24,6 +24,7 @@ import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.Message;
 import codeu.chat.common.OmniView;
 import codeu.chat.common.User;
+import codeu.chat.util.Events;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
@@ -71,42 +72,27 @@ public class PersistenceWriter {
 
     @Override
     public Map<Uuid, User> users() {
-      Collection<User> users = view.getUsers();
-      Map<Uuid, User> map = new HashMap<Uuid, User>();
-      for (final User user : users) {
-        map.put(user.id, user);
-      }
-      return map;
+      return view.streamUsers().collect(
+          Collectors.toMap(user -> user.id, user -> user, (first, second) -> second));
     }
 
     @Override
     public Map<Uuid, ConversationHeader> conversationHeaders() {
-      Collection<ConversationHeader> conversations = view.getConversations();
-      Map<Uuid, ConversationHeader> map = new HashMap<Uuid, ConversationHeader>();
-      for (final ConversationHeader conversation : conversations) {
-        map.put(conversation.id, conversation);
-      }
-      return map;
+      return view.streamConversations().collect(
+          Collectors.toMap(conversation -> conversation.id, conversation -> conversation, (first, second) -> second));
     }
 
     @Override
     public Map<Uuid, ConversationPayload> conversationPayloads() {
-      Collection<ConversationPayload> payloads = view.getConversationPayloads();
-      Map<Uuid, ConversationPayload> map = new HashMap<Uuid, ConversationPayload>();
-      for (final ConversationPayload payload : payloads) {
-        map.put(payload.id, payload);
-      }
-      return map;
+      return view.streamConversationPayloads().collect(
+          Collectors.toMap(payload -> payload.id, payload -> payload, (first, second) -> second));
     }
 
     @Override
     public Map<Uuid, Message> messages() {
-      Collection<Message> messages = view.getMessages();
-      Map<Uuid, Message> map = new HashMap<Uuid, Message>();
-      for (final Message message : messages) {
-        map.put(message.id, message);
-      }
-      return map;
+      // Messages are most of the snapshot, so they are collected in parallel.
+      return view.streamMessages().parallel().collect(
+          Collectors.toConcurrentMap(message -> message.id, message -> message, (first, second) -> second));
     }
 
   };
@@ -122,10 +108,61 @@ public class PersistenceWriter {
     this.fileSkeleton = fileSkeleton;
   }
 
+  /** How long the last write took, in nanoseconds. */
+  private volatile long lastDurationNanos;
+
+  /** The size of the file after the last successful write. */
+  private volatile long lastBytes;
+
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
   /**
    * Captures the server state and writes the persistence file immediately.
    */
   public void write() throws IOException {
+    final Events.Snapshot event = new Events.Snapshot();
+    event.begin();
+    final long start = System.nanoTime();
+    boolean written = false;
+    try {
+      writeFile();
+      written = true;
+    } finally {
+      lastDurationNanos = System.nanoTime() - start;
+      writes.incrementAndGet();
+      if (written) {
+        lastBytes = file.length();
+      } else {
+        failures.incrementAndGet();
+      }
+      if (event.shouldCommit()) {
+        event.file = file.getPath();
+        event.bytes = written ? lastBytes : 0;
+        event.succeeded = written;
+        event.commit();
+      }
+    }
+  }
+
+  public long lastDurationNanos() {
+    return lastDurationNanos;
+  }
+
+  public long lastBytes() {
+    return lastBytes;
+  }
+
+  /** How many writes have been attempted, including failed ones. */
+  public long writes() {
+    return writes.get();
+  }
+
+  public long failures() {
+    return failures.get();
+  }
+
+  private void writeFile() throws IOException {
     Gson gson = new GsonBuilder()
         .setDateFormat(DateFormat.LONG)
         .serializeNulls()
@@ -136,6 +173,7 @@ public class PersistenceWriter {
             new AnnotatedSerializer<PersistenceFileSkeleton.ServerInfo>(PersistenceFileSkeleton.ServerInfo.class))
         .registerTypeAdapter(Uuid.class, new UuidSerializer())
         .registerTypeAdapter(Time.class, new TimeSerializer())
+        .registerTypeAdapter(Message.class, new MessageSerializer())
         .create();
 
     JsonWriter writer = gson.newJsonWriter(new FileWriter(file));
@@ -182,6 +220,26 @@ public class PersistenceWriter {
     }
   }
 
+  /**
+   * Writes messages with the same fields that reflection would, but reads the
+   * body through {@link Message#content()} since the server keeps bodies in an
+   * off-heap arena rather than in the message object.
+   */
+  private class MessageSerializer implements JsonSerializer<Message> {
+
+    @Override
+    public JsonElement serialize(Message source, Type typeOfSource, JsonSerializationContext context) {
+      final JsonObject root = new JsonObject();
+      root.add("id", context.serialize(source.id, Uuid.class));
+      root.add("previous", context.serialize(source.previous, Uuid.class));
+      root.add("creation", context.serialize(source.creation, Time.class));
+      root.add("author", context.serialize(source.author, Uuid.class));
+      root.add("next", context.serialize(source.next, Uuid.class));
+      root.addProperty("content", source.content());
+      return root;
+    }
+  }
+
   private class TimeSerializer implements JsonSerializer<Time> {
 
     @Override
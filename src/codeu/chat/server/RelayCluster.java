@@ -0,0 +1,489 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCursorException;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Timeline;
+import codeu.chat.util.Uuid;
+
+// RELAY CLUSTER
+//
+// A relay made of several relay nodes. Every node is an ordinary relay (see
+// "RelayMain") that knows nothing about the others; the cluster only exists in
+// this client. Bundles are partitioned by conversation with consistent
+// hashing: each node owns a number of points on a ring, and a conversation
+// belongs to the first point at or after its hash. All of a conversation's
+// bundles are on one node, so they stay in order, and adding or removing a
+// node only moves the conversations next to its points.
+//
+// Writes go to the node that owns their conversation, and a batch is split by
+// node and written to all of them at once. Polls go to every node at once and
+// their pages are merged. Each node has its own cursor; the cursor handed back
+// in a page holds all of them, one link per node, so a caller that keeps a
+// single cursor (like "Server") does not need to know about the cluster.
+public final class RelayCluster implements Relay {
+
+  private final static Logger.Log LOG = Logger.newLog(RelayCluster.class);
+
+  // Points each node has on the ring. More points spread conversations more
+  // evenly over the nodes.
+  private static final int POINTS_PER_NODE = 64;
+
+  // How long past its "waitMs" a poll waits for nodes that are still holding
+  // theirs. Nodes time out at the same time, so this only needs to cover the
+  // trip back.
+  private static final long POLL_GRACE_MS = 1000;
+
+  // A poll of one node. It may still be in flight when the cluster poll that
+  // started it returns; the next cluster poll takes it over if it continues
+  // from the same place. That way a poll held by a node is never thrown away
+  // just because another node had something first.
+  private final class NodePoll implements Runnable {
+
+    final Node node;
+    final Uuid teamId;
+    final Secret teamSecret;
+    final Uuid root;
+    final int range;
+    final long waitMs;
+    final RelayFilter filter;
+
+    // Guarded by the cluster.
+    boolean done;
+    Relay.Page page;
+    RelayCursorException refused;
+
+    NodePoll(Node node, Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs, RelayFilter filter) {
+      this.node = node;
+      this.teamId = teamId;
+      this.teamSecret = teamSecret;
+      this.root = root;
+      this.range = range;
+      this.waitMs = waitMs;
+      this.filter = filter;
+    }
+
+    boolean continues(Uuid teamId, Uuid root, RelayFilter filter) {
+      return Uuid.equals(this.teamId, teamId) && Uuid.equals(this.root, root) && this.filter == filter;
+    }
+
+    @Override
+    public void run() {
+
+      Relay.Page page = null;
+      RelayCursorException refused = null;
+
+      try {
+        page = node.relay.poll(teamId, teamSecret, root, range, waitMs, filter);
+      } catch (RelayCursorException ex) {
+        refused = ex;
+      } catch (RuntimeException ex) {
+        LOG.error(ex, "Failed to poll relay node %s", node.name);
+      }
+
+      synchronized (RelayCluster.this) {
+        this.page = page;
+        this.refused = refused;
+        this.done = true;
+        RelayCluster.this.notifyAll();
+      }
+    }
+  }
+
+  private static final class Node {
+
+    final int index;
+    final String name;
+    final Relay relay;
+    // Polls are held by the node, so they get a lane of their own. There are
+    // two threads so that a new poll does not wait for one that is no longer
+    // wanted to time out.
+    final Timeline reads;
+    final Timeline writes;
+
+    // Guarded by the cluster.
+    NodePoll poll;
+
+    Node(int index, String name, Relay relay) {
+      this.index = index;
+      this.name = name;
+      this.relay = relay;
+      this.reads = new Timeline("relay-" + name + "-reads", 2, Integer.MAX_VALUE);
+      this.writes = new Timeline("relay-" + name + "-writes", 1, Integer.MAX_VALUE);
+    }
+  }
+
+  private final Node[] nodes;
+  private final TreeMap<Long, Node> ring = new TreeMap<>();
+
+  // Writes from the last batch that their node accepted, but that come after
+  // one that was not. See "write". Batches are written one at a time, under
+  // this set's lock.
+  private final Set<Relay.Write> delivered =
+      Collections.newSetFromMap(new IdentityHashMap<Relay.Write, Boolean>());
+
+  // Nodes by name. A node's name (its address, for a remote node) is what
+  // places it on the ring, so the same names always partition conversations
+  // the same way, whatever order they are given in.
+  public RelayCluster(Map<String, ? extends Relay> nodes) {
+
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("A relay cluster needs at least one node.");
+    }
+
+    final List<Node> sorted = new ArrayList<>();
+    for (final Map.Entry<String, ? extends Relay> entry : new TreeMap<>(nodes).entrySet()) {
+      sorted.add(new Node(sorted.size(), entry.getKey(), entry.getValue()));
+    }
+    this.nodes = sorted.toArray(new Node[sorted.size()]);
+
+    for (final Node node : this.nodes) {
+      for (int point = 0; point < POINTS_PER_NODE; point++) {
+        ring.put(hash(node.name + "#" + point), node);
+      }
+    }
+  }
+
+  @Override
+  public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+    return nodes[0].relay.pack(id, text, time);
+  }
+
+  @Override
+  public boolean write(Uuid teamId,
+                       Secret teamSecret,
+                       Relay.Bundle.Component user,
+                       Relay.Bundle.Component conversation,
+                       Relay.Bundle.Component message) {
+    return ownerOf(conversation.id()).relay.write(teamId, teamSecret, user, conversation, message);
+  }
+
+  // WRITE
+  //
+  // Each node accepts a prefix of its part of the batch. The batch as a whole
+  // counts as accepted up to its first write that was not, as callers (like
+  // "RelayOutbox") send the rest again. Writes after that which a node did
+  // accept are remembered and left out when they come again, so one node that
+  // is down does not keep the others from getting their writes, or make them
+  // get the same ones over and over.
+  @Override
+  public int write(Uuid teamId, Secret teamSecret, List<Relay.Write> writes) {
+    synchronized (delivered) {
+      return writeParts(teamId, teamSecret, writes);
+    }
+  }
+
+  private int writeParts(final Uuid teamId, final Secret teamSecret, List<Relay.Write> writes) {
+
+    final int[] owners = new int[writes.size()];
+    final List<List<Relay.Write>> parts = new ArrayList<>();
+    for (int i = 0; i < nodes.length; i++) {
+      parts.add(new ArrayList<Relay.Write>());
+    }
+    for (int i = 0; i < owners.length; i++) {
+      owners[i] = ownerOf(writes.get(i).conversation().id()).index;
+      if (!delivered.contains(writes.get(i))) {
+        parts.get(owners[i]).add(writes.get(i));
+      }
+    }
+
+    final int[] accepted = new int[nodes.length];
+    final CountDownLatch done = new CountDownLatch(nodes.length);
+
+    for (final Node node : nodes) {
+      final List<Relay.Write> part = parts.get(node.index);
+      if (part.isEmpty()) {
+        done.countDown();
+        continue;
+      }
+      node.writes.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          accepted[node.index] = -1;
+          try {
+            accepted[node.index] = node.relay.write(teamId, teamSecret, part);
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+
+    try {
+      done.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return -1;
+    }
+
+    int prefix = -1;
+    int failure = 0;
+    final int[] taken = new int[nodes.length];
+    final Set<Relay.Write> stillDelivered = Collections.newSetFromMap(new IdentityHashMap<Relay.Write, Boolean>());
+
+    for (int i = 0; i < owners.length; i++) {
+      final Relay.Write write = writes.get(i);
+      final boolean ok = delivered.contains(write) || taken[owners[i]]++ < accepted[owners[i]];
+      if (!ok && prefix < 0) {
+        prefix = i;
+        failure = accepted[owners[i]];
+      } else if (ok && prefix >= 0) {
+        stillDelivered.add(write);
+      }
+    }
+
+    delivered.clear();
+    delivered.addAll(stillDelivered);
+
+    if (prefix < 0) {
+      return owners.length;
+    }
+    return prefix == 0 && failure < 0 ? -1 : prefix;
+  }
+
+  // Bundle ids are only unique within a node, so the bundles from these can
+  // not be continued from. Use the filtered poll, whose "next" covers every
+  // node.
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range)
+      throws RelayCursorException {
+    return poll(teamId, teamSecret, root, range, 0, RelayFilter.ALL).bundles();
+  }
+
+  @Override
+  public Collection<Relay.Bundle> poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs)
+      throws RelayCursorException {
+    return poll(teamId, teamSecret, root, range, waitMs, RelayFilter.ALL).bundles();
+  }
+
+  // POLL
+  //
+  // Poll every node from its own cursor, and come back as soon as one of them
+  // has bundles, all of them have answered, or "waitMs" is up. Every node is
+  // asked for up to "range" bundles, so a page can hold that many per node.
+  //
+  // A node that does not know its cursor starts over from its oldest bundle,
+  // and a node that can not be reached keeps its cursor; neither holds up the
+  // rest of the cluster. Bundles of a conversation are all on one node, so they
+  // come back in the order they were written.
+  @Override
+  public Relay.Page poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs, RelayFilter filter) {
+
+    final Uuid[] cursors = split(root);
+    final NodePoll[] polls = new NodePoll[nodes.length];
+    final Collection<Relay.Bundle> bundles = new ArrayList<>();
+
+    synchronized (this) {
+
+      for (int i = 0; i < nodes.length; i++) {
+        final NodePoll inFlight = nodes[i].poll;
+        if (inFlight != null && inFlight.continues(teamId, cursors[i], filter)) {
+          polls[i] = inFlight;
+        } else {
+          polls[i] = new NodePoll(nodes[i], teamId, teamSecret, cursors[i], range, waitMs, filter);
+          nodes[i].poll = polls[i];
+          nodes[i].reads.scheduleNow(polls[i]);
+        }
+      }
+
+      final long deadline = System.currentTimeMillis() + waitMs + POLL_GRACE_MS;
+      long left = deadline - System.currentTimeMillis();
+      while (!answered(polls) && left > 0) {
+        try {
+          wait(left);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        left = deadline - System.currentTimeMillis();
+      }
+
+      for (int i = 0; i < nodes.length; i++) {
+
+        final NodePoll poll = polls[i];
+        if (!poll.done) {
+          continue;
+        }
+        if (nodes[i].poll == poll) {
+          nodes[i].poll = null;
+        }
+
+        if (poll.refused != null) {
+          LOG.warning("Relay node %s can not continue from %s (%s). Starting it over.",
+                      nodes[i].name, cursors[i], poll.refused.reason());
+          cursors[i] = Uuid.NULL;
+        } else if (poll.page != null) {
+          bundles.addAll(poll.page.bundles());
+          cursors[i] = poll.page.next();
+        }
+      }
+    }
+
+    final Uuid next = join(cursors);
+    return new Relay.Page() {
+      @Override
+      public Collection<Relay.Bundle> bundles() { return bundles; }
+
+      @Override
+      public Uuid next() { return next; }
+    };
+  }
+
+  // COMMIT
+  //
+  // Commit every node's part of the cursor. Only true if every node took it;
+  // the nodes that did keep theirs either way, which is no worse than having
+  // committed a little less.
+  @Override
+  public boolean commit(Uuid teamId, Secret teamSecret, Uuid cursor) {
+    final Uuid[] cursors = split(cursor);
+    boolean all = true;
+    for (int i = 0; i < nodes.length; i++) {
+      all &= nodes[i].relay.commit(teamId, teamSecret, cursors[i]);
+    }
+    return all;
+  }
+
+  // Every node's committed cursor as one cluster cursor, or null if a node
+  // could not say.
+  @Override
+  public Uuid committed(Uuid teamId, Secret teamSecret) {
+    final Uuid[] cursors = new Uuid[nodes.length];
+    boolean any = false;
+    for (int i = 0; i < nodes.length; i++) {
+      cursors[i] = nodes[i].relay.committed(teamId, teamSecret);
+      if (cursors[i] == null) {
+        return null;
+      }
+      any |= !Uuid.equals(cursors[i], Uuid.NULL);
+    }
+    return any ? join(cursors) : Uuid.NULL;
+  }
+
+  // Stop the nodes' lanes. Polls and writes that are under way are lost.
+  void stop() {
+    for (final Node node : nodes) {
+      node.reads.stop();
+      node.writes.stop();
+      node.reads.join();
+      node.writes.join();
+    }
+  }
+
+  // The index of the node that owns "conversation", in name order.
+  int nodeOf(Uuid conversation) {
+    return ownerOf(conversation).index;
+  }
+
+  private Node ownerOf(Uuid conversation) {
+    final Map.Entry<Long, Node> point = ring.ceilingEntry(hash(conversation));
+    return (point == null ? ring.firstEntry() : point).getValue();
+  }
+
+  // Everyone has answered, or someone has bundles.
+  private static boolean answered(NodePoll[] polls) {
+    boolean all = true;
+    for (final NodePoll poll : polls) {
+      if (poll.done && poll.page != null && !poll.page.bundles().isEmpty()) {
+        return true;
+      }
+      all &= poll.done;
+    }
+    return all;
+  }
+
+  // SPLIT
+  //
+  // The cursor of every node from a cluster cursor, which has one link per
+  // node with the first node at its root. Uuid.NULL, or a cursor for a
+  // different number of nodes (like one from a single relay), starts every
+  // node from its oldest bundle.
+  private Uuid[] split(Uuid cursor) {
+
+    final Uuid[] cursors = new Uuid[nodes.length];
+    Arrays.fill(cursors, Uuid.NULL);
+
+    int length = 0;
+    for (Uuid link = cursor; link != null; link = link.root()) {
+      length += 1;
+    }
+
+    if (length != nodes.length) {
+      if (!Uuid.equals(cursor, Uuid.NULL)) {
+        LOG.warning("Cursor %s is not for a cluster of %d relays. Starting every node over.",
+                    cursor, nodes.length);
+      }
+      return cursors;
+    }
+
+    Uuid link = cursor;
+    for (int i = nodes.length - 1; i >= 0; i--) {
+      cursors[i] = new Uuid(link.id());
+      link = link.root();
+    }
+    return cursors;
+  }
+
+  private static Uuid join(Uuid[] cursors) {
+    Uuid cursor = null;
+    for (final Uuid node : cursors) {
+      cursor = new Uuid(cursor, node.id());
+    }
+    return cursor;
+  }
+
+  private static long hash(Uuid id) {
+    long hash = 0;
+    for (Uuid link = id; link != null; link = link.root()) {
+      hash = hash * 31 + (link.id() & 0xFFFFFFFFL);
+    }
+    return mix(hash);
+  }
+
+  private static long hash(String text) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < text.length(); i++) {
+      hash ^= text.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Timeline;
+import codeu.chat.util.TimingWheel;
+import codeu.chat.util.Uuid;
+
+// RELAY OUTBOX
+//
+// Messages waiting to be written to the relay. Rather than one connection per
+// message, messages are sent in batches of up to "maxBatch", and a message
+// waits at most "maxDelayMs" for others to join it.
+//
+// A batch that could not be sent (the relay is down, or did not answer) or
+// that the relay refused (it may have just restarted and not loaded its teams
+// yet) stays at the front of the outbox and is tried again after a backoff
+// that doubles with every failure, from RETRY_MIN_MS up to RETRY_MAX_MS, with some jitter so
+// that servers do not all come back at once. While it waits, new messages keep
+// queuing behind it, up to "maxPending". Past that the oldest are dropped, as
+// an outbox that grows without bound would take the server down with the
+// relay.
+//
+// "add" may be called from any thread. Everything else happens on "lane", so
+// neither a slow relay nor a retry ever holds up the thread serving requests.
+// If the lane is full - it is stuck behind a relay that takes a long time to
+// answer - new messages are dropped before they get to the outbox, so that
+// the lane's queue can not grow without bound either.
+final class RelayOutbox {
+
+  private static final Logger.Log LOG = Logger.newLog(RelayOutbox.class);
+
+  static final long RETRY_MIN_MS = 250;
+  static final long RETRY_MAX_MS = 30000;
+
+  private final Relay relay;
+  private final Uuid team;
+  private final Secret secret;
+  private final Timeline lane;
+  private final int maxBatch;
+  private final long maxDelayMs;
+  private final int maxPending;
+
+  // Only used on the lane.
+  private final ArrayDeque<Relay.Write> pending = new ArrayDeque<>();
+  private final Random random = new Random();
+  private TimingWheel.Timeout timer;
+  private long backoffMs;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      timer = null;
+      flush();
+    }
+  };
+
+  // Counts for monitoring. Only set on the lane.
+  private volatile int size;
+  private volatile long sent;
+  private volatile long batches;
+  private volatile long retries;
+  private volatile long refused;
+  private final AtomicLong dropped = new AtomicLong();
+
+  RelayOutbox(Relay relay,
+              Uuid team,
+              Secret secret,
+              Timeline lane,
+              int maxBatch,
+              long maxDelayMs,
+              int maxPending) {
+    this.relay = relay;
+    this.team = team;
+    this.secret = secret;
+    this.lane = lane;
+    this.maxBatch = Math.max(1, maxBatch);
+    this.maxDelayMs = Math.max(0, maxDelayMs);
+    this.maxPending = Math.max(this.maxBatch, maxPending);
+  }
+
+  void add(final Relay.Bundle.Component user,
+           final Relay.Bundle.Component conversation,
+           final Relay.Bundle.Component message) {
+
+    final Relay.Write write = new Relay.Write() {
+      @Override
+      public Relay.Bundle.Component user() { return user; }
+      @Override
+      public Relay.Bundle.Component conversation() { return conversation; }
+      @Override
+      public Relay.Bundle.Component message() { return message; }
+    };
+
+    final boolean queued = lane.offerNow(new Runnable() {
+      @Override
+      public void run() {
+        queue(write);
+      }
+    });
+    if (!queued) {
+      drop();
+    }
+  }
+
+  // Messages waiting to be sent.
+  int size() { return size; }
+
+  // Messages the relay accepted.
+  long sent() { return sent; }
+
+  // Batches sent, whether the relay accepted them or not.
+  long batches() { return batches; }
+
+  // Batches that could not be sent, or were refused, and were tried again.
+  long retries() { return retries; }
+
+  // Messages the relay turned down, counted every time they were sent.
+  long refused() { return refused; }
+
+  // Messages dropped because the outbox, or the lane, was full.
+  long dropped() { return dropped.get(); }
+
+  private void drop() {
+    final long total = dropped.incrementAndGet();
+    if (total % 1000 == 1) {
+      LOG.warning("Relay outbox is full - dropped %d messages so far", total);
+    }
+  }
+
+  private void queue(Relay.Write write) {
+
+    pending.add(write);
+
+    if (pending.size() > maxPending) {
+      pending.poll();
+      drop();
+    }
+
+    size = pending.size();
+
+    if (backoffMs > 0) {
+      // A retry is already scheduled and will take this message with it.
+    } else if (pending.size() >= maxBatch) {
+      cancelTimer();
+      flush();
+    } else if (timer == null) {
+      timer = lane.scheduleIn(maxDelayMs, flushTask);
+    }
+  }
+
+  // FLUSH
+  //
+  // Send everything that is waiting, a batch at a time, until the outbox is
+  // empty or a batch fails.
+  private void flush() {
+
+    while (!pending.isEmpty()) {
+
+      final List<Relay.Write> batch = new ArrayList<>(Math.min(maxBatch, pending.size()));
+      final Iterator<Relay.Write> waiting = pending.iterator();
+      while (waiting.hasNext() && batch.size() < maxBatch) {
+        batch.add(waiting.next());
+      }
+
+      final int accepted = relay.write(team, secret, batch);
+      batches += 1;
+
+      for (int i = 0; i < accepted; i++) {
+        pending.poll();
+      }
+      size = pending.size();
+      sent += Math.max(0, accepted);
+
+      if (accepted < batch.size()) {
+        retries += 1;
+        backoffMs = backoffMs == 0 ? RETRY_MIN_MS : Math.min(backoffMs * 2, RETRY_MAX_MS);
+        final long wait = backoffMs / 2 + (long) (random.nextDouble() * (backoffMs / 2));
+        if (accepted < 0) {
+          LOG.warning("Failed to send %d messages to the relay. Trying again in %d ms.", batch.size(), wait);
+        } else {
+          refused += batch.size() - accepted;
+          LOG.warning("The relay refused %d messages. Trying again in %d ms.", batch.size() - accepted, wait);
+        }
+        cancelTimer();
+        timer = lane.scheduleIn(wait, flushTask);
+        return;
+      }
+
+      backoffMs = 0;
+    }
+  }
+
+  private void cancelTimer() {
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+}
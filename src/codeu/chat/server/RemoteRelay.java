@@ -19,10 +19,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
+import codeu.chat.common.ComponentDictionary;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCursorException;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
+import codeu.chat.util.Events;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
@@ -78,45 +83,85 @@ public final class RemoteRelay implements Relay {
     }
   };
 
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
-      new Serializer<Relay.Bundle>() {
+  // WRITES
+  //
+  // Writes with their user and conversation going through "shared", which is
+  // a dictionary for a compact batch (see "ComponentDictionary"). Messages are
+  // never the same twice, so they are always sent in full.
+  private static Serializer<Relay.Write> writes(final Serializer<Relay.Bundle.Component> shared) {
+
+    return new Serializer<Relay.Write>() {
+
+      @Override
+      public Relay.Write read(InputStream in) throws IOException {
+
+        final Relay.Bundle.Component user = shared.read(in);
+        final Relay.Bundle.Component conversation = shared.read(in);
+        final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+
+        return new Relay.Write() {
+          @Override
+          public Relay.Bundle.Component user() { return user; }
+          @Override
+          public Relay.Bundle.Component conversation() { return conversation; }
+          @Override
+          public Relay.Bundle.Component message() { return message; }
+        };
+      }
 
-    @Override
-    public Relay.Bundle read(InputStream in) throws IOException {
+      @Override
+      public void write(OutputStream out, Relay.Write value) throws IOException {
+        shared.write(out, value.user());
+        shared.write(out, value.conversation());
+        COMPONENT_SERIALIZER.write(out, value.message());
+      }
+    };
+  }
 
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-      final Uuid team = Uuid.SERIALIZER.read(in);
-      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
-
-      return new Relay.Bundle() {
-        @Override
-        public Uuid id() { return id; }
-        @Override
-        public Time time() { return time; }
-        @Override
-        public Uuid team() { return team; }
-        @Override
-        public Relay.Bundle.Component user() { return user; }
-        @Override
-        public Relay.Bundle.Component conversation() { return conversation; }
-        @Override
-        public Relay.Bundle.Component message() { return message; }
-      };
-    }
+  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER = bundles(COMPONENT_SERIALIZER);
+
+  // Like "writes", for bundles.
+  private static Serializer<Relay.Bundle> bundles(final Serializer<Relay.Bundle.Component> shared) {
+
+    return new Serializer<Relay.Bundle>() {
+
+      @Override
+      public Relay.Bundle read(InputStream in) throws IOException {
+
+        final Uuid id = Uuid.SERIALIZER.read(in);
+        final Time time = Time.SERIALIZER.read(in);
+        final Uuid team = Uuid.SERIALIZER.read(in);
+        final Relay.Bundle.Component user = shared.read(in);
+        final Relay.Bundle.Component conversation = shared.read(in);
+        final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+
+        return new Relay.Bundle() {
+          @Override
+          public Uuid id() { return id; }
+          @Override
+          public Time time() { return time; }
+          @Override
+          public Uuid team() { return team; }
+          @Override
+          public Relay.Bundle.Component user() { return user; }
+          @Override
+          public Relay.Bundle.Component conversation() { return conversation; }
+          @Override
+          public Relay.Bundle.Component message() { return message; }
+        };
+      }
 
-    @Override
-    public void write(OutputStream out, Relay.Bundle value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Time.SERIALIZER.write(out, value.time());
-      Uuid.SERIALIZER.write(out, value.team());
-      COMPONENT_SERIALIZER.write(out, value.user());
-      COMPONENT_SERIALIZER.write(out, value.conversation());
-      COMPONENT_SERIALIZER.write(out, value.message());
-    }
-  };
+      @Override
+      public void write(OutputStream out, Relay.Bundle value) throws IOException {
+        Uuid.SERIALIZER.write(out, value.id());
+        Time.SERIALIZER.write(out, value.time());
+        Uuid.SERIALIZER.write(out, value.team());
+        shared.write(out, value.user());
+        shared.write(out, value.conversation());
+        COMPONENT_SERIALIZER.write(out, value.message());
+      }
+    };
+  }
 
   private final ConnectionSource source;
 
@@ -138,6 +183,9 @@ public final class RemoteRelay implements Relay {
 
     boolean result = false;
 
+    final Events.RelayRoundTrip event = new Events.RelayRoundTrip();
+    event.begin();
+
     try (final Connection connection = source.connect()) {
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_REQUEST);
@@ -156,31 +204,229 @@ public final class RemoteRelay implements Relay {
       LOG.error(ex, "Unexpected error when sending RELAY_WRITE_REQUEST");;
     }
 
+    if (event.shouldCommit()) {
+      event.operation = "write";
+      event.bundles = 1;
+      event.succeeded = result;
+      event.commit();
+    }
+
+    return result;
+  }
+
+  @Override
+  public int write(Uuid teamId, Secret teamSecret, List<Relay.Write> writes) {
+
+    int result = -1;
+
+    final Events.RelayRoundTrip event = new Events.RelayRoundTrip();
+    event.begin();
+
+    try (final Connection connection = source.connect()) {
+
+      // Batches are sent compact, as most of their users and conversations
+      // repeat.
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_COMPACT_WRITE_BATCH_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Secret.SERIALIZER.write(connection.out(), teamSecret);
+      Serializers.collection(writes(new ComponentDictionary(COMPONENT_SERIALIZER))).write(connection.out(), writes);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_COMPACT_WRITE_BATCH_RESPONSE) {
+        result = Serializers.INTEGER.read(connection.in());
+      } else {
+        LOG.error("Server did not handle RELAY_COMPACT_WRITE_BATCH_REQUEST");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_COMPACT_WRITE_BATCH_REQUEST");
+    }
+
+    if (event.shouldCommit()) {
+      event.operation = "write-batch";
+      event.bundles = writes.size();
+      event.succeeded = result == writes.size();
+      event.commit();
+    }
+
+    return result;
+  }
+
+  @Override
+  public boolean commit(Uuid teamId, Secret teamSecret, Uuid cursor) {
+
+    boolean result = false;
+
+    final Events.RelayRoundTrip event = new Events.RelayRoundTrip();
+    event.begin();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_COMMIT_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Secret.SERIALIZER.write(connection.out(), teamSecret);
+      Uuid.SERIALIZER.write(connection.out(), cursor);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_COMMIT_RESPONSE) {
+        result = Serializers.BOOLEAN.read(connection.in());
+      } else {
+        LOG.error("Server did not handle RELAY_COMMIT_REQUEST");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_COMMIT_REQUEST");
+    }
+
+    if (event.shouldCommit()) {
+      event.operation = "commit";
+      event.bundles = 0;
+      event.succeeded = result;
+      event.commit();
+    }
+
+    return result;
+  }
+
+  @Override
+  public Uuid committed(Uuid teamId, Secret teamSecret) {
+
+    Uuid result = null;
+
+    final Events.RelayRoundTrip event = new Events.RelayRoundTrip();
+    event.begin();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_COMMITTED_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Secret.SERIALIZER.write(connection.out(), teamSecret);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_COMMITTED_RESPONSE) {
+        if (Serializers.BOOLEAN.read(connection.in())) {
+          result = Uuid.SERIALIZER.read(connection.in());
+        }
+      } else {
+        LOG.error("Server did not handle RELAY_COMMITTED_REQUEST");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_COMMITTED_REQUEST");
+    }
+
+    if (event.shouldCommit()) {
+      event.operation = "committed";
+      event.bundles = 0;
+      event.succeeded = result != null;
+      event.commit();
+    }
+
     return result;
   }
 
   @Override
-  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range)
+      throws RelayCursorException {
+    return read("read", teamId, teamSecret, root, range, -1, null).bundles();
+  }
+
+  @Override
+  public Collection<Relay.Bundle> poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs)
+      throws RelayCursorException {
+    return read("poll", teamId, teamSecret, root, range, waitMs, null).bundles();
+  }
+
+  @Override
+  public Relay.Page poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs, RelayFilter filter)
+      throws RelayCursorException {
+    return read("filtered-poll", teamId, teamSecret, root, range, waitMs, filter);
+  }
+
+  // Reads and polls only differ in their codes, in polls saying how long the
+  // relay may wait and in filtered polls sending a filter and getting a cursor
+  // and compact bundles back. A negative "waitMs" means a read. A read that
+  // fails leaves the cursor where it was.
+  private Relay.Page read(String operation,
+                          Uuid teamId,
+                          Secret teamSecret,
+                          Uuid root,
+                          int range,
+                          long waitMs,
+                          RelayFilter filter) throws RelayCursorException {
+
+    final boolean poll = waitMs >= 0;
+    final int requestCode = filter != null ? NetworkCode.RELAY_COMPACT_POLL_REQUEST :
+                            poll ? NetworkCode.RELAY_POLL_REQUEST :
+                            NetworkCode.RELAY_READ_REQUEST;
+    final int responseCode = filter != null ? NetworkCode.RELAY_COMPACT_POLL_RESPONSE :
+                             poll ? NetworkCode.RELAY_POLL_RESPONSE :
+                             NetworkCode.RELAY_READ_RESPONSE;
+    final String request = filter != null ? "RELAY_COMPACT_POLL_REQUEST" :
+                           poll ? "RELAY_POLL_REQUEST" :
+                           "RELAY_READ_REQUEST";
 
     final Collection<Relay.Bundle> result = new ArrayList<>();
+    Uuid next = root;
+    boolean succeeded = false;
+    RelayCursorException refused = null;
+
+    final Events.RelayRoundTrip event = new Events.RelayRoundTrip();
+    event.begin();
 
     try (final Connection connection = source.connect()) {
 
-      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_REQUEST);
+      Serializers.INTEGER.write(connection.out(), requestCode);
       Uuid.SERIALIZER.write(connection.out(), teamId);
       Secret.SERIALIZER.write(connection.out(), teamSecret);
       Uuid.SERIALIZER.write(connection.out(), root);
       Serializers.INTEGER.write(connection.out(), range);
+      if (poll) {
+        Serializers.LONG.write(connection.out(), waitMs);
+      }
+      if (filter != null) {
+        RelayFilter.SERIALIZER.write(connection.out(), filter);
+      }
 
-      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_READ_RESPONSE) {
-        result.addAll(Serializers.collection(BUNDLE_SERIALIZER).read(connection.in()));
+      final int response = Serializers.INTEGER.read(connection.in());
+      if (response == responseCode) {
+        if (filter != null) {
+          next = Uuid.SERIALIZER.read(connection.in());
+          result.addAll(Serializers.collection(bundles(new ComponentDictionary(COMPONENT_SERIALIZER)))
+                                   .read(connection.in()));
+        } else {
+          result.addAll(Serializers.collection(BUNDLE_SERIALIZER).read(connection.in()));
+        }
+        succeeded = true;
+      } else if (response == NetworkCode.ERR_RELAY_CURSOR_EVICTED) {
+        refused = new RelayCursorException(RelayCursorException.Reason.EVICTED, root);
+      } else if (response == NetworkCode.ERR_RELAY_CURSOR_UNKNOWN) {
+        refused = new RelayCursorException(RelayCursorException.Reason.UNKNOWN, root);
       } else {
-        LOG.error("Server did not handle RELAY_READ_REQUEST");
+        LOG.error("Server did not handle %s", request);
       }
     } catch (Exception ex) {
-      LOG.error(ex, "Unexpected error when sending RELAY_READ_REQUEST");
+      LOG.error(ex, "Unexpected error when sending %s", request);
     }
 
-    return result;
+    if (event.shouldCommit()) {
+      event.operation = operation;
+      event.bundles = result.size();
+      event.succeeded = succeeded;
+      event.commit();
+    }
+
+    if (refused != null) {
+      throw refused;
+    }
+
+    // Without a filter, the next read continues from the last bundle.
+    if (filter == null) {
+      for (final Relay.Bundle bundle : result) {
+        next = bundle.id();
+      }
+    }
+
+    final Uuid cursor = next;
+    return new Relay.Page() {
+      @Override
+      public Collection<Relay.Bundle> bundles() { return result; }
+      @Override
+      public Uuid next() { return cursor; }
+    };
   }
 }
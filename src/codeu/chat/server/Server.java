@@ -14,31 +14,46 @@
 
 package codeu.chat.server;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.Message;
 import codeu.chat.common.NetworkCode;
+import codeu.chat.common.OmniView;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCursorException;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
+import codeu.chat.common.ServerStats;
 import codeu.chat.common.User;
 import codeu.chat.common.VersionInfo;
 import codeu.chat.security.SecurityViolationException;
 import codeu.chat.server.PersistenceFileSkeleton.ServerInfo;
 import codeu.chat.server.contexts.ConversationContext;
 import codeu.chat.server.contexts.UserContext;
+import codeu.chat.util.AdminServer;
 import codeu.chat.util.InterestInfo;
 import codeu.chat.util.Logger;
+import codeu.chat.util.PrometheusText;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Timeline;
@@ -51,67 +66,225 @@ public final class Server {
     void onMessage(InputStream in, OutputStream out) throws IOException;
   }
 
+  // A command that only touches one conversation. It runs on the timeline of
+  // the shard that owns the conversation.
+  private interface ShardCommand {
+    void onMessage(Shard shard, InputStream in, OutputStream out) throws IOException;
+  }
+
+  // Reads the id of the conversation that a shard command is for, or returns
+  // null if the command can run on any shard. The stream is reset afterwards,
+  // so this only needs to read as far as the id.
+  private interface Route {
+    Uuid read(InputStream in) throws IOException;
+  }
+
+  // Something to compute on every shard (on the shard's own timeline) so that
+  // the results can be put together on the server's timeline.
+  private interface ShardQuery<T> {
+    T run(Shard shard);
+  }
+
   private static final Logger.Log LOG = Logger.newLog(Server.class);
 
   private static final int RELAY_REFRESH_MS = 5000; // 5 seconds
 
-  private final Timeline timeline = new Timeline();
+  // A poll asks the relay for up to 1024 bundles and lets it wait up to 20
+  // seconds for there to be any.
+  private static final int RELAY_POLL_MAX = 1024;
+  private static final long RELAY_POLL_WAIT_MS = 20000;
+
+  // New messages go to the relay in batches of up to 64, and wait at most 50 ms
+  // for a batch to fill. If the relay is down, up to 100000 messages wait for it
+  // to come back. See "RelayOutbox".
+  private static final int RELAY_BATCH_SIZE = 64;
+  private static final long RELAY_BATCH_DELAY_MS = 50;
+  private static final int RELAY_OUTBOX_LIMIT = 100000;
+
+  private static final int TIER_EVICT_INTERVAL_MS = 10000; // 10 seconds
+
+  // The most messages a client gets back for one page of a conversation.
+  private static final int MESSAGE_PAGE_MAX = 100;
+
+  // How far into a request a route may read. Routes only read a couple of
+  // ids, so this is far more than needed.
+  private static final int ROUTE_READ_LIMIT = 4096;
+
+  private static final Route CONVERSATION_FIRST = new Route() {
+    @Override
+    public Uuid read(InputStream in) throws IOException {
+      return Uuid.SERIALIZER.read(in);
+    }
+  };
+
+  private static final Route ANY_SHARD = new Route() {
+    @Override
+    public Uuid read(InputStream in) {
+      return null;
+    }
+  };
+
+  // How many connections may wait for the client lane before new ones are
+  // turned away.
+  private static final int CLIENT_QUEUE_BOUND = 1024;
+
+  // How many events may wait for each of the other lanes. The relay lane gets
+  // an event for every message posted, on its way to the relay outbox, so it
+  // can hold as many as the outbox does.
+  private static final int RELAY_LANE_BOUND = RELAY_OUTBOX_LIMIT;
+  private static final int RELAY_READ_LANE_BOUND = 16;
+  private static final int PERSISTENCE_LANE_BOUND = 4;
+  private static final int HOUSEKEEPING_LANE_BOUND = 16;
+
+  // How long a timeline has to get through its queue before the admin server
+  // reports it as stuck.
+  private static final long LIVENESS_TIMEOUT_MS = 5000;
+
+  // The server's own timeline (the "client lane"). It reads every request,
+  // handles everything that is not about a single conversation (users,
+  // interests, bundles from the relay) and hands the rest off to the shards.
+  private final Timeline timeline = new Timeline("client", 1, CLIENT_QUEUE_BOUND);
+
+  // The other lanes. Each does work that can block for a long time (network
+  // and disk) or that is not urgent, so that it never holds up the client lane.
+  // None of them touch a model directly - anything they need from one is asked
+  // of the timeline that owns it.
+  //
+  // Each has a bound of its own. What arrives in bursts is offered to them and
+  // turned away when they are full: new messages for the relay are dropped
+  // (see "RelayOutbox"), a snapshot asked for over HTTP fails and a commit to
+  // the relay is skipped, as the next snapshot commits a newer cursor. The
+  // rest - the relay poll, snapshots and housekeeping on a timer - is one task
+  // that schedules the next, so only a few are ever queued.
+  private final Timeline relayLane = new Timeline("relay", 1, RELAY_LANE_BOUND);
+  private final Timeline relayReadLane = new Timeline("relay-read", 1, RELAY_READ_LANE_BOUND);
+  private final Timeline persistenceLane = new Timeline("persistence", 1, PERSISTENCE_LANE_BOUND);
+  private final Timeline housekeeping = new Timeline("housekeeping", 1, HOUSEKEEPING_LANE_BOUND);
+
+  private final Metrics metrics = new Metrics();
 
   private final Map<Integer, Command> commands = new HashMap<>();
-  // all the users in the chat app and their interest info
+  private final Map<Integer, ShardCommand> shardCommands = new HashMap<>();
+  private final Map<Integer, Route> routes = new HashMap<>();
+  // all the users in the chat app and their interest info. Only use this from
+  // the server's timeline - shards post their updates to it.
   private Map<User, InterestInfo> userInterests = new HashMap<>();
   private final Uuid id;
   private final Secret secret;
 
+  // Users only. Conversations and messages are in the shards.
   private final Model model = new Model();
   private final View view = new View(model);
   private final Controller controller;
 
+  private final Shard[] shards;
+  private int nextShard;
+
   private final Relay relay;
-  private Uuid lastSeen = Uuid.NULL;
+  private final RelayOutbox relayOutbox;
+  // The last bundle from the relay that was added to the shards. Set by the
+  // relay read lane or by the last shard to finish a page, one at a time, and
+  // read by the persistence lane.
+  private volatile Uuid lastSeen = Uuid.NULL;
+  // Where the relay read lane polls from next. This runs ahead of "lastSeen"
+  // while bundles are waiting for the client lane and the shards. Set by the
+  // constructor when loading a snapshot and only by the relay read lane once
+  // "start" has been called.
+  private volatile Uuid relayCursor = Uuid.NULL;
+  // Which bundles to ask the relay for once caught up. By default every other
+  // team's - a running server already has the bundles it wrote. See
+  // "filterRelay".
+  private volatile RelayFilter relayFilter = RelayFilter.FOREIGN;
+  // False until a poll comes back empty. Until then the server also takes its
+  // own bundles, as those written after the last snapshot and before a crash
+  // are only on the relay. Only used on the relay read lane.
+  private boolean relayCaughtUp;
+  // For monitoring: when the relay was last read from successfully and the
+  // creation time of the newest bundle in the last page that was added. Zero
+  // means never.
+  private volatile long lastRelayReadMs;
+  private volatile long lastBundleMs;
+  // Bundles from the relay that were added, and that were skipped as their
+  // messages were already known. Counted by the shards.
+  private final AtomicLong relayBundlesAdded = new AtomicLong();
+  private final AtomicLong relayBundlesKnown = new AtomicLong();
+  // How many times the relay could not continue from "relayCursor". Only set
+  // on the relay read lane.
+  private volatile long relayCursorResets;
+  // The "lastSeen" that the snapshot being written holds, and the last one
+  // the relay took as the team's committed cursor. See "committed".
+  private volatile Uuid snapshotSeen = Uuid.NULL;
+  private Uuid relayCommitted = Uuid.NULL;
+  private final AtomicLong relayCommits = new AtomicLong();
+  private final AtomicLong relayCommitFailures = new AtomicLong();
 
   private PersistenceWriter persistenceWriter; // Not final, as it is not required
+  // True if the server was loaded from a snapshot, so that "start" checks the
+  // snapshot's cursor against the one committed to the relay.
+  private boolean restored;
+  private boolean started;
 
   private final VersionInfo version = new VersionInfo();
   private static final codeu.chat.util.ServerInfo info = new codeu.chat.util.ServerInfo();
 
-  public Server(final Uuid id, final Secret secret, final Relay relay) {
+  public Server(final Uuid id, final Secret secret, final Relay relay, final int shardCount) {
 
     this.id = id;
     this.secret = secret;
     this.controller = new Controller(id, model);
     this.relay = relay;
+    this.relayOutbox = new RelayOutbox(relay, id, secret, relayLane,
+                                       RELAY_BATCH_SIZE, RELAY_BATCH_DELAY_MS, RELAY_OUTBOX_LIMIT);
+
+    this.shards = new Shard[Math.max(1, shardCount)];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard(id, i, shards.length);
+    }
 
     // New Message - A client wants to add a new message to the back end.
-    this.commands.put(NetworkCode.NEW_MESSAGE_REQUEST, new Command() {
+    this.routes.put(NetworkCode.NEW_MESSAGE_REQUEST, new Route() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public Uuid read(InputStream in) throws IOException {
+        Uuid.SERIALIZER.read(in);  // author
+        return Uuid.SERIALIZER.read(in);
+      }
+    });
+    this.shardCommands.put(NetworkCode.NEW_MESSAGE_REQUEST, new ShardCommand() {
+      @Override
+      public void onMessage(Shard shard, InputStream in, OutputStream out) throws IOException {
         final Uuid author = Uuid.SERIALIZER.read(in);
-        User signedInUser = view.findUser(author);
+        Metrics.onBehalfOf(author);
+        final User signedInUser = shard.view.findUser(author);
         final Uuid conversation = Uuid.SERIALIZER.read(in);
         final String content = Serializers.STRING.read(in);
-        ConversationHeader convo = view.findConversation(conversation);
-        ConversationContext conversationContext = new ConversationContext(signedInUser, convo, view, controller);
+        final ConversationHeader convo = shard.view.findConversation(conversation);
+        ConversationContext conversationContext =
+            new ConversationContext(signedInUser, convo, shard.view, shard.controller);
 
         try {
           final codeu.chat.contexts.MessageContext msgContext = conversationContext.add(content);
           final Message message = msgContext.message;
 
-          // for user status update
-          userInterests.get(signedInUser).addModifiedConversation(convo.title);
-          // for convo status update
-          for (User temp : userInterests.keySet()) {
-            if (userInterests.get(temp).getInterestedConvos().isEmpty() == false) {
-              if (userInterests.get(temp).getInterestedConvos().containsKey(convo.title)) {
-                userInterests.get(temp).addToMessageCount(convo.title);
+          timeline.scheduleNow(new Runnable() {
+            @Override
+            public void run() {
+              // for user status update
+              userInterests.get(signedInUser).addModifiedConversation(convo.title);
+              // for convo status update
+              for (User temp : userInterests.keySet()) {
+                if (userInterests.get(temp).getInterestedConvos().isEmpty() == false) {
+                  if (userInterests.get(temp).getInterestedConvos().containsKey(convo.title)) {
+                    userInterests.get(temp).addToMessageCount(convo.title);
+                  }
+                }
               }
             }
-          }
+          });
 
           Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
           Serializers.nullable(Message.SERIALIZER).write(out, message);
 
-          timeline.scheduleNow(createSendToRelayEvent(author, conversation, message.id));
+          sendToRelay(signedInUser, convo, message);
         } catch (SecurityViolationException e) {
           LOG.error(e, "Security violation occured by user: " + signedInUser.name);
           Serializers.INTEGER.write(out, NetworkCode.ERR_SECURITY_VIOLATION);
@@ -127,6 +300,7 @@ public final class Server {
         final String name = Serializers.STRING.read(in);
         final User user = controller.newUser(name);
         userInterests.put(user, new InterestInfo());
+        replicate(user);
 
         Serializers.INTEGER.write(out, NetworkCode.NEW_USER_RESPONSE);
         Serializers.nullable(User.SERIALIZER).write(out, user);
@@ -134,18 +308,26 @@ public final class Server {
     });
 
     // New Conversation - A client wants to add a new conversation to the
-    // back end.
-    this.commands.put(NetworkCode.NEW_CONVERSATION_REQUEST, new Command() {
+    // back end. A new conversation has no id yet, so it goes to whichever shard
+    // is next. Ids made by a shard always belong to that shard.
+    this.routes.put(NetworkCode.NEW_CONVERSATION_REQUEST, ANY_SHARD);
+    this.shardCommands.put(NetworkCode.NEW_CONVERSATION_REQUEST, new ShardCommand() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Shard shard, InputStream in, OutputStream out) throws IOException {
         // title of conversation
         final String title = Serializers.STRING.read(in);
         // user that we put in as a key
         final Uuid owner = Uuid.SERIALIZER.read(in);
-        User signedInUser = view.findUser(owner);
-        userInterests.get(signedInUser).addModifiedConversation(title);
+        Metrics.onBehalfOf(owner);
+        final User signedInUser = shard.view.findUser(owner);
+        timeline.scheduleNow(new Runnable() {
+          @Override
+          public void run() {
+            userInterests.get(signedInUser).addModifiedConversation(title);
+          }
+        });
         // userInterests.get(owner).addInterestConvo(title);
-        final ConversationHeader conversation = controller.newConversation(title, owner);
+        final ConversationHeader conversation = shard.controller.newConversation(title, owner);
 
         Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_RESPONSE);
         Serializers.nullable(ConversationHeader.SERIALIZER).write(out, conversation);
@@ -170,11 +352,20 @@ public final class Server {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
         final Uuid userId = Uuid.SERIALIZER.read(in);
-        final UserContext user = new UserContext(view.findUser(userId), view, controller);
-        final Collection<ConversationHeader> conversations = new ArrayList<>(); 
-        final Iterable<codeu.chat.contexts.ConversationContext> conversationContexts = user.conversations();
-        for (codeu.chat.contexts.ConversationContext context : conversationContexts) {
-          conversations.add(context.conversation);
+        Metrics.onBehalfOf(userId);
+        final Collection<ConversationHeader> conversations = new ArrayList<>();
+        for (final Collection<ConversationHeader> part : gather(allShards(), new ShardQuery<Collection<ConversationHeader>>() {
+          @Override
+          public Collection<ConversationHeader> run(Shard shard) {
+            final UserContext user = new UserContext(shard.view.findUser(userId), shard.view, shard.controller);
+            final Collection<ConversationHeader> found = new ArrayList<>();
+            for (codeu.chat.contexts.ConversationContext context : user.conversations()) {
+              found.add(context.conversation);
+            }
+            return found;
+          }
+        })) {
+          conversations.addAll(part);
         }
 
         Serializers.INTEGER.write(out, NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE);
@@ -191,6 +382,7 @@ public final class Server {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
         final Uuid userId = Uuid.SERIALIZER.read(in);
+        Metrics.onBehalfOf(userId);
 
         // XXX: make UserContext work with the user id, so that a security check is available here.
         // The problem is that this operation is inherently indirect and dubious in motive.
@@ -198,7 +390,30 @@ public final class Server {
 
         //final UserContext user = new UserContext(view.findUser(userId), view, controller);
         final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(in);
-        final Collection<ConversationPayload> conversations = view.getConversationPayloads(ids);
+
+        // Only ask each shard about the conversations it owns.
+        final Map<Shard, Collection<Uuid>> byShard = new HashMap<>();
+        for (final Uuid id : ids) {
+          final Shard shard = shardFor(id);
+          if (!byShard.containsKey(shard)) {
+            byShard.put(shard, new ArrayList<Uuid>());
+          }
+          byShard.get(shard).add(id);
+        }
+
+        final Collection<ConversationPayload> conversations = new ArrayList<>();
+        for (final Collection<ConversationPayload> part : gather(byShard.keySet(), new ShardQuery<Collection<ConversationPayload>>() {
+          @Override
+          public Collection<ConversationPayload> run(Shard shard) {
+            final Collection<ConversationPayload> found = new ArrayList<>();
+            for (final ConversationPayload payload : shard.view.getConversationPayloads(byShard.get(shard))) {
+              found.add(Shard.copy(payload));
+            }
+            return found;
+          }
+        })) {
+          conversations.addAll(part);
+        }
 
         Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE);
         Serializers.collection(ConversationPayload.SERIALIZER).write(out, conversations);
@@ -212,7 +427,25 @@ public final class Server {
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
         final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(in);
-        final Collection<Message> messages = view.getMessages(ids);
+
+        // A message id does not say which conversation it is in, so every shard
+        // has to look. Each message is only in one shard.
+        final Collection<Message> messages = new ArrayList<>();
+        for (final Collection<Message> part : gather(allShards(), new ShardQuery<Collection<Message>>() {
+          @Override
+          public Collection<Message> run(Shard shard) {
+            final Collection<Message> found = new ArrayList<>();
+            for (final Uuid id : new HashSet<>(ids)) {
+              final Message message = shard.model.messageById().first(id);
+              if (message != null) {
+                found.add(Shard.copy(message));
+              }
+            }
+            return found;
+          }
+        })) {
+          messages.addAll(part);
+        }
 
         Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
         Serializers.collection(Message.SERIALIZER).write(out, messages);
@@ -227,6 +460,15 @@ public final class Server {
       }
     });
 
+    // Server Stats - A client wants the request metrics of the server.
+    this.commands.put(NetworkCode.SERVER_STATS_REQUEST, new Command() {
+      @Override
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+        Serializers.INTEGER.write(out, NetworkCode.SERVER_STATS_RESPONSE);
+        ServerStats.SERIALIZER.write(out, metrics.snapshot());
+      }
+    });
+
     this.commands.put(NetworkCode.SERVER_INFO_REQUEST, new Command() {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
@@ -249,6 +491,7 @@ public final class Server {
 
         Uuid interestID = interest.id;
         final Uuid signedInId = Uuid.SERIALIZER.read(in);
+        Metrics.onBehalfOf(signedInId);
         User signedInUser = view.findUser(signedInId);
         User temp = null;
 
@@ -269,6 +512,7 @@ public final class Server {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
         final Uuid signedInId = Uuid.SERIALIZER.read(in);
+        Metrics.onBehalfOf(signedInId);
         final User signedInUser = view.findUser(signedInId);
         User temp = null;
 
@@ -302,6 +546,7 @@ public final class Server {
         final String title = Serializers.STRING.read(in);
         // signed in user
         final Uuid ownerId = Uuid.SERIALIZER.read(in);
+        Metrics.onBehalfOf(ownerId);
         final User owner = view.findUser(ownerId);
         userInterests.get(owner).addInterestConvo(title);
         String confirmation = new String("You have added " + '"' + title + '"' + " to your interests.");
@@ -325,6 +570,7 @@ public final class Server {
         Uuid interestID = interest.id;
 
         final Uuid signedInId = Uuid.SERIALIZER.read(in);
+        Metrics.onBehalfOf(signedInId);
         final User signedInUser = view.findUser(signedInId);
 
         userInterests.get(signedInUser).removeInterestUser(interestID);
@@ -343,6 +589,7 @@ public final class Server {
         final String title = Serializers.STRING.read(in);
         // signed in user
         final Uuid signedInId = Uuid.SERIALIZER.read(in);
+        Metrics.onBehalfOf(signedInId);
         final User signedInUser = view.findUser(signedInId);
 
         userInterests.get(signedInUser).removeInterestConvo(title);
@@ -359,6 +606,7 @@ public final class Server {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
         final Uuid signedInId = Uuid.SERIALIZER.read(in);
+        Metrics.onBehalfOf(signedInId);
         final User signedInUser = view.findUser(signedInId);
 
         String convoStatusUpdate = "";
@@ -372,16 +620,19 @@ public final class Server {
         Serializers.STRING.write(out, convoStatusUpdate);
       }
     });
-    this.commands.put(NetworkCode.NEW_ACCESS_CONTROL_REQUEST, new Command() {
+    this.routes.put(NetworkCode.NEW_ACCESS_CONTROL_REQUEST, CONVERSATION_FIRST);
+    this.shardCommands.put(NetworkCode.NEW_ACCESS_CONTROL_REQUEST, new ShardCommand() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Shard shard, InputStream in, OutputStream out) throws IOException {
         final Uuid convoId = Uuid.SERIALIZER.read(in);
-        final ConversationHeader convoHeader = view.findConversation(convoId);
+        final ConversationHeader convoHeader = shard.view.findConversation(convoId);
         final Uuid invokerID = Uuid.SERIALIZER.read(in);
-        final User invokerUser = view.findUser(invokerID);
+        Metrics.onBehalfOf(invokerID);
+        final User invokerUser = shard.view.findUser(invokerID);
         final Uuid targetId = Uuid.SERIALIZER.read(in);
         final int flag = Serializers.INTEGER.read(in);
-        ConversationContext invokerContext = new ConversationContext(invokerUser, convoHeader, view, controller);
+        ConversationContext invokerContext =
+            new ConversationContext(invokerUser, convoHeader, shard.view, shard.controller);
         try {
           invokerContext.setSecurityFlags(targetId, flag);
           Serializers.INTEGER.write(out, NetworkCode.NEW_ACCESS_CONTROL_RESPONSE);
@@ -391,15 +642,18 @@ public final class Server {
         }
       }
     });
-    this.commands.put(NetworkCode.DELETE_MESSAGE_REQUEST, new Command() {
+    this.routes.put(NetworkCode.DELETE_MESSAGE_REQUEST, CONVERSATION_FIRST);
+    this.shardCommands.put(NetworkCode.DELETE_MESSAGE_REQUEST, new ShardCommand() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Shard shard, InputStream in, OutputStream out) throws IOException {
           final Uuid convoId = Uuid.SERIALIZER.read(in);
-          final ConversationHeader convoHeader = view.findConversation(convoId);
+          final ConversationHeader convoHeader = shard.view.findConversation(convoId);
           final Uuid messageId = Uuid.SERIALIZER.read(in);
           final Uuid invokerId = Uuid.SERIALIZER.read(in);
-          final User invokerUser = view.findUser(invokerId);
-          ConversationContext invokerContext = new ConversationContext(invokerUser, convoHeader, view, controller);
+          Metrics.onBehalfOf(invokerId);
+          final User invokerUser = shard.view.findUser(invokerId);
+          ConversationContext invokerContext =
+              new ConversationContext(invokerUser, convoHeader, shard.view, shard.controller);
           try {
               invokerContext.remove(messageId);
               Serializers.INTEGER.write(out, NetworkCode.DELETE_MESSAGE_RESPONSE);
@@ -409,13 +663,15 @@ public final class Server {
             }
       }
     });
-    this.commands.put(NetworkCode.DELETE_CONVERSATION_REQUEST, new Command() {
+    this.routes.put(NetworkCode.DELETE_CONVERSATION_REQUEST, CONVERSATION_FIRST);
+    this.shardCommands.put(NetworkCode.DELETE_CONVERSATION_REQUEST, new ShardCommand() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Shard shard, InputStream in, OutputStream out) throws IOException {
           final Uuid convoId = Uuid.SERIALIZER.read(in);
           final Uuid invokerId = Uuid.SERIALIZER.read(in);
-          final User invokerUser = view.findUser(invokerId);
-          UserContext invokerContext = new UserContext(invokerUser, view, controller);
+          Metrics.onBehalfOf(invokerId);
+          final User invokerUser = shard.view.findUser(invokerId);
+          UserContext invokerContext = new UserContext(invokerUser, shard.view, shard.controller);
           try {
               invokerContext.deleteConversation(convoId);
               Serializers.INTEGER.write(out, NetworkCode.DELETE_CONVERSATION_RESPONSE);
@@ -425,161 +681,906 @@ public final class Server {
             }
       }
     });
-    this.timeline.scheduleNow(new Runnable() {
+    // Get Message Count - A client wants to know how many messages are in a
+    // conversation, and how many of them are new since a given time. Both come
+    // from the counts kept by the store.
+    this.routes.put(NetworkCode.GET_MESSAGE_COUNT_REQUEST, CONVERSATION_FIRST);
+    this.shardCommands.put(NetworkCode.GET_MESSAGE_COUNT_REQUEST, new ShardCommand() {
+      @Override
+      public void onMessage(Shard shard, InputStream in, OutputStream out) throws IOException {
+        final Uuid convoId = Uuid.SERIALIZER.read(in);
+        final Time since = Time.SERIALIZER.read(in);
+        Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGE_COUNT_RESPONSE);
+        Serializers.LONG.write(out, shard.view.countMessages(convoId));
+        Serializers.LONG.write(out, shard.view.countMessagesSince(convoId, since));
+      }
+    });
+    // Get Message Page - A client wants part of a conversation, oldest first,
+    // without following the messages one at a time. A page holds at most
+    // MESSAGE_PAGE_MAX messages.
+    this.routes.put(NetworkCode.GET_MESSAGE_PAGE_REQUEST, CONVERSATION_FIRST);
+    this.shardCommands.put(NetworkCode.GET_MESSAGE_PAGE_REQUEST, new ShardCommand() {
+      @Override
+      public void onMessage(Shard shard, InputStream in, OutputStream out) throws IOException {
+        final Uuid convoId = Uuid.SERIALIZER.read(in);
+        final long first = Math.max(0, Serializers.LONG.read(in));
+        final int count = Math.max(0, Math.min(MESSAGE_PAGE_MAX, Serializers.INTEGER.read(in)));
+        final Collection<Message> page = new ArrayList<>();
+        for (final Message message : shard.view.getMessagePage(convoId, first, count)) {
+          page.add(Shard.copy(message));
+        }
+        Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGE_PAGE_RESPONSE);
+        Serializers.collection(Message.SERIALIZER).write(out, page);
+      }
+    });
+  }
+
+  public Server(final Uuid id, final Secret secret, final Relay relay, final int shardCount, final File persistenceFile) {
+    this(id, secret, relay, shardCount);
+
+    // "lastSeen" is taken before the view is read, so the snapshot holds at
+    // least every bundle up to the one it names. Once it is on disk, that is
+    // what the relay is told the server has kept.
+    this.persistenceWriter = new PersistenceWriter(persistenceFile, snapshotView(), new ServerInfo() {
+
+      @Override
+      public Uuid id() {
+        return id;
+      }
+
+      @Override
+      public Secret secret() {
+        return secret;
+      }
+
+      @Override
+      public Uuid lastSeen() {
+        return snapshotSeen;
+      }
+
+      @Override
+      public VersionInfo version() {
+        return version;
+      }
+
+    }) {
+
+      @Override
+      public void write() throws IOException {
+        final Uuid seen = lastSeen;
+        snapshotSeen = seen;
+        super.write();
+        committed(seen);
+      }
+    };
+  }
+
+  public Server(final PersistenceFileSkeleton container, final Relay relay, final int shardCount, final File persistenceFile) {
+    this(container.serverInfo().id(), container.serverInfo().secret(), relay, shardCount, persistenceFile);
+    lastSeen = container.serverInfo().lastSeen();
+    relayCursor = lastSeen;
+    restored = true;
+    // XXX: version is not written!
+    adaptToModel(container);
+  }
+
+  // START
+  //
+  // Start writing snapshots and reading from the relay. Nothing is put on a
+  // lane before this, so a snapshot is fully loaded and the cursor to read
+  // from is set before the first poll goes out. Call it once, before handing
+  // the server any connections.
+  public void start() {
+
+    if (started) {
+      throw new IllegalStateException("The server was already started.");
+    }
+    started = true;
+
+    if (persistenceWriter != null) {
+      persistenceLane.scheduleIn(PersistenceWriterRunnable.WRITE_INTERVAL_MS,
+          new PersistenceWriterRunnable(persistenceWriter, persistenceLane));
+    }
+
+    if (restored) {
+      checkCommitted(lastSeen);
+    }
+
+    // Bundles come from the relay by long polling, on a lane of their own so
+    // that a poll held by the relay never holds up writes to it. A poll comes
+    // back as soon as there is anything after "relayCursor", with up to
+    // RELAY_POLL_MAX bundles, and the next poll only goes out once the shards
+    // have added all of them (see "addFromRelay"). That way a server that has
+    // fallen far behind catches up in large chunks, without ever queuing more
+    // than one chunk on the client lane and the shards.
+    relayReadLane.scheduleNow(new Runnable() {
       @Override
       public void run() {
+
+        final Runnable poll = this;
+        long waitMs = 0;
+
         try {
 
-          LOG.verbose("Reading update from relay...");
+          LOG.verbose("Polling the relay...");
+
+          final long started = System.currentTimeMillis();
+          final Relay.Page page =
+              relay.poll(id, secret, relayCursor, RELAY_POLL_MAX, RELAY_POLL_WAIT_MS, pollFilter());
+          lastRelayReadMs = System.currentTimeMillis();
+
+          // The cursor moves past the bundles the filter left out too, even
+          // when none passed.
+          final Collection<Relay.Bundle> bundles = page.bundles();
+          final Uuid next = page.next();
+          relayCursor = next;
+
+          if (!bundles.isEmpty()) {
+            final Runnable done = new Runnable() {
+              @Override
+              public void run() {
+                long newest = 0;
+                for (final Relay.Bundle bundle : bundles) {
+                  newest = Math.max(newest, bundle.time().inMs());
+                }
+                lastBundleMs = newest;
+                lastSeen = next;
+                relayReadLane.scheduleNow(poll);
+              }
+            };
+            timeline.scheduleNow(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  addFromRelay(bundles, done);
+                } catch (RuntimeException ex) {
+                  LOG.error(ex, "Failed to add bundles from the relay.");
+                  relayReadLane.scheduleNow(poll);
+                }
+              }
+            });
+            return;
+          }
+
+          lastSeen = next;
 
-          for (final Relay.Bundle bundle : relay.read(id, secret, lastSeen, 32)) {
-            onBundle(bundle);
-            lastSeen = bundle.id();
+          if (!relayCaughtUp) {
+            relayCaughtUp = true;
+            LOG.info("Caught up with the relay at %s. Leaving out own bundles from now on.", next);
           }
 
+          // A relay that answers an empty poll right away is not holding polls
+          // (or is not there at all), so fall back to polling it now and then.
+          if (lastRelayReadMs - started < RELAY_POLL_WAIT_MS / 2) {
+            waitMs = RELAY_REFRESH_MS;
+          }
+
+        } catch (RelayCursorException ex) {
+
+          // Start again from the relay's oldest bundle. Bundles already added
+          // are skipped by "addFromRelay" as their messages are already known.
+          if (ex.reason() == RelayCursorException.Reason.EVICTED) {
+            LOG.warning("Fell behind the relay - bundles after %s were evicted and are lost.", relayCursor);
+          } else {
+            LOG.warning("The relay does not know cursor %s - it may have restarted.", relayCursor);
+          }
+          relayCursor = Uuid.NULL;
+          relayCursorResets += 1;
+
         } catch (Exception ex) {
 
-          LOG.error(ex, "Failed to read update from relay.");
+          LOG.error(ex, "Failed to poll the relay.");
+          waitMs = RELAY_REFRESH_MS;
 
         }
 
-        timeline.scheduleIn(RELAY_REFRESH_MS, this);
+        relayReadLane.scheduleIn(waitMs, this);
       }
     });
   }
 
-  public Server(final Uuid id, final Secret secret, final Relay relay, final File persistenceFile) {
-    this(id, secret, relay);
+  // ADMIN
+  //
+  // What the admin HTTP server (see "AdminServer") reports for this server.
+  // Everything that lives on a timeline is asked of that timeline, so this is
+  // safe to use from the admin server's own thread.
+  public AdminServer.Target admin() {
+    return new AdminServer.Target() {
 
-    this.persistenceWriter = new PersistenceWriter(persistenceFile, view, new ServerInfo() {
+      @Override
+      public void metrics(PrometheusText out) {
+        writeRequestMetrics(out);
+        writeLaneMetrics(out);
+        writeStoreMetrics(out);
+        writePersistenceMetrics(out);
+        writeRelayMetrics(out);
+      }
 
       @Override
-      public Uuid id() {
-        return id;
+      public boolean live() {
+        // Alive means every timeline that owns state still gets through its
+        // queue. A stuck shard or client lane fails this.
+        if (!timeline.responds(LIVENESS_TIMEOUT_MS)) {
+          return false;
+        }
+        for (final Shard shard : shards) {
+          if (!shard.timeline.responds(LIVENESS_TIMEOUT_MS)) {
+            return false;
+          }
+        }
+        return true;
       }
 
       @Override
-      public Secret secret() {
-        return secret;
+      public boolean ready() {
+        // Not ready while the client lane is turning connections away.
+        return timeline.queued() < CLIENT_QUEUE_BOUND;
       }
 
       @Override
-      public Uuid lastSeen() {
-        return lastSeen;
+      public boolean snapshot() throws Exception {
+        if (persistenceWriter == null) {
+          return false;
+        }
+        // Written on the persistence lane like every other snapshot, so that
+        // two snapshots never write the file at the same time.
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean queued = persistenceLane.offerNow(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              persistenceWriter.write();
+            } catch (Exception ex) {
+              failure[0] = ex;
+            } finally {
+              done.countDown();
+            }
+          }
+        });
+        if (!queued) {
+          throw new IllegalStateException("Too many snapshots are already waiting to be written.");
+        }
+        done.await();
+        if (failure[0] != null) {
+          throw failure[0];
+        }
+        return true;
+      }
+    };
+  }
+
+  private void writeRequestMetrics(PrometheusText out) {
+
+    final ServerStats stats = metrics.snapshot();
+
+    out.family("chat_requests_total", "counter", "Requests handled, by network code.");
+    out.family("chat_request_errors_total", "counter",
+        "Requests that failed or were refused, by network code.");
+    out.family("chat_request_security_violations_total", "counter",
+        "Requests refused with ERR_SECURITY_VIOLATION, by network code.");
+    out.family("chat_request_bytes_in_total", "counter", "Bytes read from requests, by network code.");
+    out.family("chat_request_bytes_out_total", "counter", "Bytes written in responses, by network code.");
+    for (final Map.Entry<Integer, ServerStats.Command> entry : stats.commands.entrySet()) {
+      final String code = Integer.toString(entry.getKey());
+      final ServerStats.Command command = entry.getValue();
+      out.sample("chat_requests_total", command.requests, "code", code);
+      out.sample("chat_request_errors_total", command.errors, "code", code);
+      out.sample("chat_request_security_violations_total", command.securityViolations, "code", code);
+      out.sample("chat_request_bytes_in_total", command.bytesIn, "code", code);
+      out.sample("chat_request_bytes_out_total", command.bytesOut, "code", code);
+    }
+
+    out.family("chat_request_queue_wait_seconds", "summary",
+        "Time requests spent waiting for a timeline, by network code.");
+    for (final Map.Entry<Integer, ServerStats.Command> entry : stats.commands.entrySet()) {
+      out.summary("chat_request_queue_wait_seconds", entry.getValue().queueWait,
+          "code", Integer.toString(entry.getKey()));
+    }
+
+    out.family("chat_request_service_seconds", "summary",
+        "Time requests spent running, by network code.");
+    for (final Map.Entry<Integer, ServerStats.Command> entry : stats.commands.entrySet()) {
+      out.summary("chat_request_service_seconds", entry.getValue().service,
+          "code", Integer.toString(entry.getKey()));
+    }
+
+    out.family("chat_rejected_connections_total", "counter",
+        "Connections turned away because the client lane was full.");
+    out.sample("chat_rejected_connections_total", stats.rejectedConnections);
+  }
+
+  private void writeLaneMetrics(PrometheusText out) {
+    out.family("chat_timeline_queue_depth", "gauge", "Events waiting on each timeline.");
+    for (final Timeline lane : new Timeline[] { timeline, relayLane, relayReadLane, persistenceLane, housekeeping }) {
+      out.sample("chat_timeline_queue_depth", lane.queued(), "lane", lane.name());
+    }
+    for (final Shard shard : shards) {
+      out.sample("chat_timeline_queue_depth", shard.timeline.queued(), "lane", shard.timeline.name());
+    }
+    out.family("chat_timeline_rejected_total", "counter", "Events each timeline turned away because it was full.");
+    for (final Timeline lane : new Timeline[] { timeline, relayLane, relayReadLane, persistenceLane, housekeeping }) {
+      out.sample("chat_timeline_rejected_total", lane.rejected(), "lane", lane.name());
+    }
+    for (final Shard shard : shards) {
+      out.sample("chat_timeline_rejected_total", shard.timeline.rejected(), "lane", shard.timeline.name());
+    }
+  }
+
+  private void writeStoreMetrics(PrometheusText out) {
+
+    final long users = timeline.ask(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return model.userCount();
       }
+    });
+    out.family("chat_users", "gauge", "Users known to the server.");
+    out.sample("chat_users", users);
 
+    out.family("chat_conversations", "gauge", "Conversations in each shard.");
+    out.family("chat_resident_messages", "gauge", "Messages held in memory by each shard.");
+    out.family("chat_cold_conversations", "gauge", "Conversations paged out to disk by each shard.");
+    for (final long[] sizes : gather(allShards(), new ShardQuery<long[]>() {
       @Override
-      public VersionInfo version() {
-        return version;
+      public long[] run(Shard shard) {
+        return new long[] {
+          shard.index,
+          shard.model.conversationCount(),
+          shard.model.residentMessageCount(),
+          shard.model.coldConversationCount()
+        };
       }
+    })) {
+      final String shard = Long.toString(sizes[0]);
+      out.sample("chat_conversations", sizes[1], "shard", shard);
+      out.sample("chat_resident_messages", sizes[2], "shard", shard);
+      out.sample("chat_cold_conversations", sizes[3], "shard", shard);
+    }
+  }
+
+  private void writePersistenceMetrics(PrometheusText out) {
+    if (persistenceWriter == null) {
+      return;
+    }
+    out.family("chat_snapshots_total", "counter", "Snapshots attempted.");
+    out.sample("chat_snapshots_total", persistenceWriter.writes());
+    out.family("chat_snapshot_failures_total", "counter", "Snapshots that failed.");
+    out.sample("chat_snapshot_failures_total", persistenceWriter.failures());
+    out.family("chat_snapshot_duration_seconds", "gauge", "How long the last snapshot took.");
+    out.sample("chat_snapshot_duration_seconds",
+        PrometheusText.seconds(persistenceWriter.lastDurationNanos()));
+    out.family("chat_snapshot_bytes", "gauge", "Size of the last snapshot written.");
+    out.sample("chat_snapshot_bytes", persistenceWriter.lastBytes());
+  }
+
+  private void writeRelayMetrics(PrometheusText out) {
+    final long now = System.currentTimeMillis();
+    final long read = lastRelayReadMs;
+    final long bundle = lastBundleMs;
+    out.family("chat_relay_last_read_age_seconds", "gauge",
+        "Time since the relay was last read from successfully.");
+    out.sample("chat_relay_last_read_age_seconds", read == 0 ? Double.NaN : (now - read) / 1000.0);
+    out.family("chat_relay_lag_seconds", "gauge",
+        "Age of the newest bundle from the relay when it was added.");
+    out.sample("chat_relay_lag_seconds", bundle == 0 ? Double.NaN : (now - bundle) / 1000.0);
+    out.family("chat_relay_cursor_resets_total", "counter",
+        "Times the relay could not continue from the last bundle read and reading started over.");
+    out.sample("chat_relay_cursor_resets_total", relayCursorResets);
+    out.family("chat_relay_bundles_total", "counter",
+        "Bundles read from the relay, by whether they were added or their message was already known.");
+    out.sample("chat_relay_bundles_total", relayBundlesAdded.get(), "outcome", "added");
+    out.sample("chat_relay_bundles_total", relayBundlesKnown.get(), "outcome", "known");
+    out.family("chat_relay_commits_total", "counter",
+        "Cursors of snapshots committed to the relay, by whether the relay took them.");
+    out.sample("chat_relay_commits_total", relayCommits.get(), "outcome", "committed");
+    out.sample("chat_relay_commits_total", relayCommitFailures.get(), "outcome", "failed");
+    out.family("chat_relay_outbox_size", "gauge", "Messages waiting to be written to the relay.");
+    out.sample("chat_relay_outbox_size", relayOutbox.size());
+    out.family("chat_relay_outbox_messages_total", "counter", "Messages that left the relay outbox, by outcome.");
+    out.sample("chat_relay_outbox_messages_total", relayOutbox.sent(), "outcome", "sent");
+    out.sample("chat_relay_outbox_messages_total", relayOutbox.dropped(), "outcome", "dropped");
+    out.family("chat_relay_outbox_batches_total", "counter", "Batch writes sent to the relay.");
+    out.sample("chat_relay_outbox_batches_total", relayOutbox.batches());
+    out.family("chat_relay_outbox_retries_total", "counter", "Batch writes that failed and were tried again.");
+    out.sample("chat_relay_outbox_retries_total", relayOutbox.retries());
+    out.family("chat_relay_outbox_refusals_total", "counter",
+        "Messages the relay refused. They are tried again, so one message can count more than once.");
+    out.sample("chat_relay_outbox_refusals_total", relayOutbox.refused());
+  }
 
+  // COMMITTED
+  //
+  // Tell the relay that a snapshot holding everything up to "seen" is on
+  // disk. Committing any further ahead - say, as soon as bundles are added -
+  // would leave the relay thinking the server kept bundles that a crash before
+  // the next snapshot loses.
+  private void committed(final Uuid seen) {
+    final boolean queued = relayLane.offerNow(new Runnable() {
+      @Override
+      public void run() {
+        if (Uuid.equals(seen, relayCommitted)) {
+          return;
+        }
+        if (relay.commit(id, secret, seen)) {
+          relayCommitted = seen;
+          relayCommits.incrementAndGet();
+        } else {
+          relayCommitFailures.incrementAndGet();
+          LOG.warning("The relay did not take %s as the committed cursor.", seen);
+        }
+      }
     });
+    if (!queued) {
+      relayCommitFailures.incrementAndGet();
+      LOG.warning("The relay lane is full. Not committing %s.", seen);
+    }
+  }
 
-    this.timeline.scheduleIn(PersistenceWriterRunnable.WRITE_INTERVAL_MS,
-        new PersistenceWriterRunnable(persistenceWriter, timeline));
+  // CHECK COMMITTED
+  //
+  // Compare the cursor the relay has for this team with the one the snapshot
+  // was loaded with. Reading always carries on from the snapshot's, as that
+  // is what the server holds - "start" only polls once it is set. This only
+  // says so if they differ, which means that a commit never reached the relay
+  // or that the relay lost its cursors.
+  private void checkCommitted(final Uuid loaded) {
+    relayLane.scheduleNow(new Runnable() {
+      @Override
+      public void run() {
+        final Uuid committed = relay.committed(id, secret);
+        if (committed == null) {
+          LOG.warning("Could not get the committed cursor from the relay.");
+        } else if (Uuid.equals(committed, loaded)) {
+          relayCommitted = committed;
+          LOG.info("Continuing from %s, as committed to the relay.", loaded);
+        } else {
+          LOG.warning("The relay has %s as the committed cursor but the snapshot has %s. Continuing from the snapshot.",
+                      committed, loaded);
+        }
+      }
+    });
   }
 
-  public Server(final PersistenceFileSkeleton container, final Relay relay, final File persistenceFile) {
-    this(container.serverInfo().id(), container.serverInfo().secret(), relay, persistenceFile);
-    lastSeen = container.serverInfo().lastSeen();
-    // XXX: version is not written!
-    adaptToModel(container);
+  // POLL FILTER
+  //
+  // The filter for the next poll. Until the server has caught up with the
+  // relay (see "relayCaughtUp") its own team is let through too.
+  private RelayFilter pollFilter() {
+    final RelayFilter filter = relayFilter;
+    if (relayCaughtUp || !filter.excludeOwn()) {
+      return filter;
+    }
+    final Collection<Uuid> teams = new ArrayList<>(filter.teams());
+    if (!teams.isEmpty()) {
+      teams.add(id);
+    }
+    return new RelayFilter(false, teams, filter.conversations());
+  }
+
+  // FILTER RELAY
+  //
+  // Only take bundles from the relay for these teams and conversations. An
+  // empty collection lets them all through. Once caught up, the server's own
+  // bundles are left out. Takes effect from the next poll.
+  public void filterRelay(Collection<Uuid> teams, Collection<Uuid> conversations) {
+    relayFilter = new RelayFilter(true, teams, conversations);
+    LOG.info("Relay filter set to %s", relayFilter);
   }
 
+  // ENABLE TIERING
+  //
+  // Keep at most "maxResidentMessages" messages in memory and page out any
+  // conversation that has not been used in "idleMs" milliseconds. The messages of
+  // cold conversations are written to segment files in "directory". With more
+  // than one shard, every shard gets its own sub-directory and an equal part of
+  // the budget.
+  public void enableTiering(final File directory, final int maxResidentMessages, final long idleMs) {
+    for (final Shard shard : shards) {
+      final File shardDirectory = shards.length == 1 ?
+                                  directory :
+                                  new File(directory, "shard-" + shard.index);
+      final int shardBudget = Math.max(1, maxResidentMessages / shards.length);
+      shard.timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          if (!shardDirectory.isDirectory() && !shardDirectory.mkdirs()) {
+            LOG.error("Failed to create segment directory %s. Tiering is off for shard %d.",
+                shardDirectory, shard.index);
+            return;
+          }
+          shard.model.enableTiering(shardDirectory, shardBudget);
+          LOG.info("Tiering enabled (shard=%d directory=%s messages=%d idle=%dms)",
+              shard.index, shardDirectory, shardBudget, idleMs);
+        }
+      });
+      // The timer lives on the housekeeping lane so that a busy shard does not
+      // keep pushing its own eviction back. Only the eviction itself runs on
+      // the shard.
+      housekeeping.scheduleIn(TIER_EVICT_INTERVAL_MS, new Runnable() {
+        @Override
+        public void run() {
+          shard.timeline.scheduleNow(new Runnable() {
+            @Override
+            public void run() {
+              shard.model.evictCold(idleMs);
+            }
+          });
+          housekeeping.scheduleIn(TIER_EVICT_INTERVAL_MS, this);
+        }
+      });
+    }
+  }
+
+  // Everything is loaded with the models' bulk adds, so a big snapshot is
+  // sorted and merged once per store instead of inserted one value at a time.
   private void adaptToModel(PersistenceFileSkeleton container) {
-    for (User user : container.users().values()) {
-      model.add(user);
+
+    final Collection<User> users = container.users().values();
+    model.addUsers(users);
+    for (final Shard shard : shards) {
+      shard.model.addUsers(users);
+    }
+
+    final Map<Shard, Collection<ConversationHeader>> conversations = new HashMap<>();
+    final Map<Shard, Map<Uuid, Collection<Message>>> messages = new HashMap<>();
+    for (final Shard shard : shards) {
+      conversations.put(shard, new ArrayList<ConversationHeader>());
+      messages.put(shard, new HashMap<Uuid, Collection<Message>>());
     }
 
     Map<Uuid, ConversationPayload> payloads = container.conversationPayloads();
     for (ConversationHeader conv : container.conversationHeaders().values()) {
-      ConversationPayload payload = payloads.get(conv.id);
-      model.add(conv, payload);
+      conversations.get(shardFor(conv.id)).add(conv);
     }
 
-    for (Message msg : container.messages().values()) {
-      model.add(msg);
+    // Messages do not know their conversation, so follow each conversation's
+    // chain to find out which shard each message belongs in.
+    final Map<Uuid, Message> unplaced = new HashMap<>(container.messages());
+    for (final ConversationPayload payload : payloads.values()) {
+      final Collection<Message> inConversation = new ArrayList<>();
+      for (Message msg = unplaced.remove(payload.firstMessage);
+           msg != null;
+           msg = unplaced.remove(msg.next)) {
+        inConversation.add(msg);
+      }
+      messages.get(shardFor(payload.id)).put(payload.id, inConversation);
+    }
+
+    // Anything left over is not in any conversation. Keep it so that it is not
+    // dropped from the next snapshot.
+    for (Message msg : unplaced.values()) {
+      LOG.warning("Message %s is not in any conversation", msg.id);
+    }
+    messages.get(shards[0]).put(Uuid.NULL, unplaced.values());
+
+    for (final Shard shard : shards) {
+      shard.model.addConversations(conversations.get(shard), payloads);
+      shard.model.addMessages(messages.get(shard));
+    }
+  }
+
+  // STOP
+  //
+  // Stop every lane and shard and wait for them to finish. Work still queued
+  // is dropped. Only for tests - a running server is stopped with its process.
+  void stop() {
+    final Collection<Timeline> lanes = new ArrayList<>(Arrays.asList(
+        timeline, relayLane, relayReadLane, persistenceLane, housekeeping));
+    for (final Shard shard : shards) {
+      lanes.add(shard.timeline);
+    }
+    for (final Timeline lane : lanes) {
+      lane.stop();
+    }
+    for (final Timeline lane : lanes) {
+      lane.join();
     }
   }
 
   public void handleConnection(final Connection connection) {
-    timeline.scheduleNow(new Runnable() {
+    final Metrics.Request request = metrics.request();
+    final boolean accepted = timeline.offerNow(new Runnable() {
       @Override
       public void run() {
+
+        request.dequeued();
+
+        int type = NetworkCode.NO_MESSAGE;
+        boolean failed = false;
+        boolean handedOff = false;
+
         try {
 
           LOG.info("Handling connection...");
 
-          final int type = Serializers.INTEGER.read(connection.in());
-          final Command command = commands.get(type);
-          if (command == null) {
+          // Buffered so that routes can look ahead and then reset.
+          final InputStream in = new BufferedInputStream(request.in(connection.in()));
+          final OutputStream out = request.out(connection.out());
+
+          final int code = Serializers.INTEGER.read(in);
+          final Command command = commands.get(code);
+          final ShardCommand shardCommand = shardCommands.get(code);
+          if (command != null) {
+            type = code;
+            command.onMessage(in, out);
+            LOG.info("Connection accepted");
+          } else if (shardCommand != null) {
+            type = code;
+            in.mark(ROUTE_READ_LIMIT);
+            final Uuid key = routes.get(type).read(in);
+            in.reset();
+            handOff(key == null ? nextShard() : shardFor(key), shardCommand, type, request, in, out, connection);
+            handedOff = true;
+          } else {
             // The message type cannot be handled so return a dummy
             // message.
-            Serializers.INTEGER.write(connection.out(), NetworkCode.NO_MESSAGE);
+            Serializers.INTEGER.write(out, NetworkCode.NO_MESSAGE);
             LOG.info("Connection rejected");
-          } else {
-            command.onMessage(connection.in(), connection.out());
-            LOG.info("Connection accepted");
           }
         } catch (Exception ex) {
 
           LOG.error(ex, "Exception while handling connection.");
+          failed = true;
 
         }
 
+        if (!handedOff) {
+          request.finish(type, failed);
+          close(connection);
+        }
+      }
+    });
+
+    // Shed load rather than queue up more work than the client lane can get
+    // through. The client sees the connection close and can try again.
+    if (!accepted) {
+      LOG.warning("Client lane is full (%d waiting). Connection rejected.", timeline.queued());
+      metrics.rejected();
+      close(connection);
+    }
+  }
+
+  private void handOff(final Shard shard,
+                       final ShardCommand command,
+                       final int type,
+                       final Metrics.Request request,
+                       final InputStream in,
+                       final OutputStream out,
+                       final Connection connection) {
+    request.enqueued();
+    final boolean accepted = shard.timeline.offerNow(new Runnable() {
+      @Override
+      public void run() {
+        request.dequeued();
+        boolean failed = false;
         try {
-          connection.close();
+          command.onMessage(shard, in, out);
+          LOG.info("Connection accepted (shard=%d)", shard.index);
         } catch (Exception ex) {
-          LOG.error(ex, "Exception while closing connection.");
+          LOG.error(ex, "Exception while handling connection.");
+          failed = true;
         }
+        request.finish(type, failed);
+        close(connection);
       }
     });
+
+    // Like the client lane, a shard that is too far behind sheds new requests.
+    if (!accepted) {
+      LOG.warning("Shard %d is full (%d waiting). Connection rejected.", shard.index, shard.timeline.queued());
+      metrics.rejected();
+      request.dequeued();
+      request.finish(type, true);
+      close(connection);
+    }
   }
 
-  private void onBundle(Relay.Bundle bundle) {
+  private static void close(Connection connection) {
+    try {
+      connection.close();
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while closing connection.");
+    }
+  }
 
-    final Relay.Bundle.Component relayUser = bundle.user();
-    final Relay.Bundle.Component relayConversation = bundle.conversation();
-    final Relay.Bundle.Component relayMessage = bundle.user();
+  private Shard shardFor(Uuid conversation) {
+    return shards[Shard.indexOf(conversation, shards.length)];
+  }
 
-    User user = model.userById().first(relayUser.id());
+  private Shard nextShard() {
+    nextShard = (nextShard + 1) % shards.length;
+    return shards[nextShard];
+  }
 
+  private Collection<Shard> allShards() {
+    final Collection<Shard> all = new ArrayList<>();
+    for (final Shard shard : shards) {
+      all.add(shard);
+    }
+    return all;
+  }
+
+  // Give every shard a copy of a user that was just created.
+  private void replicate(final User user) {
     if (user == null) {
-      user = controller.newUser(relayUser.id(), relayUser.text(), relayUser.time());
+      return;
+    }
+    for (final Shard shard : shards) {
+      shard.timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          shard.replicate(user);
+        }
+      });
     }
+  }
 
-    ConversationHeader conversation = model.conversationById().first(relayConversation.id());
+  // GATHER
+  //
+  // Run "query" on each of the given shards and wait for all of them to finish.
+  // This blocks the calling timeline, so it must never be called from a shard.
+  // Shards never wait on anything, so this cannot deadlock.
+  private <T> Collection<T> gather(Collection<Shard> targets, final ShardQuery<T> query) {
 
-    if (conversation == null) {
+    final Collection<T> results = Collections.synchronizedList(new ArrayList<T>());
+    final CountDownLatch done = new CountDownLatch(targets.size());
 
-      // As the relay does not tell us who made the conversation - the
-      // first person who
-      // has a message in the conversation will get ownership over this
-      // server's copy
-      // of the conversation.
-      conversation = controller.newConversation(relayConversation.id(), relayConversation.text(), user.id,
-          relayConversation.time());
+    for (final Shard shard : targets) {
+      shard.timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            results.add(query.run(shard));
+          } finally {
+            done.countDown();
+          }
+        }
+      });
     }
 
-    Message message = model.messageById().first(relayMessage.id());
-
-    if (message == null) {
-      message = controller.newMessage(relayMessage.id(), user.id, conversation.id, relayMessage.text(),
-          relayMessage.time());
+    try {
+      done.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for shards", ex);
     }
+
+    return results;
   }
 
-  private Runnable createSendToRelayEvent(final Uuid userId, final Uuid conversationId, final Uuid messageId) {
-    return new Runnable() {
+  // The view that snapshots are written from. Users come from the server's own
+  // model and everything else is collected from the shards.
+  private OmniView snapshotView() {
+    return new OmniView() {
+
       @Override
-      public void run() {
-        final User user = view.findUser(userId);
-        final ConversationHeader conversation = view.findConversation(conversationId);
-        final Message message = view.findMessage(messageId);
-        relay.write(id, secret, relay.pack(user.id, user.name, user.creation),
-            relay.pack(conversation.id, conversation.title, conversation.creation),
-            relay.pack(message.id, message.content, message.creation));
+      public Collection<User> getUsers() {
+        // Snapshots are taken on the persistence lane, but the users belong
+        // to the client lane.
+        return timeline.ask(new Callable<Collection<User>>() {
+          @Override
+          public Collection<User> call() {
+            return new ArrayList<>(view.getUsers());
+          }
+        });
+      }
+
+      @Override
+      public Collection<ConversationHeader> getConversations() {
+        final Collection<ConversationHeader> all = new ArrayList<>();
+        for (final Collection<ConversationHeader> part : gather(allShards(), new ShardQuery<Collection<ConversationHeader>>() {
+          @Override
+          public Collection<ConversationHeader> run(Shard shard) {
+            return shard.view.getConversations();
+          }
+        })) {
+          all.addAll(part);
+        }
+        return all;
+      }
+
+      @Override
+      public Collection<ConversationPayload> getConversationPayloads() {
+        final Collection<ConversationPayload> all = new ArrayList<>();
+        for (final Collection<ConversationPayload> part : gather(allShards(), new ShardQuery<Collection<ConversationPayload>>() {
+          @Override
+          public Collection<ConversationPayload> run(Shard shard) {
+            return shard.view.streamConversationPayloads().parallel()
+                .map(Shard::copy)
+                .collect(Collectors.toList());
+          }
+        })) {
+          all.addAll(part);
+        }
+        return all;
+      }
+
+      @Override
+      public Collection<Message> getMessages() {
+        final Collection<Message> all = new ArrayList<>();
+        for (final Collection<Message> part : gather(allShards(), new ShardQuery<Collection<Message>>() {
+          @Override
+          public Collection<Message> run(Shard shard) {
+            // The shard waits here while the fork-join pool copies its
+            // messages, so nothing changes under the scan.
+            return shard.view.streamMessages().parallel()
+                .map(Shard::copy)
+                .collect(Collectors.toList());
+          }
+        })) {
+          all.addAll(part);
+        }
+        return all;
       }
     };
   }
+
+  // ADD FROM RELAY
+  //
+  // Add a page of bundles from the relay. This runs on the client lane, which
+  // owns the users: the page's users are deduplicated and the new ones added
+  // with one bulk add. Then every shard with bundles in the page (or every
+  // shard, if there are new users) gets a single task that adds its part of
+  // the page, so shards work through a page in parallel. "done" runs on the
+  // last shard to finish.
+  private void addFromRelay(Collection<Relay.Bundle> bundles, final Runnable done) {
+
+    final Map<Uuid, User> newUsers = new LinkedHashMap<>();
+    final Map<Shard, Collection<Relay.Bundle>> byShard = new HashMap<>();
+
+    for (final Relay.Bundle bundle : bundles) {
+
+      final Relay.Bundle.Component user = bundle.user();
+      if (!newUsers.containsKey(user.id()) && model.userById().first(user.id()) == null) {
+        newUsers.put(user.id(), new User(user.id(), user.text(), user.time()));
+      }
+
+      final Shard shard = shardFor(bundle.conversation().id());
+      if (!byShard.containsKey(shard)) {
+        byShard.put(shard, new ArrayList<Relay.Bundle>());
+      }
+      byShard.get(shard).add(bundle);
+    }
+
+    model.addUsers(newUsers.values());
+    if (!newUsers.isEmpty()) {
+      LOG.info("Added %d users from the relay.", newUsers.size());
+    }
+
+    final Collection<User> users = newUsers.values();
+    final Collection<Shard> targets = users.isEmpty() ? byShard.keySet() : Arrays.asList(shards);
+    final AtomicInteger remaining = new AtomicInteger(targets.size());
+
+    for (final Shard shard : targets) {
+      final Collection<Relay.Bundle> mine =
+          byShard.containsKey(shard) ? byShard.get(shard) : Collections.<Relay.Bundle>emptyList();
+      shard.timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            final int added = shard.addFromRelay(users, mine);
+            relayBundlesAdded.addAndGet(added);
+            relayBundlesKnown.addAndGet(mine.size() - added);
+            if (added > 0) {
+              LOG.info("Added %d messages from the relay to shard %d.", added, shard.index);
+            }
+          } finally {
+            if (remaining.decrementAndGet() == 0) {
+              done.run();
+            }
+          }
+        }
+      });
+    }
+  }
+
+  // The components are packed right away, on the shard that made the message,
+  // and only the write to the relay happens later, in a batch, on the relay
+  // lane.
+  private void sendToRelay(User user, ConversationHeader conversation, Message message) {
+    relayOutbox.add(relay.pack(user.id, user.name, user.creation),
+                    relay.pack(conversation.id, conversation.title, conversation.creation),
+                    relay.pack(message.id, message.content(), message.creation));
+  }
 }
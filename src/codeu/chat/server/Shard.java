@@ -0,0 +1,227 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.RandomUuidGenerator;
+import codeu.chat.common.Relay;
+import codeu.chat.common.User;
+import codeu.chat.util.Timeline;
+import codeu.chat.util.Uuid;
+
+// SHARD
+//
+// One partition of the server's conversations. A conversation and all of its
+// messages live in exactly one shard, picked by hashing the conversation id.
+// Every shard has its own model and its own timeline, and its model is only
+// ever touched from that timeline, so shards never need to lock anything and
+// requests for different shards run on different cores.
+//
+// Users are not partitioned. Every shard keeps a copy of every user so that
+// permission checks and message authors can be resolved without leaving the
+// shard.
+final class Shard {
+
+  private static final Comparator<Message> BY_CREATION = new Comparator<Message>() {
+    @Override
+    public int compare(Message a, Message b) {
+      return a.creation.compareTo(b.creation);
+    }
+  };
+
+  // How many requests may wait for a shard before new ones are turned away.
+  // See "Server.handOff".
+  static final int QUEUE_BOUND = 1024;
+
+  final int index;
+  final int count;
+
+  final Model model = new Model();
+  final View view = new View(model);
+  final Controller controller;
+  final Timeline timeline;
+
+  Shard(Uuid serverId, final int index, final int count) {
+
+    this.index = index;
+    this.count = count;
+    this.timeline = new Timeline("shard-" + index, 1, QUEUE_BOUND);
+
+    // Every id this shard creates (conversations and messages) hashes back to
+    // this shard. That way new conversations land where they belong, and ids
+    // made by different shards can never collide, even though each shard only
+    // checks its own model for ids in use. Each shard needs its own seed or
+    // shards created in the same instant would make the same ids.
+    final Uuid.Generator random =
+        new RandomUuidGenerator(serverId, System.nanoTime() * 31 + index);
+    this.controller = new Controller(model, new Uuid.Generator() {
+      @Override
+      public Uuid make() {
+        Uuid candidate;
+        for (candidate = random.make();
+             indexOf(candidate, count) != index;
+             candidate = random.make()) {
+          // A random id belongs to this shard one time in "count", so this
+          // takes "count" tries on average.
+        }
+        return candidate;
+      }
+    });
+  }
+
+  // INDEX OF
+  //
+  // The shard that owns the conversation (or message) with the given id. The
+  // id is mixed before taking the remainder so that ids that only differ in
+  // their high bits still spread out.
+  static int indexOf(Uuid id, int count) {
+    long hash = 0;
+    for (Uuid link = id; link != null; link = link.root()) {
+      hash = hash * 31 + (link.id() & 0xFFFFFFFFL);
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return (int) Math.floorMod(hash, (long) count);
+  }
+
+  // Add a user that was created somewhere else. Users are shared between all
+  // shards, so this is expected to be called for every shard.
+  void replicate(User user) {
+    if (model.userById().first(user.id) == null) {
+      model.add(user);
+    }
+  }
+
+  // ADD FROM RELAY
+  //
+  // Add a page of bundles from the relay with the model's bulk adds. "users"
+  // are users that are new to the server; they go to every shard, whether or
+  // not it has any of the bundles. The relay does not say who made a
+  // conversation, so the first bundle in a new conversation makes its author
+  // the owner. The new messages of each conversation are sorted by creation
+  // time and linked in after its current last message. A bundle is skipped if
+  // its message is already known, or if one of its ids is taken by something
+  // else. Returns how many messages were added.
+  int addFromRelay(Collection<User> users, Collection<Relay.Bundle> bundles) {
+
+    final Collection<User> newUsers = new ArrayList<>(users.size());
+    for (final User user : users) {
+      if (model.userById().first(user.id) == null) {
+        newUsers.add(user);
+      }
+    }
+    model.addUsers(newUsers);
+
+    final Map<Uuid, ConversationHeader> newConversations = new LinkedHashMap<>();
+    final Map<Uuid, List<Message>> newMessages = new LinkedHashMap<>();
+    final Set<Uuid> inBatch = new HashSet<>();
+
+    for (final Relay.Bundle bundle : bundles) {
+
+      final Uuid author = bundle.user().id();
+      final Relay.Bundle.Component conversation = bundle.conversation();
+      final Relay.Bundle.Component message = bundle.message();
+
+      if (model.userById().first(author) == null ||
+          inBatch.contains(message.id()) ||
+          isIdInUse(message.id())) {
+        continue;
+      }
+
+      if (!newConversations.containsKey(conversation.id()) &&
+          model.conversationById().first(conversation.id()) == null) {
+        if (inBatch.contains(conversation.id()) || isIdInUse(conversation.id())) {
+          continue;
+        }
+        newConversations.put(conversation.id(), new ConversationHeader(
+            conversation.id(), author, conversation.time(), conversation.text()));
+        newMessages.put(conversation.id(), new ArrayList<Message>());
+      } else if (!newMessages.containsKey(conversation.id())) {
+        newMessages.put(conversation.id(), new ArrayList<Message>());
+      }
+
+      inBatch.add(message.id());
+      newMessages.get(conversation.id()).add(new Message(
+          message.id(), Uuid.NULL, Uuid.NULL, message.time(), author, message.text()));
+    }
+
+    model.addConversations(newConversations.values(), Collections.<Uuid, ConversationPayload>emptyMap());
+    model.addMessages(newMessages);
+
+    // Link the messages only now that they are in the model, as adding them
+    // is what pages a cold conversation back in.
+    int added = 0;
+    for (final Map.Entry<Uuid, List<Message>> group : newMessages.entrySet()) {
+
+      final List<Message> messages = group.getValue();
+      Collections.sort(messages, BY_CREATION);
+
+      final ConversationPayload payload = model.conversationPayloadById().first(group.getKey());
+      Message last = Uuid.equals(payload.lastMessage, Uuid.NULL) ?
+          null :
+          model.messageById().first(payload.lastMessage);
+
+      for (final Message message : messages) {
+        if (last == null) {
+          payload.firstMessage = message.id;
+        } else {
+          last.next = message.id;
+        }
+        last = message;
+      }
+
+      payload.lastMessage = last.id;
+      added += messages.size();
+    }
+
+    return added;
+  }
+
+  private boolean isIdInUse(Uuid id) {
+    return model.messageById().first(id) != null ||
+           model.conversationById().first(id) != null ||
+           model.userById().first(id) != null;
+  }
+
+  // Copies of model objects that are safe to hand to another thread. Message
+  // bodies live in this shard's text arena and can be freed or reused as soon
+  // as the shard moves on, and payloads are updated as messages come in.
+
+  static Message copy(Message message) {
+    return new Message(message.id,
+                       message.next,
+                       message.previous,
+                       message.creation,
+                       message.author,
+                       message.content());
+  }
+
+  static ConversationPayload copy(ConversationPayload payload) {
+    return new ConversationPayload(payload.id, payload.firstMessage, payload.lastMessage);
+  }
+}
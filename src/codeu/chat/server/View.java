@@ -17,6 +17,8 @@ package codeu.chat.server;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
 
 import codeu.chat.common.BasicView;
 import codeu.chat.common.ConversationHeader;
@@ -28,7 +30,9 @@ import codeu.chat.common.User;
 import codeu.chat.common.VersionInfo;
 import codeu.chat.util.Logger;
 import codeu.chat.util.ServerInfo;
+import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.store.RankedStoreAccessor;
 import codeu.chat.util.store.StoreAccessor;
 
 public final class View implements BasicView, SinglesView, OmniView {
@@ -68,6 +72,29 @@ public final class View implements BasicView, SinglesView, OmniView {
     return all(model.messageById());
   }
 
+  // The streams read straight from the model. Like everything else that reads
+  // the model, they must be consumed on the model's timeline.
+
+  @Override
+  public Stream<User> streamUsers() {
+    return model.userById().stream();
+  }
+
+  @Override
+  public Stream<ConversationHeader> streamConversations() {
+    return model.conversationById().stream();
+  }
+
+  @Override
+  public Stream<ConversationPayload> streamConversationPayloads() {
+    return model.conversationPayloadById().stream();
+  }
+
+  @Override
+  public Stream<Message> streamMessages() {
+    return model.messageById().stream();
+  }
+
   @Override
   public Collection<Message> getMessages(Collection<Uuid> ids) {
     return intersect(model.messageById(), ids);
@@ -88,6 +115,42 @@ public final class View implements BasicView, SinglesView, OmniView {
     return model.messageById().first(id);
   }
 
+  // COUNT MESSAGES
+  //
+  // How many messages are in the conversation. This comes from the counts kept
+  // by the store, so it does not walk the conversation.
+  public long countMessages(Uuid conversation) {
+    final RankedStoreAccessor<Time, Message> messages = model.messagesIn(conversation);
+    return messages == null ? 0 : messages.size();
+  }
+
+  // COUNT MESSAGES SINCE
+  //
+  // How many messages in the conversation were created at or after "since" -
+  // for example the number of unread messages since a user last looked.
+  public long countMessagesSince(Uuid conversation, Time since) {
+    final RankedStoreAccessor<Time, Message> messages = model.messagesIn(conversation);
+    return messages == null ? 0 : messages.size() - messages.rank(since);
+  }
+
+  // GET MESSAGE PAGE
+  //
+  // Up to "count" messages of the conversation, oldest first, starting with the
+  // message at position "first" (counting from zero).
+  public List<Message> getMessagePage(Uuid conversation, long first, int count) {
+
+    final List<Message> page = new ArrayList<>();
+    final RankedStoreAccessor<Time, Message> messages = model.messagesIn(conversation);
+
+    if (messages != null) {
+      for (long position = first; position < first + count && position < messages.size(); position++) {
+        page.add(messages.select(position));
+      }
+    }
+
+    return page;
+  }
+
   private static <S, T> Collection<T> all(StoreAccessor<S, T> store) {
 
     final Collection<T> all = new ArrayList<>();
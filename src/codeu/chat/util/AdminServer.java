@@ -0,0 +1,175 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// ADMIN SERVER
+//
+// A small HTTP listener for operations tooling. It only listens on the loopback
+// interface and serves:
+//
+//   GET  /metrics   - metrics in the Prometheus text format
+//   GET  /healthz   - 200 if the process is alive and its timelines are
+//                     making progress, 503 if not
+//   GET  /readyz    - 200 if the process is ready to take traffic, 503 if not
+//   POST /snapshot  - write a snapshot right now. 404 if there is nothing to
+//                     snapshot, 500 if writing it failed
+//
+// What each of those means is up to the "Target". Requests are handled one at
+// a time on the admin server's own timeline, so a slow scrape never holds up
+// anything else.
+public final class AdminServer {
+
+  private final static Logger.Log LOG = Logger.newLog(AdminServer.class);
+
+  // TARGET
+  //
+  // The process being administered. All methods are called from the admin
+  // server's timeline and may block.
+  public interface Target {
+
+    void metrics(PrometheusText out);
+
+    boolean live();
+
+    boolean ready();
+
+    // Returns false if this target has nothing to snapshot. Throws if writing
+    // the snapshot failed.
+    boolean snapshot() throws Exception;
+
+  }
+
+  private final HttpServer http;
+  private final Timeline timeline = new Timeline("admin", 1, Integer.MAX_VALUE);
+
+  public AdminServer(int port, final Target target) throws IOException {
+
+    http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+    http.setExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        timeline.scheduleNow(command);
+      }
+    });
+
+    http.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (!allow(exchange, "GET")) {
+          return;
+        }
+        final PrometheusText text = new PrometheusText();
+        try {
+          target.metrics(text);
+        } catch (Exception ex) {
+          LOG.error(ex, "Failed to collect metrics.");
+          respond(exchange, 500, "failed to collect metrics\n");
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", PrometheusText.CONTENT_TYPE);
+        respond(exchange, 200, text.toString());
+      }
+    });
+
+    http.createContext("/healthz", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (allow(exchange, "GET")) {
+          check(exchange, target.live());
+        }
+      }
+    });
+
+    http.createContext("/readyz", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (allow(exchange, "GET")) {
+          check(exchange, target.ready());
+        }
+      }
+    });
+
+    http.createContext("/snapshot", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (!allow(exchange, "POST")) {
+          return;
+        }
+        try {
+          if (target.snapshot()) {
+            respond(exchange, 200, "snapshot written\n");
+          } else {
+            respond(exchange, 404, "nothing to snapshot\n");
+          }
+        } catch (Exception ex) {
+          LOG.error(ex, "Snapshot requested over HTTP failed.");
+          respond(exchange, 500, "snapshot failed: " + ex + "\n");
+        }
+      }
+    });
+  }
+
+  public void start() {
+    http.start();
+    LOG.info("Admin server listening on %s", http.getAddress());
+  }
+
+  // The port being listened on. Useful when the server was created with port 0.
+  public int port() {
+    return http.getAddress().getPort();
+  }
+
+  public void stop() {
+    http.stop(0);
+    timeline.stop();
+    timeline.join();
+  }
+
+  private static boolean allow(HttpExchange exchange, String method) throws IOException {
+    if (method.equals(exchange.getRequestMethod())) {
+      return true;
+    }
+    exchange.getResponseHeaders().set("Allow", method);
+    respond(exchange, 405, "method not allowed\n");
+    return false;
+  }
+
+  private static void check(HttpExchange exchange, boolean ok) throws IOException {
+    respond(exchange, ok ? 200 : 503, ok ? "ok\n" : "not ok\n");
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    }
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (final OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
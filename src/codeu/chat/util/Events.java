@@ -0,0 +1,115 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// EVENTS
+//
+// Flight Recorder events for the things that matter when looking into a
+// latency spike: requests, snapshots, relay round trips and timeline tasks.
+// They cost next to nothing until a recording is started, for example with:
+//
+//   jcmd <pid> JFR.start name=chat duration=60s filename=chat.jfr
+//
+// Every event is timed from "begin" to "commit" and none of them record a stack
+// trace, as the thread and the event itself say where it came from.
+//
+// "jdk.jfr" is why the project needs Java 11 or later (see "build.py").
+public final class Events {
+
+  private Events() { }
+
+  @Name("codeu.chat.Request")
+  @Label("Request")
+  @Description("A network request handled by the server, from the moment it was read to when it finished.")
+  @Category({ "CodeU Chat", "Server" })
+  @StackTrace(false)
+  public static final class Request extends Event {
+
+    @Label("Network Code")
+    public int type;
+
+    @Label("User")
+    @Description("The user the request was made for, if the request names one.")
+    public String user;
+
+    @Label("Queue Wait")
+    @Description("Time spent waiting for timelines before and during the request.")
+    @Timespan(Timespan.NANOSECONDS)
+    public long queueWait;
+
+    @Label("Failed")
+    public boolean failed;
+  }
+
+  @Name("codeu.chat.Snapshot")
+  @Label("Snapshot")
+  @Description("The server's state written to its persistence file.")
+  @Category({ "CodeU Chat", "Persistence" })
+  @StackTrace(false)
+  public static final class Snapshot extends Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Size")
+    @DataAmount(DataAmount.BYTES)
+    public long bytes;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+  }
+
+  @Name("codeu.chat.RelayRoundTrip")
+  @Label("Relay Round Trip")
+  @Description("A read from or a write to the relay, including connecting to it.")
+  @Category({ "CodeU Chat", "Relay" })
+  @StackTrace(false)
+  public static final class RelayRoundTrip extends Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Bundles")
+    @Description("Bundles read, or written. 1 for a single write.")
+    public int bundles;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+  }
+
+  @Name("codeu.chat.TimelineTask")
+  @Label("Timeline Task")
+  @Description("One task run by a timeline, with how long it waited in the timeline's queue.")
+  @Category({ "CodeU Chat", "Timeline" })
+  @StackTrace(false)
+  public static final class TimelineTask extends Event {
+
+    @Label("Timeline")
+    public String timeline;
+
+    @Label("Queue Delay")
+    @Timespan(Timespan.NANOSECONDS)
+    public long queueDelay;
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// FLAGS
+//
+// Splits command line arguments into positional arguments and optional flags.
+// Flags are written as "--name=value" (or just "--name" for a flag that is
+// either on or off) and may appear anywhere in the arguments. Everything else
+// is a positional argument and keeps its order.
+public final class Flags {
+
+  private final List<String> positional = new ArrayList<>();
+  private final Map<String, String> named = new HashMap<>();
+
+  private Flags() { }
+
+  public static Flags parse(String[] args) {
+
+    final Flags flags = new Flags();
+
+    for (final String arg : args) {
+      if (arg.startsWith("--")) {
+        final int split = arg.indexOf('=');
+        if (split < 0) {
+          flags.named.put(arg.substring(2), "true");
+        } else {
+          flags.named.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+      } else {
+        flags.positional.add(arg);
+      }
+    }
+
+    return flags;
+  }
+
+  public String[] positional() {
+    return positional.toArray(new String[positional.size()]);
+  }
+
+  public boolean has(String name) {
+    return named.containsKey(name);
+  }
+
+  public String get(String name, String fallback) {
+    final String value = named.get(name);
+    return value == null ? fallback : value;
+  }
+
+  public int getInt(String name, int fallback) {
+    final String value = named.get(name);
+    return value == null ? fallback : Integer.parseInt(value);
+  }
+
+  public long getLong(String name, long fallback) {
+    final String value = named.get(name);
+    return value == null ? fallback : Long.parseLong(value);
+  }
+}
@@ -0,0 +1,212 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LATENCY HISTOGRAM
+//
+// Counts how many times each duration (in nanoseconds) was seen, in log-linear
+// buckets: every power of two is split into SUB_BUCKETS equal buckets. That
+// keeps every bucket within 1 / SUB_BUCKETS of the values in it (about 12%)
+// over the whole range of a long in a fixed, small number of buckets.
+//
+// Two histograms can be merged by adding their buckets, so histograms kept by
+// different threads (or different servers) can be put together without losing
+// anything. Recording is lock-free and safe from any thread.
+public final class LatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  // Values below SUB_BUCKETS each get their own bucket. After that there are
+  // SUB_BUCKETS buckets for every power of two up to 2^63.
+  private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BITS) * SUB_BUCKETS;
+
+  public static final Serializer<LatencyHistogram> SERIALIZER = new Serializer<LatencyHistogram>() {
+
+    @Override
+    public void write(OutputStream out, LatencyHistogram value) throws IOException {
+
+      // Most buckets are empty, so only write the ones that are not.
+      int used = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        if (value.counts.get(i) != 0) {
+          used += 1;
+        }
+      }
+
+      Serializers.LONG.write(out, value.sum.get());
+      Serializers.LONG.write(out, value.max.get());
+      Serializers.INTEGER.write(out, used);
+      for (int i = 0; i < BUCKETS; i++) {
+        final long count = value.counts.get(i);
+        if (count != 0) {
+          Serializers.INTEGER.write(out, i);
+          Serializers.LONG.write(out, count);
+        }
+      }
+    }
+
+    @Override
+    public LatencyHistogram read(InputStream in) throws IOException {
+
+      final LatencyHistogram value = new LatencyHistogram();
+
+      value.sum.set(Serializers.LONG.read(in));
+      value.max.set(Serializers.LONG.read(in));
+      final int used = Serializers.INTEGER.read(in);
+      for (int i = 0; i < used; i++) {
+        final int bucket = Serializers.INTEGER.read(in);
+        final long count = Serializers.LONG.read(in);
+        if (bucket < 0 || bucket >= BUCKETS) {
+          throw new IOException("Histogram bucket out of range: " + bucket);
+        }
+        value.counts.addAndGet(bucket, count);
+        value.count.addAndGet(count);
+      }
+
+      return value;
+    }
+  };
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  // RECORD
+  //
+  // Add one duration to the histogram. Negative durations (which can happen
+  // when a clock is adjusted) are counted as zero.
+  public void record(long nanos) {
+
+    final long value = Math.max(0, nanos);
+
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+
+    for (long seen = max.get(); value > seen && !max.compareAndSet(seen, value); seen = max.get()) {
+      // Someone else raised the max first - try again against the new max.
+    }
+  }
+
+  // MERGE
+  //
+  // Add everything in "other" to this histogram.
+  public void merge(LatencyHistogram other) {
+
+    for (int i = 0; i < BUCKETS; i++) {
+      final long bucket = other.counts.get(i);
+      if (bucket != 0) {
+        counts.addAndGet(i, bucket);
+      }
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+
+    final long otherMax = other.max.get();
+    for (long seen = max.get(); otherMax > seen && !max.compareAndSet(seen, otherMax); seen = max.get()) {
+      // Someone else raised the max first - try again against the new max.
+    }
+  }
+
+  // COPY
+  //
+  // A histogram with everything this one has recorded so far.
+  public LatencyHistogram copy() {
+    final LatencyHistogram copy = new LatencyHistogram();
+    copy.merge(this);
+    return copy;
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long sum() {
+    return sum.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    final long seen = count.get();
+    return seen == 0 ? 0 : (double) sum.get() / seen;
+  }
+
+  // PERCENTILE
+  //
+  // The smallest value that at least "fraction" (0 to 1) of the recorded
+  // durations are at or below, rounded up to the top of its bucket. Returns 0
+  // for an empty histogram.
+  public long percentile(double fraction) {
+
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    final long target = Math.max(1, (long) Math.ceil(fraction * total));
+
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%.0fns p50=%dns p99=%dns max=%dns",
+        count(), mean(), percentile(0.5), percentile(0.99), max());
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    // The position of the highest bit picks the power of two and the next
+    // SUB_BITS bits pick the bucket within it.
+    final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    final int sub = (int) ((value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1));
+    return SUB_BUCKETS + (magnitude - SUB_BITS) * SUB_BUCKETS + sub;
+  }
+
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int magnitude = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+    final long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    final long lower = (1L << magnitude) + (sub << (magnitude - SUB_BITS));
+    final long width = 1L << (magnitude - SUB_BITS);
+    // The top bucket ends at Long.MAX_VALUE - do not overflow past it.
+    return lower + (width - 1) < lower ? Long.MAX_VALUE : lower + (width - 1);
+  }
+}
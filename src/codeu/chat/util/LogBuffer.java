@@ -0,0 +1,254 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+// LOG BUFFER
+//
+// The back end of asynchronous logging. Threads that log only put the raw
+// pieces of the message (the format string and its parameters) into a bounded
+// ring buffer. A single background thread takes them out, formats them and
+// hands them to "java.util.logging". The expensive parts of logging (formatting
+// and writing to the console and file) never happen on the thread that logged.
+//
+// The ring is a fixed array of slots, each with a sequence number that says
+// whether it is ready to be written or read (the usual bounded MPMC queue
+// design). Putting a message in or taking one out is a single compare-and-set
+// when there is no contention and nothing ever locks.
+//
+// When the ring is full the "DropPolicy" decides what gives. Errors are never
+// dropped - an error always waits for space, whatever the policy.
+final class LogBuffer {
+
+  // An entry in the ring. Parameters are formatted on the background thread,
+  // so they must not be changed after they are logged. Everything the code base
+  // logs (ids, names, numbers) is immutable.
+  private static final class Entry {
+
+    final java.util.logging.Logger log;
+    final Level level;
+    final String message;
+    final Object[] params;
+    final Throwable error;
+    final long millis = System.currentTimeMillis();
+
+    Entry(java.util.logging.Logger log, Level level, String message, Object[] params, Throwable error) {
+      this.log = log;
+      this.level = level;
+      this.message = message;
+      this.params = params;
+      this.error = error;
+    }
+  }
+
+  private final int mask;
+  private final AtomicReferenceArray<Entry> slots;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();  // next slot to read
+  private final AtomicLong tail = new AtomicLong();  // next slot to write
+  private final AtomicLong finished = new AtomicLong();  // written or dropped from the ring
+
+  private final Logger.DropPolicy policy;
+  private final AtomicLong dropped = new AtomicLong();
+  private long reported;  // only touched by the background thread
+
+  private volatile boolean idle;
+  private volatile boolean running = true;
+
+  private final Thread worker = new Thread("logger") {
+    @Override
+    public void run() {
+      while (running) {
+        if (!drain()) {
+          // Same as the timing wheel: say that we are about to sleep, then look
+          // one more time so that a message added in between is not missed.
+          idle = true;
+          if (isEmpty() && running) {
+            LockSupport.park(this);
+          }
+          idle = false;
+        }
+      }
+      drain();
+    }
+  };
+
+  LogBuffer(int capacity, Logger.DropPolicy policy) {
+
+    // Round up to a power of two so that slots can be found with a mask.
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+
+    this.mask = size - 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+
+    this.policy = policy;
+
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  void add(java.util.logging.Logger log, Level level, String message, Object[] params, Throwable error) {
+
+    final Entry entry = new Entry(log, level, message, params, error);
+    final Logger.DropPolicy policy = level == Level.SEVERE ? Logger.DropPolicy.BLOCK : this.policy;
+
+    while (!offer(entry)) {
+      switch (policy) {
+        case DROP_NEWEST:
+          dropped.incrementAndGet();
+          return;
+        case DROP_OLDEST:
+          if (poll() != null) {
+            dropped.incrementAndGet();
+            finished.incrementAndGet();
+          }
+          break;
+        case BLOCK:
+          LockSupport.unpark(worker);
+          Thread.yield();
+          break;
+      }
+    }
+
+    if (idle) {
+      LockSupport.unpark(worker);
+    }
+  }
+
+  // How many messages have been thrown away because the ring was full.
+  long dropped() {
+    return dropped.get();
+  }
+
+  // FLUSH
+  //
+  // Wait until everything that was logged before this call has been written.
+  void flush() {
+    final long target = tail.get();
+    while (finished.get() < target && worker.isAlive()) {
+      LockSupport.unpark(worker);
+      Thread.yield();
+    }
+  }
+
+  // STOP
+  //
+  // Write everything that is still in the ring and stop the background thread.
+  void stop() {
+    running = false;
+    LockSupport.unpark(worker);
+    while (true) {
+      try {
+        worker.join();
+        break;
+      } catch (InterruptedException ex) {
+        // Do nothing - allow this to try again.
+      }
+    }
+  }
+
+  private boolean offer(Entry entry) {
+    while (true) {
+      final long position = tail.get();
+      final int slot = (int) (position & mask);
+      final long difference = sequences.get(slot) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          slots.set(slot, entry);
+          sequences.set(slot, position + 1);
+          return true;
+        }
+      } else if (difference < 0) {
+        return false;  // full
+      }
+      // Another thread took this slot first - try the next one.
+    }
+  }
+
+  private Entry poll() {
+    while (true) {
+      final long position = head.get();
+      final int slot = (int) (position & mask);
+      final long difference = sequences.get(slot) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          final Entry entry = slots.getAndSet(slot, null);
+          sequences.set(slot, position + mask + 1);
+          return entry;
+        }
+      } else if (difference < 0) {
+        return null;  // empty
+      }
+    }
+  }
+
+  private boolean isEmpty() {
+    return head.get() >= tail.get();
+  }
+
+  // Write out everything in the ring. Returns false if there was nothing to do.
+  private boolean drain() {
+
+    boolean any = false;
+
+    for (Entry entry = poll(); entry != null; entry = poll()) {
+      any = true;
+      write(entry);
+      finished.incrementAndGet();
+    }
+
+    final long lost = dropped.get() - reported;
+    if (lost > 0) {
+      reported += lost;
+      final LogRecord record = new LogRecord(Level.WARNING, "Log buffer was full. Dropped " + lost + " messages.");
+      record.setLoggerName(LogBuffer.class.getName());
+      java.util.logging.Logger.getLogger(LogBuffer.class.getName()).log(record);
+    }
+
+    return any;
+  }
+
+  private static void write(Entry entry) {
+
+    String text;
+    try {
+      text = String.format(entry.message, entry.params);
+    } catch (Exception ex) {
+      // A bad format string should not take down the logger.
+      text = entry.message;
+    }
+
+    final LogRecord record = new LogRecord(entry.level, text);
+    record.setLoggerName(entry.log.getName());
+    record.setSourceClassName(entry.log.getName());
+    record.setInstant(Instant.ofEpochMilli(entry.millis));
+    record.setThrown(entry.error);
+    entry.log.log(record);
+  }
+}
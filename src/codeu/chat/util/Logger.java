@@ -58,55 +58,127 @@ public final class Logger {
     logger.addHandler(handler);
   }
 
+  // DROP POLICY
+  //
+  // What asynchronous logging does when its buffer is full.
+  public enum DropPolicy {
+    DROP_NEWEST,  // throw away the message being logged
+    DROP_OLDEST,  // throw away the oldest message that has not been written yet
+    BLOCK;        // wait for the background thread to make room
+
+    // Parse the name used on the command line ("newest", "oldest" or "block").
+    public static DropPolicy parse(String name) {
+      switch (name) {
+        case "newest": return DROP_NEWEST;
+        case "oldest": return DROP_OLDEST;
+        case "block": return BLOCK;
+        default: throw new IllegalArgumentException("Unknown drop policy: " + name);
+      }
+    }
+  }
+
+  // Null while logging is synchronous. Set once by "enableAsync".
+  private static volatile LogBuffer buffer;
+
+  // ENABLE ASYNC
+  //
+  // Format and write messages on a background thread. At most "capacity"
+  // messages wait to be written. After that "policy" says which are dropped.
+  // Whatever is still waiting when the process exits is written out first.
+  public static synchronized void enableAsync(int capacity, DropPolicy policy) {
+
+    if (buffer != null) {
+      return;
+    }
+
+    final LogBuffer created = new LogBuffer(capacity, policy);
+    Runtime.getRuntime().addShutdownHook(new Thread("logger-shutdown") {
+      @Override
+      public void run() {
+        created.stop();
+      }
+    });
+    buffer = created;
+  }
+
+  // FLUSH
+  //
+  // Wait until every message logged so far has been written. Does nothing if
+  // logging is synchronous.
+  public static void flush() {
+    final LogBuffer current = buffer;
+    if (current != null) {
+      current.flush();
+    }
+  }
+
+  // How many messages have been dropped because the asynchronous buffer was full.
+  public static long dropped() {
+    final LogBuffer current = buffer;
+    return current == null ? 0 : current.dropped();
+  }
+
   public static Log newLog(Class<?> c) {
 
     final java.util.logging.Logger log =
         java.util.logging.Logger.getLogger(c.getName());
 
-    // Note: This Logger calls the standard java Logger, so the class/method lookup
-    // needs to go one level deeper.  Otherwise it will appear that all the log
-    // calls are coming from this object. Use logp() (log precise) to do this.
+    // Check the level before doing anything else so that a message that will
+    // not be written costs next to nothing. The call site is reported as the
+    // class that made the log, which is known up front. Walking the stack to
+    // find the method is far more expensive than the rest of logging put
+    // together, so the method is not reported.
     return new Log() {
 
       @Override
       public void verbose(String message, Object... params) {
-        log.logp(java.util.logging.Level.FINE,
-            Thread.currentThread().getStackTrace()[2].getClassName(),
-            Thread.currentThread().getStackTrace()[2].getMethodName(),
-            String.format(message, params));
+        if (log.isLoggable(java.util.logging.Level.FINE)) {
+          write(log, java.util.logging.Level.FINE, message, params, null);
+        }
       }
 
       @Override
       public void info(String message, Object... params) {
-        log.logp(java.util.logging.Level.INFO,
-            Thread.currentThread().getStackTrace()[2].getClassName(),
-            Thread.currentThread().getStackTrace()[2].getMethodName(),
-            String.format(message, params));
+        if (log.isLoggable(java.util.logging.Level.INFO)) {
+          write(log, java.util.logging.Level.INFO, message, params, null);
+        }
       }
 
       @Override
       public void warning(String message, Object... params) {
-        log.logp(java.util.logging.Level.WARNING,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params));
+        if (log.isLoggable(java.util.logging.Level.WARNING)) {
+          write(log, java.util.logging.Level.WARNING, message, params, null);
+        }
       }
 
       @Override
       public void error(String message, Object... params) {
-        log.logp(java.util.logging.Level.SEVERE,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params));
+        if (log.isLoggable(java.util.logging.Level.SEVERE)) {
+          write(log, java.util.logging.Level.SEVERE, message, params, null);
+        }
       }
 
       @Override
       public void error(Throwable error, String message, Object... params) {
-        log.logp(java.util.logging.Level.SEVERE,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params), error);
+        if (log.isLoggable(java.util.logging.Level.SEVERE)) {
+          write(log, java.util.logging.Level.SEVERE, message, params, error);
+        }
       }
     };
   }
+
+  private static void write(java.util.logging.Logger log,
+                            java.util.logging.Level level,
+                            String message,
+                            Object[] params,
+                            Throwable error) {
+
+    final LogBuffer current = buffer;
+
+    if (current != null) {
+      current.add(log, level, message, params, error);
+    } else {
+      log.logp(level, log.getName(), null, String.format(message, params), error);
+    }
+  }
 }
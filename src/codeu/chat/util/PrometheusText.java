@@ -0,0 +1,111 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// PROMETHEUS TEXT
+//
+// Builds a page in the Prometheus text exposition format. Every metric family
+// starts with "family", which writes its HELP and TYPE lines, followed by its
+// samples. Labels are given as name/value pairs:
+//
+//   text.family("chat_requests_total", "counter", "Requests handled.");
+//   text.sample("chat_requests_total", 12, "code", "9");
+//
+// Durations are always written in seconds, as Prometheus expects.
+public final class PrometheusText {
+
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final StringBuilder text = new StringBuilder();
+  private final Set<String> families = new HashSet<>();
+
+  // FAMILY
+  //
+  // Start a metric family. Starting the same family twice only writes its
+  // header once, so code that writes one sample per shard can call this for
+  // every shard.
+  public PrometheusText family(String name, String type, String help) {
+    if (families.add(name)) {
+      text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    return this;
+  }
+
+  public PrometheusText sample(String name, double value, String... labels) {
+    text.append(name);
+    if (labels.length > 0) {
+      text.append('{');
+      for (int i = 0; i + 1 < labels.length; i += 2) {
+        if (i > 0) {
+          text.append(',');
+        }
+        text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+      }
+      text.append('}');
+    }
+    text.append(' ').append(format(value)).append('\n');
+    return this;
+  }
+
+  // SUMMARY
+  //
+  // Write a latency histogram as a Prometheus summary: the 50th, 90th, 99th
+  // and 99.9th percentiles plus the sum and the count. The family must have
+  // been started with type "summary".
+  public PrometheusText summary(String name, LatencyHistogram histogram, String... labels) {
+    for (final double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+      final String[] withQuantile = new String[labels.length + 2];
+      System.arraycopy(labels, 0, withQuantile, 0, labels.length);
+      withQuantile[labels.length] = "quantile";
+      withQuantile[labels.length + 1] = Double.toString(quantile);
+      sample(name, histogram.percentile(quantile) / NANOS_PER_SECOND, withQuantile);
+    }
+    sample(name + "_sum", histogram.sum() / NANOS_PER_SECOND, labels);
+    sample(name + "_count", histogram.count(), labels);
+    return this;
+  }
+
+  public static double seconds(long nanos) {
+    return nanos / NANOS_PER_SECOND;
+  }
+
+  @Override
+  public String toString() {
+    return text.toString();
+  }
+
+  private static String format(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
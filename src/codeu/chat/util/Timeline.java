@@ -14,9 +14,14 @@
 
 package codeu.chat.util;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 // TIMELINE
 //
@@ -24,135 +29,212 @@ import java.util.concurrent.PriorityBlockingQueue;
 // when work needs to be ordered by time. The timeline manages its own threads
 // and there is no way to know outside of the code that is executed when the
 // code has been executed.
+//
+// Every timeline is a separate lane of work with its own worker threads and
+// its own queue, so a burst of one kind of work (say, client requests) cannot
+// hold up another (say, talking to the relay) that is on a different timeline.
+// Work that is due now goes straight onto the queue. Work that is due later
+// waits on a timing wheel that is shared by all timelines (see "TimingWheel")
+// and is put on the queue when it is due.
+//
+// Every timeline has a bound. New work coming in from outside is offered with
+// "offerNow", which turns it away once "bound" events are waiting, and it is up
+// to the caller to decide what that means - refuse a connection, drop a
+// message, fail a request. Work that is already in the system ("scheduleNow",
+// "ask" and timers) is never turned away, so a bound only holds if everything
+// that can arrive in bursts comes through "offerNow".
+//
+// A timeline with one thread runs its work one at a time in the order it was
+// put on the queue. That is what makes it safe to give a timeline sole
+// ownership of some state (like a model). A timeline with more than one thread
+// makes no promises about order.
 public final class Timeline {
 
   private final static Logger.Log LOG = Logger.newLog(Timeline.class);
 
-  private static final class Event implements Comparable<Event> {
+  // The resolution of "scheduleIn" and "scheduleAt". Nothing scheduled in the
+  // code base needs to be more precise than this.
+  private static final long TICK_MS = 10;
 
-    public final long time;
-    public final Runnable callback;
+  private static final TimingWheel WHEEL = new TimingWheel(TICK_MS);
 
-    public Event(long time, Runnable callback) {
-      this.time = time;
-      this.callback = callback;
-    }
+  private final String name;
+  private final int bound;
+
+  // An event with the time it was queued, for the "TimelineTask" flight
+  // recorder event.
+  private static final class Task {
 
-    @Override
-    public int compareTo(Event other) {
-      return Long.compare(time, other.time);
+    final Runnable callback;
+    final long queued = System.nanoTime();
+
+    Task(Runnable callback) {
+      this.callback = callback;
     }
   }
 
-  private final BlockingQueue<Event> backlog = new PriorityBlockingQueue<>();
-  private final BlockingQueue<Runnable> todo = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Task> todo = new LinkedBlockingQueue<>();
+  private final Thread[] workers;
 
-  private boolean running = true;
+  private volatile boolean running = true;
 
-  // This thread is used to track the time of events and moves events from the
-  // "backlog" queue to the "todo" queue when it is time to execute. They are
-  // separated to allow this thread to be safely interrupted.
-  private final Thread scheduler = new Thread() {
-    @Override
-    public void run() {
-      while (running) {
+  // Events "offerNow" turned away.
+  private final AtomicLong rejected = new AtomicLong();
 
-        Event next;
+  public Timeline() {
+    this("timeline", 1, Integer.MAX_VALUE);
+  }
 
-        try {
-          next = backlog.take();
-        } catch (InterruptedException ex) {
-          // Rather than try to handle the exception here, set "next"
-          // to null and let the normal flow handle the case.
-          next = null;
-        }
+  // Create a timeline with "threads" workers. "bound" limits how much work
+  // "offerNow" will queue up before it starts turning work away.
+  public Timeline(String name, int threads, int bound) {
 
-        long sleep = 0;
-
-        if (next != null) {
-
-          final long now = System.currentTimeMillis();
-
-          // Check which queue the event should be added to. If it
-          // is time to execute, it should be added to the "todo"
-          // queue. If it is not time, it should be added back to the
-          // "backlog".
-          // If the item is added back to the backlog, we know how long
-          // it will be until it will be executed. That means we can sleep
-          // until then.
-          if (next.time <= now) {
-            forceAdd(todo, next.callback);
-            sleep = 0;
-          } else {
-            // Put it back (it's not time).
-            forceAdd(backlog, next);
-            sleep = next.time - now;
-          }
-        }
+    this.name = name;
+    this.bound = bound;
+    this.workers = new Thread[threads];
 
-        if (sleep > 0) {
-          try {
-            Thread.sleep(sleep);
-          } catch (InterruptedException ex) {
-            // There are two cases this will happen:
-            //  1. A new item was added and we are being woken to
-            //     check if we need to update the time.
-            //  2. It is time to exit and we need to wake-up so that
-            //     we can check that "running" is "false".
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(threads == 1 ? name : name + "-" + i) {
+        @Override
+        public void run() {
+          while (running) {
+            try {
+              execute(todo.take());
+            } catch (InterruptedException ex) {
+              // Only "stop" interrupts the workers. Go around and see that
+              // "running" is "false".
+            } catch (Exception ex) {
+              // Catch all exceptions here to stop any rogue action from
+              // take down the timeline.
+              LOG.warning(
+                  "An exception was seen on the timeline %s (%s)",
+                  Timeline.this.name,
+                  ex.toString());
+            }
           }
         }
-      }
-    }
-  };
-
-  // This thread is used to run the code that was given to the time line. This
-  // worker does not need to know anything about the time. Once an event gets to
-  // here - it is considered "on time" and will be executed.
-  private final Thread executor = new Thread() {
-    @Override
-    public void run() {
-      while (running) {
-        try {
-          todo.take().run();
-        } catch (Exception ex) {
-          // Catch all exceptions here to stop any rogue action from
-          // take down the timeline.
-          LOG.warning(
-              "An exception was seen on the timeline (%s)",
-              ex.toString());
-        }
-      }
+      };
+      workers[i].start();
     }
-  };
-
-  public Timeline() {
-    scheduler.start();
-    executor.start();
   }
 
   // SCHEDULE NOW
   //
   // Add an event to the timeline so that it will occur as soon as possible.
+  // This always succeeds, whatever the bound, as it is how work that is already
+  // in the system moves between timelines and dropping it would lose it.
   public void scheduleNow(Runnable callback) {
-    scheduleAt(System.currentTimeMillis(), callback);
+    todo.add(new Task(callback));
+  }
+
+  // OFFER NOW
+  //
+  // Like "scheduleNow" but for new work coming in from outside. If the timeline
+  // already has "bound" events waiting, the event is not added and this
+  // returns false so that the caller can turn the work away.
+  public boolean offerNow(Runnable callback) {
+    if (todo.size() >= bound) {
+      rejected.incrementAndGet();
+      return false;
+    }
+    todo.add(new Task(callback));
+    return true;
   }
 
   // SCHEDULE IN
   //
   // Add an event to the timeline so that it will occur in approximately in a
   // set amount of milliseconds.
-  public void scheduleIn(long ms, Runnable callback) {
-    scheduleAt(System.currentTimeMillis() + ms, callback);
+  public TimingWheel.Timeout scheduleIn(long ms, final Runnable callback) {
+    return WHEEL.schedule(ms, new Runnable() {
+      @Override
+      public void run() {
+        todo.add(new Task(callback));
+      }
+    });
   }
 
   // SCHEDULE AT
   //
   // Add an event to the timeline so that will occur approximately at a fixed
   // point in time.
-  public void scheduleAt(long timeMs, Runnable callback) {
-    final Event event = new Event(timeMs, callback);
-    forceAdd(backlog, event);
-    scheduler.interrupt();  // wake it up
+  public TimingWheel.Timeout scheduleAt(long timeMs, Runnable callback) {
+    return scheduleIn(timeMs - System.currentTimeMillis(), callback);
+  }
+
+  // ASK
+  //
+  // Run "query" on the timeline and wait for its result. This blocks the
+  // calling thread, so it must never be called from the timeline itself (it
+  // would wait forever) or from any timeline that the timeline might wait on.
+  public <T> T ask(final Callable<T> query) {
+
+    final List<T> result = new ArrayList<>(1);
+    final Exception[] failure = new Exception[1];
+    final CountDownLatch done = new CountDownLatch(1);
+
+    scheduleNow(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          result.add(query.call());
+        } catch (Exception ex) {
+          failure[0] = ex;
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+
+    try {
+      done.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for timeline " + name, ex);
+    }
+
+    if (failure[0] != null) {
+      throw new IllegalStateException("Query on timeline " + name + " failed", failure[0]);
+    }
+    return result.get(0);
+  }
+
+  // RESPONDS
+  //
+  // Whether the timeline gets through everything that is queued now within
+  // "timeoutMs" milliseconds. Used to tell a busy timeline from a stuck one.
+  public boolean responds(long timeoutMs) {
+    final CountDownLatch done = new CountDownLatch(1);
+    scheduleNow(new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    try {
+      return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  // QUEUED
+  //
+  // How many events are due and waiting for a worker.
+  public int queued() {
+    return todo.size();
+  }
+
+  // REJECTED
+  //
+  // How many events "offerNow" has turned away because the timeline was full.
+  public long rejected() {
+    return rejected.get();
+  }
+
+  public String name() {
+    return name;
   }
 
   // STOP
@@ -163,17 +245,35 @@ public final class Timeline {
 
     // Interrupt does not force a thread to exit. It signals the
     // thead that it is time to stop execution. As the threads may
-    // be sleeping, this will force them awake.
-    executor.interrupt();
-    scheduler.interrupt();
+    // be waiting for work, this will force them awake.
+    for (final Thread worker : workers) {
+      worker.interrupt();
+    }
   }
 
   // JOIN
   //
   // Wait for the timeline to shutdown. This is a blocking call.
   public void join() {
-    forceJoin(executor);
-    forceJoin(scheduler);
+    for (final Thread worker : workers) {
+      forceJoin(worker);
+    }
+  }
+
+  private void execute(Task task) {
+    final Events.TimelineTask event = new Events.TimelineTask();
+    if (event.isEnabled()) {
+      event.begin();
+      event.timeline = name;
+      event.queueDelay = System.nanoTime() - task.queued;
+      try {
+        task.callback.run();
+      } finally {
+        event.commit();
+      }
+    } else {
+      task.callback.run();
+    }
   }
 
   private static void forceJoin(Thread thread) {
@@ -186,10 +286,4 @@ public final class Timeline {
       }
     }
   }
-
-  private static <T> void forceAdd(BlockingQueue<T> queue, T value) {
-    while (!queue.offer(value)) {
-      LOG.warning("Failed to add to queue, trying again...");
-    }
-  }
 }
@@ -0,0 +1,329 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// TIMING WHEEL
+//
+// A hierarchical timing wheel. Time is cut into ticks and every level of the
+// wheel is a ring of SLOTS buckets. A timeout that is due within SLOTS ticks
+// goes straight into the bucket of the tick it is due on in the first level. A
+// timeout that is further out goes into a coarser level, where one bucket
+// covers SLOTS times as many ticks as a bucket of the level below. Every time
+// a level goes all the way around, the next bucket of the level above is
+// emptied into the levels below ("cascading"), so a timeout moves down at most
+// LEVELS - 1 times before it is due.
+//
+// Scheduling and cancelling are O(1): new timeouts and cancellations are put
+// on lock-free queues and the wheel's own thread moves them into (or out of)
+// their bucket on the next tick. That thread is the only one that touches the
+// buckets, so the wheel needs no locks.
+//
+// When a timeout is due its task is run on the wheel's thread, so tasks must
+// be short - normally they just hand the real work to some other thread (see
+// "Timeline"). The wheel's thread sleeps until the next tick while anything is
+// scheduled and parks completely while nothing is.
+public final class TimingWheel {
+
+  private final static Logger.Log LOG = Logger.newLog(TimingWheel.class);
+
+  private static final int SLOT_BITS = 8;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+
+  // TIMEOUT
+  //
+  // A task on the wheel. Cancelling a timeout that has already run (or was
+  // already cancelled) does nothing and returns false.
+  public static final class Timeout {
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final TimingWheel wheel;
+    private final long deadline;  // in ticks
+    private final Runnable task;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+
+    // Only touched by the wheel's thread.
+    private Bucket bucket;
+    private Timeout previous;
+    private Timeout next;
+
+    private Timeout(TimingWheel wheel, long deadline, Runnable task) {
+      this.wheel = wheel;
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    public boolean cancel() {
+      if (state.compareAndSet(WAITING, CANCELLED)) {
+        wheel.cancelled.add(this);
+        return true;
+      }
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+  }
+
+  // A doubly linked list of timeouts so that a cancelled timeout can be taken
+  // out without searching for it.
+  private static final class Bucket {
+
+    private Timeout head;
+    private Timeout tail;
+
+    public void add(Timeout timeout) {
+      timeout.bucket = this;
+      timeout.previous = tail;
+      timeout.next = null;
+      if (tail == null) {
+        head = timeout;
+      } else {
+        tail.next = timeout;
+      }
+      tail = timeout;
+    }
+
+    public void remove(Timeout timeout) {
+      if (timeout.previous == null) {
+        head = timeout.next;
+      } else {
+        timeout.previous.next = timeout.next;
+      }
+      if (timeout.next == null) {
+        tail = timeout.previous;
+      } else {
+        timeout.next.previous = timeout.previous;
+      }
+      timeout.bucket = null;
+      timeout.previous = null;
+      timeout.next = null;
+    }
+
+    // Empty the bucket and return what was in it as a list linked by "next".
+    public Timeout clear() {
+      final Timeout all = head;
+      head = null;
+      tail = null;
+      return all;
+    }
+  }
+
+  private final long tickNanos;
+  private final long start = System.nanoTime();
+
+  private final Bucket[][] levels = new Bucket[LEVELS][SLOTS];
+
+  private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+  private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+  // Only touched by the wheel's thread.
+  private long tick;
+  private int scheduled;
+
+  private volatile boolean idle;
+  private volatile boolean running = true;
+
+  private final Thread worker = new Thread("timing-wheel") {
+    @Override
+    public void run() {
+      while (running) {
+        advance();
+      }
+    }
+  };
+
+  public TimingWheel(long tickMs) {
+
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+
+    for (final Bucket[] level : levels) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        level[slot] = new Bucket();
+      }
+    }
+
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  // SCHEDULE
+  //
+  // Run "task" on the wheel's thread in about "delayMs" milliseconds. The task
+  // will not run early but may run up to a tick late.
+  public Timeout schedule(long delayMs, Runnable task) {
+
+    // Round the deadline up to a whole tick so that the task never runs early.
+    final long due = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+    final Timeout timeout = new Timeout(this, (due + tickNanos - 1) / tickNanos, task);
+
+    incoming.add(timeout);
+
+    if (idle) {
+      LockSupport.unpark(worker);
+    }
+
+    return timeout;
+  }
+
+  // STOP
+  //
+  // Stop the wheel's thread. Anything still scheduled never runs.
+  public void stop() {
+    running = false;
+    LockSupport.unpark(worker);
+  }
+
+  private long ticksNow() {
+    return (System.nanoTime() - start) / tickNanos;
+  }
+
+  private void advance() {
+
+    drain();
+
+    if (scheduled == 0) {
+      // Nothing to wait for - sleep until something is scheduled. Set "idle"
+      // first and then check again so a timeout that is added in between is
+      // not missed.
+      idle = true;
+      if (incoming.isEmpty() && running) {
+        LockSupport.park(this);
+      }
+      idle = false;
+      // Nothing was on the wheel, so there is nothing to expire on the way
+      // to the current tick.
+      tick = Math.max(tick, ticksNow());
+      return;
+    }
+
+    final long wake = start + (tick + 1) * tickNanos;
+    final long sleep = wake - System.nanoTime();
+    if (sleep > 0) {
+      LockSupport.parkNanos(this, sleep);
+    }
+
+    final long now = ticksNow();
+    while (tick < now && running) {
+      tick += 1;
+      expire();
+      drain();
+    }
+  }
+
+  // Move new timeouts onto the wheel and take cancelled ones off.
+  private void drain() {
+
+    for (Timeout timeout = cancelled.poll(); timeout != null; timeout = cancelled.poll()) {
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+        scheduled -= 1;
+      }
+    }
+
+    for (Timeout timeout = incoming.poll(); timeout != null; timeout = incoming.poll()) {
+      if (!timeout.isCancelled()) {
+        place(timeout);
+      }
+    }
+  }
+
+  private void place(Timeout timeout) {
+
+    final long delta = timeout.deadline - tick;
+
+    if (delta <= 0) {
+      run(timeout);
+      return;
+    }
+
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+      level += 1;
+    }
+
+    // Past the top level - park it in the furthest bucket of the top level. It
+    // will be placed again each time that bucket cascades until it fits.
+    final long at = delta >= (1L << (SLOT_BITS * LEVELS)) ?
+                    tick + (1L << (SLOT_BITS * LEVELS)) - (1L << (SLOT_BITS * (LEVELS - 1))) :
+                    timeout.deadline;
+
+    levels[level][(int) ((at >>> (SLOT_BITS * level)) & MASK)].add(timeout);
+    scheduled += 1;
+  }
+
+  private void expire() {
+
+    // When the first level wraps around, pull the next bucket of each level
+    // above down into the levels below it.
+    if ((tick & MASK) == 0) {
+      for (int level = 1; level < LEVELS; level++) {
+        final int slot = (int) ((tick >>> (SLOT_BITS * level)) & MASK);
+        cascade(levels[level][slot]);
+        if (slot != 0) {
+          break;
+        }
+      }
+    }
+
+    final Bucket bucket = levels[0][(int) (tick & MASK)];
+    for (Timeout timeout = bucket.clear(); timeout != null; ) {
+      final Timeout next = timeout.next;
+      timeout.bucket = null;
+      timeout.previous = null;
+      timeout.next = null;
+      scheduled -= 1;
+      if (timeout.deadline <= tick) {
+        run(timeout);
+      } else {
+        place(timeout);
+      }
+      timeout = next;
+    }
+  }
+
+  private void cascade(Bucket bucket) {
+    for (Timeout timeout = bucket.clear(); timeout != null; ) {
+      final Timeout next = timeout.next;
+      timeout.bucket = null;
+      timeout.previous = null;
+      timeout.next = null;
+      scheduled -= 1;
+      place(timeout);
+      timeout = next;
+    }
+  }
+
+  private void run(Timeout timeout) {
+    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+      try {
+        timeout.task.run();
+      } catch (Exception ex) {
+        LOG.warning("An exception was seen on the timing wheel (%s)", ex.toString());
+      }
+    }
+  }
+}
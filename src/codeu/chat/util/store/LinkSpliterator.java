@@ -0,0 +1,145 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+// LINK SPLITERATOR
+//
+// Walks the chain of links like "LinkIterator" but can also be split so that a
+// parallel stream can scan a store without copying it first.
+//
+// Split points are keys from the store's index. As the index only holds the
+// first link of each run of equal keys, a run of duplicates is never split
+// across two spliterators. The first time the spliterator is split it picks up
+// to SPLIT_POINTS evenly spaced keys (one pass over the index keys, without
+// touching any values) and every split after that halves the remaining points,
+// so the parts stay balanced.
+//
+// Like the store itself, this is not safe to use while the store is changing.
+final class LinkSpliterator<KEY, VALUE> implements Spliterator<VALUE> {
+
+  private static final int SPLIT_POINTS = 64;
+
+  private final Comparator<KEY> comparator;
+  private final NavigableMap<KEY, StoreLink<KEY, VALUE>> index;
+
+  // The split points and how many index keys are between two of them. Set on
+  // the first split and shared (read-only) by every part after that.
+  private List<KEY> splits;
+  private long stride;
+
+  // This part covers the split points [low, high).
+  private int low;
+  private int high;
+
+  private StoreLink<KEY, VALUE> current;
+  private final KEY end;  // exclusive, or null to run to the end of the chain
+  private boolean started;
+
+  public LinkSpliterator(Comparator<KEY> comparator, NavigableMap<KEY, StoreLink<KEY, VALUE>> index) {
+    this.comparator = comparator;
+    this.index = index;
+    this.current = index.isEmpty() ? null : index.firstEntry().getValue();
+    this.end = null;
+  }
+
+  private LinkSpliterator(LinkSpliterator<KEY, VALUE> parent, int low, int high, KEY end) {
+    this.comparator = parent.comparator;
+    this.index = parent.index;
+    this.splits = parent.splits;
+    this.stride = parent.stride;
+    this.low = low;
+    this.high = high;
+    this.current = parent.current;
+    this.end = end;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super VALUE> action) {
+    if (current == null || (end != null && comparator.compare(current.key, end) >= 0)) {
+      return false;
+    }
+    started = true;
+    action.accept(current.value);
+    current = current.next;
+    return true;
+  }
+
+  @Override
+  public void forEachRemaining(Consumer<? super VALUE> action) {
+    while (tryAdvance(action)) {
+      // keep going
+    }
+  }
+
+  @Override
+  public Spliterator<VALUE> trySplit() {
+
+    if (started || current == null) {
+      return null;
+    }
+
+    if (splits == null) {
+      pickSplits();
+    }
+
+    if (high - low < 2) {
+      return null;
+    }
+
+    final int middle = (low + high) >>> 1;
+    final KEY middleKey = splits.get(middle);
+
+    final LinkSpliterator<KEY, VALUE> prefix = new LinkSpliterator<>(this, low, middle, middleKey);
+
+    low = middle;
+    current = index.get(middleKey);
+
+    return prefix;
+  }
+
+  @Override
+  public long estimateSize() {
+    return splits == null ? index.size() : (high - low) * stride;
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | NONNULL;
+  }
+
+  private void pickSplits() {
+
+    stride = Math.max(1, index.size() / SPLIT_POINTS);
+    splits = new ArrayList<>();
+
+    long position = 0;
+    for (final KEY key : index.keySet()) {
+      if (position % stride == 0) {
+        splits.add(key);
+      }
+      position += 1;
+    }
+
+    low = 0;
+    high = splits.size();
+  }
+}
@@ -0,0 +1,220 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.Random;
+
+// ORDER INDEX
+//
+// Counts how many values a store has for each key, in a balanced tree (a
+// treap) where every node also knows how many values are in its subtree. That
+// is enough to answer "how many values come before this key" and "which key
+// holds the k-th value" in O(log n) without walking the store's chain.
+//
+// Duplicate keys are one node with a count, so a key with many values costs no
+// more than a key with one.
+final class OrderIndex<KEY> {
+
+  private static final class Node<KEY> {
+
+    public final KEY key;
+    public final int priority;
+
+    public int count;   // values with this key
+    public long size;   // values in this subtree
+    public Node<KEY> left;
+    public Node<KEY> right;
+
+    public Node(KEY key, int count, int priority) {
+      this.key = key;
+      this.count = count;
+      this.size = count;
+      this.priority = priority;
+    }
+  }
+
+  private final Comparator<KEY> comparator;
+  private final Random random = new Random();
+
+  private Node<KEY> root;
+
+  public OrderIndex(Comparator<KEY> comparator) {
+    this.comparator = comparator;
+  }
+
+  // Total number of values.
+  public long size() {
+    return size(root);
+  }
+
+  public void add(KEY key, int count) {
+    root = add(root, key, count);
+  }
+
+  public void remove(KEY key, int count) {
+    root = remove(root, key, count);
+  }
+
+  // Number of values with a key less than "key".
+  public long rank(KEY key) {
+    long rank = 0;
+    Node<KEY> node = root;
+    while (node != null) {
+      final int order = comparator.compare(key, node.key);
+      if (order < 0) {
+        node = node.left;
+      } else if (order > 0) {
+        rank += size(node.left) + node.count;
+        node = node.right;
+      } else {
+        return rank + size(node.left);
+      }
+    }
+    return rank;
+  }
+
+  // Number of values with a key less than or equal to "key".
+  public long rankAtMost(KEY key) {
+    long rank = 0;
+    Node<KEY> node = root;
+    while (node != null) {
+      final int order = comparator.compare(key, node.key);
+      if (order < 0) {
+        node = node.left;
+      } else {
+        rank += size(node.left) + node.count;
+        if (order == 0) {
+          return rank;
+        }
+        node = node.right;
+      }
+    }
+    return rank;
+  }
+
+  // The key of the k-th value (counting from zero), or null if there are not
+  // that many values.
+  public KEY select(long k) {
+    Node<KEY> node = root;
+    while (node != null) {
+      final long left = size(node.left);
+      if (k < left) {
+        node = node.left;
+      } else if (k < left + node.count) {
+        return node.key;
+      } else {
+        k -= left + node.count;
+        node = node.right;
+      }
+    }
+    return null;
+  }
+
+  private Node<KEY> add(Node<KEY> node, KEY key, int count) {
+
+    if (node == null) {
+      return new Node<>(key, count, random.nextInt());
+    }
+
+    final int order = comparator.compare(key, node.key);
+
+    if (order == 0) {
+      node.count += count;
+    } else if (order < 0) {
+      node.left = add(node.left, key, count);
+      if (node.left.priority > node.priority) {
+        node = rotateRight(node);
+      }
+    } else {
+      node.right = add(node.right, key, count);
+      if (node.right.priority > node.priority) {
+        node = rotateLeft(node);
+      }
+    }
+
+    update(node);
+    return node;
+  }
+
+  private Node<KEY> remove(Node<KEY> node, KEY key, int count) {
+
+    if (node == null) {
+      return null;
+    }
+
+    final int order = comparator.compare(key, node.key);
+
+    if (order < 0) {
+      node.left = remove(node.left, key, count);
+    } else if (order > 0) {
+      node.right = remove(node.right, key, count);
+    } else {
+      node.count -= count;
+      if (node.count <= 0) {
+        return join(node.left, node.right);
+      }
+    }
+
+    update(node);
+    return node;
+  }
+
+  // Put two subtrees together where every key in "left" is less than every
+  // key in "right".
+  private Node<KEY> join(Node<KEY> left, Node<KEY> right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      left.right = join(left.right, right);
+      update(left);
+      return left;
+    } else {
+      right.left = join(left, right.left);
+      update(right);
+      return right;
+    }
+  }
+
+  private Node<KEY> rotateRight(Node<KEY> node) {
+    final Node<KEY> left = node.left;
+    node.left = left.right;
+    update(node);
+    left.right = node;
+    update(left);
+    return left;
+  }
+
+  private Node<KEY> rotateLeft(Node<KEY> node) {
+    final Node<KEY> right = node.right;
+    node.right = right.left;
+    update(node);
+    right.left = node;
+    update(right);
+    return right;
+  }
+
+  private static <KEY> void update(Node<KEY> node) {
+    node.size = size(node.left) + node.count + size(node.right);
+  }
+
+  private static <KEY> long size(Node<KEY> node) {
+    return node == null ? 0 : node.size;
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+
+// RANKED STORE
+//
+// A store that also keeps an "OrderIndex", so that it can count values and find
+// them by position (see "RankedStoreAccessor"). The index is updated on every
+// insert and remove, so only use this where counts or positions are asked for.
+public final class RankedStore<KEY, VALUE> extends Store<KEY, VALUE>
+    implements RankedStoreAccessor<KEY, VALUE> {
+
+  // Counts of values per key for the order statistics.
+  private final OrderIndex<KEY> order;
+
+  public RankedStore(Comparator<KEY> comparator) {
+    super(comparator);
+    this.order = new OrderIndex<>(comparator);
+  }
+
+  @Override
+  void added(KEY key, int count) {
+    super.added(key, count);
+    order.add(key, count);
+  }
+
+  @Override
+  void removed(KEY key, int count) {
+    super.removed(key, count);
+    order.remove(key, count);
+  }
+
+  @Override
+  public long count(KEY start, KEY end) {
+    return Math.max(0, order.rankAtMost(end) - order.rank(start));
+  }
+
+  @Override
+  public long rank(KEY key) {
+    return order.rank(key);
+  }
+
+  @Override
+  public VALUE select(long k) {
+
+    final KEY key = order.select(k);
+    if (key == null) {
+      return null;
+    }
+
+    // The order index finds the run of equal keys. Walk the rest of the way
+    // inside the run.
+    StoreLink<KEY, VALUE> link = firstLink(key);
+    for (long skip = k - order.rank(key); skip > 0 && link != null; skip--) {
+      link = link.next;
+    }
+    return link == null ? null : link.value;
+  }
+}
@@ -0,0 +1,39 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+// RANKED STORE ACCESSOR
+//
+// A store accessor that can also count and find values by position without
+// iterating over them. Positions count every value, so a key with three values
+// takes up three positions.
+public interface RankedStoreAccessor<KEY, VALUE> extends StoreAccessor<KEY, VALUE> {
+
+  // Number of values in the store.
+  long size();
+
+  // Number of values with a key in [start, end], the same values that
+  // "range(start, end)" would return.
+  long count(KEY start, KEY end);
+
+  // Number of values with a key less than "key". This is the position the
+  // first value with "key" has (or would have).
+  long rank(KEY key);
+
+  // The value at position "k" (counting from zero), or null if there are not
+  // that many values.
+  VALUE select(long k);
+
+}
@@ -14,12 +14,22 @@
 
 package codeu.chat.util.store;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Spliterator;
 import java.util.TreeMap;
 
-public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
+// STORE
+//
+// Values in key order, as a chain of links with an index over the first link
+// of every key. Counting values by position costs an extra index that most
+// stores do not need - see "RankedStore" for a store that keeps one.
+public class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
   // To make the code simpler - use a dummy link for the first link in this
   // list. The root link is never read from. To avoid reading from this link
@@ -30,6 +40,8 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
   private final Comparator<KEY> comparator;
 
+  private long size;
+
   public Store(Comparator<KEY> comparator) {
     this.index = new TreeMap<>(comparator);
     this.comparator = comparator;
@@ -65,6 +77,91 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     if (closestLink == null || comparator.compare(newLink.key, closestLink.key) != 0) {
       index.put(key, newLink);
     }
+
+    added(key, 1);
+  }
+
+  // INSERT ALL
+  //
+  // Insert a batch of values. The result is the same as calling "insert" for
+  // each entry in order, but the batch is sorted once (a stable sort, so equal
+  // keys keep their order, and close to linear when the batch is already
+  // sorted) and then merged into the chain in a single pass instead of walking
+  // the chain again for every value.
+  //
+  // Loading into an empty store or merging into one that has values already
+  // costs one index update per new key.
+  public void insertAll(Collection<? extends Map.Entry<KEY, VALUE>> entries) {
+
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    final List<Map.Entry<KEY, VALUE>> sorted = new ArrayList<>(entries);
+    Collections.sort(sorted, new Comparator<Map.Entry<KEY, VALUE>>() {
+      @Override
+      public int compare(Map.Entry<KEY, VALUE> a, Map.Entry<KEY, VALUE> b) {
+        return comparator.compare(a.getKey(), b.getKey());
+      }
+    });
+
+    if (rootLink.next == null && index.isEmpty()) {
+      load(sorted);
+    } else {
+      merge(sorted);
+    }
+  }
+
+  // Build the chain and the index from nothing. "sorted" must be sorted.
+  private void load(List<Map.Entry<KEY, VALUE>> sorted) {
+
+    StoreLink<KEY, VALUE> current = rootLink;
+    for (final Map.Entry<KEY, VALUE> entry : sorted) {
+      final StoreLink<KEY, VALUE> newLink = new StoreLink<>(entry.getKey(), entry.getValue(), null);
+      // Same rule as "insert" - only the first link of a run of equal keys is
+      // in the index.
+      if (current == rootLink || comparator.compare(current.key, newLink.key) != 0) {
+        index.put(newLink.key, newLink);
+      }
+      current.next = newLink;
+      current = newLink;
+      added(newLink.key, 1);
+    }
+  }
+
+  // Merge a sorted batch into the chain. Both are in order, so the chain is
+  // only ever walked forward. When a value does not go right after the last
+  // one, it jumps ahead through the index to the closest link before it, so a
+  // small batch going into a big store does not walk the whole chain.
+  private void merge(List<Map.Entry<KEY, VALUE>> sorted) {
+
+    StoreLink<KEY, VALUE> current = rootLink;
+    for (final Map.Entry<KEY, VALUE> entry : sorted) {
+
+      final KEY key = entry.getKey();
+      if (current.next != null && comparator.compare(current.next.key, key) <= 0) {
+        final StoreLink<KEY, VALUE> closestLink = floor(key);
+        if (closestLink != null &&
+            (current == rootLink || comparator.compare(closestLink.key, current.key) > 0)) {
+          current = closestLink;
+        }
+      }
+      while (current.next != null && comparator.compare(current.next.key, key) <= 0) {
+        current = current.next;
+      }
+
+      final StoreLink<KEY, VALUE> newLink = new StoreLink<>(key, entry.getValue(), current.next);
+
+      // Same rule as "insert" - only the first link of a run of equal keys is
+      // in the index.
+      if (current == rootLink || comparator.compare(current.key, key) != 0) {
+        index.put(key, newLink);
+      }
+
+      current.next = newLink;
+      current = newLink;
+      added(key, 1);
+    }
   }
 
   /**
@@ -80,18 +177,79 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
   public VALUE remove(KEY key) {
     StoreLink<KEY, VALUE> target = index.get(key);
     if (target == null) return null;
+    int removed = 0;
+    StoreLink<KEY, VALUE> remaining = null;
     for(StoreLink<KEY, VALUE> current = rootLink; current != null && current.next != null; current = current.next) {
       // Find the key that is previous to our target
       if (comparator.compare(current.next.key, target.key) == 0) {
         // Now set that previous key to two steps ahead of the found key (i.e. jump over our target)
         // This can be null, but there is no need to check for that - it'll just assign null by itself
         current.next = current.next.next;
+        removed += 1;
+        // The link that we land on may have the same key. If it does, it is
+        // the first one left with that key and the index needs to point at it.
+        if (remaining == null &&
+            current.next != null &&
+            comparator.compare(current.next.key, target.key) == 0) {
+          remaining = current.next;
+        }
       }
     }
-    index.remove(key);
+    if (remaining == null) {
+      index.remove(key);
+    } else {
+      index.put(key, remaining);
+    }
+    removed(key, removed);
     return target.value;
   }
 
+  // REMOVE
+  //
+  // Unlink exactly one value - the one that is "value" (the same object) and
+  // has "key". Other values with the same key are left alone. Returns false if
+  // the value was not in the store.
+  public boolean remove(KEY key, VALUE value) {
+
+    final StoreLink<KEY, VALUE> first = index.get(key);
+    if (first == null) {
+      return false;
+    }
+
+    // Start from the run before this one to find the link before "first".
+    final StoreLink<KEY, VALUE> lower = extract(index.lowerEntry(key));
+    StoreLink<KEY, VALUE> previous = lower == null ? rootLink : lower;
+    while (previous.next != null && previous.next != first) {
+      previous = previous.next;
+    }
+    if (previous.next == null) {
+      return false;
+    }
+
+    for (StoreLink<KEY, VALUE> current = first;
+         current != null && comparator.compare(current.key, key) == 0;
+         previous = current, current = current.next) {
+
+      if (current.value == value) {
+
+        previous.next = current.next;
+
+        if (current == first) {
+          if (current.next != null && comparator.compare(current.next.key, key) == 0) {
+            index.put(key, current.next);
+          } else {
+            index.remove(key);
+          }
+        }
+
+        removed(key, 1);
+        return true;
+      }
+    }
+
+    return false;
+  }
+
   @Override
   public VALUE first(KEY key) {
     final StoreLink<KEY, VALUE> link = index.get(key);
@@ -103,6 +261,33 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     return new LinkIterable<KEY, VALUE>(comparator, first(), last());
   }
 
+  // Number of values in the store.
+  public long size() {
+    return size;
+  }
+
+  // ADDED / REMOVED
+  //
+  // Called after "count" values with "key" were linked in or unlinked, so that
+  // a subclass can keep extra counts in step with the chain.
+  void added(KEY key, int count) {
+    size += count;
+  }
+
+  void removed(KEY key, int count) {
+    size -= count;
+  }
+
+  // The first link with "key", or null if there is none.
+  StoreLink<KEY, VALUE> firstLink(KEY key) {
+    return index.get(key);
+  }
+
+  @Override
+  public Spliterator<VALUE> spliterator() {
+    return new LinkSpliterator<KEY, VALUE>(comparator, index);
+  }
+
   @Override
   public Iterable<VALUE> at(final KEY key) {
     return new LinkIterable<KEY, VALUE>(comparator, ceiling(key), floor(key));
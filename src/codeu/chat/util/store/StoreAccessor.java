@@ -14,6 +14,11 @@
 
 package codeu.chat.util.store;
 
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 public interface StoreAccessor<KEY, VALUE> {
 
   VALUE first(KEY key);
@@ -28,4 +33,23 @@ public interface StoreAccessor<KEY, VALUE> {
 
   Iterable<VALUE> range(KEY start, KEY end);
 
+  // SPLITERATOR
+  //
+  // Every value, in key order, as a spliterator. Stores that can split
+  // themselves into balanced parts override this. The default splits by
+  // copying batches off of "all()".
+  default Spliterator<VALUE> spliterator() {
+    return Spliterators.spliteratorUnknownSize(all().iterator(), Spliterator.ORDERED);
+  }
+
+  // STREAM
+  //
+  // Every value, in key order, without copying the values into a collection
+  // first. Call "parallel()" on the result for a fork-join scan. The store must
+  // not change until the stream is done, so only do this from the thread that
+  // owns the store and wait for the result there.
+  default Stream<VALUE> stream() {
+    return StreamSupport.stream(spliterator(), false);
+  }
+
 }
@@ -0,0 +1,199 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// TEXT ARENA
+//
+// Stores strings as UTF-8 slices of a direct (off-heap) buffer so that large
+// amounts of text do not need to be traced by the garbage collector. Each
+// string is referred to by a small int handle. The handle points into a slot
+// table that holds the offset and length of the slice, which means the arena
+// is free to move slices around without the owners of the handles knowing.
+//
+// Freeing a handle only marks its bytes as garbage. Once enough of the buffer
+// is garbage, the live slices are copied into a new buffer back to back. The
+// same copy is used when the buffer runs out of room.
+//
+// The arena uses int offsets, so a single arena holds at most 2 GB of text.
+public final class TextArena {
+
+  private static final int MIN_CAPACITY = 64 * 1024;
+  private static final int MIN_SLOTS = 64;
+
+  private static final long FREE_SLOT = -1;
+
+  private ByteBuffer buffer;
+
+  // Each slot packs the offset of a slice into the high 32 bits and its length
+  // into the low 32 bits. Free slots are chained through "freeSlots".
+  private long[] slots = new long[MIN_SLOTS];
+  private int[] freeSlots = new int[MIN_SLOTS];
+  private int freeCount;
+  private int slotCount;
+
+  private int end;      // first unused byte in the buffer
+  private int garbage;  // bytes in [0, end) that belong to freed handles
+
+  private long compactions;
+
+  public TextArena() {
+    this(MIN_CAPACITY);
+  }
+
+  public TextArena(int initialCapacity) {
+    this.buffer = ByteBuffer.allocateDirect(Math.max(MIN_CAPACITY, initialCapacity));
+  }
+
+  // ADD
+  //
+  // Copy the text into the arena and return the handle for it.
+  public synchronized int add(String text) {
+
+    final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+    if (buffer.capacity() - end < bytes.length) {
+      relocate(bytes.length);
+    }
+
+    final int offset = end;
+    final ByteBuffer target = buffer.duplicate();
+    target.position(offset);
+    target.put(bytes);
+    end += bytes.length;
+
+    final int handle = takeSlot();
+    slots[handle] = ((long) offset << 32) | bytes.length;
+    return handle;
+  }
+
+  // GET
+  //
+  // Decode the text for a handle. This allocates a new string on every call, so
+  // callers should only ask for it when the text is actually needed.
+  public synchronized String get(int handle) {
+
+    final long slot = slots[handle];
+
+    if (slot == FREE_SLOT) {
+      throw new IllegalArgumentException("Handle " + handle + " has been freed");
+    }
+
+    final byte[] bytes = new byte[length(slot)];
+    final ByteBuffer source = buffer.duplicate();
+    source.position(offset(slot));
+    source.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // FREE
+  //
+  // Release the space held by a handle. The handle must not be used after this.
+  public synchronized void free(int handle) {
+
+    final long slot = slots[handle];
+
+    if (slot == FREE_SLOT) {
+      return;
+    }
+
+    garbage += length(slot);
+    slots[handle] = FREE_SLOT;
+
+    if (freeCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+    }
+    freeSlots[freeCount++] = handle;
+
+    // Only compact once at least half of the buffer is garbage. This keeps the
+    // cost of each copy proportional to the amount of space it gives back.
+    if (garbage >= MIN_CAPACITY && garbage >= end / 2) {
+      relocate(0);
+    }
+  }
+
+  // The number of bytes held by live handles.
+  public synchronized long liveBytes() {
+    return end - garbage;
+  }
+
+  // The number of bytes reserved off-heap.
+  public synchronized long capacity() {
+    return buffer.capacity();
+  }
+
+  public synchronized long compactions() {
+    return compactions;
+  }
+
+  // Copy every live slice into a new buffer that has room for at least "extra"
+  // more bytes. Slots are rewritten in place so handles stay valid.
+  private void relocate(int extra) {
+
+    final long live = (long) end - garbage;
+
+    long capacity = Math.max(MIN_CAPACITY, buffer.capacity());
+    while (capacity < (live + extra) * 2 && capacity < Integer.MAX_VALUE) {
+      capacity *= 2;
+    }
+    if (live + extra > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Text arena is full");
+    }
+
+    final ByteBuffer next = ByteBuffer.allocateDirect((int) Math.min(capacity, Integer.MAX_VALUE));
+
+    int position = 0;
+    for (int handle = 0; handle < slotCount; handle++) {
+      final long slot = slots[handle];
+      if (slot != FREE_SLOT) {
+        final ByteBuffer source = buffer.duplicate();
+        source.position(offset(slot));
+        source.limit(offset(slot) + length(slot));
+        next.put(source);
+        slots[handle] = ((long) position << 32) | length(slot);
+        position += length(slot);
+      }
+    }
+
+    buffer = next;
+    end = position;
+    garbage = 0;
+    compactions += 1;
+  }
+
+  private int takeSlot() {
+
+    if (freeCount > 0) {
+      return freeSlots[--freeCount];
+    }
+
+    if (slotCount == slots.length) {
+      slots = Arrays.copyOf(slots, slots.length * 2);
+    }
+
+    return slotCount++;
+  }
+
+  private static int offset(long slot) {
+    return (int) (slot >>> 32);
+  }
+
+  private static int length(long slot) {
+    return (int) slot;
+  }
+}
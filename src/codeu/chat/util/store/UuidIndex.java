@@ -0,0 +1,303 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import codeu.chat.util.Uuid;
+
+// UUID INDEX
+//
+// A hash index from Uuid to value that is specialized for the shape of the ids
+// used by the server. Almost every id is either a single link or a link hanging
+// off a server root, so both fit in a single long. Those ids are stored in
+// open-addressed primitive arrays with no per-entry objects. Anything deeper
+// goes to a plain overflow map since it should be rare.
+//
+// When the table needs to grow, the new table is allocated and the old table is
+// drained a few slots at a time on every following operation. This means that
+// no single call ever has to pay for rehashing the whole table.
+public final class UuidIndex<VALUE> {
+
+  private static final byte EMPTY = 0;
+  private static final byte DEPTH_ONE = 1;
+  private static final byte DEPTH_TWO = 2;
+  private static final byte DELETED = 3;
+
+  private static final int MIN_CAPACITY = 16;
+
+  // The number of slots from the old table that are moved over to the new table
+  // on each operation while a resize is in progress.
+  private static final int MIGRATE_STEP = 8;
+
+  private static final long MASK = (1L << 32) - 1;
+
+  private static final class Table {
+
+    final long[] keys;
+    final byte[] states;
+    final Object[] values;
+    final int mask;
+    final int threshold;
+
+    int live;  // slots holding a value
+    int used;  // slots holding a value or a deleted marker
+
+    Table(int capacity) {
+      keys = new long[capacity];
+      states = new byte[capacity];
+      values = new Object[capacity];
+      mask = capacity - 1;
+      threshold = (capacity >> 1) + (capacity >> 2);  // 75% load
+    }
+
+    // Returns the slot holding the key or -1 if the key is not in the table.
+    int find(long key, byte depth) {
+      for (int slot = hash(key, depth) & mask; ; slot = (slot + 1) & mask) {
+        final byte state = states[slot];
+        if (state == EMPTY) {
+          return -1;
+        }
+        if (state == depth && keys[slot] == key) {
+          return slot;
+        }
+      }
+    }
+
+    // Inserts a key that is known not to be in the table.
+    void add(long key, byte depth, Object value) {
+      int slot = hash(key, depth) & mask;
+      while (states[slot] != EMPTY && states[slot] != DELETED) {
+        slot = (slot + 1) & mask;
+      }
+      if (states[slot] == EMPTY) {
+        used += 1;
+      }
+      keys[slot] = key;
+      states[slot] = depth;
+      values[slot] = value;
+      live += 1;
+    }
+
+    Object clear(int slot) {
+      final Object value = values[slot];
+      states[slot] = DELETED;
+      values[slot] = null;
+      live -= 1;
+      return value;
+    }
+  }
+
+  private Table table = new Table(MIN_CAPACITY);
+
+  // The table being drained while a resize is in progress, null otherwise.
+  private Table old;
+  private int migrated;
+
+  private final Map<Uuid, VALUE> overflow = new HashMap<>();
+
+  public VALUE get(Uuid id) {
+
+    final byte depth = depth(id);
+
+    if (depth == 0) {
+      return overflow.get(id);
+    }
+
+    final long key = pack(id, depth);
+
+    int slot = table.find(key, depth);
+    if (slot >= 0) {
+      return cast(table.values[slot]);
+    }
+
+    if (old != null) {
+      slot = old.find(key, depth);
+      if (slot >= 0) {
+        return cast(old.values[slot]);
+      }
+    }
+
+    return null;
+  }
+
+  public boolean contains(Uuid id) {
+    return get(id) != null;
+  }
+
+  // PUT IF ABSENT
+  //
+  // Map the id to the value unless the id is already mapped. This matches how
+  // "Store.first" treats duplicate keys - the first value inserted wins. Returns
+  // the value that the id is mapped to after the call.
+  public VALUE putIfAbsent(Uuid id, VALUE value) {
+
+    final byte depth = depth(id);
+
+    if (depth == 0) {
+      final VALUE current = overflow.get(id);
+      if (current != null) {
+        return current;
+      }
+      overflow.put(id, value);
+      return value;
+    }
+
+    migrate();
+
+    final long key = pack(id, depth);
+
+    final VALUE current = lookup(key, depth);
+    if (current != null) {
+      return current;
+    }
+
+    // Count whatever is still waiting in the old table against the current
+    // table. This guarantees that the old table can always be drained into the
+    // current table without filling it.
+    if (table.used + (old == null ? 0 : old.live) >= table.threshold) {
+      grow();
+    }
+
+    table.add(key, depth, value);
+    return value;
+  }
+
+  public VALUE remove(Uuid id) {
+
+    final byte depth = depth(id);
+
+    if (depth == 0) {
+      return overflow.remove(id);
+    }
+
+    migrate();
+
+    final long key = pack(id, depth);
+
+    int slot = table.find(key, depth);
+    if (slot >= 0) {
+      return cast(table.clear(slot));
+    }
+
+    if (old != null) {
+      slot = old.find(key, depth);
+      if (slot >= 0) {
+        return cast(old.clear(slot));
+      }
+    }
+
+    return null;
+  }
+
+  public int size() {
+    return table.live + (old == null ? 0 : old.live) + overflow.size();
+  }
+
+  private VALUE lookup(long key, byte depth) {
+
+    final int slot = table.find(key, depth);
+    if (slot >= 0) {
+      return cast(table.values[slot]);
+    }
+
+    if (old != null) {
+      final int oldSlot = old.find(key, depth);
+      if (oldSlot >= 0) {
+        return cast(old.values[oldSlot]);
+      }
+    }
+
+    return null;
+  }
+
+  // Start a resize. If a previous resize has not finished yet, finish it first
+  // so that there are never more than two tables at once. The new capacity is
+  // picked from the live count so that tables full of deleted markers are
+  // rebuilt at the same size instead of growing forever.
+  private void grow() {
+
+    while (old != null) {
+      migrate();
+    }
+
+    int capacity = MIN_CAPACITY;
+    while (capacity >> 1 <= table.live) {
+      capacity <<= 1;
+    }
+
+    old = table;
+    migrated = 0;
+    table = new Table(capacity);
+  }
+
+  // Move a few slots from the old table over to the current table.
+  private void migrate() {
+
+    if (old == null) {
+      return;
+    }
+
+    final int end = Math.min(old.states.length, migrated + MIGRATE_STEP);
+
+    for (; migrated < end; migrated++) {
+      final byte state = old.states[migrated];
+      if (state == DEPTH_ONE || state == DEPTH_TWO) {
+        table.add(old.keys[migrated], state, old.values[migrated]);
+        old.clear(migrated);
+      }
+    }
+
+    if (migrated == old.states.length) {
+      old = null;
+    }
+  }
+
+  // Returns how many links are in the id if the id can be packed into a long and
+  // zero if it needs to go into the overflow map.
+  private static byte depth(Uuid id) {
+    if (id.root() == null) {
+      return DEPTH_ONE;
+    }
+    if (id.root().root() == null) {
+      return DEPTH_TWO;
+    }
+    return 0;
+  }
+
+  private static long pack(Uuid id, byte depth) {
+    return depth == DEPTH_ONE ?
+        (id.id() & MASK) :
+        ((long) id.root().id() << 32) | (id.id() & MASK);
+  }
+
+  // The final mix from MurmurHash3. Random ids are already well distributed but
+  // linear ids (like the ones the relay hands out) are not.
+  private static int hash(long key, byte depth) {
+    long h = key ^ ((long) depth << 61);
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T cast(Object value) {
+    return (T) value;
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Spliterator;
+
+import codeu.chat.util.Uuid;
+
+// UUID STORE
+//
+// A store keyed by Uuid that answers point lookups ("first") from a hash index
+// and everything that needs order from a normal Store. Both are updated on every
+// insert and remove so they always agree.
+public final class UuidStore<VALUE> implements StoreAccessor<Uuid, VALUE> {
+
+  private final Store<Uuid, VALUE> store;
+  private final UuidIndex<VALUE> index = new UuidIndex<>();
+
+  public UuidStore(Comparator<Uuid> comparator) {
+    this.store = new Store<>(comparator);
+  }
+
+  public void insert(Uuid key, VALUE value) {
+    store.insert(key, value);
+    index.putIfAbsent(key, value);
+  }
+
+  public void insertAll(Collection<? extends Map.Entry<Uuid, VALUE>> entries) {
+    store.insertAll(entries);
+    for (final Map.Entry<Uuid, VALUE> entry : entries) {
+      index.putIfAbsent(entry.getKey(), entry.getValue());
+    }
+  }
+
+  public VALUE remove(Uuid key) {
+    index.remove(key);
+    return store.remove(key);
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  @Override
+  public VALUE first(Uuid key) {
+    return index.get(key);
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return store.all();
+  }
+
+  @Override
+  public Spliterator<VALUE> spliterator() {
+    return store.spliterator();
+  }
+
+  @Override
+  public Iterable<VALUE> at(Uuid key) {
+    return store.at(key);
+  }
+
+  @Override
+  public Iterable<VALUE> after(Uuid start) {
+    return store.after(start);
+  }
+
+  @Override
+  public Iterable<VALUE> before(Uuid end) {
+    return store.before(end);
+  }
+
+  @Override
+  public Iterable<VALUE> range(Uuid start, Uuid end) {
+    return store.range(start, end);
+  }
+}
@@ -23,13 +23,27 @@ public final class TestRunner {
      final Result result =
          JUnitCore.runClasses(
              codeu.chat.common.SecretTest.class,
+             codeu.chat.relay.RelayLogTest.class,
+             codeu.chat.relay.ServerFrontEndTest.class,
              codeu.chat.relay.ServerTest.class,
              codeu.chat.server.BasicControllerTest.class,
              codeu.chat.server.RawControllerTest.class,
+             codeu.chat.server.MessagePageTest.class,
+             codeu.chat.server.MessageTierTest.class,
              codeu.chat.server.PersistenceTest.class,
+             codeu.chat.server.RelayClusterTest.class,
+             codeu.chat.server.RelayOutboxTest.class,
+             codeu.chat.server.ServerRestartTest.class,
+             codeu.chat.server.ShardTest.class,
+             codeu.chat.util.AdminServerTest.class,
+             codeu.chat.util.LatencyHistogramTest.class,
+             codeu.chat.util.LogBufferTest.class,
              codeu.chat.util.TimeTest.class,
+             codeu.chat.util.TimelineTest.class,
              codeu.chat.util.UuidTest.class,
-             codeu.chat.util.store.StoreTest.class
+             codeu.chat.util.store.StoreTest.class,
+             codeu.chat.util.store.TextArenaTest.class,
+             codeu.chat.util.store.UuidIndexTest.class
          );
       for (final Failure failure : result.getFailures()) {
          System.out.println(failure.toString());
@@ -0,0 +1,313 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayLogTest {
+
+  private static final File LOG_PATH = new File("storage_test", "relay_log");
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  private RelayLog log;
+
+  @Before
+  public void doBefore() throws IOException {
+    clear();
+    log = open(1 << 20);
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    log.close();
+    clear();
+  }
+
+  @Test
+  public void testAppendAndRead() throws IOException {
+
+    assertEquals(0, log.first());
+    assertEquals(0, log.last());
+    assertTrue(log.read(1, 10).isEmpty());
+
+    for (int id = 1; id <= 100; id++) {
+      log.append(bundle(id));
+    }
+
+    assertEquals(1, log.first());
+    assertEquals(100, log.last());
+
+    final List<Relay.Bundle> read = log.read(40, 10);
+    assertEquals(10, read.size());
+    assertEquals(40, read.get(0).id().id());
+    assertEquals(49, read.get(9).id().id());
+    assertEquals("message 40", read.get(0).message().text());
+    assertTrue(Uuid.equals(TEAM, read.get(0).team()));
+
+    assertTrue(log.read(101, 10).isEmpty());
+  }
+
+  @Test
+  public void testReadAcrossSegments() throws IOException {
+
+    log.close();
+    log = open(2 * RelayLog.INDEX_INTERVAL_BYTES);
+
+    for (int id = 1; id <= 1000; id++) {
+      log.append(bundle(id));
+    }
+
+    assertTrue(log.segments() > 1);
+
+    // Every id has to be found, wherever it falls in a segment and its index.
+    for (int id = 1; id <= 1000; id += 7) {
+      final List<Relay.Bundle> read = log.read(id, 3);
+      assertEquals(Math.min(3, 1001 - id), read.size());
+      assertEquals(id, read.get(0).id().id());
+    }
+
+    assertEquals(1000, log.read(1, 5000).size());
+  }
+
+  @Test
+  public void testReopen() throws IOException {
+
+    for (int id = 1; id <= 50; id++) {
+      log.append(bundle(id));
+    }
+    log.close();
+
+    log = open(1 << 20);
+    assertEquals(1, log.first());
+    assertEquals(50, log.last());
+
+    log.append(bundle(51));
+    assertEquals(51, log.read(51, 1).get(0).id().id());
+    assertEquals(51, log.read(1, 100).size());
+  }
+
+  @Test
+  public void testReopenCutsOffPartialRecord() throws IOException {
+
+    for (int id = 1; id <= 10; id++) {
+      log.append(bundle(id));
+    }
+    final long whole = log.bytes();
+    log.close();
+
+    // Half of a record, as if the relay died while writing it.
+    try (final RandomAccessFile file = new RandomAccessFile(segmentFile(1), "rw")) {
+      file.seek(whole);
+      file.writeInt(100);
+      file.writeInt(0);
+    }
+
+    log = open(1 << 20);
+    assertEquals(10, log.last());
+    assertEquals(whole, log.bytes());
+
+    log.append(bundle(11));
+    assertEquals(11, log.read(1, 100).size());
+  }
+
+  @Test
+  public void testRetainBySize() throws IOException {
+
+    log.close();
+    log = new RelayLog(LOG_PATH, RelayLog.INDEX_INTERVAL_BYTES, 4 * RelayLog.INDEX_INTERVAL_BYTES, 0);
+
+    for (int id = 1; id <= 1000; id++) {
+      log.append(bundle(id));
+    }
+
+    assertTrue(log.retain(System.currentTimeMillis()) > 0);
+    assertTrue(log.bytes() <= 4 * RelayLog.INDEX_INTERVAL_BYTES);
+    assertTrue(log.first() > 1);
+    assertEquals(1000, log.last());
+
+    // Reading from before the log starts gives what is left.
+    assertEquals(log.first(), log.read(1, 1).get(0).id().id());
+  }
+
+  @Test
+  public void testRetainByAge() throws IOException {
+
+    log.close();
+    log = new RelayLog(LOG_PATH, RelayLog.INDEX_INTERVAL_BYTES, 0, 60000);
+
+    for (int id = 1; id <= 200; id++) {
+      log.append(bundle(id));
+    }
+    final int segments = log.segments();
+
+    assertEquals(0, log.retain(System.currentTimeMillis()));
+
+    // The segment being written to always stays.
+    assertEquals(segments - 1, log.retain(System.currentTimeMillis() + 120000));
+    assertEquals(1, log.segments());
+    assertEquals(200, log.last());
+  }
+
+  @Test
+  public void testRetainByAgeKeepsCommitted() throws IOException {
+
+    log.close();
+    log = new RelayLog(LOG_PATH, RelayLog.INDEX_INTERVAL_BYTES, 0, 60000);
+
+    for (int id = 1; id <= 200; id++) {
+      log.append(bundle(id));
+    }
+    final long later = System.currentTimeMillis() + 120000;
+
+    // Every segment is old enough to go, but a team committed bundle 1 and
+    // still needs everything after it.
+    assertEquals(0, log.retain(later, 1));
+    assertEquals(1, log.first());
+
+    // Only the segments that end at or before the cursor go.
+    assertTrue(log.retain(later, 100) > 0);
+    assertTrue(log.first() > 1);
+    assertTrue(log.first() <= 101);
+    assertEquals(101, log.read(101, 1).get(0).id().id());
+  }
+
+  @Test
+  public void testCommittedCursorsSurviveRestart() throws Exception {
+
+    final File file = new File(LOG_PATH, "cursors");
+
+    Server relay = new Server(4, 100, 100, log, new TeamCursors(file));
+    assertTrue(relay.addTeam(TEAM, SECRET));
+    for (int i = 0; i < 10; i++) {
+      write(relay);
+    }
+    assertTrue(relay.commit(TEAM, SECRET, new Uuid(7)));
+    log.close();
+
+    log = open(1 << 20);
+    relay = new Server(4, 100, 100, log, new TeamCursors(file));
+    assertTrue(relay.addTeam(TEAM, SECRET));
+
+    final Uuid committed = relay.committed(TEAM, SECRET);
+    assertTrue(Uuid.equals(new Uuid(7), committed));
+    assertEquals(7, relay.oldestCommitted());
+
+    // The team carries on from there, going back to the log for what has
+    // left the history.
+    final Collection<Relay.Bundle> after = relay.read(TEAM, SECRET, committed, 100);
+    assertEquals(relay.newest() - 7, after.size());
+    assertEquals(8, after.iterator().next().id().id());
+  }
+
+  @Test
+  public void testServerReadsBeforeHistoryFromLog() throws Exception {
+
+    Server relay = new Server(4, 100, 100, log);
+    assertTrue(relay.addTeam(TEAM, SECRET));
+
+    for (int i = 0; i < 20; i++) {
+      write(relay);
+    }
+
+    final Collection<Relay.Bundle> all = relay.read(TEAM, SECRET, Uuid.NULL, 100);
+    assertEquals(20, all.size());
+    assertEquals(1, relay.logReads());
+
+    // A restarted relay carries on with the ids after the ones in the log and
+    // still knows cursors from before the restart.
+    final long newest = log.last();
+    log.close();
+    log = open(1 << 20);
+
+    relay = new Server(4, 100, 100, log);
+    assertTrue(relay.addTeam(TEAM, SECRET));
+    assertEquals(4, relay.historySize());
+
+    write(relay);
+
+    final Collection<Relay.Bundle> after =
+        relay.read(TEAM, SECRET, new Uuid((int) newest - 10), 100);
+    assertEquals(11, after.size());
+
+    long expected = newest - 9;
+    for (final Relay.Bundle bundle : after) {
+      assertEquals(expected, bundle.id().id());
+      expected += 1;
+    }
+  }
+
+  private RelayLog open(long segmentBytes) throws IOException {
+    return new RelayLog(LOG_PATH, segmentBytes, 0, 0);
+  }
+
+  private static void write(Server relay) {
+    assertTrue(relay.write(TEAM,
+                           SECRET,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(6), "Hello World", Time.now())));
+  }
+
+  private static Relay.Bundle bundle(int id) {
+    final Server relay = new Server(1, 1);
+    final Relay.Bundle.Component user = relay.pack(new Uuid(4), "user", Time.fromMs(id));
+    final Relay.Bundle.Component conversation = relay.pack(new Uuid(5), "conversation", Time.fromMs(id));
+    final Relay.Bundle.Component message = relay.pack(new Uuid(1000 + id), "message " + id, Time.fromMs(id));
+    return new Relay.Bundle() {
+      @Override
+      public Uuid id() { return new Uuid(id); }
+      @Override
+      public Time time() { return Time.fromMs(id); }
+      @Override
+      public Uuid team() { return TEAM; }
+      @Override
+      public Relay.Bundle.Component user() { return user; }
+      @Override
+      public Relay.Bundle.Component conversation() { return conversation; }
+      @Override
+      public Relay.Bundle.Component message() { return message; }
+    };
+  }
+
+  private static File segmentFile(long firstId) {
+    return new File(LOG_PATH, String.format("%020d.log", firstId));
+  }
+
+  private static void clear() {
+    final File[] files = LOG_PATH.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+  }
+}
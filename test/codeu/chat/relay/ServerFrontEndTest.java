@@ -0,0 +1,284 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ComponentDictionary;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Timeline;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+
+public final class ServerFrontEndTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+  private static final Uuid OTHER_TEAM = new Uuid(7);
+  // When the user and conversation in every write were made.
+  private static final Time CREATION = Time.now();
+  private static final Secret OTHER_SECRET = new Secret((byte)0x03, (byte)0x04, (byte)0x05);
+
+  // A connection that reads a request from memory and records the response.
+  private static final class MemoryConnection implements Connection {
+
+    final ByteArrayInputStream in;
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final CountDownLatch closed = new CountDownLatch(1);
+
+    MemoryConnection(byte[] request) {
+      this.in = new ByteArrayInputStream(request);
+    }
+
+    @Override
+    public InputStream in() { return in; }
+
+    @Override
+    public OutputStream out() { return out; }
+
+    @Override
+    public void close() { closed.countDown(); }
+  }
+
+  private Timeline timeline;
+  private Server relay;
+  private ServerFrontEnd frontEnd;
+
+  @Before
+  public void doBefore() {
+    timeline = new Timeline("relay", 1, Integer.MAX_VALUE);
+    relay = new Server(8, 1, 4, null);
+    relay.addTeam(TEAM, SECRET);
+    relay.addTeam(OTHER_TEAM, OTHER_SECRET);
+    frontEnd = new ServerFrontEnd(relay, timeline);
+  }
+
+  @After
+  public void doAfter() {
+    timeline.stop();
+    timeline.join();
+  }
+
+  @Test
+  public void testPollAnsweredRightAway() throws Exception {
+
+    for (int i = 0; i < 6; i++) {
+      write();
+    }
+
+    final MemoryConnection connection = poll(Uuid.NULL, 100, 60000);
+    assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+
+    // Polls are limited by "maxPoll" rather than "maxRead".
+    assertEquals(4, response(connection).size());
+  }
+
+  @Test
+  public void testPollHeldUntilWrite() throws Exception {
+
+    final MemoryConnection connection = poll(Uuid.NULL, 100, 60000);
+
+    assertFalse(connection.closed.await(100, TimeUnit.MILLISECONDS));
+    assertEquals(1, (int) timeline.ask(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return relay.waiting();
+      }
+    }));
+
+    write();
+
+    assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+    assertEquals(1, response(connection).size());
+    assertEquals(0, (int) timeline.ask(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return relay.waiting();
+      }
+    }));
+  }
+
+  @Test
+  public void testPollTimesOut() throws Exception {
+
+    final MemoryConnection connection = poll(Uuid.NULL, 100, 50);
+
+    assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+    assertTrue(response(connection).isEmpty());
+    assertEquals(0, (int) timeline.ask(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return relay.waiting();
+      }
+    }));
+  }
+
+  @Test
+  public void testFilteredPollIgnoresOwnWrites() throws Exception {
+
+    final MemoryConnection connection = poll(Uuid.NULL, 100, 60000, RelayFilter.FOREIGN);
+
+    // The team's own bundle does not pass, so the poll goes back to waiting.
+    write();
+    assertFalse(connection.closed.await(200, TimeUnit.MILLISECONDS));
+
+    write(OTHER_TEAM, OTHER_SECRET);
+    assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+
+    final InputStream in = new ByteArrayInputStream(connection.out.toByteArray());
+    assertEquals(NetworkCode.RELAY_FILTERED_POLL_RESPONSE, (int) Serializers.INTEGER.read(in));
+    final Uuid next = Uuid.SERIALIZER.read(in);
+    final Collection<Relay.Bundle> bundles = Serializers.collection(ServerFrontEnd.BUNDLE_SERIALIZER).read(in);
+
+    assertEquals(1, bundles.size());
+    for (final Relay.Bundle bundle : bundles) {
+      assertTrue(Uuid.equals(OTHER_TEAM, bundle.team()));
+      assertTrue(Uuid.equals(next, bundle.id()));
+    }
+  }
+
+  @Test
+  public void testFilteredPollTimesOutPastOwnWrites() throws Exception {
+
+    write();
+    write();
+
+    final MemoryConnection connection = poll(Uuid.NULL, 100, 50, RelayFilter.FOREIGN);
+    assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+
+    // Nothing passed, but the cursor still moved past both bundles.
+    final InputStream in = new ByteArrayInputStream(connection.out.toByteArray());
+    assertEquals(NetworkCode.RELAY_FILTERED_POLL_RESPONSE, (int) Serializers.INTEGER.read(in));
+    assertEquals(3, Uuid.SERIALIZER.read(in).id());
+    assertTrue(Serializers.collection(ServerFrontEnd.BUNDLE_SERIALIZER).read(in).isEmpty());
+  }
+
+  @Test
+  public void testCompactPoll() throws Exception {
+
+    for (int i = 0; i < 4; i++) {
+      write(OTHER_TEAM, OTHER_SECRET);
+    }
+
+    final MemoryConnection connection =
+        poll(Uuid.NULL, 100, 60000, RelayFilter.FOREIGN, NetworkCode.RELAY_COMPACT_POLL_REQUEST);
+    assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+
+    final InputStream in = new ByteArrayInputStream(connection.out.toByteArray());
+    assertEquals(NetworkCode.RELAY_COMPACT_POLL_RESPONSE, (int) Serializers.INTEGER.read(in));
+    assertEquals(5, Uuid.SERIALIZER.read(in).id());
+
+    final ComponentDictionary dictionary = ServerFrontEnd.dictionary();
+    final Collection<Relay.Bundle> bundles =
+        Serializers.collection(ServerFrontEnd.bundles(dictionary)).read(in);
+
+    // Every bundle has the same user and conversation, so they were sent in
+    // full once and then only as handles.
+    assertEquals(4, bundles.size());
+    assertEquals(2, dictionary.size());
+    assertEquals(6, dictionary.references());
+
+    Relay.Bundle.Component user = null;
+    for (final Relay.Bundle bundle : bundles) {
+      assertEquals("User", bundle.user().text());
+      assertEquals("Conversation", bundle.conversation().text());
+      assertEquals("Hello World", bundle.message().text());
+      if (user != null) {
+        assertSame(user, bundle.user());
+      }
+      user = bundle.user();
+    }
+
+    assertEquals(2, frontEnd.componentsInFull());
+    assertEquals(6, frontEnd.componentsByHandle());
+  }
+
+  private MemoryConnection poll(Uuid root, int range, long waitMs) throws IOException {
+    return poll(root, range, waitMs, null);
+  }
+
+  private MemoryConnection poll(Uuid root, int range, long waitMs, RelayFilter filter) throws IOException {
+    return poll(root, range, waitMs, filter, filter == null ?
+                                                 NetworkCode.RELAY_POLL_REQUEST :
+                                                 NetworkCode.RELAY_FILTERED_POLL_REQUEST);
+  }
+
+  private MemoryConnection poll(Uuid root, int range, long waitMs, RelayFilter filter, int code)
+      throws IOException {
+
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, code);
+    Uuid.SERIALIZER.write(request, TEAM);
+    Secret.SERIALIZER.write(request, SECRET);
+    Uuid.SERIALIZER.write(request, root);
+    Serializers.INTEGER.write(request, range);
+    Serializers.LONG.write(request, waitMs);
+    if (filter != null) {
+      RelayFilter.SERIALIZER.write(request, filter);
+    }
+
+    final MemoryConnection connection = new MemoryConnection(request.toByteArray());
+    timeline.ask(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        frontEnd.handleConnection(connection);
+        return true;
+      }
+    });
+    return connection;
+  }
+
+  private void write() {
+    write(TEAM, SECRET);
+  }
+
+  private void write(final Uuid team, final Secret secret) {
+    timeline.ask(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return relay.write(team,
+                           secret,
+                           relay.pack(new Uuid(4), "User", CREATION),
+                           relay.pack(new Uuid(5), "Conversation", CREATION),
+                           relay.pack(new Uuid(6), "Hello World", Time.now()));
+      }
+    });
+  }
+
+  private static Collection<Relay.Bundle> response(MemoryConnection connection) throws IOException {
+    final InputStream in = new ByteArrayInputStream(connection.out.toByteArray());
+    assertEquals(NetworkCode.RELAY_POLL_RESPONSE, (int) Serializers.INTEGER.read(in));
+    return Serializers.collection(ServerFrontEnd.BUNDLE_SERIALIZER).read(in);
+  }
+}
@@ -14,13 +14,17 @@
 
 package codeu.chat.relay;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.junit.Before;
 
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCursorException;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
@@ -89,7 +93,7 @@ public final class ServerTest {
   }
 
   @Test
-  public void testWriteAndReadSuccess() {
+  public void testWriteAndReadSuccess() throws Exception {
 
     final Server relay = new Server(8, 8);
 
@@ -154,7 +158,7 @@ public final class ServerTest {
   }
 
   @Test
-  public void testReadLimited() {
+  public void testReadLimited() throws Exception {
 
     final Server relay = new Server(8, 1);
 
@@ -181,7 +185,7 @@ public final class ServerTest {
   }
 
   @Test
-  public void testHistoryOverwrite() {
+  public void testHistoryOverwrite() throws Exception {
 
     final Server relay = new Server(1, 8);
 
@@ -217,7 +221,7 @@ public final class ServerTest {
   }
 
   @Test
-  public void testReadWithMissingRoot() {
+  public void testReadWithUnknownRoot() {
 
     final Server relay = new Server(8, 8);
 
@@ -232,22 +236,99 @@ public final class ServerTest {
                            relay.pack(new Uuid(5), "Conversation", Time.now()),
                            relay.pack(new Uuid(6), "Hello World", Time.now())));
 
-    final Collection<Relay.Bundle> read = relay.read(team, secret, new Uuid(7), 1);
-    assertTrue(read.size() == 1);
+    // The relay has only made bundle 2, so it can not know bundle 7.
+    try {
+      relay.read(team, secret, new Uuid(7), 1);
+      fail("Expected the cursor to be unknown");
+    } catch (RelayCursorException ex) {
+      assertEquals(RelayCursorException.Reason.UNKNOWN, ex.reason());
+    }
 
-    // By the assertion above this loop should only execute once as there should only
-    // be a single value in the collection.
+    assertEquals(1, relay.unknownCursors());
+  }
 
-    for (final Relay.Bundle bundle : read) {
-      assertTrue(Uuid.equals(bundle.team(), team));
-      assertTrue(Uuid.equals(bundle.user().id(), new Uuid(4)));
-      assertTrue(Uuid.equals(bundle.conversation().id(), new Uuid(5)));
-      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(6)));
+  @Test
+  public void testReadWithEvictedRoot() throws Exception {
+
+    final Server relay = new Server(2, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(10 + i), "Hello World", Time.now())));
     }
+
+    // Bundles 2 to 5 were written and only 4 and 5 are left. Reading after 3
+    // loses nothing, but reading after 2 would skip 3.
+    assertEquals(2, relay.read(team, secret, new Uuid(3), 8).size());
+
+    try {
+      relay.read(team, secret, new Uuid(2), 8);
+      fail("Expected the cursor to be evicted");
+    } catch (RelayCursorException ex) {
+      assertEquals(RelayCursorException.Reason.EVICTED, ex.reason());
+    }
+
+    assertEquals(1, relay.evictedCursors());
   }
 
   @Test
-  public void testReadMidHistory() {
+  public void testReadCaughtUp() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    assertTrue(relay.write(team,
+                           secret,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(6), "Hello World", Time.now())));
+
+    assertTrue(relay.read(team, secret, new Uuid(2), 8).isEmpty());
+  }
+
+  @Test
+  public void testReadAcrossWrap() throws Exception {
+
+    final Server relay = new Server(3, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    for (int i = 0; i < 7; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(10 + i), "Hello World", Time.now())));
+    }
+
+    assertEquals(3, relay.historySize());
+
+    // Bundles 2 to 8 were written, so 6, 7 and 8 are left, oldest first.
+    int expected = 6;
+    for (final Relay.Bundle bundle : relay.read(team, secret, Uuid.NULL, 8)) {
+      assertTrue(Uuid.equals(bundle.id(), new Uuid(expected)));
+      expected += 1;
+    }
+    assertEquals(9, expected);
+  }
+
+  @Test
+  public void testReadMidHistory() throws Exception {
 
     final Server relay = new Server(8, 8);
 
@@ -287,4 +368,325 @@ public final class ServerTest {
       assertTrue(Uuid.equals(bundle.id(), new Uuid(3)));
     }
   }
+
+  @Test
+  public void testWriteBatch() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+    final Secret wrongSecret = new Secret((byte)0x00, (byte)0x01, (byte)0x03);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final List<Relay.Write> writes = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      final Relay.Bundle.Component user = relay.pack(new Uuid(4), "User", Time.now());
+      final Relay.Bundle.Component conversation = relay.pack(new Uuid(5), "Conversation", Time.now());
+      final Relay.Bundle.Component message = relay.pack(new Uuid(10 + i), "Hello World", Time.now());
+      writes.add(new Relay.Write() {
+        @Override
+        public Relay.Bundle.Component user() { return user; }
+        @Override
+        public Relay.Bundle.Component conversation() { return conversation; }
+        @Override
+        public Relay.Bundle.Component message() { return message; }
+      });
+    }
+
+    assertEquals(0, relay.write(team, wrongSecret, writes));
+    assertEquals(3, relay.write(team, secret, writes));
+    assertEquals(3, relay.writes());
+
+    int expected = 10;
+    for (final Relay.Bundle bundle : relay.read(team, secret, Uuid.NULL, 8)) {
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(expected)));
+      expected += 1;
+    }
+    assertEquals(13, expected);
+  }
+
+  @Test
+  public void testConcurrentWritesAndReads() throws Exception {
+
+    // A small history so that the writers go around it many times while the
+    // readers are still in it.
+    final Server relay = new Server(16, 16);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+    final Uuid other = new Uuid(7);
+    final Secret otherSecret = new Secret((byte)0x03, (byte)0x04, (byte)0x05);
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(other, otherSecret));
+
+    final int writers = 4;
+    final int writesEach = 2000;
+    final List<Throwable> failures = new ArrayList<>();
+    final List<Thread> threads = new ArrayList<>();
+
+    // Half the writers write for the other team, for the filtered reader.
+    for (int w = 0; w < writers; w++) {
+      final Uuid writer = w % 2 == 0 ? team : other;
+      final Secret writerSecret = w % 2 == 0 ? secret : otherSecret;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < writesEach; i++) {
+            relay.write(writer,
+                        writerSecret,
+                        relay.pack(new Uuid(4), "User", Time.now()),
+                        relay.pack(new Uuid(5), "Conversation", Time.now()),
+                        relay.pack(new Uuid(6), "Hello World", Time.now()));
+          }
+        }
+      });
+    }
+
+    // Readers follow the writers. Whatever they get must carry on from their
+    // cursor with no gaps, unless they fell out of the history.
+    for (int r = 0; r < 2; r++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            Uuid cursor = Uuid.NULL;
+            while (relay.writes() < writers * writesEach) {
+              final Collection<Relay.Bundle> read;
+              try {
+                read = relay.read(team, secret, cursor, 16);
+              } catch (RelayCursorException ex) {
+                assertEquals(RelayCursorException.Reason.EVICTED, ex.reason());
+                cursor = Uuid.NULL;
+                continue;
+              }
+              long expected = Uuid.equals(cursor, Uuid.NULL) ? -1 : cursor.id() + 1;
+              for (final Relay.Bundle bundle : read) {
+                if (expected >= 0) {
+                  assertEquals(expected, bundle.id().id());
+                }
+                expected = bundle.id().id() + 1;
+                cursor = bundle.id();
+              }
+            }
+          } catch (Throwable ex) {
+            synchronized (failures) {
+              failures.add(ex);
+            }
+          }
+        }
+      });
+    }
+
+    // A filtered reader only ever sees the other team's bundles, oldest first.
+    threads.add(new Thread() {
+      @Override
+      public void run() {
+        try {
+          Uuid cursor = Uuid.NULL;
+          while (relay.writes() < writers * writesEach) {
+            final Relay.Page page;
+            try {
+              page = relay.poll(team, secret, cursor, 16, 0, RelayFilter.FOREIGN);
+            } catch (RelayCursorException ex) {
+              cursor = Uuid.NULL;
+              continue;
+            }
+            long previous = Uuid.equals(cursor, Uuid.NULL) ? 0 : cursor.id();
+            for (final Relay.Bundle bundle : page.bundles()) {
+              assertTrue(Uuid.equals(other, bundle.team()));
+              assertTrue(bundle.id().id() > previous);
+              previous = bundle.id().id();
+            }
+            assertTrue(page.next().id() >= previous);
+            cursor = page.next();
+          }
+        } catch (Throwable ex) {
+          synchronized (failures) {
+            failures.add(ex);
+          }
+        }
+      }
+    });
+
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(writers * writesEach, relay.writes());
+    assertEquals(16, relay.historySize());
+
+    // The relay's ids start at 2, so the newest bundle is "writes + 1".
+    long expected = writers * writesEach + 1 - 15;
+    for (final Relay.Bundle bundle : relay.read(team, secret, Uuid.NULL, 16)) {
+      assertEquals(expected, bundle.id().id());
+      expected += 1;
+    }
+    assertEquals(writers * writesEach + 2, expected);
+  }
+
+  @Test
+  public void testFilteredPoll() throws Exception {
+
+    final Server relay = new Server(16, 16);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+    final Uuid other = new Uuid(7);
+    final Secret otherSecret = new Secret((byte)0x03, (byte)0x04, (byte)0x05);
+    final Uuid third = new Uuid(8);
+    final Secret thirdSecret = new Secret((byte)0x06, (byte)0x07, (byte)0x08);
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(other, otherSecret));
+    assertTrue(relay.addTeam(third, thirdSecret));
+
+    // Bundles 2 to 10, in turns from each team. The third team writes to
+    // conversation 21, the others to conversation 20.
+    for (int i = 0; i < 3; i++) {
+      assertTrue(relay.write(team, secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(20), "Conversation", Time.now()),
+                             relay.pack(new Uuid(30 + i), "Hello World", Time.now())));
+      assertTrue(relay.write(other, otherSecret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(20), "Conversation", Time.now()),
+                             relay.pack(new Uuid(40 + i), "Hello World", Time.now())));
+      assertTrue(relay.write(third, thirdSecret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(21), "Conversation", Time.now()),
+                             relay.pack(new Uuid(50 + i), "Hello World", Time.now())));
+    }
+
+    final List<Uuid> none = new ArrayList<>();
+
+    // Everything but the team's own, oldest first.
+    final Relay.Page foreign = relay.poll(team, secret, Uuid.NULL, 16, 0, RelayFilter.FOREIGN);
+    assertEquals(6, foreign.bundles().size());
+    long previous = 0;
+    for (final Relay.Bundle bundle : foreign.bundles()) {
+      assertFalse(Uuid.equals(team, bundle.team()));
+      assertTrue(bundle.id().id() > previous);
+      previous = bundle.id().id();
+    }
+    assertEquals(10, foreign.next().id());
+
+    // Only one team.
+    final List<Uuid> thirdOnly = new ArrayList<>();
+    thirdOnly.add(third);
+    final Relay.Page teams =
+        relay.poll(team, secret, Uuid.NULL, 16, 0, new RelayFilter(true, thirdOnly, none));
+    assertEquals(3, teams.bundles().size());
+    for (final Relay.Bundle bundle : teams.bundles()) {
+      assertTrue(Uuid.equals(third, bundle.team()));
+    }
+
+    // Only one conversation.
+    final List<Uuid> conversation = new ArrayList<>();
+    conversation.add(new Uuid(20));
+    final Relay.Page conversations =
+        relay.poll(team, secret, Uuid.NULL, 16, 0, new RelayFilter(true, none, conversation));
+    assertEquals(3, conversations.bundles().size());
+    for (final Relay.Bundle bundle : conversations.bundles()) {
+      assertTrue(Uuid.equals(other, bundle.team()));
+    }
+
+    // A limited page stops at its last bundle, so nothing is skipped.
+    final Relay.Page first = relay.poll(team, secret, Uuid.NULL, 2, 0, RelayFilter.FOREIGN);
+    assertEquals(2, first.bundles().size());
+    assertEquals(4, first.next().id());
+    final Relay.Page rest = relay.poll(team, secret, first.next(), 16, 0, RelayFilter.FOREIGN);
+    assertEquals(4, rest.bundles().size());
+
+    // With only its own bundles after the cursor, the cursor still moves on.
+    assertTrue(relay.write(team, secret,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(20), "Conversation", Time.now()),
+                           relay.pack(new Uuid(60), "Hello World", Time.now())));
+    final Relay.Page own = relay.poll(team, secret, rest.next(), 16, 0, RelayFilter.FOREIGN);
+    assertTrue(own.bundles().isEmpty());
+    assertEquals(11, own.next().id());
+  }
+
+  @Test
+  public void testComponentsHeldOnce() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    // Every write brings its own copy of the same user and conversation, as
+    // writes read off the network do.
+    final Time time = Time.now();
+    for (int i = 0; i < 3; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), new String("User"), time),
+                             relay.pack(new Uuid(5), new String("Conversation"), time),
+                             relay.pack(new Uuid(10 + i), "Hello World", time)));
+    }
+
+    // A user that was renamed is a different component.
+    assertTrue(relay.write(team,
+                           secret,
+                           relay.pack(new Uuid(4), "Renamed", time),
+                           relay.pack(new Uuid(5), "Conversation", time),
+                           relay.pack(new Uuid(13), "Hello World", time)));
+
+    final List<Relay.Bundle> read = new ArrayList<>(relay.read(team, secret, Uuid.NULL, 8));
+    assertEquals(4, read.size());
+    assertSame(read.get(0).user(), read.get(1).user());
+    assertSame(read.get(0).user(), read.get(2).user());
+    assertSame(read.get(0).conversation(), read.get(3).conversation());
+    assertEquals("Renamed", read.get(3).user().text());
+
+    assertEquals(2, relay.components());
+    assertEquals(5, relay.componentReuses());
+  }
+
+  @Test
+  public void testCommit() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+    final Secret wrong = new Secret((byte)0x02, (byte)0x01, (byte)0x00);
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(Uuid.equals(Uuid.NULL, relay.committed(team, secret)));
+    assertEquals(Long.MAX_VALUE, relay.oldestCommitted());
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(10 + i), "Hello World", Time.now())));
+    }
+
+    final Uuid next = relay.poll(team, secret, Uuid.NULL, 8, 0, RelayFilter.ALL).next();
+    assertTrue(relay.commit(team, secret, next));
+    assertTrue(Uuid.equals(next, relay.committed(team, secret)));
+    assertEquals(relay.newest(), next.id());
+    assertEquals(next.id(), relay.oldestCommitted());
+
+    // A cursor the relay never made, or the wrong secret, changes nothing.
+    assertFalse(relay.commit(team, secret, new Uuid((int) relay.newest() + 1)));
+    assertFalse(relay.commit(team, secret, new Uuid(new Uuid(1), 2)));
+    assertFalse(relay.commit(team, wrong, new Uuid(1)));
+    assertNull(relay.committed(team, wrong));
+    assertTrue(Uuid.equals(next, relay.committed(team, secret)));
+    assertEquals(1, relay.commits());
+    assertEquals(2, relay.refusedCommits());
+  }
 }
@@ -15,6 +15,9 @@
 package codeu.chat.server;
 
 import static org.junit.Assert.*;
+
+import java.util.List;
+
 import org.junit.Test;
 import org.junit.Before;
 
@@ -22,6 +25,7 @@ import codeu.chat.common.BasicController;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.Message;
 import codeu.chat.common.User;
+import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 
 public final class BasicControllerTest {
@@ -89,4 +93,38 @@ public final class BasicControllerTest {
         "Check that the message has a valid reference",
         message == null);
   }
+
+  @Test
+  public void testCountAndPageMessages() {
+
+    final Controller raw = (Controller) controller;
+    final View view = new View(model);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    final ConversationHeader other = controller.newConversation("other", user.id);
+
+    final Message[] messages = new Message[10];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = raw.newMessage(new Uuid(100 + i),
+                                   user.id,
+                                   conversation.id,
+                                   "message " + i,
+                                   Time.fromMs(1000 * i));
+    }
+    controller.newMessage(user.id, other.id, "somewhere else");
+
+    assertEquals(10, view.countMessages(conversation.id));
+    assertEquals(1, view.countMessages(other.id));
+    assertEquals(4, view.countMessagesSince(conversation.id, Time.fromMs(6000)));
+
+    final List<Message> page = view.getMessagePage(conversation.id, 8, 5);
+    assertEquals(2, page.size());
+    assertSame(messages[8], page.get(0));
+    assertSame(messages[9], page.get(1));
+
+    model.remove(messages[8]);
+    assertEquals(9, view.countMessages(conversation.id));
+    assertSame(messages[9], view.getMessagePage(conversation.id, 8, 1).get(0));
+  }
 }
@@ -0,0 +1,134 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.client.core.Controller;
+import codeu.chat.client.core.View;
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.Secret;
+import codeu.chat.common.User;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+// Message counts and pages, asked for by a client and answered by a server.
+public final class MessagePageTest {
+
+  // A connection made of two pipes. The server end is handed to the server
+  // like one it accepted; the client end is returned to the caller.
+  private static final class PipeSource implements ConnectionSource {
+
+    private final Server server;
+
+    PipeSource(Server server) {
+      this.server = server;
+    }
+
+    @Override
+    public Connection connect() throws IOException {
+      final PipedInputStream serverIn = new PipedInputStream();
+      final PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+      final PipedInputStream clientIn = new PipedInputStream();
+      final PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+      server.handleConnection(connection(serverIn, serverOut));
+      return connection(clientIn, clientOut);
+    }
+
+    @Override
+    public void close() { }
+
+    private static Connection connection(final InputStream in, final OutputStream out) {
+      return new Connection() {
+        @Override
+        public InputStream in() { return in; }
+
+        @Override
+        public OutputStream out() { return out; }
+
+        @Override
+        public void close() throws IOException {
+          out.close();
+        }
+      };
+    }
+  }
+
+  private Server server;
+  private Controller controller;
+  private View view;
+
+  @Before
+  public void doBefore() {
+    server = new Server(new Uuid(1), new Secret((byte)0x00), new NoOpRelay(), 2);
+    server.start();
+    final ConnectionSource source = new PipeSource(server);
+    controller = new Controller(source);
+    view = new View(source);
+  }
+
+  @After
+  public void doAfter() {
+    server.stop();
+  }
+
+  @Test
+  public void testCountAndPage() throws Exception {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    final ConversationHeader other = controller.newConversation("other", user.id);
+
+    final Message[] messages = new Message[5];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = controller.newMessage(user.id, conversation.id, "message " + i);
+      // Keep creation times apart so that "since" falls between messages.
+      Thread.sleep(2);
+    }
+    controller.newMessage(user.id, other.id, "elsewhere");
+
+    assertEquals(5, view.countMessages(conversation.id));
+    assertEquals(1, view.countMessages(other.id));
+    assertEquals(2, view.countMessagesSince(conversation.id, messages[3].creation));
+    assertEquals(0, view.countMessagesSince(conversation.id, Time.fromMs(Long.MAX_VALUE / 2)));
+    assertEquals(0, view.countMessages(new Uuid(77)));
+
+    final List<Message> page = view.getMessagePage(conversation.id, 1, 3);
+    assertEquals(3, page.size());
+    for (int i = 0; i < page.size(); i++) {
+      assertEquals(messages[i + 1].id, page.get(i).id);
+      assertEquals("message " + (i + 1), page.get(i).content());
+    }
+
+    // Past the end is short or empty, and a negative start is the beginning.
+    assertEquals(1, view.getMessagePage(conversation.id, 4, 10).size());
+    assertTrue(view.getMessagePage(conversation.id, 5, 10).isEmpty());
+    assertEquals(messages[0].id, view.getMessagePage(conversation.id, -3, 1).get(0).id);
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class MessageTierTest {
+
+  private static final File SEGMENT_PATH = new File("storage_test", "segments");
+
+  private Model model;
+  private View view;
+  private Controller controller;
+
+  @Before
+  public void doBefore() {
+    SEGMENT_PATH.mkdirs();
+    model = new Model();
+    view = new View(model);
+    controller = new Controller(Uuid.NULL, model);
+  }
+
+  @Test
+  public void testPageOutAndIn() {
+
+    model.enableTiering(SEGMENT_PATH, 100);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    final Message first = controller.newMessage(user.id, conversation.id, "first");
+    final Message second = controller.newMessage(user.id, conversation.id, "second");
+
+    // A negative idle time makes every conversation count as idle.
+    model.evictCold(-1);
+
+    assertEquals(1, model.tier().coldConversations());
+    assertNull(model.residentMessages().first(first.id));
+
+    final Message found = view.findMessage(second.id);
+
+    assertNotNull(found);
+    assertEquals("second", found.content());
+    assertEquals(0, model.tier().coldConversations());
+    assertEquals(1, model.tier().pageIns());
+    assertNotNull(model.residentMessages().first(first.id));
+  }
+
+  @Test
+  public void testPayloadAccessPagesIn() {
+
+    model.enableTiering(SEGMENT_PATH, 100);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    controller.newMessage(user.id, conversation.id, "first");
+
+    model.evictCold(-1);
+    assertEquals(1, model.tier().coldConversations());
+
+    // Adding a message looks up the payload, which should bring the rest of the
+    // conversation back so that the chain can be extended.
+    final Message added = controller.newMessage(user.id, conversation.id, "second");
+
+    assertNotNull(added);
+    assertEquals(0, model.tier().coldConversations());
+    assertEquals(2, model.residentMessages().size());
+  }
+
+  @Test
+  public void testBudgetEvictsLeastRecentlyUsed() {
+
+    model.enableTiering(SEGMENT_PATH, 2);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader a = controller.newConversation("a", user.id);
+    final ConversationHeader b = controller.newConversation("b", user.id);
+
+    final Message inA = controller.newMessage(user.id, a.id, "a1");
+    controller.newMessage(user.id, a.id, "a2");
+    controller.newMessage(user.id, b.id, "b1");
+    controller.newMessage(user.id, b.id, "b2");
+
+    // Nothing is idle, but there are four messages for a budget of two.
+    model.evictCold(Long.MAX_VALUE / 2);
+
+    assertEquals(1, model.tier().coldConversations());
+    assertNull(model.residentMessages().first(inA.id));
+  }
+
+  @Test
+  public void testAllIncludesCold() {
+
+    model.enableTiering(SEGMENT_PATH, 100);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    controller.newMessage(user.id, conversation.id, "first");
+    controller.newMessage(user.id, conversation.id, "second");
+
+    model.evictCold(-1);
+
+    assertEquals(2, view.getMessages().size());
+    assertEquals(1, model.tier().coldConversations());
+  }
+
+  @Test
+  public void testPageOutKeepsMessagesAtSameTime() {
+
+    model.enableTiering(SEGMENT_PATH, 1);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader a = controller.newConversation("a", user.id);
+    final ConversationHeader b = controller.newConversation("b", user.id);
+
+    // Two messages in different conversations, written at the same time.
+    final Time time = Time.now();
+    final Message inA = controller.newMessage(new Uuid(1000), user.id, a.id, "a", time);
+    final Message inB = controller.newMessage(new Uuid(1001), user.id, b.id, "b", time);
+
+    // One message fits the budget, so only "a", the one used least recently,
+    // is paged out.
+    model.evictCold(Long.MAX_VALUE / 2);
+
+    assertEquals(1, model.tier().coldConversations());
+    assertNull(model.residentMessages().first(inA.id));
+    assertNotNull(model.residentMessages().first(inB.id));
+
+    int atTime = 0;
+    for (final Message message : model.messageByTime().at(time)) {
+      assertEquals(inB.id, message.id);
+      atTime += 1;
+    }
+    assertEquals(1, atTime);
+
+    // Paging "a" back in puts it back in its conversation as well (and, for
+    // the budget, pages "b" out).
+    assertEquals("a", view.findMessage(inA.id).content());
+    assertEquals(1, view.countMessages(a.id));
+    assertEquals(inA.id, model.messageByTime().first(time).id);
+  }
+}
@@ -0,0 +1,247 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayClusterTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  private final List<RelayCluster> clusters = new ArrayList<>();
+
+  // In name order, which is the order of the cluster's nodes.
+  private codeu.chat.relay.Server[] nodes;
+  private RelayCluster cluster;
+
+  @Before
+  public void doBefore() {
+    nodes = new codeu.chat.relay.Server[] {
+      node(true), node(true), node(true)
+    };
+    cluster = cluster(nodes);
+  }
+
+  @After
+  public void doAfter() {
+    for (final RelayCluster cluster : clusters) {
+      cluster.stop();
+    }
+  }
+
+  @Test
+  public void testWritesGoToOwner() throws Exception {
+
+    assertEquals(30, cluster.write(TEAM, SECRET, writes(100, 30)));
+
+    int total = 0;
+    int used = 0;
+    for (int i = 0; i < nodes.length; i++) {
+      final Collection<Relay.Bundle> bundles = nodes[i].poll(TEAM, SECRET, Uuid.NULL, 100, 0, RelayFilter.ALL).bundles();
+      for (final Relay.Bundle bundle : bundles) {
+        assertEquals(i, cluster.nodeOf(bundle.conversation().id()));
+      }
+      total += bundles.size();
+      used += bundles.isEmpty() ? 0 : 1;
+    }
+
+    assertEquals(30, total);
+    assertEquals(3, used);
+  }
+
+  @Test
+  public void testPollMergesNodes() throws Exception {
+
+    cluster.write(TEAM, SECRET, writes(100, 30));
+
+    final List<Relay.Bundle> bundles = new ArrayList<>();
+    final Uuid cursor = drain(Uuid.NULL, bundles);
+    assertEquals(30, bundles.size());
+
+    // Every node continues from its own cursor.
+    final Relay.Page empty = cluster.poll(TEAM, SECRET, cursor, 100, 0, RelayFilter.ALL);
+    assertEquals(0, empty.bundles().size());
+    assertEquals(cursor, empty.next());
+
+    cluster.write(TEAM, SECRET, writes(200, 1));
+
+    bundles.clear();
+    drain(cursor, bundles);
+    assertEquals(1, bundles.size());
+    assertEquals(new Uuid(200), bundles.get(0).conversation().id());
+  }
+
+  @Test
+  public void testCursorFromSingleRelayStartsOver() throws Exception {
+
+    cluster.write(TEAM, SECRET, writes(100, 30));
+
+    final List<Relay.Bundle> bundles = new ArrayList<>();
+    drain(new Uuid(5), bundles);
+    assertEquals(30, bundles.size());
+  }
+
+  @Test
+  public void testRefusingNodeHoldsUpBatch() throws Exception {
+
+    nodes = new codeu.chat.relay.Server[] { node(true), node(false), node(true) };
+    cluster = cluster(nodes);
+
+    final Relay.Write a = ownedBy(0);
+    final Relay.Write b = ownedBy(1);
+    final Relay.Write c = ownedBy(2);
+    final Relay.Write c2 = ownedBy(2);
+
+    // Accepted up to the first write for the node that does not know the team.
+    assertEquals(2, cluster.write(TEAM, SECRET, list(a, c, b, c2)));
+    assertEquals(0, cluster.write(TEAM, SECRET, list(b, c2)));
+
+    // The last write was taken by its node the first time, so it is not sent
+    // again.
+    assertEquals(2, nodes[2].poll(TEAM, SECRET, Uuid.NULL, 100, 0, RelayFilter.ALL).bundles().size());
+  }
+
+  @Test
+  public void testAddingNodeMovesFewConversations() {
+
+    final RelayCluster bigger = cluster(new codeu.chat.relay.Server[] {
+      node(true), node(true), node(true), node(true)
+    });
+
+    int moved = 0;
+    for (int i = 0; i < 1000; i++) {
+      final Uuid conversation = new Uuid(1000 + i);
+      final int before = cluster.nodeOf(conversation);
+      final int after = bigger.nodeOf(conversation);
+      if (before != after) {
+        // Only to the new node - everything else stays where it was.
+        assertEquals(3, after);
+        moved += 1;
+      }
+    }
+
+    // A quarter on average.
+    assertTrue(moved > 100 && moved < 450);
+  }
+
+  // Poll until there is nothing left. A poll comes back as soon as one node
+  // has bundles, so the others may take another poll or two.
+  @Test
+  public void testCommitSplitsCursor() throws Exception {
+
+    assertTrue(Uuid.equals(Uuid.NULL, cluster.committed(TEAM, SECRET)));
+
+    cluster.write(TEAM, SECRET, writes(100, 30));
+    final Uuid cursor = drain(Uuid.NULL, new ArrayList<Relay.Bundle>());
+
+    // Every node keeps its own part, and they come back together.
+    assertTrue(cluster.commit(TEAM, SECRET, cursor));
+    for (final codeu.chat.relay.Server node : nodes) {
+      assertEquals(node.newest(), node.committed(TEAM, SECRET).id());
+    }
+    assertTrue(Uuid.equals(cursor, cluster.committed(TEAM, SECRET)));
+
+    // A node that does not know the team can not say.
+    nodes = new codeu.chat.relay.Server[] { node(true), node(false), node(true) };
+    cluster = cluster(nodes);
+    assertFalse(cluster.commit(TEAM, SECRET, Uuid.NULL));
+    assertNull(cluster.committed(TEAM, SECRET));
+  }
+
+  private Uuid drain(Uuid cursor, List<Relay.Bundle> bundles) {
+    for (;;) {
+      final Relay.Page page = cluster.poll(TEAM, SECRET, cursor, 100, 0, RelayFilter.ALL);
+      bundles.addAll(page.bundles());
+      cursor = page.next();
+      if (page.bundles().isEmpty()) {
+        return cursor;
+      }
+    }
+  }
+
+  private RelayCluster cluster(codeu.chat.relay.Server[] nodes) {
+    final Map<String, Relay> named = new HashMap<>();
+    for (int i = 0; i < nodes.length; i++) {
+      named.put("localhost@" + (2201 + i), nodes[i]);
+    }
+    final RelayCluster cluster = new RelayCluster(named);
+    clusters.add(cluster);
+    return cluster;
+  }
+
+  private static codeu.chat.relay.Server node(boolean knowsTeam) {
+    final codeu.chat.relay.Server node = new codeu.chat.relay.Server(64, 64, 64, null);
+    if (knowsTeam) {
+      node.addTeam(TEAM, SECRET);
+    }
+    return node;
+  }
+
+  private Relay.Write ownedBy(int node) {
+    for (int conversation = 100; ; conversation++) {
+      if (cluster.nodeOf(new Uuid(conversation)) == node) {
+        return writes(conversation, 1).get(0);
+      }
+    }
+  }
+
+  private static List<Relay.Write> list(Relay.Write... writes) {
+    final List<Relay.Write> list = new ArrayList<>();
+    for (final Relay.Write write : writes) {
+      list.add(write);
+    }
+    return list;
+  }
+
+  // One write to each of "count" conversations, starting at "first".
+  private static List<Relay.Write> writes(int first, int count) {
+    final List<Relay.Write> writes = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      final Relay.Bundle.Component user = component(new Uuid(1), "user");
+      final Relay.Bundle.Component conversation = component(new Uuid(first + i), "conversation");
+      final Relay.Bundle.Component message = component(new Uuid(new Uuid(first + i), i), "message");
+      writes.add(new Relay.Write() {
+        @Override
+        public Relay.Bundle.Component user() { return user; }
+        @Override
+        public Relay.Bundle.Component conversation() { return conversation; }
+        @Override
+        public Relay.Bundle.Component message() { return message; }
+      });
+    }
+    return writes;
+  }
+
+  private static Relay.Bundle.Component component(Uuid id, String text) {
+    return new NoOpRelay().pack(id, text, Time.now());
+  }
+}
@@ -0,0 +1,272 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Timeline;
+import codeu.chat.util.Uuid;
+
+public final class RelayOutboxTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  // A relay that records the size of every batch, fails the first "failures"
+  // of them and then refuses the next "refusals".
+  private static final class RecordingRelay implements Relay {
+
+    final List<Integer> batches = new ArrayList<>();
+    final List<Uuid> messages = new ArrayList<>();
+    int failures;
+    int refusals;
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+      return new NoOpRelay().pack(id, text, time);
+    }
+
+    @Override
+    public boolean write(Uuid teamId,
+                         Secret teamSecret,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int write(Uuid teamId, Secret teamSecret, List<Relay.Write> writes) {
+      batches.add(writes.size());
+      if (failures > 0) {
+        failures -= 1;
+        return -1;
+      }
+      if (refusals > 0) {
+        refusals -= 1;
+        return 0;
+      }
+      for (final Relay.Write write : writes) {
+        messages.add(write.message().id());
+      }
+      return writes.size();
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public Collection<Relay.Bundle> poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs) {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public Relay.Page poll(Uuid teamId, Secret teamSecret, final Uuid root, int range, long waitMs,
+                           RelayFilter filter) {
+      return new Relay.Page() {
+        @Override
+        public Collection<Relay.Bundle> bundles() { return new ArrayList<>(); }
+        @Override
+        public Uuid next() { return root; }
+      };
+    }
+
+    @Override
+    public boolean commit(Uuid teamId, Secret teamSecret, Uuid cursor) {
+      return true;
+    }
+
+    @Override
+    public Uuid committed(Uuid teamId, Secret teamSecret) {
+      return Uuid.NULL;
+    }
+  }
+
+  private Timeline lane;
+  private RecordingRelay relay;
+
+  @Before
+  public void doBefore() {
+    lane = new Timeline("relay", 1, Integer.MAX_VALUE);
+    relay = new RecordingRelay();
+  }
+
+  @After
+  public void doAfter() {
+    lane.stop();
+    lane.join();
+  }
+
+  @Test
+  public void testFullBatchesAreSentRightAway() {
+
+    final RelayOutbox outbox = new RelayOutbox(relay, TEAM, SECRET, lane, 4, 60000, 100);
+
+    for (int i = 1; i <= 8; i++) {
+      add(outbox, i);
+    }
+    sync();
+
+    assertEquals(2, relay.batches.size());
+    assertEquals(4, (int) relay.batches.get(0));
+    assertEquals(8, outbox.sent());
+    assertEquals(0, outbox.size());
+    for (int i = 1; i <= 8; i++) {
+      assertTrue(Uuid.equals(new Uuid(i), relay.messages.get(i - 1)));
+    }
+  }
+
+  @Test
+  public void testPartialBatchIsSentAfterDelay() throws Exception {
+
+    final RelayOutbox outbox = new RelayOutbox(relay, TEAM, SECRET, lane, 64, 20, 100);
+
+    for (int i = 1; i <= 3; i++) {
+      add(outbox, i);
+    }
+    sync();
+    assertEquals(3, outbox.size());
+
+    waitFor(outbox, 3, 5000);
+
+    assertEquals(1, relay.batches.size());
+    assertEquals(3, (int) relay.batches.get(0));
+  }
+
+  @Test
+  public void testFailedBatchIsRetried() throws Exception {
+
+    relay.failures = 1;
+    relay.refusals = 1;
+    final RelayOutbox outbox = new RelayOutbox(relay, TEAM, SECRET, lane, 2, 0, 100);
+
+    for (int i = 1; i <= 5; i++) {
+      add(outbox, i);
+    }
+
+    // Two backoffs: at most 250 ms and then at most 500 ms.
+    waitFor(outbox, 5, 5000);
+
+    assertEquals(2, outbox.retries());
+    assertTrue(outbox.refused() > 0);
+    for (int i = 1; i <= 5; i++) {
+      assertTrue(Uuid.equals(new Uuid(i), relay.messages.get(i - 1)));
+    }
+  }
+
+  @Test
+  public void testOldestAreDroppedWhenFull() throws Exception {
+
+    relay.failures = 1;
+    final RelayOutbox outbox = new RelayOutbox(relay, TEAM, SECRET, lane, 2, 0, 4);
+
+    for (int i = 1; i <= 10; i++) {
+      add(outbox, i);
+    }
+
+    waitFor(outbox, 4, 5000);
+
+    assertEquals(6, outbox.dropped());
+    assertTrue(Uuid.equals(new Uuid(7), relay.messages.get(0)));
+    assertTrue(Uuid.equals(new Uuid(10), relay.messages.get(3)));
+  }
+
+  @Test
+  public void testFullLaneDropsNewMessages() throws Exception {
+
+    final Timeline full = new Timeline("relay", 1, 2);
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    try {
+      // Hold up the lane, as a relay that takes a long time to answer would.
+      full.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+      final RelayOutbox outbox = new RelayOutbox(relay, TEAM, SECRET, full, 4, 0, 100);
+      for (int i = 1; i <= 5; i++) {
+        add(outbox, i);
+      }
+
+      // Only as many as the lane holds get in. The rest are dropped right away
+      // instead of piling up behind the relay.
+      assertEquals(2, full.queued());
+      assertEquals(3, outbox.dropped());
+      assertEquals(3, full.rejected());
+
+      release.countDown();
+      final long end = System.currentTimeMillis() + 5000;
+      while (outbox.sent() < 2 && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+      assertEquals(2, outbox.sent());
+    } finally {
+      release.countDown();
+      full.stop();
+      full.join();
+    }
+  }
+
+  private void add(RelayOutbox outbox, int message) {
+    outbox.add(relay.pack(new Uuid(1), "user", Time.now()),
+               relay.pack(new Uuid(2), "conversation", Time.now()),
+               relay.pack(new Uuid(message), "message", Time.now()));
+  }
+
+  private void sync() {
+    lane.ask(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return true;
+      }
+    });
+  }
+
+  private void waitFor(RelayOutbox outbox, long sent, long timeoutMs) throws InterruptedException {
+    final long end = System.currentTimeMillis() + timeoutMs;
+    while (outbox.sent() < sent && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    sync();
+    assertEquals(sent, outbox.sent());
+  }
+}
@@ -0,0 +1,244 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCursorException;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.common.User;
+import codeu.chat.common.VersionInfo;
+import codeu.chat.util.PrometheusText;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// A server loaded from a snapshot carries on reading the relay from where the
+// snapshot left off.
+public final class ServerRestartTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+  private static final Uuid OTHER_TEAM = new Uuid(7);
+  private static final Secret OTHER_SECRET = new Secret((byte)0x03, (byte)0x04, (byte)0x05);
+
+  // An in-process relay that records where every poll starts and with which
+  // filter. Polls are not held, so that the server can be stopped right away.
+  private static final class RecordingRelay implements Relay {
+
+    final codeu.chat.relay.Server relay;
+    final List<Uuid> roots = new CopyOnWriteArrayList<>();
+    final List<RelayFilter> filters = new CopyOnWriteArrayList<>();
+    final CountDownLatch polled = new CountDownLatch(1);
+
+    RecordingRelay(codeu.chat.relay.Server relay) {
+      this.relay = relay;
+    }
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+      return relay.pack(id, text, time);
+    }
+
+    @Override
+    public boolean write(Uuid teamId,
+                         Secret teamSecret,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+      return relay.write(teamId, teamSecret, user, conversation, message);
+    }
+
+    @Override
+    public int write(Uuid teamId, Secret teamSecret, List<Relay.Write> writes) {
+      return relay.write(teamId, teamSecret, writes);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range)
+        throws RelayCursorException {
+      return relay.read(teamId, teamSecret, root, range);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs)
+        throws RelayCursorException {
+      return relay.poll(teamId, teamSecret, root, range, 0);
+    }
+
+    @Override
+    public Relay.Page poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs,
+                           RelayFilter filter) throws RelayCursorException {
+      roots.add(root);
+      filters.add(filter);
+      polled.countDown();
+      return relay.poll(teamId, teamSecret, root, range, 0, filter);
+    }
+
+    @Override
+    public boolean commit(Uuid teamId, Secret teamSecret, Uuid cursor) {
+      return relay.commit(teamId, teamSecret, cursor);
+    }
+
+    @Override
+    public Uuid committed(Uuid teamId, Secret teamSecret) {
+      return relay.committed(teamId, teamSecret);
+    }
+  }
+
+  private RecordingRelay relay;
+  private File persistenceFile;
+  private Server server;
+
+  @Before
+  public void doBefore() throws Exception {
+    final codeu.chat.relay.Server node = new codeu.chat.relay.Server(64, 64, 64, null);
+    node.addTeam(TEAM, SECRET);
+    node.addTeam(OTHER_TEAM, OTHER_SECRET);
+    relay = new RecordingRelay(node);
+    persistenceFile = File.createTempFile("persistence", ".json");
+  }
+
+  @After
+  public void doAfter() {
+    if (server != null) {
+      server.stop();
+    }
+    persistenceFile.delete();
+  }
+
+  @Test
+  public void testFirstPollContinuesFromSnapshot() throws Exception {
+
+    for (int i = 0; i < 10; i++) {
+      write(i);
+    }
+
+    // The snapshot holds the first half of what the relay has.
+    final Uuid lastSeen =
+        relay.relay.poll(TEAM, SECRET, Uuid.NULL, 5, 0, RelayFilter.ALL).next();
+    assertFalse(Uuid.equals(Uuid.NULL, lastSeen));
+
+    server = new Server(snapshot(lastSeen), relay, 2, persistenceFile);
+
+    // Nothing is read from the relay until the server is started.
+    Thread.sleep(50);
+    assertTrue(relay.roots.isEmpty());
+
+    server.start();
+    assertTrue(relay.polled.await(5, TimeUnit.SECONDS));
+    assertEquals(lastSeen, relay.roots.get(0));
+    for (final Uuid root : relay.roots) {
+      assertFalse(Uuid.equals(Uuid.NULL, root));
+    }
+  }
+
+  @Test
+  public void testOwnBundlesComeBackWhileCatchingUp() throws Exception {
+
+    for (int i = 0; i < 5; i++) {
+      write(i);
+    }
+    final Uuid lastSeen =
+        relay.relay.poll(TEAM, SECRET, Uuid.NULL, 5, 0, RelayFilter.ALL).next();
+
+    // Written by this server after its last snapshot, then lost in a crash.
+    for (int i = 5; i < 8; i++) {
+      write(TEAM, SECRET, i);
+    }
+    write(8);
+
+    server = new Server(snapshot(lastSeen), relay, 2, persistenceFile);
+    server.start();
+
+    // The three lost messages come back along with the other team's one.
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (!metrics().contains("chat_relay_bundles_total{outcome=\"added\"} 4\n")) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    assertFalse(relay.filters.get(0).excludeOwn());
+  }
+
+  private String metrics() {
+    final PrometheusText metrics = new PrometheusText();
+    server.admin().metrics(metrics);
+    return metrics.toString();
+  }
+
+  private void write(int i) {
+    write(OTHER_TEAM, OTHER_SECRET, i);
+  }
+
+  private void write(Uuid team, Secret secret, int i) {
+    final Time time = Time.fromMs(1000 + i);
+    relay.write(team, secret,
+                relay.pack(new Uuid(team, 2), "user", time),
+                relay.pack(new Uuid(team, 1), "conversation", time),
+                relay.pack(new Uuid(300 + i), "message " + i, time));
+  }
+
+  private static PersistenceFileSkeleton snapshot(final Uuid lastSeen) {
+    return new PersistenceFileSkeleton() {
+
+      @Override
+      public PersistenceFileSkeleton.ServerInfo serverInfo() {
+        return new PersistenceFileSkeleton.ServerInfo() {
+          @Override
+          public Uuid id() { return TEAM; }
+          @Override
+          public Secret secret() { return SECRET; }
+          @Override
+          public Uuid lastSeen() { return lastSeen; }
+          @Override
+          public VersionInfo version() { return new VersionInfo(); }
+        };
+      }
+
+      @Override
+      public Map<Uuid, User> users() { return Collections.<Uuid, User>emptyMap(); }
+
+      @Override
+      public Map<Uuid, ConversationHeader> conversationHeaders() {
+        return Collections.<Uuid, ConversationHeader>emptyMap();
+      }
+
+      @Override
+      public Map<Uuid, ConversationPayload> conversationPayloads() {
+        return Collections.<Uuid, ConversationPayload>emptyMap();
+      }
+
+      @Override
+      public Map<Uuid, Message> messages() { return Collections.<Uuid, Message>emptyMap(); }
+    };
+  }
+}
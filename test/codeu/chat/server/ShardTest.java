@@ -0,0 +1,160 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.Relay;
+import codeu.chat.common.User;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class ShardTest {
+
+  @Test
+  public void testIndexInRange() {
+
+    final int[] seen = new int[4];
+
+    for (int i = 0; i < 1000; i++) {
+      final int index = Shard.indexOf(new Uuid(new Uuid(7), i), seen.length);
+      assertTrue(index >= 0 && index < seen.length);
+      seen[index] += 1;
+    }
+
+    // Sequential ids should not all land on the same shard.
+    for (final int count : seen) {
+      assertTrue(count > 0);
+    }
+  }
+
+  @Test
+  public void testNewConversationBelongsToShard() {
+
+    final Shard shard = new Shard(Uuid.NULL, 2, 3);
+    final User user = new User(new Uuid(1), "user", Time.now());
+    shard.replicate(user);
+
+    try {
+      for (int i = 0; i < 20; i++) {
+        final ConversationHeader conversation = shard.controller.newConversation("conversation", user.id);
+        assertNotNull(conversation);
+        assertEquals(2, Shard.indexOf(conversation.id, 3));
+      }
+    } finally {
+      shard.timeline.stop();
+      shard.timeline.join();
+    }
+  }
+
+  @Test
+  public void testNewConversationUnknownOwner() {
+    final Shard shard = new Shard(Uuid.NULL, 0, 2);
+    try {
+      assertNull(shard.controller.newConversation("conversation", new Uuid(1)));
+    } finally {
+      shard.timeline.stop();
+      shard.timeline.join();
+    }
+  }
+
+  @Test
+  public void testAddFromRelay() {
+
+    final Shard shard = new Shard(Uuid.NULL, 0, 1);
+    final User user = new User(new Uuid(1), "user", Time.fromMs(0));
+
+    try {
+
+      // Out of order, with a repeat and a message that reuses the user's id.
+      assertEquals(3, shard.addFromRelay(Arrays.asList(user), Arrays.asList(
+          bundle(user, 10, 13, 3),
+          bundle(user, 10, 11, 1),
+          bundle(user, 10, 12, 2),
+          bundle(user, 10, 11, 1),
+          bundle(user, 10, 1, 4))));
+
+      final ConversationHeader conversation = shard.model.conversationById().first(new Uuid(10));
+      assertNotNull(conversation);
+      assertEquals(user.id, conversation.owner);
+
+      final ConversationPayload payload = shard.model.conversationPayloadById().first(new Uuid(10));
+      assertEquals(new Uuid(11), payload.firstMessage);
+      assertEquals(new Uuid(12), message(shard, 11).next);
+      assertEquals(new Uuid(13), message(shard, 12).next);
+      assertEquals(new Uuid(13), payload.lastMessage);
+
+      // The user is already known, the second message too. New messages go
+      // after the last one, even if they are older.
+      assertEquals(1, shard.addFromRelay(Arrays.asList(user), Arrays.asList(
+          bundle(user, 10, 12, 2),
+          bundle(user, 10, 14, 0))));
+
+      assertEquals(new Uuid(14), message(shard, 13).next);
+      assertEquals(new Uuid(14), payload.lastMessage);
+      assertEquals(0, shard.addFromRelay(Collections.<User>emptyList(),
+                                         Collections.<Relay.Bundle>emptyList()));
+
+    } finally {
+      shard.timeline.stop();
+      shard.timeline.join();
+    }
+  }
+
+  private static Message message(Shard shard, int id) {
+    return shard.model.messageById().first(new Uuid(id));
+  }
+
+  private static Relay.Bundle bundle(User user, int conversation, int message, long timeMs) {
+    final Relay.Bundle.Component userComponent = component(user.id, user.name, user.creation);
+    final Relay.Bundle.Component conversationComponent =
+        component(new Uuid(conversation), "conversation", Time.fromMs(0));
+    final Relay.Bundle.Component messageComponent =
+        component(new Uuid(message), "message " + message, Time.fromMs(timeMs));
+    return new Relay.Bundle() {
+      @Override
+      public Uuid id() { return new Uuid(message); }
+      @Override
+      public Time time() { return Time.fromMs(timeMs); }
+      @Override
+      public Uuid team() { return new Uuid(2); }
+      @Override
+      public Relay.Bundle.Component user() { return userComponent; }
+      @Override
+      public Relay.Bundle.Component conversation() { return conversationComponent; }
+      @Override
+      public Relay.Bundle.Component message() { return messageComponent; }
+    };
+  }
+
+  private static Relay.Bundle.Component component(final Uuid id, final String text, final Time time) {
+    return new Relay.Bundle.Component() {
+      @Override
+      public Uuid id() { return id; }
+      @Override
+      public String text() { return text; }
+      @Override
+      public Time time() { return time; }
+    };
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+public final class AdminServerTest {
+
+  private AdminServer server;
+
+  private volatile boolean ready;
+  private volatile int snapshots;
+
+  @Before
+  public void doBefore() throws IOException {
+    server = new AdminServer(0, new AdminServer.Target() {
+
+      @Override
+      public void metrics(PrometheusText out) {
+        final LatencyHistogram latency = new LatencyHistogram();
+        latency.record(2000000);
+        out.family("test_requests_total", "counter", "Requests.");
+        out.sample("test_requests_total", 3, "code", "9");
+        out.family("test_latency_seconds", "summary", "Latency.");
+        out.summary("test_latency_seconds", latency, "code", "9");
+      }
+
+      @Override
+      public boolean live() {
+        return true;
+      }
+
+      @Override
+      public boolean ready() {
+        return ready;
+      }
+
+      @Override
+      public boolean snapshot() {
+        snapshots += 1;
+        return true;
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void doAfter() {
+    server.stop();
+  }
+
+  @Test
+  public void testMetrics() throws IOException {
+
+    final HttpURLConnection connection = open("/metrics", "GET");
+    assertEquals(200, connection.getResponseCode());
+
+    final String body = read(connection.getInputStream());
+    assertTrue(body.contains("# TYPE test_requests_total counter\n"));
+    assertTrue(body.contains("test_requests_total{code=\"9\"} 3\n"));
+    assertTrue(body.contains("test_latency_seconds{code=\"9\",quantile=\"0.5\"} "));
+    assertTrue(body.contains("test_latency_seconds_count{code=\"9\"} 1\n"));
+  }
+
+  @Test
+  public void testHealthChecks() throws IOException {
+
+    assertEquals(200, open("/healthz", "GET").getResponseCode());
+
+    ready = false;
+    assertEquals(503, open("/readyz", "GET").getResponseCode());
+
+    ready = true;
+    assertEquals(200, open("/readyz", "GET").getResponseCode());
+  }
+
+  @Test
+  public void testSnapshot() throws IOException {
+
+    assertEquals(405, open("/snapshot", "GET").getResponseCode());
+    assertEquals(0, snapshots);
+
+    assertEquals(200, open("/snapshot", "POST").getResponseCode());
+    assertEquals(1, snapshots);
+  }
+
+  private HttpURLConnection open(String path, String method) throws IOException {
+    final URL url = new URL("http://127.0.0.1:" + server.port() + path);
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    return connection;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      bytes.write(buffer, 0, read);
+    }
+    in.close();
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+public final class LatencyHistogramTest {
+
+  @Test
+  public void testBucketsCoverEveryValue() {
+
+    long previous = -1;
+    for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+      final int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(LatencyHistogram.upperBoundOf(bucket) >= value);
+      assertTrue(bucket >= 0);
+      assertTrue(bucket >= LatencyHistogram.bucketOf(Math.max(0, previous)));
+      previous = value;
+    }
+
+    // Every bucket is within an eighth of the values in it.
+    for (long value = 8; value < 100000; value = value * 3 / 2) {
+      final long bound = LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(value));
+      assertTrue(bound - value <= value / 8);
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+
+    assertEquals(1000, histogram.count());
+    assertEquals(1000000, histogram.max());
+
+    final long median = histogram.percentile(0.5);
+    assertTrue(median >= 500000);
+    assertTrue(median <= 500000 + 500000 / 8);
+
+    assertEquals(1000000, histogram.percentile(1.0));
+    assertEquals(0, new LatencyHistogram().percentile(0.5));
+  }
+
+  @Test
+  public void testMerge() {
+
+    final LatencyHistogram a = new LatencyHistogram();
+    final LatencyHistogram b = new LatencyHistogram();
+    for (int i = 0; i < 100; i++) {
+      a.record(10);
+      b.record(10000);
+    }
+
+    a.merge(b);
+
+    assertEquals(200, a.count());
+    assertEquals(100 * 10 + 100 * 10000, a.sum());
+    assertEquals(10000, a.max());
+    assertTrue(a.percentile(0.5) <= 11);
+    assertTrue(a.percentile(0.51) >= 10000);
+  }
+
+  @Test
+  public void testSerializer() throws Exception {
+
+    final LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(5);
+    histogram.record(5000);
+    histogram.record(5000000);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LatencyHistogram.SERIALIZER.write(out, histogram);
+    final LatencyHistogram read =
+        LatencyHistogram.SERIALIZER.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(histogram.count(), read.count());
+    assertEquals(histogram.sum(), read.sum());
+    assertEquals(histogram.max(), read.max());
+    assertEquals(histogram.percentile(0.5), read.percentile(0.5));
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public final class LogBufferTest {
+
+  private final java.util.logging.Logger log =
+      java.util.logging.Logger.getLogger(LogBufferTest.class.getName());
+
+  private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+  private final Handler handler = new Handler() {
+    @Override
+    public void publish(LogRecord record) {
+      written.add(record.getMessage());
+    }
+
+    @Override
+    public void flush() { }
+
+    @Override
+    public void close() { }
+  };
+
+  @Before
+  public void doBefore() {
+    log.setUseParentHandlers(false);
+    log.addHandler(handler);
+  }
+
+  @After
+  public void doAfter() {
+    log.removeHandler(handler);
+  }
+
+  @Test
+  public void testFormatsInOrder() {
+
+    final LogBuffer buffer = new LogBuffer(16, Logger.DropPolicy.BLOCK);
+
+    try {
+      for (int i = 0; i < 100; i++) {
+        buffer.add(log, Level.INFO, "message %d", new Object[] { i }, null);
+      }
+      buffer.flush();
+
+      assertEquals(100, written.size());
+      for (int i = 0; i < 100; i++) {
+        assertEquals("message " + i, written.get(i));
+      }
+      assertEquals(0, buffer.dropped());
+    } finally {
+      buffer.stop();
+    }
+  }
+
+  @Test
+  public void testDropNewestNeverLosesErrors() {
+
+    final LogBuffer buffer = new LogBuffer(4, Logger.DropPolicy.DROP_NEWEST);
+
+    try {
+      for (int i = 0; i < 1000; i++) {
+        buffer.add(log, Level.INFO, "info %d", new Object[] { i }, null);
+        buffer.add(log, Level.SEVERE, "error %d", new Object[] { i }, null);
+      }
+      buffer.flush();
+
+      int errors = 0;
+      int infos = 0;
+      synchronized (written) {
+        for (final String message : written) {
+          if (message.startsWith("error")) {
+            errors += 1;
+          } else if (message.startsWith("info")) {
+            infos += 1;
+          }
+        }
+      }
+
+      assertEquals(1000, errors);
+      assertEquals(1000, infos + buffer.dropped());
+    } finally {
+      buffer.stop();
+    }
+  }
+}
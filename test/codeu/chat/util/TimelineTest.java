@@ -0,0 +1,192 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public final class TimelineTest {
+
+  @Test
+  public void testScheduleNowRunsInOrder() throws Exception {
+
+    final Timeline timeline = new Timeline("test", 1, Integer.MAX_VALUE);
+    final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(100);
+
+    try {
+      for (int i = 0; i < 100; i++) {
+        final int value = i;
+        timeline.scheduleNow(new Runnable() {
+          @Override
+          public void run() {
+            seen.add(value);
+            done.countDown();
+          }
+        });
+      }
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      for (int i = 0; i < 100; i++) {
+        assertEquals(i, (int) seen.get(i));
+      }
+    } finally {
+      timeline.stop();
+      timeline.join();
+    }
+  }
+
+  @Test
+  public void testScheduleInWaits() throws Exception {
+
+    final Timeline timeline = new Timeline("test", 1, Integer.MAX_VALUE);
+    final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(2);
+
+    try {
+      final long start = System.currentTimeMillis();
+      final long[] ranAt = new long[1];
+
+      timeline.scheduleIn(100, new Runnable() {
+        @Override
+        public void run() {
+          ranAt[0] = System.currentTimeMillis();
+          seen.add("later");
+          done.countDown();
+        }
+      });
+      timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          seen.add("now");
+          done.countDown();
+        }
+      });
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals("now", seen.get(0));
+      assertEquals("later", seen.get(1));
+      assertTrue(ranAt[0] - start >= 100);
+    } finally {
+      timeline.stop();
+      timeline.join();
+    }
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+
+    final Timeline timeline = new Timeline("test", 1, Integer.MAX_VALUE);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    final CountDownLatch marker = new CountDownLatch(1);
+
+    try {
+      final TimingWheel.Timeout timeout = timeline.scheduleIn(50, new Runnable() {
+        @Override
+        public void run() {
+          cancelled.countDown();
+        }
+      });
+      timeline.scheduleIn(150, new Runnable() {
+        @Override
+        public void run() {
+          marker.countDown();
+        }
+      });
+
+      assertTrue(timeout.cancel());
+      assertTrue(timeout.isCancelled());
+      assertFalse(timeout.cancel());
+
+      assertTrue(marker.await(5, TimeUnit.SECONDS));
+      assertEquals(1, cancelled.getCount());
+    } finally {
+      timeline.stop();
+      timeline.join();
+    }
+  }
+
+  @Test
+  public void testLongDelayCascades() throws Exception {
+
+    // More than one turn of the first level of the wheel, so the timeout has
+    // to move down a level before it runs.
+    final TimingWheel wheel = new TimingWheel(1);
+    final CountDownLatch done = new CountDownLatch(1);
+
+    try {
+      final long start = System.nanoTime();
+      wheel.schedule(300, new Runnable() {
+        @Override
+        public void run() {
+          done.countDown();
+        }
+      });
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  public void testOfferNowRespectsBound() throws Exception {
+
+    final Timeline timeline = new Timeline("test", 1, 2);
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    final Runnable nothing = new Runnable() {
+      @Override
+      public void run() { }
+    };
+
+    try {
+      // Keep the only worker busy so that everything else waits in the queue.
+      timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+      assertTrue(timeline.offerNow(nothing));
+      assertTrue(timeline.offerNow(nothing));
+      assertFalse(timeline.offerNow(nothing));
+      assertEquals(1, timeline.rejected());
+
+      // Work that is already in the system is never turned away.
+      timeline.scheduleNow(nothing);
+      assertEquals(3, timeline.queued());
+    } finally {
+      release.countDown();
+      timeline.stop();
+      timeline.join();
+    }
+  }
+}
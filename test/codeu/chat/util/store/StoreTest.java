@@ -14,7 +14,13 @@
 
 package codeu.chat.util.store;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -176,6 +182,194 @@ public final class StoreTest {
     assertOrder(store.all(), order);
   }
 
+  @Test
+  public void testStream() {
+    store.insert(2, 20);
+    store.insert(0, 0);
+    store.insert(1, 10);
+    store.insert(1, 11);
+
+    final int[] order = { 0, 10, 11, 20 };
+    assertOrder(store.stream().collect(Collectors.toList()), order);
+  }
+
+  @Test
+  public void testSplitKeepsOrderAndDuplicates() {
+
+    for (int i = 0; i < 1000; i++) {
+      store.insert(i, 2 * i);
+      store.insert(i, 2 * i + 1);
+    }
+
+    final Spliterator<Integer> second = store.spliterator();
+    final Spliterator<Integer> first = second.trySplit();
+
+    assertNotNull(first);
+
+    final List<Integer> values = new ArrayList<>();
+    first.forEachRemaining(values::add);
+    final int split = values.size();
+    second.forEachRemaining(values::add);
+
+    // Both parts have something in them and a run of equal keys is never cut.
+    assertTrue(split > 0 && split < 2000);
+    assertTrue(split % 2 == 0);
+
+    for (int i = 0; i < 2000; i++) {
+      assertTrue(values.get(i) == i);
+    }
+  }
+
+  @Test
+  public void testParallelStream() {
+
+    long expected = 0;
+    for (int i = 0; i < 10000; i++) {
+      store.insert(i % 100, i);
+      expected += i;
+    }
+
+    final long sum = store.stream().parallel().mapToLong(Integer::longValue).sum();
+    assertEquals(expected, sum);
+
+    final List<Integer> ordered = store.stream().parallel().collect(Collectors.toList());
+    assertEquals(10000, ordered.size());
+    for (int i = 1; i < ordered.size(); i++) {
+      assertTrue(ordered.get(i - 1) % 100 <= ordered.get(i) % 100);
+    }
+  }
+
+  @Test
+  public void testInsertAllIntoEmpty() {
+
+    final List<Map.Entry<Integer, Integer>> batch = new ArrayList<>();
+    batch.add(entry(3, 30));
+    batch.add(entry(1, 10));
+    batch.add(entry(2, 20));
+    batch.add(entry(1, 11));
+    batch.add(entry(0, 0));
+
+    store.insertAll(batch);
+
+    final int[] order = { 0, 10, 11, 20, 30 };
+    assertOrder(store.all(), order);
+    assertTrue(store.first(1) == 10);
+    assertTrue(store.first(3) == 30);
+
+    final int[] at = { 10, 11 };
+    assertOrder(store.at(1), at);
+  }
+
+  @Test
+  public void testInsertAllMerge() {
+
+    store.insert(0, 0);
+    store.insert(2, 20);
+    store.insert(4, 40);
+
+    final List<Map.Entry<Integer, Integer>> batch = new ArrayList<>();
+    batch.add(entry(5, 50));
+    batch.add(entry(2, 21));
+    batch.add(entry(1, 10));
+    batch.add(entry(3, 30));
+
+    store.insertAll(batch);
+
+    // Same as inserting one at a time: new values go after equal keys.
+    final int[] order = { 0, 10, 20, 21, 30, 40, 50 };
+    assertOrder(store.all(), order);
+    assertTrue(store.first(2) == 20);
+    assertTrue(store.first(5) == 50);
+
+    final int[] range = { 10, 20, 21, 30 };
+    assertOrder(store.range(1, 3), range);
+  }
+
+  @Test
+  public void testSizeWithoutOrderIndex() {
+
+    final List<Map.Entry<Integer, Integer>> batch = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      batch.add(entry(i / 2, i));
+    }
+    store.insertAll(batch);
+    store.insert(7, 70);
+    assertEquals(11, store.size());
+
+    assertTrue(store.remove(2, store.first(2)));
+    assertEquals(10, store.size());
+
+    assertTrue(store.remove(7) == 70);
+    assertEquals(9, store.size());
+    assertNull(store.remove(7));
+    assertEquals(9, store.size());
+  }
+
+  @Test
+  public void testOrderStatistics() {
+
+    final RankedStore<Integer, Integer> store = new RankedStore<>(COMPARATOR);
+
+    store.insert(3, 30);
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(2, 22);
+    store.insert(5, 50);
+
+    assertEquals(6, store.size());
+
+    assertEquals(0, store.rank(0));
+    assertEquals(1, store.rank(2));
+    assertEquals(4, store.rank(3));
+    assertEquals(5, store.rank(4));
+    assertEquals(6, store.rank(9));
+
+    assertEquals(5, store.count(2, 5));
+    assertEquals(3, store.count(2, 2));
+    assertEquals(0, store.count(4, 4));
+
+    final int[] order = { 10, 20, 21, 22, 30, 50 };
+    for (int i = 0; i < order.length; i++) {
+      assertTrue(store.select(i) == order[i]);
+    }
+    assertNull(store.select(6));
+  }
+
+  @Test
+  public void testOrderStatisticsAfterRemove() {
+
+    final RankedStore<Integer, Integer> store = new RankedStore<>(COMPARATOR);
+
+    final List<Map.Entry<Integer, Integer>> batch = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      batch.add(entry(i / 2, i));
+    }
+    store.insertAll(batch);
+
+    assertEquals(1000, store.size());
+    assertTrue(store.select(501) == 501);
+
+    final Integer target = store.select(11);
+    assertTrue(store.remove(5, target));
+    assertFalse(store.remove(5, target));
+
+    assertEquals(999, store.size());
+    assertEquals(1, store.count(5, 5));
+    assertTrue(store.select(10) == 10);
+    assertTrue(store.select(11) == 12);
+    assertTrue(store.first(5) == 10);
+
+    store.remove(5);
+    assertEquals(998, store.size());
+    assertNull(store.first(5));
+    assertTrue(store.select(10) == 12);
+  }
+
+  private static Map.Entry<Integer, Integer> entry(int key, int value) {
+    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+  }
+
   private static void assertOrder(Iterable<Integer> actual, int[] expected) {
 
     int at = 0;
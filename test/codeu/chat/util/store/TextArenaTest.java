@@ -0,0 +1,105 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class TextArenaTest {
+
+  private TextArena arena;
+
+  @Before
+  public void doBefore() {
+    arena = new TextArena();
+  }
+
+  @Test
+  public void testAddAndGet() {
+
+    final int a = arena.add("Hello World");
+    final int b = arena.add("");
+    final int c = arena.add("\u00e9t\u00e9 \u2603");
+
+    assertEquals("Hello World", arena.get(a));
+    assertEquals("", arena.get(b));
+    assertEquals("\u00e9t\u00e9 \u2603", arena.get(c));
+  }
+
+  @Test
+  public void testFreeReusesHandle() {
+
+    final int a = arena.add("first");
+    arena.free(a);
+    final int b = arena.add("second");
+
+    assertEquals(a, b);
+    assertEquals("second", arena.get(b));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGetFreed() {
+    final int a = arena.add("gone");
+    arena.free(a);
+    arena.get(a);
+  }
+
+  @Test
+  public void testMessageReadAfterRelease() {
+
+    final Message message = new Message(new Uuid(1), Uuid.NULL, Uuid.NULL, Time.now(), new Uuid(2), "body");
+    message.moveTo(arena);
+    assertEquals("body", message.content());
+
+    // The handle goes back to the arena, but the message keeps its body.
+    message.release();
+    assertEquals("body", message.content());
+    final int next = arena.add("other");
+    assertEquals("other", arena.get(next));
+    assertEquals("body", message.content());
+
+    message.release();
+    assertEquals("body", message.content());
+  }
+
+  @Test
+  public void testGrowAndCompact() {
+
+    final String body = "0123456789abcdef0123456789abcdef";
+    final int[] handles = new int[20000];
+
+    for (int i = 0; i < handles.length; i++) {
+      handles[i] = arena.add(body + i);
+    }
+
+    // Free most of the text so that the arena has to compact.
+    for (int i = 0; i < handles.length; i++) {
+      if (i % 4 != 0) {
+        arena.free(handles[i]);
+      }
+    }
+
+    assertTrue(arena.compactions() > 0);
+
+    for (int i = 0; i < handles.length; i += 4) {
+      assertEquals(body + i, arena.get(handles[i]));
+    }
+  }
+}
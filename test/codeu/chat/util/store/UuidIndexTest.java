@@ -0,0 +1,110 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.util.Uuid;
+
+public final class UuidIndexTest {
+
+  private UuidIndex<Integer> index;
+
+  @Before
+  public void doBefore() {
+    index = new UuidIndex<>();
+  }
+
+  @Test
+  public void testGetMissing() {
+    assertNull(index.get(new Uuid(1)));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testPutAndGet() {
+
+    index.putIfAbsent(new Uuid(1), 10);
+    index.putIfAbsent(new Uuid(new Uuid(1), 2), 20);
+    index.putIfAbsent(new Uuid(new Uuid(new Uuid(1), 2), 3), 30);
+
+    assertEquals(Integer.valueOf(10), index.get(new Uuid(1)));
+    assertEquals(Integer.valueOf(20), index.get(new Uuid(new Uuid(1), 2)));
+    assertEquals(Integer.valueOf(30), index.get(new Uuid(new Uuid(new Uuid(1), 2), 3)));
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void testDepthIsPartOfKey() {
+
+    // "2" and "0.2" pack to the same bits but are different ids.
+    index.putIfAbsent(new Uuid(2), 1);
+    index.putIfAbsent(new Uuid(new Uuid(0), 2), 2);
+
+    assertEquals(Integer.valueOf(1), index.get(new Uuid(2)));
+    assertEquals(Integer.valueOf(2), index.get(new Uuid(new Uuid(0), 2)));
+  }
+
+  @Test
+  public void testFirstValueWins() {
+
+    assertEquals(Integer.valueOf(1), index.putIfAbsent(new Uuid(5), 1));
+    assertEquals(Integer.valueOf(1), index.putIfAbsent(new Uuid(5), 2));
+    assertEquals(Integer.valueOf(1), index.get(new Uuid(5)));
+  }
+
+  @Test
+  public void testRemove() {
+
+    index.putIfAbsent(new Uuid(5), 1);
+
+    assertEquals(Integer.valueOf(1), index.remove(new Uuid(5)));
+    assertNull(index.get(new Uuid(5)));
+    assertNull(index.remove(new Uuid(5)));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testGrowWhileRemoving() {
+
+    final Uuid root = new Uuid(77);
+    final Random random = new Random(0);
+    final int[] ids = new int[20000];
+
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = random.nextInt();
+      index.putIfAbsent(new Uuid(root, ids[i]), i);
+
+      // Remove every third id as soon as the next one is in so that resizes
+      // happen with deleted markers in both tables.
+      if (i % 3 == 1) {
+        index.remove(new Uuid(root, ids[i - 1]));
+      }
+    }
+
+    for (int i = 0; i < ids.length; i++) {
+      final Integer found = index.get(new Uuid(root, ids[i]));
+      if (i % 3 == 0 && i + 1 < ids.length) {
+        assertNull(found);
+      } else {
+        assertEquals(Integer.valueOf(i), found);
+      }
+    }
+  }
+}